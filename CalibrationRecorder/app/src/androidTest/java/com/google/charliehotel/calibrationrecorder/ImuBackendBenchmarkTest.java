@@ -0,0 +1,107 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the CPU time the Sensors backends spend per sample, on a device:
+ *
+ *   ./gradlew connectedAndroidTest
+ *
+ * Each round opens every stream with one backend, records for a while with no sink (so
+ * storage is left out), closes, and writes one line to imu_benchmark.txt in the app's
+ * external files directory:
+ *
+ *   backend round duration_ms samples delivery_cpu_ns writer_cpu_ns cpu_ns_per_sample
+ *
+ * delivery_cpu_ns is the thread that receives the events, SensorDeliveryThread or the
+ * native looper thread; writer_cpu_ns is the ImuWriterThread draining them.  Rounds
+ * alternate between the backends so drift in sensor rates or temperature hits both.
+ * Both must deliver the same samples without ring overruns, and the native backend must
+ * not cost more per sample than the Java one.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImuBackendBenchmarkTest {
+    private static final String TAG = "CalibrationRecorder";
+
+    private static final String HEADER =
+            "# backend round duration_ms samples delivery_cpu_ns writer_cpu_ns cpu_ns_per_sample";
+    private static final String FILENAME = "imu_benchmark.txt";
+
+    private static final long DURATION_MS = 10 * 1000;
+    private static final int ROUNDS = 3;
+    private static final int[] BACKENDS = {Sensors.BACKEND_JAVA, Sensors.BACKEND_NATIVE};
+
+    // Sample counts of the backends in one round may differ by this fraction, for the
+    // few samples around open and close.
+    private static final double SAMPLE_COUNT_TOLERANCE = 0.05;
+
+    @Test
+    public void nativeBackendCostsNoMorePerSample() throws Exception {
+        assumeTrue("no native library for this ABI", NativeImuBackend.isAvailable());
+        Context context = InstrumentationRegistry.getTargetContext();
+        double[][] cpu_ns_per_sample = new double[BACKENDS.length][ROUNDS];
+        File file = new File(context.getExternalFilesDir(null), FILENAME);
+        try (Writer out = new FileWriter(file)) {
+            out.write(HEADER + "\n");
+            for (int round = 0; round < ROUNDS; ++round) {
+                long[] samples = new long[BACKENDS.length];
+                for (int b = 0; b < BACKENDS.length; ++b) {
+                    MetricsRegistry metrics = new MetricsRegistry();
+                    Sensors sensors = new Sensors(context, metrics, BACKENDS[b]);
+                    assertEquals(BACKENDS[b], sensors.getBackend());
+                    sensors.open();
+                    Thread.sleep(DURATION_MS);
+                    sensors.close();
+                    samples[b] = sensors.getSampleCount();
+                    long cpu_ns = sensors.getDeliveryCpuNs() + sensors.getWriterCpuNs();
+                    cpu_ns_per_sample[b][round] = samples[b] > 0 ? (double) cpu_ns / samples[b] : 0.0;
+                    String line = String.format(Locale.US, "%s %d %d %d %d %d %.1f", backendName(BACKENDS[b]),
+                            round, DURATION_MS, samples[b], sensors.getDeliveryCpuNs(), sensors.getWriterCpuNs(),
+                            cpu_ns_per_sample[b][round]);
+                    Log.i(TAG, "IMU benchmark: " + line);
+                    out.write(line + "\n");
+                    out.flush();
+
+                    assertTrue(line, samples[b] > 0);
+                    for (String name : sensors.getStreamNames()) {
+                        assertEquals(name + " overruns", 0, metrics.counter(name + ".ring_overruns").get());
+                    }
+                }
+                assertEquals("samples in round " + round, samples[0], samples[1],
+                        SAMPLE_COUNT_TOLERANCE * samples[0]);
+            }
+        }
+        Log.i(TAG, "IMU benchmark written to " + file);
+
+        double java_ns = median(cpu_ns_per_sample[0]);
+        double native_ns = median(cpu_ns_per_sample[1]);
+        assertTrue(String.format(Locale.US, "native %.1f ns/sample, java %.1f ns/sample", native_ns, java_ns),
+                native_ns <= java_ns);
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static String backendName(int backend) {
+        return backend == Sensors.BACKEND_NATIVE ? "native" : "java";
+    }
+}
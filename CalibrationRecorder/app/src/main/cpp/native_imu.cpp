@@ -0,0 +1,276 @@
+// Native backend of Sensors: an NDK sensor event queue on a looper thread of its own,
+// writing into a DirectImuRing shared with Java.  The ring layout is documented in
+// DirectImuRing.java; keep the two in sync.
+
+#include <jni.h>
+#include <stdint.h>
+#include <string.h>
+#include <time.h>
+
+#include <atomic>
+#include <condition_variable>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+#include <android/log.h>
+#include <android/looper.h>
+#include <android/sensor.h>
+
+#define TAG "CalibrationRecorder"
+
+#define LOG(priority, fmt...) \
+  __android_log_print(ANDROID_LOG_##priority, TAG, fmt)
+
+namespace {
+
+constexpr int32_t kMagic = 0x494d5552;  // "IMUR"
+constexpr int32_t kVersion = 1;
+constexpr int kMaxValues = 6;  // ImuLogFormat.MAX_VALUES
+
+constexpr size_t kMagicOffset = 0;
+constexpr size_t kVersionOffset = 4;
+constexpr size_t kCapacityOffset = 8;
+constexpr size_t kRecordSizeOffset = 12;
+constexpr size_t kHeadOffset = 64;
+constexpr size_t kTailOffset = 128;
+constexpr size_t kOverrunsOffset = 192;
+constexpr size_t kHeaderSize = 256;
+constexpr size_t kMaxStreams = (kHeaderSize - kOverrunsOffset) / 8;
+
+struct Record {
+  int64_t timestamp_ns;
+  int64_t arrival_ns;
+  int32_t stream;
+  int32_t value_count;
+  float values[kMaxValues];
+};
+static_assert(sizeof(Record) == 48, "Record must match DirectImuRing.RECORD_SIZE");
+
+constexpr int kLooperId = 1;
+constexpr int kEventBatch = 64;
+
+int64_t Now(clockid_t clock) {
+  struct timespec ts;
+  clock_gettime(clock, &ts);
+  return static_cast<int64_t>(ts.tv_sec) * 1000000000 + ts.tv_nsec;
+}
+
+template <typename T>
+T *At(uint8_t *ring, size_t offset) {
+  return reinterpret_cast<T *>(ring + offset);
+}
+
+struct Stream {
+  int sensor_type;
+  int period_us;
+  int values_per_sample;
+  const ASensor *sensor;
+};
+
+class Producer {
+ public:
+  Producer(uint8_t *ring, jobject ring_ref, std::vector<Stream> streams)
+      : ring_(ring),
+        ring_ref_(ring_ref),
+        capacity_(*At<int32_t>(ring, kCapacityOffset)),
+        records_(At<Record>(ring, kHeaderSize)),
+        streams_(std::move(streams)) {
+  }
+
+  jobject ring_ref() const { return ring_ref_; }
+
+  // Returns once the sensors are enabled, or failed to be.
+  bool Start() {
+    thread_ = std::thread(&Producer::Run, this);
+    std::unique_lock<std::mutex> lock(mutex_);
+    started_cv_.wait(lock, [this] { return started_; });
+    if (!running_) {
+      thread_.join();
+    }
+    return running_;
+  }
+
+  // Returns the thread's CPU time.
+  int64_t Stop() {
+    stop_requested_.store(true);
+    {
+      std::lock_guard<std::mutex> lock(mutex_);
+      if (looper_) {
+        ALooper_wake(looper_);
+      }
+    }
+    thread_.join();
+    return thread_cpu_ns_;
+  }
+
+ private:
+  void Run() {
+    ALooper *looper = ALooper_prepare(ALOOPER_PREPARE_ALLOW_NON_CALLBACKS);
+    ASensorManager *manager = ASensorManager_getInstance();
+    ASensorEventQueue *queue =
+        ASensorManager_createEventQueue(manager, looper, kLooperId, nullptr, nullptr);
+    bool ok = queue != nullptr;
+    for (auto &stream : streams_) {
+      stream.sensor = ok ? ASensorManager_getDefaultSensor(manager, stream.sensor_type) : nullptr;
+      if (!stream.sensor) {
+        LOG(ERROR, "native_imu: no sensor of type %d", stream.sensor_type);
+        ok = false;
+        break;
+      }
+      ASensorEventQueue_enableSensor(queue, stream.sensor);
+      ASensorEventQueue_setEventRate(queue, stream.sensor, stream.period_us);
+    }
+    {
+      std::lock_guard<std::mutex> lock(mutex_);
+      looper_ = looper;
+      running_ = ok;
+      started_ = true;
+    }
+    started_cv_.notify_all();
+
+    ASensorEvent events[kEventBatch];
+    while (ok && !stop_requested_.load()) {
+      int result = ALooper_pollOnce(-1, nullptr, nullptr, nullptr);
+      if (result == ALOOPER_POLL_ERROR) {
+        LOG(ERROR, "native_imu: ALooper error");
+        break;
+      }
+      if (result != kLooperId) {
+        continue;
+      }
+      ssize_t n;
+      while ((n = ASensorEventQueue_getEvents(queue, events, kEventBatch)) > 0) {
+        int64_t arrival_ns = Now(CLOCK_BOOTTIME);
+        for (ssize_t i = 0; i < n; ++i) {
+          Offer(events[i], arrival_ns);
+        }
+      }
+    }
+
+    if (queue) {
+      for (const auto &stream : streams_) {
+        if (stream.sensor) {
+          ASensorEventQueue_disableSensor(queue, stream.sensor);
+        }
+      }
+      ASensorManager_destroyEventQueue(manager, queue);
+    }
+    {
+      std::lock_guard<std::mutex> lock(mutex_);
+      looper_ = nullptr;
+    }
+    thread_cpu_ns_ = Now(CLOCK_THREAD_CPUTIME_ID);
+  }
+
+  void Offer(const ASensorEvent &event, int64_t arrival_ns) {
+    int stream_index = -1;
+    for (size_t s = 0; s < streams_.size(); ++s) {
+      if (streams_[s].sensor_type == event.type) {
+        stream_index = static_cast<int>(s);
+        break;
+      }
+    }
+    if (stream_index < 0) {
+      return;
+    }
+    int64_t head = *At<int64_t>(ring_, kHeadOffset);
+    int64_t tail = __atomic_load_n(At<int64_t>(ring_, kTailOffset), __ATOMIC_ACQUIRE);
+    if (head - tail >= capacity_) {
+      ++*At<int64_t>(ring_, kOverrunsOffset + 8 * stream_index);
+      return;
+    }
+    Record *record = &records_[head & (capacity_ - 1)];
+    const Stream &stream = streams_[stream_index];
+    record->timestamp_ns = event.timestamp;
+    record->arrival_ns = arrival_ns;
+    record->stream = stream_index;
+    record->value_count = stream.values_per_sample;
+    memcpy(record->values, event.data, sizeof(float) * stream.values_per_sample);
+    __atomic_store_n(At<int64_t>(ring_, kHeadOffset), head + 1, __ATOMIC_RELEASE);
+  }
+
+  uint8_t *const ring_;
+  const jobject ring_ref_;
+  const int64_t capacity_;
+  Record *const records_;
+  std::vector<Stream> streams_;
+
+  std::thread thread_;
+  std::mutex mutex_;
+  std::condition_variable started_cv_;
+  bool started_ = false;
+  bool running_ = false;
+  ALooper *looper_ = nullptr;
+  std::atomic<bool> stop_requested_{false};
+  int64_t thread_cpu_ns_ = 0;
+};
+
+uint8_t *RingAddress(JNIEnv *env, jobject ring) {
+  return static_cast<uint8_t *>(env->GetDirectBufferAddress(ring));
+}
+
+}  // namespace
+
+extern "C" {
+
+JNIEXPORT jlong JNICALL
+Java_com_google_charliehotel_calibrationrecorder_NativeImuBackend_nativeStart(
+    JNIEnv *env, jclass, jobject ring, jintArray sensor_types, jintArray periods_us,
+    jintArray values_per_sample) {
+  uint8_t *address = RingAddress(env, ring);
+  if (!address || *At<int32_t>(address, kMagicOffset) != kMagic ||
+      *At<int32_t>(address, kVersionOffset) != kVersion ||
+      *At<int32_t>(address, kRecordSizeOffset) != static_cast<int32_t>(sizeof(Record))) {
+    LOG(ERROR, "native_imu: not a version %d IMU ring", kVersion);
+    return 0;
+  }
+  jsize count = env->GetArrayLength(sensor_types);
+  if (static_cast<size_t>(count) > kMaxStreams) {
+    LOG(ERROR, "native_imu: more than %zu streams", kMaxStreams);
+    return 0;
+  }
+  std::vector<jint> types(count), periods(count), widths(count);
+  env->GetIntArrayRegion(sensor_types, 0, count, types.data());
+  env->GetIntArrayRegion(periods_us, 0, count, periods.data());
+  env->GetIntArrayRegion(values_per_sample, 0, count, widths.data());
+  std::vector<Stream> streams;
+  for (jsize i = 0; i < count; ++i) {
+    if (widths[i] < 1 || widths[i] > kMaxValues) {
+      LOG(ERROR, "native_imu: values_per_sample out of range: %d", widths[i]);
+      return 0;
+    }
+    streams.push_back(Stream{types[i], periods[i], widths[i], nullptr});
+  }
+  Producer *producer = new Producer(address, env->NewGlobalRef(ring), std::move(streams));
+  if (!producer->Start()) {
+    env->DeleteGlobalRef(producer->ring_ref());
+    delete producer;
+    return 0;
+  }
+  return reinterpret_cast<jlong>(producer);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_google_charliehotel_calibrationrecorder_NativeImuBackend_nativeStop(
+    JNIEnv *env, jclass, jlong handle) {
+  Producer *producer = reinterpret_cast<Producer *>(handle);
+  int64_t thread_cpu_ns = producer->Stop();
+  env->DeleteGlobalRef(producer->ring_ref());
+  delete producer;
+  return thread_cpu_ns;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_google_charliehotel_calibrationrecorder_NativeImuBackend_nativeLoadAcquire(
+    JNIEnv *env, jclass, jobject ring, jint offset) {
+  return __atomic_load_n(At<int64_t>(RingAddress(env, ring), offset), __ATOMIC_ACQUIRE);
+}
+
+JNIEXPORT void JNICALL
+Java_com_google_charliehotel_calibrationrecorder_NativeImuBackend_nativeStoreRelease(
+    JNIEnv *env, jclass, jobject ring, jint offset, jlong value) {
+  __atomic_store_n(At<int64_t>(RingAddress(env, ring), offset), value, __ATOMIC_RELEASE);
+}
+
+}  // extern "C"
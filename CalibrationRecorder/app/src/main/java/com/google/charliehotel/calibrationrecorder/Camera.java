@@ -8,31 +8,40 @@ import android.graphics.ImageFormat;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraConstrainedHighSpeedCaptureSession;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
+import android.media.MediaCodec;
 import android.media.ImageReader;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
+import android.view.Surface;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
 class Camera {
     private static final String TAG = "CalibrationRecorder";
@@ -43,24 +52,323 @@ class Camera {
     private static final int CAMERA2_MAX_PREVIEW_WIDTH = 1920;
     private static final int CAMERA2_MAX_PREVIEW_HEIGHT = 1080;
 
-    private static final int CAMERA_TIMESTAMP_OFFSET_NS = 0;
+    static final int IMAGE_WRITER_THREADS = 2;
+    static final int IMAGE_WRITER_QUEUE_DEPTH = 4;
 
-    private static final int MAX_IMAGE_READER_IMAGES = 4;
+    // Every image held by the writer pool is an ImageReader buffer; keep one spare for
+    // the listener to acquire so the reader never runs dry while the pool is saturated.
+    static final int MAX_IMAGE_READER_IMAGES =
+            IMAGE_WRITER_THREADS + IMAGE_WRITER_QUEUE_DEPTH + 1;
 
-    private static final float SCALE_FACTOR = 1.0f;
+    // Per-frame logging is compiled out unless this is set; use the metrics instead.
+    private static final boolean LOG_EVERY_FRAME = false;
 
-    Camera(@NonNull Context context, @NonNull String cameraId) {
+    // Capture results remembered for matching against images by timestamp.
+    private static final int CAPTURE_TIMES_TRACKED = 16;
+
+    // Used when the device has no output sizes for the capture profile's format.
+    private static final CaptureProfile FALLBACK_CAPTURE_PROFILE = CaptureProfile.DEFAULT;
+
+    // How long awaitOutputsReleased() waits for the background thread.
+    private static final long OUTPUTS_RELEASE_TIMEOUT_MS = 1000;
+
+    // With target selection, full-resolution images wait this many deep for their
+    // low-res frame to be decided; the oldest is written undecided when more arrive.
+    // The detector takes a few ms a frame, so it is rarely more than one behind.
+    private static final int SELECTION_WAIT_IMAGES = 2;
+
+    // Low-res stream for target selection: about this wide, the aspect of the images.
+    private static final int SELECTION_WIDTH = 640;
+    private static final int SELECTION_DETECTOR_THREADS = 2;
+
+    // Video modes.  Video is encoded in-process from a surface in the capture session,
+    // beside the ImageReader or instead of it while a take is being recorded.
+    static final int VIDEO_NONE = 0;
+    static final int VIDEO_BESIDE_IMAGES = 1;
+    static final int VIDEO_INSTEAD_OF_IMAGES = 2;
+
+    // Images left out on purpose keep their index, so the indices of a take stay in step
+    // with its capture results.  Each one is logged to the skipped images writer with its
+    // timestamp, as in the metadata log, and the reason: SKIP_DECIMATED by the storage
+    // governor, or the FrameSelector reason of a target selection reject.  RunVerifier
+    // does not count these gaps as missing images.
+    static final String SKIPPED_IMAGES_LOG_HEADER = "# image_index timestamp_ns reason";
+    static final String SKIP_DECIMATED = "decimated";
+
+    interface FrameListener {
+        /**
+         * Called on the camera's background thread for every completed capture.
+         * exposure_ns and skew_ns are CaptureMetadataFormat.MISSING if not reported.
+         */
+        void onFrame(long timestamp_ns, long frame_number, long exposure_ns, long skew_ns);
+    }
+
+    Camera(@NonNull Context context, @NonNull String cameraId, @NonNull MetricsRegistry metrics) {
         mContext = context;
         mCameraId = cameraId;
+        String prefix = "camera" + cameraId + ".";
+        mCapturedFrames = metrics.counter(prefix + "captured_frames");
+        mWrittenImages = metrics.counter(prefix + "written_images");
+        mDroppedImages = metrics.counter(prefix + "dropped_images");
+        mFailedImages = metrics.counter(prefix + "failed_images");
+        mFailedCaptures = metrics.counter(prefix + "failed_captures");
+        mDecimatedImages = metrics.counter(prefix + "decimated_images");
+        mUnmatchedImages = metrics.counter(prefix + "images_without_capture_result");
+        mCaptureToImageAvailableNs = metrics.histogram(prefix + "capture_to_image_available_ns");
+        mImageQueueWaitNs = metrics.histogram(prefix + "image_queue_wait_ns");
+        mImageWriteNs = metrics.histogram(prefix + "image_write_ns");
+        mImageAvailableToDiskNs = metrics.histogram(prefix + "image_available_to_disk_ns");
+        mWriterQueueDepth = metrics.histogram(prefix + "writer_queue_depth");
+        mSelectedImages = metrics.counter(prefix + "selected_images");
+        mRejectedImages = metrics.counter(prefix + "rejected_images");
+        mTargetDetectionNs = metrics.histogram(prefix + "target_detection_ns");
         mCameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+        mLatencyEstimator = new DeliveryLatencyEstimator("camera" + cameraId);
     }
 
-    void setImageDir(@NonNull File imageDir) {
-        mImageDir = imageDir;
+    /**
+     * Where frames are written.  Images go to the container if there is one, else one
+     * file per image to the image directory.  With a video mode set, video goes to the
+     * video file and its frame timestamps to the video frames writer (see
+     * VideoTimestampMap).  With target selection, every image's decision goes to the
+     * frame selection writer (see TargetFrameFilter.SELECTION_LOG_HEADER).  Images left
+     * out on purpose go to the skipped images writer (see SKIPPED_IMAGES_LOG_HEADER).
+     */
+    static class Outputs {
+        Outputs(@Nullable File image_dir, @Nullable FrameContainerWriter frame_container,
+                @NonNull Writer metadata_writer) {
+            this(image_dir, frame_container, metadata_writer, null, null);
+        }
+
+        Outputs(@Nullable File image_dir, @Nullable FrameContainerWriter frame_container,
+                @NonNull Writer metadata_writer, @Nullable File video_file,
+                @Nullable Writer video_frames_writer) {
+            this(image_dir, frame_container, metadata_writer, video_file, video_frames_writer, null);
+        }
+
+        Outputs(@Nullable File image_dir, @Nullable FrameContainerWriter frame_container,
+                @NonNull Writer metadata_writer, @Nullable File video_file,
+                @Nullable Writer video_frames_writer, @Nullable Writer frame_selection_writer) {
+            this(image_dir, frame_container, metadata_writer, video_file, video_frames_writer,
+                    frame_selection_writer, null);
+        }
+
+        Outputs(@Nullable File image_dir, @Nullable FrameContainerWriter frame_container,
+                @NonNull Writer metadata_writer, @Nullable File video_file,
+                @Nullable Writer video_frames_writer, @Nullable Writer frame_selection_writer,
+                @Nullable Writer skipped_images_writer) {
+            mImageDir = image_dir;
+            mFrameContainer = frame_container;
+            mMetadataWriter = metadata_writer;
+            mVideoFile = video_file;
+            mVideoFramesWriter = video_frames_writer;
+            mFrameSelectionWriter = frame_selection_writer;
+            mSkippedImagesWriter = skipped_images_writer;
+        }
+
+        private boolean hasVideo() {
+            return mVideoFile != null && mVideoFramesWriter != null;
+        }
+
+        private final File mImageDir;
+        private final FrameContainerWriter mFrameContainer;
+        private final Writer mMetadataWriter;
+        private final File mVideoFile;
+        private final Writer mVideoFramesWriter;
+        private final Writer mFrameSelectionWriter;
+        private final Writer mSkippedImagesWriter;
+        // Index of the next image written to these outputs, so each take's images start
+        // at 00000.  Background thread only.
+        private int mNextImageIndex;
     }
 
-    void setMetadataWriter(@NonNull FileWriter metadataWriter) {
-        mMetadataWriter = metadataWriter;
+    /**
+     * Switches outputs, which may be done while the camera is open.  With no outputs,
+     * frames are captured but not written, so the session stays warm between takes.
+     * Previous outputs must stay open until awaitOutputsReleased() returns.
+     */
+    void setOutputs(@Nullable Outputs outputs) {
+        mOutputs = outputs;
+        VideoEncoder encoder = mVideoEncoder;
+        if (encoder == null) {
+            return;
+        }
+        if (outputs != null && outputs.hasVideo() && !encoder.isRecording()) {
+            try {
+                encoder.start(outputs.mVideoFile, new VideoTimestampMap(outputs.mVideoFramesWriter));
+                mVideoActive = true;
+            } catch (IOException e) {
+                Log.e(TAG, "camera " + mCameraId + " could not start video: " + e);
+            }
+        } else {
+            mVideoActive = false;
+        }
+        if (mHighSpeedRequests == null) {
+            // High-speed requests always target the encoder; replacing the burst would
+            // only cost frames.
+            updateRepeatingRequest();
+        }
+    }
+
+    /**
+     * Waits until frames that may have seen outputs replaced by setOutputs() are written.
+     * Must not be called on the camera's background thread.
+     */
+    void awaitOutputsReleased() {
+        // Callbacks run in order, so once this one has run no earlier one is still
+        // writing metadata or submitting images.  Images still waiting for selection
+        // were captured for the previous outputs; write them there, undecided.
+        if (!runOnBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                drainAwaitingImages(true);
+            }
+        })) {
+            return;
+        }
+        VideoEncoder encoder = mVideoEncoder;
+        if (encoder != null && !mVideoActive) {
+            // The last captures sent to the encoder are in; end the file.
+            encoder.stop();
+        }
+        ImageWriterPool pool = mImageWriterPool;
+        if (pool != null) {
+            try {
+                pool.awaitIdle();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Runs the task on the background thread and waits for it, unless the camera is
+    // closed.  Returns false if interrupted.
+    private boolean runOnBackgroundThread(@NonNull final Runnable task) {
+        Handler handler = mCameraBackgroundHandler;
+        if (handler == null) {
+            return true;
+        }
+        final CountDownLatch barrier = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                task.run();
+                barrier.countDown();
+            }
+        });
+        try {
+            if (!barrier.await(OUTPUTS_RELEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "camera " + mCameraId + " background thread did not drain");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sets what to capture; takes effect at the next open().  The format is JPEG,
+     * YUV_420_888 or RAW_SENSOR.  The uncompressed formats skip the ISP's JPEG encoder and
+     * its artifacts; convert them offline with RawImageConverter.
+     */
+    void setCaptureProfile(@NonNull CaptureProfile profile) {
+        mCaptureProfile = profile;
+    }
+
+    /**
+     * Sets the video mode, VIDEO_NONE or one of the others with an encoder config; takes
+     * effect at the next open().
+     */
+    void setVideoMode(int video_mode, @Nullable VideoEncoder.Config config) {
+        if (video_mode != VIDEO_NONE && config == null) {
+            throw new IllegalArgumentException("Video mode " + video_mode + " needs an encoder config");
+        }
+        mVideoMode = video_mode;
+        mVideoConfig = config;
+    }
+
+    /**
+     * Captures at 120 fps or more in a constrained high-speed session; takes effect at the
+     * next open().  Such a session only feeds preview and encoder surfaces, so it needs a
+     * video mode and writes no images, whichever mode is set; the metadata log still gets
+     * one line per frame.  Size and fps range come from the capture profile (see
+     * StreamConfigSelector.selectHighSpeed()).  Falls back to a regular session if the
+     * device has no high-speed configurations.
+     */
+    void setHighSpeed(boolean high_speed) {
+        mHighSpeed = high_speed;
+    }
+
+    /**
+     * Writes only the images in which a low-res stream beside them shows the calibration
+     * target, sharp and in a pose not already seen (see TargetFrameFilter); takes effect
+     * at the next open().  Ignored by a high-speed session, which writes no images.
+     */
+    void setTargetSelection(boolean target_selection) {
+        mTargetSelection = target_selection;
+    }
+
+    /**
+     * What the device supports, valid after open().
+     */
+    @Nullable
+    StreamConfigSelector.Capabilities getCapabilities() {
+        return mCapabilities;
+    }
+
+    /**
+     * The configuration chosen for the capture profile, valid after open().
+     */
+    @Nullable
+    StreamConfigSelector.Selection getSelection() {
+        return mSelection;
+    }
+
+    /**
+     * Frame rate measured from sensor timestamps since open(), or zero before two frames.
+     */
+    double getAchievedFps() {
+        long frames = mFramesSinceOpen;
+        if (frames < 2) {
+            return 0;
+        }
+        return (frames - 1) * 1e9 / (mLastFrameTimestampNs - mFirstFrameTimestampNs);
+    }
+
+    String getCameraId() {
+        return mCameraId;
+    }
+
+    void setTimestampOffset(@NonNull TimestampOffsetProfile profile) {
+        mTimestampOffsetNs = profile.getCameraOffsetNs();
+    }
+
+    @NonNull
+    DeliveryLatencyEstimator getLatencyEstimator() {
+        return mLatencyEstimator;
+    }
+
+    /**
+     * One of the CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_* values, valid after open().
+     */
+    int getTimestampSource() {
+        return mTimestampSource;
+    }
+
+    /**
+     * Lets the governor decimate the images to write, and tells it how writing goes.
+     */
+    void setStorageGovernor(@Nullable StorageGovernor governor) {
+        mStorageGovernor = governor;
+    }
+
+    int getImageWriterThreads() {
+        return IMAGE_WRITER_THREADS;
+    }
+
+    void setFrameListener(@NonNull FrameListener listener) {
+        mFrameListener = listener;
     }
 
     void open() {
@@ -71,6 +379,7 @@ class Camera {
         try {
             CameraCharacteristics camera_characteristics = mCameraManager.getCameraCharacteristics(mCameraId);
             int timestamp_source = camera_characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            mTimestampSource = timestamp_source;
             if (timestamp_source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME) {
                 Log.i(TAG, "Camera " + mCameraId + " time source is realtime");
             } else if (timestamp_source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_UNKNOWN) {
@@ -81,7 +390,10 @@ class Camera {
                 throw new RuntimeException("Time out waiting to lock camera opening.");
             }
             Log.i(TAG, "Opening camera");
+            mFramesSinceOpen = 0;
             startBackgroundThread();
+            mImageWriterPool = new ImageWriterPool("ImageWriter" + mCameraId,
+                    IMAGE_WRITER_THREADS, IMAGE_WRITER_QUEUE_DEPTH, mImageWriterListener);
             setUpOutputs();
             mCameraManager.openCamera(mCameraId, mCameraDeviceStateCallback, mCameraBackgroundHandler);
         } catch (CameraAccessException e) {
@@ -99,30 +411,163 @@ class Camera {
             CameraCharacteristics characteristics
                     = mCameraManager.getCameraCharacteristics(mCameraId);
 
-            StreamConfigurationMap map = characteristics.get(
-                    CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            assert map != null;
-            //Log.i(TAG, "scaler map: " + map)i
-
-            Size largest = Collections.max(
-                    Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
-                    new CompareSizesByArea());
-            Log.i(TAG, "Largest output is " + largest);
-            int width = largest.getWidth();
-            int height = largest.getHeight();
-            width = Math.round(width * SCALE_FACTOR);
-            height = Math.round(height * SCALE_FACTOR);
-            Log.i(TAG, "using " + width + " x " + height);
-            mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
-                    ImageFormat.JPEG, /*maxImages*/ MAX_IMAGE_READER_IMAGES);
-            assert mImageReader != null;
-            mImageReader.setOnImageAvailableListener(
-                    mOnImageAvailableListener, mCameraBackgroundHandler);
+            mCapabilities = readCapabilities(characteristics);
+            Log.i(TAG, "capture profile " + mCaptureProfile);
+            mSelection = mHighSpeed ? selectHighSpeed() : null;
+            if (mSelection == null) {
+                mSelection = StreamConfigSelector.select(mCapabilities, mCaptureProfile,
+                        FALLBACK_CAPTURE_PROFILE);
+                if (mSelection.getStreamConfig().getFormat() != mCaptureProfile.getFormat()) {
+                    Log.e(TAG, "Camera " + mCameraId + " does not support output format "
+                            + mCaptureProfile.getFormat() + "; falling back to " + FALLBACK_CAPTURE_PROFILE);
+                }
+            }
+            Log.i(TAG, "camera " + mCameraId + " using " + mSelection);
+            if (!mSelection.meetsMinFps()) {
+                Log.w(TAG, "camera " + mCameraId + " cannot reach " + mCaptureProfile.getMinFps() + " fps");
+            }
+            StreamConfigSelector.StreamConfig config = mSelection.getStreamConfig();
+            mOutputFormat = config.getFormat();
+            if (!mSelection.isHighSpeed()) {
+                if (mTargetSelection) {
+                    mTargetFilter = createTargetFilter(config);
+                }
+                int max_images = MAX_IMAGE_READER_IMAGES + (mTargetFilter != null ? SELECTION_WAIT_IMAGES : 0);
+                mImageReader = ImageReader.newInstance(config.getWidth(), config.getHeight(),
+                        mOutputFormat, max_images);
+                assert mImageReader != null;
+                mImageReader.setOnImageAvailableListener(
+                        mOnImageAvailableListener, mCameraBackgroundHandler);
+            }
+            if (mVideoMode != VIDEO_NONE) {
+                StreamConfigurationMap map = characteristics.get(
+                        CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+                // A high-speed session only takes its own sizes.
+                Size video_size = mSelection.isHighSpeed() ? new Size(config.getWidth(), config.getHeight())
+                        : selectVideoSize(map, config.getWidth(), config.getHeight());
+                try {
+                    mVideoEncoder = new VideoEncoder("VideoEncoder" + mCameraId, mVideoConfig,
+                            video_size.getWidth(), video_size.getHeight(),
+                            (int) Math.round(mSelection.getPredictedFps()));
+                } catch (IOException e) {
+                    Log.e(TAG, "camera " + mCameraId + " could not create video encoder: " + e);
+                }
+            }
         } catch (CameraAccessException e) {
             Log.e(TAG, "setUpOutputs: CamearAccessException");
         }
     }
 
+    @Nullable
+    private StreamConfigSelector.Selection selectHighSpeed() {
+        if (mVideoMode == VIDEO_NONE) {
+            Log.e(TAG, "camera " + mCameraId + " high-speed capture needs a video mode; using a regular session");
+            return null;
+        }
+        StreamConfigSelector.Selection selection;
+        try {
+            selection = StreamConfigSelector.selectHighSpeed(mCapabilities, mCaptureProfile);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "camera " + mCameraId + " has no high-speed configurations; using a regular session");
+            return null;
+        }
+        if (mCaptureProfile.getExposureMode() != CaptureProfile.EXPOSURE_AUTO) {
+            Log.w(TAG, "camera " + mCameraId + " high-speed requests ignore manual exposure; using auto");
+        }
+        return selection;
+    }
+
+    // The low-res YUV stream matches the images' aspect and frame rate, so that every
+    // image has a low-res frame with the same SENSOR_TIMESTAMP.
+    @Nullable
+    private TargetFrameFilter createTargetFilter(@NonNull StreamConfigSelector.StreamConfig config) {
+        int height = Math.max(1, Math.round((float) SELECTION_WIDTH * config.getHeight() / config.getWidth()));
+        StreamConfigSelector.Selection selection;
+        try {
+            selection = StreamConfigSelector.select(mCapabilities, new CaptureProfile(ImageFormat.YUV_420_888,
+                    SELECTION_WIDTH, height, mCaptureProfile.getMinFps(), mCaptureProfile.getMaxFps(),
+                    CaptureProfile.EXPOSURE_AUTO, CaptureProfile.UNSPECIFIED, CaptureProfile.UNSPECIFIED));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "camera " + mCameraId + " has no YUV stream for target selection; writing every image");
+            return null;
+        }
+        StreamConfigSelector.StreamConfig low_res = selection.getStreamConfig();
+        Log.i(TAG, "camera " + mCameraId + " selecting frames on " + low_res.getWidth() + "x"
+                + low_res.getHeight());
+        return new TargetFrameFilter("TargetFilter" + mCameraId, low_res.getWidth(), low_res.getHeight(),
+                SELECTION_DETECTOR_THREADS, mTargetDetectionNs, mTargetFilterListener);
+    }
+
+    /**
+     * Returns the encoder size closest in area to the image size.
+     */
+    @NonNull
+    private static Size selectVideoSize(@NonNull StreamConfigurationMap map, int width, int height) {
+        Size best = null;
+        double best_cost = 0;
+        for (Size size : map.getOutputSizes(MediaCodec.class)) {
+            double cost = Math.abs(Math.log((double) size.getWidth() * size.getHeight() / width / height));
+            if (best == null || cost < best_cost) {
+                best = size;
+                best_cost = cost;
+            }
+        }
+        if (best == null) {
+            return new Size(width, height);
+        }
+        return best;
+    }
+
+    @NonNull
+    private static StreamConfigSelector.Capabilities readCapabilities(
+            @NonNull CameraCharacteristics characteristics) {
+        StreamConfigSelector.Capabilities capabilities = new StreamConfigSelector.Capabilities();
+        StreamConfigurationMap map = characteristics.get(
+                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        assert map != null;
+        for (int format : new int[]{ImageFormat.JPEG, ImageFormat.YUV_420_888, ImageFormat.RAW_SENSOR}) {
+            Size[] sizes = map.getOutputSizes(format);
+            if (sizes == null) {
+                continue;
+            }
+            for (Size size : sizes) {
+                capabilities.addStream(new StreamConfigSelector.StreamConfig(format,
+                        size.getWidth(), size.getHeight(),
+                        map.getOutputMinFrameDuration(format, size),
+                        map.getOutputStallDuration(format, size)));
+            }
+        }
+        Range<Integer>[] fps_ranges = characteristics.get(
+                CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (fps_ranges != null) {
+            for (Range<Integer> range : fps_ranges) {
+                capabilities.addFpsRange(range.getLower(), range.getUpper());
+            }
+        }
+        Range<Long> exposure_range = characteristics.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
+        if (exposure_range != null) {
+            capabilities.setExposureRange(exposure_range.getLower(), exposure_range.getUpper());
+        }
+        Range<Integer> sensitivity_range = characteristics.get(CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
+        if (sensitivity_range != null) {
+            capabilities.setSensitivityRange(sensitivity_range.getLower(), sensitivity_range.getUpper());
+        }
+        Long max_frame_duration_ns = characteristics.get(CameraCharacteristics.SENSOR_INFO_MAX_FRAME_DURATION);
+        if (max_frame_duration_ns != null) {
+            capabilities.setMaxFrameDurationNs(max_frame_duration_ns);
+        }
+        Size[] high_speed_sizes = map.getHighSpeedVideoSizes();
+        if (high_speed_sizes != null) {
+            for (Size size : high_speed_sizes) {
+                for (Range<Integer> range : map.getHighSpeedVideoFpsRangesFor(size)) {
+                    capabilities.addHighSpeedConfig(size.getWidth(), size.getHeight(),
+                            range.getLower(), range.getUpper());
+                }
+            }
+        }
+        return capabilities;
+    }
+
     void close() {
         Log.i(TAG, "closeCamera " + mCameraId);
         try {
@@ -131,10 +576,33 @@ class Camera {
                 mCaptureSession.close();
                 mCaptureSession = null;
             }
+            mHighSpeedRequests = null;
+            if (null != mVideoEncoder) {
+                mVideoActive = false;
+                mVideoEncoder.release();
+                mVideoEncoder = null;
+            }
             if (null != mCameraDevice) {
                 mCameraDevice.close();
                 mCameraDevice = null;
             }
+            // Waiting images hold reader buffers; release them before the reader.
+            runOnBackgroundThread(new Runnable() {
+                @Override
+                public void run() {
+                    discardAwaitingImages();
+                }
+            });
+            if (null != mImageWriterPool) {
+                mImageWriterPool.shutdown();
+                Log.i(TAG, "camera " + mCameraId + " wrote " + mImageWriterPool.getWrittenCount()
+                        + " images, dropped " + mImageWriterPool.getDroppedCount());
+                mImageWriterPool = null;
+            }
+            if (null != mTargetFilter) {
+                mTargetFilter.close();
+                mTargetFilter = null;
+            }
             if (null != mImageReader) {
                 mImageReader.close();//
                 mImageReader = null;
@@ -152,9 +620,34 @@ class Camera {
             CaptureRequest.Builder captureRequestBuilder
                     = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             captureRequestBuilder.addTarget(mImageReader.getSurface());
+            Surface selection_surface = mTargetFilter != null ? mTargetFilter.getSurface() : null;
+            if (selection_surface != null) {
+                captureRequestBuilder.addTarget(selection_surface);
+            }
+            applySelection(captureRequestBuilder, mSelection);
             mCaptureRequest = captureRequestBuilder.build();
+            List<Surface> surfaces = new ArrayList<>();
+            surfaces.add(mImageReader.getSurface());
+            if (selection_surface != null) {
+                surfaces.add(selection_surface);
+            }
+            if (mVideoEncoder != null) {
+                Surface video_surface = mVideoEncoder.getInputSurface();
+                surfaces.add(video_surface);
+                CaptureRequest.Builder videoRequestBuilder
+                        = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+                videoRequestBuilder.addTarget(video_surface);
+                if (mVideoMode == VIDEO_BESIDE_IMAGES) {
+                    videoRequestBuilder.addTarget(mImageReader.getSurface());
+                    if (selection_surface != null) {
+                        videoRequestBuilder.addTarget(selection_surface);
+                    }
+                }
+                applySelection(videoRequestBuilder, mSelection);
+                mVideoCaptureRequest = videoRequestBuilder.build();
+            }
             Log.i(TAG, "creating capture sesion");
-            mCameraDevice.createCaptureSession(Arrays.asList(mImageReader.getSurface()),
+            mCameraDevice.createCaptureSession(surfaces,
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
@@ -165,18 +658,63 @@ class Camera {
                                 return;
                             }
                             mCaptureSession = cameraCaptureSession;
+                            Log.i(TAG, "Initiating capture");
+                            updateRepeatingRequest();
+                        }
+
+                        @Override
+                        public void onConfigureFailed(
+                                @NonNull CameraCaptureSession cameraCaptureSession) {
+                            Log.e(TAG, "onConfiguredFailed");
+                        }
+                    }, null
+            );
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "CameraAccessException: " + e);
+        }
+    }
+
+    /**
+     * A constrained high-speed session has the encoder surface as its only output.  Its
+     * requests come as a burst of fps / 30, which the HAL runs as one batch; results still
+     * come one per frame, each with its own SENSOR_TIMESTAMP and rolling shutter skew.
+     */
+    private void createHighSpeedCameraSession() {
+        if (mVideoEncoder == null) {
+            Log.e(TAG, "camera " + mCameraId + " has no video encoder for its high-speed session");
+            return;
+        }
+        try {
+            Surface video_surface = mVideoEncoder.getInputSurface();
+            final CaptureRequest.Builder builder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            builder.addTarget(video_surface);
+            applySelection(builder, mSelection);
+            Log.i(TAG, "creating high-speed capture session");
+            mCameraDevice.createConstrainedHighSpeedCaptureSession(Collections.singletonList(video_surface),
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+                            if (mCameraDevice == null) {
+                                Log.v(TAG, "onConfigured " + mCameraId + ", but camera is already closed");
+                                return;
+                            }
                             try {
-                                Log.i(TAG, "Initiating capture");
-                                mCaptureSession.setRepeatingRequest(mCaptureRequest, mCaptureCallback, mCameraBackgroundHandler);
+                                mHighSpeedRequests = ((CameraConstrainedHighSpeedCaptureSession) cameraCaptureSession)
+                                        .createHighSpeedRequestList(builder.build());
                             } catch (CameraAccessException e) {
                                 Log.e(TAG, "CameraAccessException: " + e);
+                                return;
                             }
+                            Log.i(TAG, "high-speed capture session configured, "
+                                    + mHighSpeedRequests.size() + " requests per burst");
+                            mCaptureSession = cameraCaptureSession;
+                            updateRepeatingRequest();
                         }
 
                         @Override
                         public void onConfigureFailed(
                                 @NonNull CameraCaptureSession cameraCaptureSession) {
-                            Log.e(TAG, "onConfiguredFailed");
+                            Log.e(TAG, "onConfiguredFailed (high-speed)");
                         }
                     }, null
             );
@@ -185,13 +723,55 @@ class Camera {
         }
     }
 
+    /**
+     * Repeats the request that matches the outputs: with the encoder as target while
+     * video is being recorded, else without.  A high-speed session repeats its burst.
+     */
+    private void updateRepeatingRequest() {
+        CameraCaptureSession session = mCaptureSession;
+        if (session == null) {
+            // onConfigured() will.
+            return;
+        }
+        List<CaptureRequest> burst = mHighSpeedRequests;
+        CaptureRequest request = mVideoActive ? mVideoCaptureRequest : mCaptureRequest;
+        try {
+            if (burst != null) {
+                session.setRepeatingBurst(burst, mCaptureCallback, mCameraBackgroundHandler);
+            } else {
+                session.setRepeatingRequest(request, mCaptureCallback, mCameraBackgroundHandler);
+            }
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "CameraAccessException: " + e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "camera " + mCameraId + " session closed: " + e);
+        }
+    }
+
+    private static void applySelection(@NonNull CaptureRequest.Builder builder,
+                                       @NonNull StreamConfigSelector.Selection selection) {
+        if (selection.getExposureMode() == CaptureProfile.EXPOSURE_AUTO) {
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
+                    Range.create(selection.getFpsRangeLower(), selection.getFpsRangeUpper()));
+            return;
+        }
+        builder.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_OFF);
+        builder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, selection.getExposureNs());
+        builder.set(CaptureRequest.SENSOR_SENSITIVITY, (int) selection.getSensitivity());
+        builder.set(CaptureRequest.SENSOR_FRAME_DURATION, selection.getFrameDurationNs());
+    }
+
     private final CameraDevice.StateCallback mCameraDeviceStateCallback = new CameraDevice.StateCallback() {
         @Override
         public void onOpened(@NonNull CameraDevice cameraDevice) {
             Log.i(TAG, "camera device " + mCameraId + " opened");
             mCameraOpenCloseLock.release();
             mCameraDevice = cameraDevice;
-            createPreviewCameraSession();
+            if (mSelection.isHighSpeed()) {
+                createHighSpeedCameraSession();
+            } else {
+                createPreviewCameraSession();
+            }
         }
 
         @Override
@@ -218,30 +798,75 @@ class Camera {
         public void onCaptureProgressed(@NonNull CameraCaptureSession session,
                                         @NonNull CaptureRequest request,
                                         @NonNull CaptureResult partialResult) {
-            Log.v(TAG, "onCaptureProgressed");
+            if (LOG_EVERY_FRAME) {
+                Log.v(TAG, "onCaptureProgressed");
+            }
         }
 
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                        @NonNull CaptureRequest request,
                                        @NonNull TotalCaptureResult result) {
-            Log.i(TAG, "onCaputureCompleted " + mCameraId);
-            Log.v(TAG, "frame number: " + result.getFrameNumber());
+            long now_ns = SystemClock.elapsedRealtimeNanos();
+            long timestamp_ns = result.get(TotalCaptureResult.SENSOR_TIMESTAMP);
+            mLatencyEstimator.add(timestamp_ns, now_ns);
+            mCapturedFrames.increment();
+            if (mFramesSinceOpen == 0) {
+                mFirstFrameTimestampNs = timestamp_ns;
+            }
+            mLastFrameTimestampNs = timestamp_ns;
+            ++mFramesSinceOpen;
+            mCaptureTimestampsNs[mNextCaptureTime] = timestamp_ns;
+            mCaptureCompletedNs[mNextCaptureTime] = now_ns;
+            mNextCaptureTime = (mNextCaptureTime + 1) % CAPTURE_TIMES_TRACKED;
+            if (LOG_EVERY_FRAME) {
+                Log.i(TAG, "onCaputureCompleted " + mCameraId);
+                Log.v(TAG, "frame number: " + result.getFrameNumber());
+            }
 
-            try {
-                mMetadataWriter.write(formatCaptureResult(result));
-            } catch (IOException e) {
-                Log.e(TAG, "I/O Exception on mMetaDataWriter");
+            // The result's getters return boxed values; those are allocated by the framework
+            // whether or not they are logged.
+            Long exposure = result.get(TotalCaptureResult.SENSOR_EXPOSURE_TIME);
+            Long skew = result.get(TotalCaptureResult.SENSOR_ROLLING_SHUTTER_SKEW);
+            long exposure_ns = exposure != null ? exposure : CaptureMetadataFormat.MISSING;
+            long skew_ns = skew != null ? skew : CaptureMetadataFormat.MISSING;
+
+            Outputs outputs = mOutputs;
+            if (outputs != null) {
+                try {
+                    encodeCaptureResult(timestamp_ns, result.getFrameNumber(), exposure_ns, skew_ns)
+                            .writeTo(outputs.mMetadataWriter);
+                } catch (IOException e) {
+                    Log.e(TAG, "I/O Exception on mMetaDataWriter");
+                }
+            }
+
+            VideoEncoder encoder = mVideoEncoder;
+            if (encoder != null && (request == mVideoCaptureRequest || mHighSpeedRequests != null)) {
+                encoder.addCapture(timestamp_ns, timestamp_ns - mTimestampOffsetNs, result.getFrameNumber());
+            }
+
+            if (mFrameListener != null) {
+                mFrameListener.onFrame(timestamp_ns - mTimestampOffsetNs, result.getFrameNumber(),
+                        exposure_ns, skew_ns);
             }
         }
 
-        String formatCaptureResult(TotalCaptureResult capture_result) {
-            long adjusted_timestamp_ns = capture_result.get(TotalCaptureResult.SENSOR_TIMESTAMP) - CAMERA_TIMESTAMP_OFFSET_NS;
-            return String.format("%d %05d %d %d\n",
-                    adjusted_timestamp_ns,
-                    capture_result.getFrameNumber(),
-                    capture_result.get(TotalCaptureResult.SENSOR_EXPOSURE_TIME),
-                    capture_result.get(TotalCaptureResult.SENSOR_ROLLING_SHUTTER_SKEW));
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                    @NonNull CaptureRequest request,
+                                    @NonNull CaptureFailure failure) {
+            mFailedCaptures.increment();
+            Log.w(TAG, "camera " + mCameraId + " capture " + failure.getFrameNumber()
+                    + " failed, reason " + failure.getReason());
+        }
+
+        // See CaptureMetadataFormat.
+        TextRecordEncoder encodeCaptureResult(long timestamp_ns, long frame_number, long exposure_ns,
+                                              long skew_ns) {
+            CaptureMetadataFormat.encodeTextLine(mMetadataEncoder.clear(), timestamp_ns - mTimestampOffsetNs,
+                    frame_number, exposure_ns, skew_ns);
+            return mMetadataEncoder;
         }
     };
 
@@ -249,16 +874,206 @@ class Camera {
             = new ImageReader.OnImageAvailableListener() {
         @Override
         public void onImageAvailable(ImageReader reader) {
-            Log.v(TAG, "onImageAvailable " + mCameraId);
+            if (LOG_EVERY_FRAME) {
+                Log.v(TAG, "onImageAvailable " + mCameraId);
+            }
             Image image = reader.acquireNextImage();
-            int image_index = mImageIndexCounter.getAndIncrement();
+            if (image == null) {
+                Log.w(TAG, "onImageAvailable " + mCameraId + " but no image could be acquired");
+                return;
+            }
+            ImageWriterPool pool = mImageWriterPool;
+            if (pool == null) {
+                Log.v(TAG, "onImageAvailable " + mCameraId + ", but camera is already closed");
+                image.close();
+                return;
+            }
+            recordCaptureToImageAvailable(image.getTimestamp());
+            Outputs outputs = mOutputs;
+            if (outputs == null) {
+                image.close();
+                return;
+            }
+            if (mTargetFilter != null) {
+                awaitSelection(image, outputs);
+                return;
+            }
+            submitImage(image, outputs, pool);
+        }
+    };
+
+    // Background thread.  Images are written in order, so one goes behind any already
+    // waiting even if its own frame is decided.
+    private void awaitSelection(@NonNull Image image, @NonNull Outputs outputs) {
+        if (mAwaitingImages.size() == SELECTION_WAIT_IMAGES) {
+            Log.w(TAG, "camera " + mCameraId + " target selection behind; writing an image undecided");
+            onImageSelected(mAwaitingImages.poll(), mAwaitingOutputs.poll(), FrameSelector.KEEP_UNDECIDED);
+        }
+        mAwaitingImages.add(image);
+        mAwaitingOutputs.add(outputs);
+        drainAwaitingImages(false);
+    }
+
+    // Background thread.  Hands decided images at the head of the queue on; with force,
+    // all of them, the undecided ones as KEEP_UNDECIDED.
+    private void drainAwaitingImages(boolean force) {
+        TargetFrameFilter filter = mTargetFilter;
+        Image image;
+        while ((image = mAwaitingImages.peek()) != null) {
+            int decision = filter != null ? filter.getDecision(image.getTimestamp()) : TargetFrameFilter.UNDECIDED;
+            if (decision == TargetFrameFilter.UNDECIDED) {
+                if (!force) {
+                    return;
+                }
+                decision = FrameSelector.KEEP_UNDECIDED;
+            }
+            mAwaitingImages.poll();
+            onImageSelected(image, mAwaitingOutputs.poll(), decision);
+        }
+    }
+
+    // Background thread.
+    private void discardAwaitingImages() {
+        Image image;
+        while ((image = mAwaitingImages.poll()) != null) {
+            image.close();
+        }
+        mAwaitingOutputs.clear();
+    }
+
+    // Background thread.  Logs the decision and writes the image if it is kept.
+    private void onImageSelected(@NonNull Image image, @NonNull Outputs outputs, int decision) {
+        long timestamp_ns = image.getTimestamp();
+        Writer selection_writer = outputs.mFrameSelectionWriter;
+        TargetFrameFilter filter = mTargetFilter;
+        if (selection_writer != null && filter != null) {
+            try {
+                filter.encodeSelectionLine(mSelectionEncoder.clear(), timestamp_ns,
+                        timestamp_ns - mTimestampOffsetNs, decision).writeTo(selection_writer);
+            } catch (IOException e) {
+                Log.e(TAG, "I/O Exception on frame selection writer");
+            }
+        }
+        ImageWriterPool pool = mImageWriterPool;
+        if (pool == null) {
+            image.close();
+            return;
+        }
+        if (!FrameSelector.isKeep(decision)) {
+            mRejectedImages.increment();
+            logSkippedImage(outputs, outputs.mNextImageIndex++, timestamp_ns, FrameSelector.reason(decision));
+            image.close();
+            return;
+        }
+        mSelectedImages.increment();
+        submitImage(image, outputs, pool);
+    }
+
+    // Background thread.
+    private void submitImage(@NonNull Image image, @NonNull Outputs outputs, @NonNull ImageWriterPool pool) {
+        int image_index = outputs.mNextImageIndex++;
+        StorageGovernor governor = mStorageGovernor;
+        if (governor != null && !governor.admit(image.getTimestamp())) {
+            mDecimatedImages.increment();
+            logSkippedImage(outputs, image_index, image.getTimestamp(), SKIP_DECIMATED);
+            image.close();
+            return;
+        }
+        mWriterQueueDepth.record(pool.getQueueDepth());
+        if (LOG_EVERY_FRAME) {
             Log.i(TAG, "image " + image_index + " timestamp: " + image.getTimestamp());
-            String basename = String.format("%05d.jpg", image_index);
-            File file = new File(mImageDir, basename);
-            mCameraBackgroundHandler.post(new CameraUtils.ImageSaver(image, file));
+        }
+        if (outputs.mFrameContainer != null) {
+            pool.submit(image_index,
+                    new CameraUtils.ContainerImageSaver(image, image_index, outputs.mFrameContainer));
+            return;
+        }
+        String basename = mBasenameEncoder.clear().putZeroPadded(image_index, 5).putChar('.')
+                .putAscii(CameraUtils.fileExtension(mOutputFormat)).toString();
+        File file = new File(outputs.mImageDir, basename);
+        pool.submit(image_index, new CameraUtils.ImageSaver(image, file));
+    }
+
+    // Background thread.  timestamp_ns is the image's; the log has the offset applied.
+    private void logSkippedImage(@NonNull Outputs outputs, int image_index, long timestamp_ns,
+                                 @NonNull String reason) {
+        Writer writer = outputs.mSkippedImagesWriter;
+        if (writer == null) {
+            return;
+        }
+        try {
+            mSkipEncoder.clear().putZeroPadded(image_index, 5).putSpace()
+                    .putLong(timestamp_ns - mTimestampOffsetNs).putSpace()
+                    .putAscii(reason).putNewline().writeTo(writer);
+        } catch (IOException e) {
+            Log.e(TAG, "I/O Exception on skipped images writer");
+        }
+    }
+
+    private final TargetFrameFilter.Listener mTargetFilterListener = new TargetFrameFilter.Listener() {
+        @Override
+        public void onFrameDecided(long timestamp_ns) {
+            Handler handler = mCameraBackgroundHandler;
+            if (handler != null) {
+                handler.post(mDrainAwaitingRunnable);
+            }
+        }
+    };
+
+    private final Runnable mDrainAwaitingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainAwaitingImages(false);
+        }
+    };
+
+    private final ImageWriterPool.Listener mImageWriterListener = new ImageWriterPool.Listener() {
+        @Override
+        public void onFrameDropped(long frame_number, int queue_depth) {
+            mDroppedImages.increment();
+            StorageGovernor governor = mStorageGovernor;
+            if (governor != null) {
+                governor.onFrameDropped();
+            }
+            Log.w(TAG, "camera " + mCameraId + " dropped image " + frame_number
+                    + "; writer queue depth " + queue_depth);
+        }
+
+        @Override
+        public void onFrameWritten(long frame_number, long queue_wait_ns, long write_ns, long bytes) {
+            mWrittenImages.increment();
+            StorageGovernor governor = mStorageGovernor;
+            if (governor != null) {
+                governor.onFrameWritten(bytes, write_ns);
+            }
+            mImageQueueWaitNs.record(queue_wait_ns);
+            mImageWriteNs.record(write_ns);
+            mImageAvailableToDiskNs.record(queue_wait_ns + write_ns);
+            if (LOG_EVERY_FRAME) {
+                Log.v(TAG, "camera " + mCameraId + " wrote image " + frame_number
+                        + " queue_wait_us=" + queue_wait_ns / 1000 + " write_us=" + write_ns / 1000);
+            }
+        }
+
+        @Override
+        public void onFrameFailed(long frame_number, @NonNull IOException e) {
+            mFailedImages.increment();
+            Log.e(TAG, "camera " + mCameraId + " failed to write image " + frame_number + ": " + e);
         }
     };
 
+    // Runs on the background thread, like onCaptureCompleted.
+    private void recordCaptureToImageAvailable(long timestamp_ns) {
+        for (int i = 0; i < CAPTURE_TIMES_TRACKED; ++i) {
+            if (mCaptureTimestampsNs[i] == timestamp_ns) {
+                mCaptureToImageAvailableNs.record(
+                        SystemClock.elapsedRealtimeNanos() - mCaptureCompletedNs[i]);
+                return;
+            }
+        }
+        mUnmatchedImages.increment();
+    }
+
     private void startBackgroundThread() {
         Log.i(TAG, "starting background thread for camera " + mCameraId);
         mCameraBackgroundThread = new HandlerThread("CameraBackgroundThread");
@@ -279,39 +1094,88 @@ class Camera {
         Log.i(TAG, "background thread for camera " + mCameraId + " stopped");
     }
 
-    private static class CompareSizesByArea implements Comparator<Size> {
-        @Override
-        public int compare(Size lhs, Size rhs) {
-            // We cast here to ensure the multiplications won't overflow
-            return Long.signum((long) lhs.getWidth() * lhs.getHeight() -
-                    (long) rhs.getWidth() * rhs.getHeight());
-        }
-    }
-
     private void ensurePermission(final Context context, final String permission) {
         final int cookie = 42;
         if (ContextCompat.checkSelfPermission(context, permission) != PackageManager.PERMISSION_GRANTED) {
-            ActivityCompat.requestPermissions((Activity) context, new String[]{permission}, cookie);
+            if (context instanceof Activity) {
+                ActivityCompat.requestPermissions((Activity) context, new String[]{permission}, cookie);
+            } else {
+                Log.e(TAG, "Missing " + permission + "; grant it from an activity or with pm grant");
+            }
         }
     }
 
     private Context mContext;
 
     private final String mCameraId;
-    private File mImageDir;
-    private FileWriter mMetadataWriter;
+    private volatile Outputs mOutputs;
+    private FrameListener mFrameListener;
+    private volatile StorageGovernor mStorageGovernor;
+    private final TextRecordEncoder mMetadataEncoder = new TextRecordEncoder();
+
+    private long mTimestampOffsetNs;
+    private int mTimestampSource = CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_UNKNOWN;
+
+    // Written on the background thread; read after close() or as a rough live estimate.
+    private volatile long mFramesSinceOpen;
+    private long mFirstFrameTimestampNs;
+    private long mLastFrameTimestampNs;
+    private final DeliveryLatencyEstimator mLatencyEstimator;
 
     private Semaphore mCameraOpenCloseLock = new Semaphore(1);
 
     private CameraManager mCameraManager;
     private CameraDevice mCameraDevice;
-    private CameraCaptureSession mCaptureSession;
+    private volatile CameraCaptureSession mCaptureSession;
+
+    private final MetricsRegistry.Counter mCapturedFrames;
+    private final MetricsRegistry.Counter mWrittenImages;
+    private final MetricsRegistry.Counter mDroppedImages;
+    private final MetricsRegistry.Counter mFailedImages;
+    private final MetricsRegistry.Counter mFailedCaptures;
+    private final MetricsRegistry.Counter mDecimatedImages;
+    private final MetricsRegistry.Counter mUnmatchedImages;
+    private final MetricsRegistry.Histogram mCaptureToImageAvailableNs;
+    private final MetricsRegistry.Histogram mImageQueueWaitNs;
+    private final MetricsRegistry.Histogram mImageWriteNs;
+    private final MetricsRegistry.Histogram mImageAvailableToDiskNs;
+    private final MetricsRegistry.Histogram mWriterQueueDepth;
+    private final MetricsRegistry.Counter mSelectedImages;
+    private final MetricsRegistry.Counter mRejectedImages;
+    private final MetricsRegistry.Histogram mTargetDetectionNs;
+    private final long[] mCaptureTimestampsNs = new long[CAPTURE_TIMES_TRACKED];
+    private final long[] mCaptureCompletedNs = new long[CAPTURE_TIMES_TRACKED];
+    private int mNextCaptureTime;
 
-    private AtomicInteger mImageIndexCounter = new AtomicInteger(0);
+    private CaptureProfile mCaptureProfile = CaptureProfile.DEFAULT;
+    private StreamConfigSelector.Capabilities mCapabilities;
+    private StreamConfigSelector.Selection mSelection;
+    private int mOutputFormat;
     private ImageReader mImageReader;
+    private volatile ImageWriterPool mImageWriterPool;
     private CaptureRequest mCaptureRequest;
+    private CaptureRequest mVideoCaptureRequest;
+    private boolean mHighSpeed;
+    // The repeating burst of a high-speed session, else null.
+    private volatile List<CaptureRequest> mHighSpeedRequests;
+
+    private boolean mTargetSelection;
+    private volatile TargetFrameFilter mTargetFilter;
+    // Images waiting for their target selection decision, and the outputs they were
+    // captured for.  Background thread only.
+    private final ArrayDeque<Image> mAwaitingImages = new ArrayDeque<>();
+    private final ArrayDeque<Outputs> mAwaitingOutputs = new ArrayDeque<>();
+    private final TextRecordEncoder mSelectionEncoder = new TextRecordEncoder();
+    private final TextRecordEncoder mSkipEncoder = new TextRecordEncoder();
+    // Builds the image file names.  Background thread only.
+    private final TextRecordEncoder mBasenameEncoder = new TextRecordEncoder();
+
+    private int mVideoMode = VIDEO_NONE;
+    private VideoEncoder.Config mVideoConfig;
+    private volatile VideoEncoder mVideoEncoder;
+    private volatile boolean mVideoActive;
 
     private HandlerThread mCameraBackgroundThread;
-    private Handler mCameraBackgroundHandler;
+    private volatile Handler mCameraBackgroundHandler;
 
 }
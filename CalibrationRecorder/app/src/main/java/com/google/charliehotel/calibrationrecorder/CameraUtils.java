@@ -1,37 +1,88 @@
 package com.google.charliehotel.calibrationrecorder;
 
+import android.graphics.ImageFormat;
 import android.media.Image;
 import android.support.annotation.NonNull;
-import android.util.Log;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 class CameraUtils {
     final static String TAG = "CameraUtils";
 
-    static void writeImage(@NonNull Image image, @NonNull File file) {
-        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-        FileOutputStream output = null;
+    @NonNull
+    static String fileExtension(int format) {
+        switch (format) {
+            case ImageFormat.JPEG:
+                return "jpg";
+            case ImageFormat.YUV_420_888:
+                return "yuv";
+            case ImageFormat.RAW_SENSOR:
+                return "raw";
+            default:
+                throw new IllegalArgumentException("Unsupported image format " + format);
+        }
+    }
+
+    /**
+     * Returns the buffers that make up the on-disk image: the JPEG bitstream as is, or a
+     * RawImageHeader followed by every plane, untouched and including row padding.
+     */
+    @NonNull
+    static ByteBuffer[] imageBuffers(@NonNull Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        if (image.getFormat() == ImageFormat.JPEG) {
+            return new ByteBuffer[]{planes[0].getBuffer()};
+        }
+        RawImageHeader header = new RawImageHeader(image.getFormat(), image.getWidth(),
+                image.getHeight(), image.getTimestamp(), planes.length);
+        ByteBuffer[] buffers = new ByteBuffer[planes.length + 1];
+        for (int i = 0; i < planes.length; ++i) {
+            ByteBuffer buffer = planes[i].getBuffer();
+            header.setPlane(i, planes[i].getRowStride(), planes[i].getPixelStride(),
+                    buffer.remaining());
+            buffers[i + 1] = buffer;
+        }
+        buffers[0] = header.encode();
+        return buffers;
+    }
+
+    static long writeImage(@NonNull Image image, @NonNull File file) throws IOException {
+        ByteBuffer[] buffers = imageBuffers(image);
+        FileChannel channel = new FileOutputStream(file).getChannel();
         try {
-            output = new FileOutputStream(file);
-            output.getChannel().write(buffer);
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to write image to " + file);
+            return writeFully(channel, buffers);
         } finally {
-            if (output != null) {
-                try {
-                    output.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Failed to close image file " + file);
-                }
-            }
+            channel.close();
         }
     }
 
-    static class ImageSaver implements Runnable {
+    /**
+     * Gathering write straight from the image's buffers; nothing is copied to the heap.
+     * Returns the number of bytes written.
+     */
+    static long writeFully(@NonNull FileChannel channel, @NonNull ByteBuffer[] buffers)
+            throws IOException {
+        long total = remaining(buffers);
+        long remaining = total;
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        return total;
+    }
+
+    static long remaining(@NonNull ByteBuffer[] buffers) {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        return remaining;
+    }
+
+    static class ImageSaver implements ImageWriterPool.Job {
         private final Image mImage;
         private final File mFile;
 
@@ -41,13 +92,38 @@ class CameraUtils {
         }
 
         @Override
-        public void run() {
-            try {
-                CameraUtils.writeImage(mImage, mFile);
-            } finally {
-                mImage.close();
-            }
-            Log.v(TAG, "ImageSaver wrote " + mFile);
+        public long write() throws IOException {
+            return CameraUtils.writeImage(mImage, mFile);
+        }
+
+        @Override
+        public void release() {
+            mImage.close();
+        }
+    }
+
+    static class ContainerImageSaver implements ImageWriterPool.Job {
+        private final Image mImage;
+        private final long mFrameNumber;
+        private final FrameContainerWriter mContainer;
+
+        ContainerImageSaver(Image adopted_image, long frame_number, FrameContainerWriter container) {
+            mImage = adopted_image;
+            mFrameNumber = frame_number;
+            mContainer = container;
+        }
+
+        @Override
+        public long write() throws IOException {
+            ByteBuffer[] buffers = imageBuffers(mImage);
+            long bytes = remaining(buffers);
+            mContainer.append(mFrameNumber, mImage.getTimestamp(), buffers);
+            return bytes;
+        }
+
+        @Override
+        public void release() {
+            mImage.close();
         }
     }
 
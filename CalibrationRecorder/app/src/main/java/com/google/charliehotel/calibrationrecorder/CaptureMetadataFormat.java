@@ -0,0 +1,25 @@
+package com.google.charliehotel.calibrationrecorder;
+
+/**
+ * Layout of the image metadata logs, one "%d %05d %d %d\n" line per capture result:
+ *
+ *   timestamp [ns]  frame number  exposure time [ns]  rolling shutter skew [ns]
+ *
+ * The timestamp is SENSOR_TIMESTAMP with the camera's offset removed.  Values a result
+ * does not carry are written as -1; high-speed results may lack the skew on some devices.
+ */
+class CaptureMetadataFormat {
+    static final long MISSING = -1;
+
+    /**
+     * Appends one text line, identical to String.format("%d %05d %d %d\n", ...).
+     */
+    static void encodeTextLine(TextRecordEncoder encoder, long timestamp_ns, long frame_number,
+                               long exposure_ns, long rolling_shutter_skew_ns) {
+        encoder.putLong(timestamp_ns).putSpace()
+                .putZeroPadded(frame_number, 5).putSpace()
+                .putLong(exposure_ns).putSpace()
+                .putLong(rolling_shutter_skew_ns)
+                .putNewline();
+    }
+}
@@ -0,0 +1,137 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.graphics.ImageFormat;
+
+/**
+ * What a camera should capture: output format, target resolution, target frame rate and
+ * how exposure is controlled.
+ *
+ * Like ImuStreamSpec, this is a wish; StreamConfigSelector turns it into a stream
+ * configuration, AE frame rate range and exposure the device actually supports.
+ *
+ * Exposure modes:
+ *
+ *   EXPOSURE_AUTO             AE picks exposure and gain within the target fps range.
+ *   EXPOSURE_FIXED            AE is off; exposure, sensitivity and frame duration are fixed.
+ *   EXPOSURE_ROLLING_SHUTTER  AE is off as well, but exposure is capped so that exposure
+ *                             plus sensor readout fits in one frame duration, which keeps
+ *                             every row of a frame inside the same frame interval.
+ */
+class CaptureProfile {
+    static final int EXPOSURE_AUTO = 0;
+    static final int EXPOSURE_FIXED = 1;
+    static final int EXPOSURE_ROLLING_SHUTTER = 2;
+
+    /** Used when a profile leaves exposure or sensitivity to the device. */
+    static final long UNSPECIFIED = 0;
+
+    /**
+     * 1080p at 30 fps with auto exposure, a rate every camera2 device has to sustain for
+     * YUV and one that JPEG writers keep up with.
+     */
+    static final CaptureProfile DEFAULT = new CaptureProfile(ImageFormat.JPEG, 1920, 1080,
+            30, 30, EXPOSURE_AUTO, UNSPECIFIED, UNSPECIFIED);
+
+    CaptureProfile(int format, int width, int height, int min_fps, int max_fps,
+                   int exposure_mode, long exposure_ns, long sensitivity) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Bad target size " + width + "x" + height);
+        }
+        if (min_fps <= 0 || max_fps < min_fps) {
+            throw new IllegalArgumentException("Bad target fps range [" + min_fps + ", " + max_fps + "]");
+        }
+        if (exposure_mode < EXPOSURE_AUTO || exposure_mode > EXPOSURE_ROLLING_SHUTTER) {
+            throw new IllegalArgumentException("Bad exposure mode " + exposure_mode);
+        }
+        if (exposure_mode == EXPOSURE_FIXED && exposure_ns <= 0) {
+            throw new IllegalArgumentException("EXPOSURE_FIXED needs an exposure time");
+        }
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mMinFps = min_fps;
+        mMaxFps = max_fps;
+        mExposureMode = exposure_mode;
+        mExposureNs = exposure_ns;
+        mSensitivity = sensitivity;
+    }
+
+    /** One of the ImageFormat constants that CameraUtils knows how to write. */
+    int getFormat() {
+        return mFormat;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    int getMinFps() {
+        return mMinFps;
+    }
+
+    int getMaxFps() {
+        return mMaxFps;
+    }
+
+    int getExposureMode() {
+        return mExposureMode;
+    }
+
+    /**
+     * Exposure time for EXPOSURE_FIXED; the longest exposure for EXPOSURE_ROLLING_SHUTTER,
+     * or UNSPECIFIED for as long as the frame allows.
+     */
+    long getExposureNs() {
+        return mExposureNs;
+    }
+
+    /** ISO sensitivity with manual exposure, or UNSPECIFIED for the device minimum. */
+    long getSensitivity() {
+        return mSensitivity;
+    }
+
+    static String exposureModeName(int exposure_mode) {
+        switch (exposure_mode) {
+            case EXPOSURE_AUTO:
+                return "auto";
+            case EXPOSURE_FIXED:
+                return "fixed";
+            case EXPOSURE_ROLLING_SHUTTER:
+                return "rolling_shutter";
+            default:
+                return "unknown";
+        }
+    }
+
+    /**
+     * Inverse of exposureModeName().
+     */
+    static int parseExposureMode(String name) {
+        for (int mode = EXPOSURE_AUTO; mode <= EXPOSURE_ROLLING_SHUTTER; ++mode) {
+            if (exposureModeName(mode).equals(name)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown exposure mode " + name);
+    }
+
+    @Override
+    public String toString() {
+        return "format=" + mFormat + " size=" + mWidth + "x" + mHeight
+                + " fps=[" + mMinFps + ", " + mMaxFps + "] exposure=" + exposureModeName(mExposureMode)
+                + " exposure_ns=" + mExposureNs + " sensitivity=" + mSensitivity;
+    }
+
+    private final int mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mMinFps;
+    private final int mMaxFps;
+    private final int mExposureMode;
+    private final long mExposureNs;
+    private final long mSensitivity;
+}
@@ -0,0 +1,136 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Streaming statistics of how long a stream's events take to reach the app.
+ *
+ * Each event contributes its arrival time minus its own timestamp, both on the
+ * elapsedRealtimeNanos clock.  Memory is constant: running moments plus a fixed-width
+ * histogram anchored at the first sample.  The lower envelope of the latency (its minimum)
+ * is the best available estimate of the offset between the stream's timestamps and the
+ * moment they describe; for a camera whose timestamp source is unknown it also absorbs the
+ * offset between the two clocks.
+ *
+ * add() must be called from a single thread; read the results after that thread is done.
+ */
+class DeliveryLatencyEstimator {
+    private static final int HISTOGRAM_BUCKETS = 512;
+    private static final long BUCKET_WIDTH_NS = 100 * 1000;
+    // Room below the first sample for latencies shorter than it.
+    private static final int HISTOGRAM_LEAD_BUCKETS = 32;
+
+    DeliveryLatencyEstimator(@NonNull String name) {
+        mName = name;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    void add(long event_timestamp_ns, long arrival_timestamp_ns) {
+        long latency_ns = arrival_timestamp_ns - event_timestamp_ns;
+        if (mCount == 0) {
+            mHistogramBaseNs = latency_ns - HISTOGRAM_LEAD_BUCKETS * BUCKET_WIDTH_NS;
+            mMinNs = latency_ns;
+            mMaxNs = latency_ns;
+        }
+        ++mCount;
+        // Welford's update, relative to the histogram base to keep the numbers small.
+        double x = latency_ns - mHistogramBaseNs;
+        double delta = x - mMean;
+        mMean += delta / mCount;
+        mM2 += delta * (x - mMean);
+        mMinNs = Math.min(mMinNs, latency_ns);
+        mMaxNs = Math.max(mMaxNs, latency_ns);
+
+        long bucket = Math.floorDiv(latency_ns - mHistogramBaseNs, BUCKET_WIDTH_NS);
+        if (bucket < 0) {
+            ++mUnderflow;
+        } else if (bucket >= HISTOGRAM_BUCKETS) {
+            ++mOverflow;
+        } else {
+            ++mHistogram[(int) bucket];
+        }
+    }
+
+    long getCount() {
+        return mCount;
+    }
+
+    long getMinNs() {
+        return mMinNs;
+    }
+
+    long getMaxNs() {
+        return mMaxNs;
+    }
+
+    double getMeanNs() {
+        return mCount == 0 ? 0 : mHistogramBaseNs + mMean;
+    }
+
+    double getStdDevNs() {
+        return mCount < 2 ? 0 : Math.sqrt(mM2 / (mCount - 1));
+    }
+
+    /**
+     * Upper edge of the histogram bucket holding the quantile, clamped to the observed range.
+     */
+    long getQuantileNs(double quantile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * mCount));
+        long seen = mUnderflow;
+        if (seen >= rank) {
+            return mMinNs;
+        }
+        for (int i = 0; i < HISTOGRAM_BUCKETS; ++i) {
+            seen += mHistogram[i];
+            if (seen >= rank) {
+                long edge = mHistogramBaseNs + (i + 1) * BUCKET_WIDTH_NS;
+                return Math.max(mMinNs, Math.min(mMaxNs, edge));
+            }
+        }
+        return mMaxNs;
+    }
+
+    String formatSummary() {
+        return String.format("%s count=%d min_ns=%d p50_ns=%d p99_ns=%d max_ns=%d mean_ns=%.0f stddev_ns=%.0f",
+                mName, mCount, mMinNs, getQuantileNs(0.5), getQuantileNs(0.99), mMaxNs,
+                getMeanNs(), getStdDevNs());
+    }
+
+    /**
+     * One line: name, first bucket start, bucket width, underflow, bucket counts, overflow.
+     * Trailing empty buckets are omitted.
+     */
+    String formatHistogram() {
+        int last = HISTOGRAM_BUCKETS - 1;
+        while (last >= 0 && mHistogram[last] == 0) {
+            --last;
+        }
+        StringBuilder builder = new StringBuilder();
+        builder.append(mName).append(' ').append(mHistogramBaseNs).append(' ')
+                .append(BUCKET_WIDTH_NS).append(' ').append(mUnderflow);
+        for (int i = 0; i <= last; ++i) {
+            builder.append(' ').append(mHistogram[i]);
+        }
+        builder.append(' ').append(mOverflow);
+        return builder.toString();
+    }
+
+    private final String mName;
+
+    private long mCount;
+    private double mMean;
+    private double mM2;
+    private long mMinNs;
+    private long mMaxNs;
+
+    private long mHistogramBaseNs;
+    private final long[] mHistogram = new long[HISTOGRAM_BUCKETS];
+    private long mUnderflow;
+    private long mOverflow;
+}
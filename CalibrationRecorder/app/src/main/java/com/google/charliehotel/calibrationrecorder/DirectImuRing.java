@@ -0,0 +1,288 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Single-producer/single-consumer queue of IMU samples from several streams, laid out in
+ * a direct ByteBuffer so native code can produce into it.
+ *
+ * Layout, in native byte order; native_imu.cpp mirrors it:
+ *
+ *   offset  0  int   MAGIC
+ *           4  int   VERSION
+ *           8  int   capacity in records, a power of two
+ *          12  int   RECORD_SIZE
+ *          64  long  head: sequence number of the next record to write
+ *         128  long  tail: sequence number of the next record to read
+ *         192  long  overruns[MAX_STREAMS]: samples of each stream the producer dropped
+ *                    for lack of room
+ *         256        records, RECORD_SIZE bytes each
+ *
+ *   record  0  long  timestamp_ns, the sensor's own
+ *           8  long  arrival_ns, elapsedRealtimeNanos() when the sample was delivered
+ *          16  int   stream index
+ *          20  int   number of values
+ *          24  float values[ImuLogFormat.MAX_VALUES]
+ *
+ * head and tail sit on cache lines of their own.  The producer writes a record and then
+ * publishes head + 1 with release semantics; the consumer reads head with acquire
+ * semantics, copies the records out and publishes its new tail with release semantics.
+ * Java has no acquire or release access to a ByteBuffer, so those two loads and stores
+ * go through a Cursors implementation: NativeImuBackend's uses C11 atomics, and
+ * LockedCursors a monitor, for producing from Java.  A full ring drops the incoming
+ * sample, like ImuRingBuffer.OverflowPolicy.DROP_NEWEST.
+ *
+ * The consumer drains in batches, sorting each batch by stream into per-stream arrays
+ * laid out as ImuSink.write() takes them.  DirectImuRingTest checks the protocol with a
+ * Java producer, without a device.
+ */
+class DirectImuRing {
+    static final int MAGIC = 0x494d5552;  // "IMUR"
+    static final int VERSION = 1;
+
+    static final int MAGIC_OFFSET = 0;
+    static final int VERSION_OFFSET = 4;
+    static final int CAPACITY_OFFSET = 8;
+    static final int RECORD_SIZE_OFFSET = 12;
+    static final int HEAD_OFFSET = 64;
+    static final int TAIL_OFFSET = 128;
+    static final int OVERRUNS_OFFSET = 192;
+    static final int HEADER_SIZE = 256;
+    static final int MAX_STREAMS = (HEADER_SIZE - OVERRUNS_OFFSET) / 8;
+
+    static final int TIMESTAMP_OFFSET = 0;
+    static final int ARRIVAL_OFFSET = 8;
+    static final int STREAM_OFFSET = 16;
+    static final int VALUE_COUNT_OFFSET = 20;
+    static final int VALUES_OFFSET = 24;
+    static final int RECORD_SIZE = VALUES_OFFSET + 4 * ImuLogFormat.MAX_VALUES;
+
+    /**
+     * Ordered access to head and tail.
+     */
+    interface Cursors {
+        /** Loads head with acquire semantics. */
+        long loadHead(@NonNull ByteBuffer ring);
+
+        /** Stores head with release semantics. */
+        void storeHead(@NonNull ByteBuffer ring, long head);
+
+        /** Loads tail with acquire semantics. */
+        long loadTail(@NonNull ByteBuffer ring);
+
+        /** Stores tail with release semantics. */
+        void storeTail(@NonNull ByteBuffer ring, long tail);
+    }
+
+    /**
+     * Cursors for a producer and consumer that are both Java threads.
+     */
+    static class LockedCursors implements Cursors {
+        @Override
+        public synchronized long loadHead(@NonNull ByteBuffer ring) {
+            return ring.getLong(HEAD_OFFSET);
+        }
+
+        @Override
+        public synchronized void storeHead(@NonNull ByteBuffer ring, long head) {
+            ring.putLong(HEAD_OFFSET, head);
+        }
+
+        @Override
+        public synchronized long loadTail(@NonNull ByteBuffer ring) {
+            return ring.getLong(TAIL_OFFSET);
+        }
+
+        @Override
+        public synchronized void storeTail(@NonNull ByteBuffer ring, long tail) {
+            ring.putLong(TAIL_OFFSET, tail);
+        }
+    }
+
+    /**
+     * Receives a drained batch, one call per stream that had samples in it.
+     */
+    interface Consumer {
+        /**
+         * values holds values_per_sample values for each of the count samples, padded
+         * with zeros where a record had fewer.  The arrays are reused after the call.
+         */
+        void onSamples(int stream, @NonNull long[] timestamps_ns, @NonNull long[] arrivals_ns,
+                       @NonNull float[] values, int values_per_sample, int count) throws IOException;
+    }
+
+    /**
+     * Allocates a ring for capacity records with its header set up.
+     */
+    @NonNull
+    static ByteBuffer allocate(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        ByteBuffer ring = ByteBuffer.allocateDirect(HEADER_SIZE + capacity * RECORD_SIZE)
+                .order(ByteOrder.nativeOrder());
+        ring.putInt(MAGIC_OFFSET, MAGIC);
+        ring.putInt(VERSION_OFFSET, VERSION);
+        ring.putInt(CAPACITY_OFFSET, capacity);
+        ring.putInt(RECORD_SIZE_OFFSET, RECORD_SIZE);
+        return ring;
+    }
+
+    /**
+     * values_per_sample has the width of every stream the producer writes, by index.
+     */
+    DirectImuRing(@NonNull ByteBuffer ring, @NonNull Cursors cursors, @NonNull int[] values_per_sample) {
+        if (ring.getInt(MAGIC_OFFSET) != MAGIC || ring.getInt(VERSION_OFFSET) != VERSION
+                || ring.getInt(RECORD_SIZE_OFFSET) != RECORD_SIZE) {
+            throw new IllegalArgumentException("Not a version " + VERSION + " IMU ring");
+        }
+        if (values_per_sample.length > MAX_STREAMS) {
+            throw new IllegalArgumentException("More than " + MAX_STREAMS + " streams");
+        }
+        for (int width : values_per_sample) {
+            if (width < 1 || width > ImuLogFormat.MAX_VALUES) {
+                throw new IllegalArgumentException("values_per_sample out of range: " + width);
+            }
+        }
+        mRing = ring;
+        mCursors = cursors;
+        mCapacity = ring.getInt(CAPACITY_OFFSET);
+        mMask = mCapacity - 1;
+        mWidths = values_per_sample.clone();
+        int streams = mWidths.length;
+        mBatchCounts = new int[streams];
+        mBatchTimestamps = new long[streams][mCapacity];
+        mBatchArrivals = new long[streams][mCapacity];
+        mBatchValues = new float[streams][];
+        for (int i = 0; i < streams; ++i) {
+            mBatchValues[i] = new float[mWidths[i] * mCapacity];
+        }
+    }
+
+    @NonNull
+    ByteBuffer getBuffer() {
+        return mRing;
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Producer side, for Java producers.  Returns false if the sample was dropped.
+     */
+    boolean offer(int stream, long timestamp_ns, long arrival_ns, @NonNull float[] values, int count) {
+        long head = mRing.getLong(HEAD_OFFSET);
+        if (head - mCursors.loadTail(mRing) >= mCapacity) {
+            int overruns = OVERRUNS_OFFSET + 8 * stream;
+            mRing.putLong(overruns, mRing.getLong(overruns) + 1);
+            return false;
+        }
+        int base = HEADER_SIZE + (int) (head & mMask) * RECORD_SIZE;
+        int n = Math.min(count, ImuLogFormat.MAX_VALUES);
+        mRing.putLong(base + TIMESTAMP_OFFSET, timestamp_ns);
+        mRing.putLong(base + ARRIVAL_OFFSET, arrival_ns);
+        mRing.putInt(base + STREAM_OFFSET, stream);
+        mRing.putInt(base + VALUE_COUNT_OFFSET, n);
+        for (int i = 0; i < n; ++i) {
+            mRing.putFloat(base + VALUES_OFFSET + 4 * i, values[i]);
+        }
+        mCursors.storeHead(mRing, head + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side.  Moves up to max_samples samples to the consumer and returns how many.
+     * Records of unknown streams are counted and skipped.
+     */
+    int drainTo(@NonNull Consumer consumer, int max_samples) throws IOException {
+        long head = mCursors.loadHead(mRing);
+        long tail = mTail;
+        int count = (int) Math.min(head - tail, Math.min(max_samples, mCapacity));
+        if (count <= 0) {
+            return 0;
+        }
+        for (int i = 0; i < count; ++i) {
+            int base = HEADER_SIZE + (int) ((tail + i) & mMask) * RECORD_SIZE;
+            int stream = mRing.getInt(base + STREAM_OFFSET);
+            if (stream < 0 || stream >= mWidths.length) {
+                ++mUnknownRecords;
+                continue;
+            }
+            int width = mWidths[stream];
+            int n = Math.min(mRing.getInt(base + VALUE_COUNT_OFFSET), width);
+            int k = mBatchCounts[stream]++;
+            mBatchTimestamps[stream][k] = mRing.getLong(base + TIMESTAMP_OFFSET);
+            mBatchArrivals[stream][k] = mRing.getLong(base + ARRIVAL_OFFSET);
+            float[] values = mBatchValues[stream];
+            int out = width * k;
+            for (int v = 0; v < n; ++v) {
+                values[out + v] = mRing.getFloat(base + VALUES_OFFSET + 4 * v);
+            }
+            for (int v = n; v < width; ++v) {
+                values[out + v] = 0.0f;
+            }
+        }
+        mTail = tail + count;
+        mCursors.storeTail(mRing, mTail);
+        for (int stream = 0; stream < mWidths.length; ++stream) {
+            int n = mBatchCounts[stream];
+            if (n == 0) {
+                continue;
+            }
+            mBatchCounts[stream] = 0;
+            consumer.onSamples(stream, mBatchTimestamps[stream], mBatchArrivals[stream],
+                    mBatchValues[stream], mWidths[stream], n);
+        }
+        ++mDrainedBatches;
+        mDrainedSamples += count;
+        if (count > mMaxBatchSize) {
+            mMaxBatchSize = count;
+        }
+        return count;
+    }
+
+    /** Read by the consumer; exact once the producer has stopped. */
+    long getOverruns(int stream) {
+        return mRing.getLong(OVERRUNS_OFFSET + 8 * stream);
+    }
+
+    long getOverruns() {
+        long overruns = 0;
+        for (int stream = 0; stream < mWidths.length; ++stream) {
+            overruns += getOverruns(stream);
+        }
+        return overruns;
+    }
+
+    long getUnknownRecords() {
+        return mUnknownRecords;
+    }
+
+    String formatStats() {
+        return "drained=" + mDrainedSamples + " batches=" + mDrainedBatches
+                + " max_batch=" + mMaxBatchSize + "/" + mCapacity + " overruns=" + getOverruns()
+                + " unknown=" + mUnknownRecords;
+    }
+
+    private final ByteBuffer mRing;
+    private final Cursors mCursors;
+    private final int mCapacity;
+    private final int mMask;
+    private final int[] mWidths;
+
+    // Consumer-owned.
+    private long mTail;
+    private final int[] mBatchCounts;
+    private final long[][] mBatchTimestamps;
+    private final long[][] mBatchArrivals;
+    private final float[][] mBatchValues;
+    private long mUnknownRecords;
+    private volatile long mDrainedBatches;
+    private volatile long mDrainedSamples;
+    private volatile int mMaxBatchSize;
+}
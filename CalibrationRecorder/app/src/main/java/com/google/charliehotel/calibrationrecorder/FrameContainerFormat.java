@@ -0,0 +1,32 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import java.nio.ByteOrder;
+
+/**
+ * Layout of a packed frame container, an append-only file holding many frames.
+ *
+ * All fields are little-endian.
+ *
+ *   file header:  magic "CRFC", u16 version, u16 header size, 8 reserved bytes
+ *   frame record: magic "CRFR", i32 payload length, i64 frame number, i64 timestamp [ns],
+ *                 payload (exactly what would have been the per-frame image file)
+ *   index entry:  i64 frame number, i64 timestamp [ns], i64 payload offset, i32 length
+ *   trailer:      i64 index offset, i32 entry count, magic "CRFX"
+ *
+ * The index and trailer are appended on a clean close.  Records are written payload
+ * first, so a record header on disk implies its payload made it too; a run that was cut
+ * off can have its index rebuilt by scanning record headers from the start.
+ */
+class FrameContainerFormat {
+    static final int FILE_MAGIC = 0x43465243;     // "CRFC"
+    static final int RECORD_MAGIC = 0x52465243;   // "CRFR"
+    static final int TRAILER_MAGIC = 0x58465243;  // "CRFX"
+    static final int VERSION = 1;
+
+    static final int FILE_HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 24;
+    static final int INDEX_ENTRY_SIZE = 28;
+    static final int TRAILER_SIZE = 16;
+
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+}
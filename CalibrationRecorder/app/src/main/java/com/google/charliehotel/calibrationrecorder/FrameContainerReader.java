@@ -0,0 +1,284 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Random-access reader for packed frame containers (see FrameContainerFormat).
+ *
+ * If the container has no valid trailer, because the recording was cut off, the index is
+ * rebuilt by scanning the record headers.  The scan stops at the first record that never
+ * made it to disk, so with several writer threads a few frames just before the cut may be
+ * lost.  Usable off-device:
+ *
+ *   java com.google.charliehotel.calibrationrecorder.FrameContainerReader list left_images.frames
+ *   java ... FrameContainerReader extract left_images.frames out_dir jpg
+ *   java ... FrameContainerReader repair left_images.frames
+ */
+class FrameContainerReader implements Closeable {
+    FrameContainerReader(@NonNull File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+
+        ByteBuffer header = read(0, FrameContainerFormat.FILE_HEADER_SIZE);
+        if (header.getInt() != FrameContainerFormat.FILE_MAGIC) {
+            throw new IOException(file + " is not a frame container");
+        }
+        int version = header.getShort() & 0xffff;
+        if (version != FrameContainerFormat.VERSION) {
+            throw new IOException("Unsupported frame container version " + version);
+        }
+        mHeaderSize = header.getShort() & 0xffff;
+
+        if (!readIndex()) {
+            rebuildIndex();
+            mRecovered = true;
+        }
+    }
+
+    int getFrameCount() {
+        return mCount;
+    }
+
+    /**
+     * True if the index had to be rebuilt because the trailer was missing.
+     */
+    boolean wasRecovered() {
+        return mRecovered;
+    }
+
+    long getFrameNumber(int i) {
+        return mFrameNumbers[i];
+    }
+
+    long getTimestampNs(int i) {
+        return mTimestamps[i];
+    }
+
+    long getOffset(int i) {
+        return mOffsets[i];
+    }
+
+    int getLength(int i) {
+        return mLengths[i];
+    }
+
+    /**
+     * Returns the index of the frame with the given frame number, or -1.
+     */
+    int findFrame(long frame_number) {
+        int i = Arrays.binarySearch(mSortedFrameNumbers, frame_number);
+        return i < 0 ? -1 : mSortedPositions[i];
+    }
+
+    /**
+     * Maps the payload of frame i read-only.
+     */
+    @NonNull
+    ByteBuffer mapFrame(int i) throws IOException {
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, mOffsets[i], mLengths[i]);
+    }
+
+    void copyFrameTo(int i, @NonNull FileChannel out) throws IOException {
+        long position = mOffsets[i];
+        long end = position + mLengths[i];
+        while (position < end) {
+            position += mChannel.transferTo(position, end - position, out);
+        }
+    }
+
+    /**
+     * Appends the index and trailer to a container that was cut off.  The reader must have
+     * been used only to scan; the container is reopened for writing.
+     */
+    static void repair(@NonNull File file) throws IOException {
+        FrameContainerReader reader = new FrameContainerReader(file);
+        try {
+            if (!reader.wasRecovered()) {
+                return;
+            }
+            long index_offset = reader.mScanEnd;
+            ByteBuffer index = ByteBuffer.allocate(reader.mCount * FrameContainerFormat.INDEX_ENTRY_SIZE
+                    + FrameContainerFormat.TRAILER_SIZE).order(FrameContainerFormat.BYTE_ORDER);
+            for (int i = 0; i < reader.mCount; ++i) {
+                index.putLong(reader.mFrameNumbers[i]);
+                index.putLong(reader.mTimestamps[i]);
+                index.putLong(reader.mOffsets[i]);
+                index.putInt(reader.mLengths[i]);
+            }
+            index.putLong(index_offset);
+            index.putInt(reader.mCount);
+            index.putInt(FrameContainerFormat.TRAILER_MAGIC);
+            index.flip();
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = out.getChannel();
+                long position = index_offset;
+                while (index.hasRemaining()) {
+                    position += channel.write(index, position);
+                }
+                channel.truncate(position);
+            } finally {
+                out.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    private boolean readIndex() throws IOException {
+        long length = mChannel.size();
+        if (length < mHeaderSize + FrameContainerFormat.TRAILER_SIZE) {
+            return false;
+        }
+        ByteBuffer trailer = read(length - FrameContainerFormat.TRAILER_SIZE,
+                FrameContainerFormat.TRAILER_SIZE);
+        long index_offset = trailer.getLong();
+        int count = trailer.getInt();
+        if (trailer.getInt() != FrameContainerFormat.TRAILER_MAGIC || count < 0
+                || index_offset + (long) count * FrameContainerFormat.INDEX_ENTRY_SIZE
+                        != length - FrameContainerFormat.TRAILER_SIZE) {
+            return false;
+        }
+        allocate(count);
+        ByteBuffer index = read(index_offset, count * FrameContainerFormat.INDEX_ENTRY_SIZE);
+        for (int i = 0; i < count; ++i) {
+            mFrameNumbers[i] = index.getLong();
+            mTimestamps[i] = index.getLong();
+            mOffsets[i] = index.getLong();
+            mLengths[i] = index.getInt();
+        }
+        mCount = count;
+        mScanEnd = index_offset;
+        buildLookup();
+        return true;
+    }
+
+    private void rebuildIndex() throws IOException {
+        long length = mChannel.size();
+        long position = mHeaderSize;
+        allocate(1024);
+        while (position + FrameContainerFormat.RECORD_HEADER_SIZE <= length) {
+            ByteBuffer header = read(position, FrameContainerFormat.RECORD_HEADER_SIZE);
+            int payload_length = header.getInt(4);
+            if (header.getInt(0) != FrameContainerFormat.RECORD_MAGIC || payload_length < 0
+                    || position + FrameContainerFormat.RECORD_HEADER_SIZE + payload_length > length) {
+                break;
+            }
+            if (mCount == mOffsets.length) {
+                grow(2 * mCount);
+            }
+            mFrameNumbers[mCount] = header.getLong(8);
+            mTimestamps[mCount] = header.getLong(16);
+            mOffsets[mCount] = position + FrameContainerFormat.RECORD_HEADER_SIZE;
+            mLengths[mCount] = payload_length;
+            ++mCount;
+            position += FrameContainerFormat.RECORD_HEADER_SIZE + payload_length;
+        }
+        mScanEnd = position;
+        buildLookup();
+    }
+
+    private void buildLookup() {
+        mSortedFrameNumbers = Arrays.copyOf(mFrameNumbers, mCount);
+        Arrays.sort(mSortedFrameNumbers);
+        mSortedPositions = new int[mCount];
+        for (int i = 0; i < mCount; ++i) {
+            mSortedPositions[Arrays.binarySearch(mSortedFrameNumbers, mFrameNumbers[i])] = i;
+        }
+    }
+
+    private void allocate(int capacity) {
+        mFrameNumbers = new long[capacity];
+        mTimestamps = new long[capacity];
+        mOffsets = new long[capacity];
+        mLengths = new int[capacity];
+    }
+
+    private void grow(int capacity) {
+        mFrameNumbers = Arrays.copyOf(mFrameNumbers, capacity);
+        mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+        mOffsets = Arrays.copyOf(mOffsets, capacity);
+        mLengths = Arrays.copyOf(mLengths, capacity);
+    }
+
+    private ByteBuffer read(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(FrameContainerFormat.BYTE_ORDER);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of frame container");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && args[0].equals("list")) {
+            FrameContainerReader reader = new FrameContainerReader(new File(args[1]));
+            try {
+                for (int i = 0; i < reader.getFrameCount(); ++i) {
+                    System.out.println(reader.getFrameNumber(i) + " " + reader.getTimestampNs(i)
+                            + " " + reader.getOffset(i) + " " + reader.getLength(i));
+                }
+            } finally {
+                reader.close();
+            }
+        } else if (args.length == 4 && args[0].equals("extract")) {
+            FrameContainerReader reader = new FrameContainerReader(new File(args[1]));
+            try {
+                File dir = new File(args[2]);
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Could not create " + dir);
+                }
+                for (int i = 0; i < reader.getFrameCount(); ++i) {
+                    File file = new File(dir, String.format("%05d.%s", reader.getFrameNumber(i), args[3]));
+                    FileOutputStream out = new FileOutputStream(file);
+                    try {
+                        reader.copyFrameTo(i, out.getChannel());
+                    } finally {
+                        out.close();
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } else if (args.length == 2 && args[0].equals("repair")) {
+            repair(new File(args[1]));
+        } else {
+            System.err.println("usage: FrameContainerReader list <file>");
+            System.err.println("       FrameContainerReader extract <file> <dir> <extension>");
+            System.err.println("       FrameContainerReader repair <file>");
+            System.exit(2);
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mHeaderSize;
+
+    private boolean mRecovered;
+    private long mScanEnd;
+
+    private int mCount;
+    private long[] mFrameNumbers;
+    private long[] mTimestamps;
+    private long[] mOffsets;
+    private int[] mLengths;
+
+    private long[] mSortedFrameNumbers;
+    private int[] mSortedPositions;
+}
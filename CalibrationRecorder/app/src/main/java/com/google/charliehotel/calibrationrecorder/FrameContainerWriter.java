@@ -0,0 +1,173 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Appends frames to a packed container file (see FrameContainerFormat).
+ *
+ * The file is grown in large preallocated steps so that storage is not extended on every
+ * frame.  append() may be called from several writer threads at once: space is reserved
+ * under a lock and the payload is then written outside it with positional writes.
+ */
+class FrameContainerWriter implements Closeable {
+    private static final long PREALLOCATION_BYTES = 256L * 1024 * 1024;
+    private static final int INITIAL_INDEX_CAPACITY = 4096;
+
+    FrameContainerWriter(@NonNull File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mFile.setLength(PREALLOCATION_BYTES);
+        mAllocated = PREALLOCATION_BYTES;
+
+        ByteBuffer header = ByteBuffer.allocate(FrameContainerFormat.FILE_HEADER_SIZE)
+                .order(FrameContainerFormat.BYTE_ORDER);
+        header.putInt(FrameContainerFormat.FILE_MAGIC);
+        header.putShort((short) FrameContainerFormat.VERSION);
+        header.putShort((short) FrameContainerFormat.FILE_HEADER_SIZE);
+        header.putLong(0);
+        header.flip();
+        writeFully(header, 0);
+        mEnd = FrameContainerFormat.FILE_HEADER_SIZE;
+    }
+
+    /**
+     * Appends one frame whose payload is the concatenation of the buffers.
+     */
+    void append(long frame_number, long timestamp_ns, @NonNull ByteBuffer[] payload)
+            throws IOException {
+        long length = 0;
+        for (ByteBuffer buffer : payload) {
+            length += buffer.remaining();
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Frame " + frame_number + " too large: " + length);
+        }
+
+        long record_offset = reserve(FrameContainerFormat.RECORD_HEADER_SIZE + length);
+        long position = record_offset + FrameContainerFormat.RECORD_HEADER_SIZE;
+        for (ByteBuffer buffer : payload) {
+            position += writeFully(buffer, position);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(FrameContainerFormat.RECORD_HEADER_SIZE)
+                .order(FrameContainerFormat.BYTE_ORDER);
+        header.putInt(FrameContainerFormat.RECORD_MAGIC);
+        header.putInt((int) length);
+        header.putLong(frame_number);
+        header.putLong(timestamp_ns);
+        header.flip();
+        writeFully(header, record_offset);
+
+        addIndexEntry(frame_number, timestamp_ns,
+                record_offset + FrameContainerFormat.RECORD_HEADER_SIZE, (int) length);
+    }
+
+    synchronized int getFrameCount() {
+        return mCount;
+    }
+
+    /**
+     * Writes the index and trailer and trims the preallocated tail.  Callers must make sure
+     * no append() is still in flight.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sortIndex();
+            long index_offset = mEnd;
+            ByteBuffer index = ByteBuffer.allocate(
+                    mCount * FrameContainerFormat.INDEX_ENTRY_SIZE + FrameContainerFormat.TRAILER_SIZE)
+                    .order(FrameContainerFormat.BYTE_ORDER);
+            for (int i = 0; i < mCount; ++i) {
+                index.putLong(mFrameNumbers[i]);
+                index.putLong(mTimestamps[i]);
+                index.putLong(mOffsets[i]);
+                index.putInt(mLengths[i]);
+            }
+            index.putLong(index_offset);
+            index.putInt(mCount);
+            index.putInt(FrameContainerFormat.TRAILER_MAGIC);
+            index.flip();
+            long end = index_offset + writeFully(index, index_offset);
+            mChannel.truncate(end);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    private synchronized long reserve(long size) throws IOException {
+        long offset = mEnd;
+        mEnd += size;
+        // Leave room for the index so close() rarely has to extend the file.
+        while (mEnd + FrameContainerFormat.INDEX_ENTRY_SIZE * (mCount + 1L)
+                + FrameContainerFormat.TRAILER_SIZE > mAllocated) {
+            mAllocated += PREALLOCATION_BYTES;
+            mFile.setLength(mAllocated);
+        }
+        return offset;
+    }
+
+    private synchronized void addIndexEntry(long frame_number, long timestamp_ns, long offset,
+                                            int length) {
+        if (mCount == mOffsets.length) {
+            int capacity = 2 * mCount;
+            mFrameNumbers = Arrays.copyOf(mFrameNumbers, capacity);
+            mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+            mLengths = Arrays.copyOf(mLengths, capacity);
+        }
+        mFrameNumbers[mCount] = frame_number;
+        mTimestamps[mCount] = timestamp_ns;
+        mOffsets[mCount] = offset;
+        mLengths[mCount] = length;
+        ++mCount;
+    }
+
+    // Concurrent writers can finish out of order; the index is kept in file order.
+    private void sortIndex() {
+        for (int i = 1; i < mCount; ++i) {
+            for (int j = i; j > 0 && mOffsets[j - 1] > mOffsets[j]; --j) {
+                swap(mFrameNumbers, j);
+                swap(mTimestamps, j);
+                swap(mOffsets, j);
+                int length = mLengths[j];
+                mLengths[j] = mLengths[j - 1];
+                mLengths[j - 1] = length;
+            }
+        }
+    }
+
+    private static void swap(long[] values, int j) {
+        long value = values[j];
+        values[j] = values[j - 1];
+        values[j - 1] = value;
+    }
+
+    private long writeFully(ByteBuffer buffer, long position) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += mChannel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+
+    private long mEnd;
+    private long mAllocated;
+
+    private int mCount;
+    private long[] mFrameNumbers = new long[INITIAL_INDEX_CAPACITY];
+    private long[] mTimestamps = new long[INITIAL_INDEX_CAPACITY];
+    private long[] mOffsets = new long[INITIAL_INDEX_CAPACITY];
+    private int[] mLengths = new int[INITIAL_INDEX_CAPACITY];
+}
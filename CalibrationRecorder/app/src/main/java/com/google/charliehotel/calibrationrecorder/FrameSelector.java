@@ -0,0 +1,115 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Decides from a TargetDetector.Detection whether a frame is worth writing.
+ *
+ * A frame is kept if the target is in it, it is sharp enough, and its pose is novel:
+ * far enough from every kept frame's pose.  A pose is the detection's centre, the log of
+ * its spread (distance) and its elongation along its angle (tilt), weighted so that a
+ * unit of each is about as different a view:
+ *
+ *   (x, y, SPREAD_WEIGHT * log(spread),
+ *    TILT_WEIGHT * elongation * cos(2 angle), TILT_WEIGHT * elongation * sin(2 angle))
+ *
+ * The last HISTORY_SIZE kept poses are remembered; novelty is the distance to the
+ * closest.  Pure Java, allocation-free; one thread at a time.
+ */
+class FrameSelector {
+    static final int KEEP_NOVEL = 0;
+    static final int REJECT_NO_TARGET = 1;
+    static final int REJECT_BLURRY = 2;
+    static final int REJECT_REDUNDANT = 3;
+    // Decisions made without a detection, by whoever drives the selector.
+    static final int REJECT_BUSY = 4;
+    static final int KEEP_UNDECIDED = 5;
+
+    private static final String[] REASONS = {"novel", "no_target", "blurry", "redundant", "busy", "undecided"};
+
+    static final double DEFAULT_MIN_SHARPNESS = 0.35;
+    static final double DEFAULT_MIN_NOVELTY = 0.08;
+
+    static final int HISTORY_SIZE = 512;
+
+    private static final double SPREAD_WEIGHT = 0.5;
+    private static final double TILT_WEIGHT = 0.5;
+    private static final int POSE_SIZE = 5;
+
+    FrameSelector() {
+        this(DEFAULT_MIN_SHARPNESS, DEFAULT_MIN_NOVELTY);
+    }
+
+    FrameSelector(double min_sharpness, double min_novelty) {
+        mMinSharpness = min_sharpness;
+        mMinNovelty = min_novelty;
+    }
+
+    static boolean isKeep(int decision) {
+        return decision == KEEP_NOVEL || decision == KEEP_UNDECIDED;
+    }
+
+    @NonNull
+    static String reason(int decision) {
+        return REASONS[decision];
+    }
+
+    /**
+     * Decides on the frame of the detection, and remembers its pose if it is kept.
+     */
+    int decide(@NonNull TargetDetector.Detection detection) {
+        mLastNovelty = 0;
+        if (!detection.isTargetFound()) {
+            return REJECT_NO_TARGET;
+        }
+        if (detection.getSharpness() < mMinSharpness) {
+            return REJECT_BLURRY;
+        }
+        double[] pose = mPose;
+        pose[0] = detection.getCenterX();
+        pose[1] = detection.getCenterY();
+        pose[2] = SPREAD_WEIGHT * Math.log(Math.max(detection.getSpread(), 1e-3));
+        pose[3] = TILT_WEIGHT * detection.getElongation() * Math.cos(2 * detection.getAngle());
+        pose[4] = TILT_WEIGHT * detection.getElongation() * Math.sin(2 * detection.getAngle());
+        mLastNovelty = novelty(pose);
+        if (mLastNovelty < mMinNovelty) {
+            return REJECT_REDUNDANT;
+        }
+        System.arraycopy(pose, 0, mHistory, (int) (mKept % HISTORY_SIZE) * POSE_SIZE, POSE_SIZE);
+        ++mKept;
+        return KEEP_NOVEL;
+    }
+
+    /**
+     * Novelty of the last decided frame, or zero if it did not get that far.
+     */
+    double getLastNovelty() {
+        return mLastNovelty;
+    }
+
+    long getKeptCount() {
+        return mKept;
+    }
+
+    // Distance to the closest remembered pose; infinite before the first.
+    private double novelty(double[] pose) {
+        int remembered = (int) Math.min(mKept, HISTORY_SIZE);
+        double best = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < remembered; ++i) {
+            double sum = 0;
+            for (int j = 0; j < POSE_SIZE; ++j) {
+                double d = pose[j] - mHistory[i * POSE_SIZE + j];
+                sum += d * d;
+            }
+            best = Math.min(best, sum);
+        }
+        return Math.sqrt(best);
+    }
+
+    private final double mMinSharpness;
+    private final double mMinNovelty;
+    private final double[] mPose = new double[POSE_SIZE];
+    private final double[] mHistory = new double[HISTORY_SIZE * POSE_SIZE];
+    private long mKept;
+    private double mLastNovelty;
+}
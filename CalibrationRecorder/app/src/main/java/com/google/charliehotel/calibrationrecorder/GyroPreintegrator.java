@@ -0,0 +1,407 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Integrates the gyro and accel streams as they are recorded into one rotation and one
+ * change of velocity per camera frame, so calibration need not re-integrate the IMU logs
+ * between every pair of frames.
+ *
+ * Writes one line per frame, in capture order, with the fields of LOG_HEADER:
+ *
+ *   timestamp_ns           the frame's SENSOR_TIMESTAMP, as in the metadata log
+ *   previous_timestamp_ns  that of the previous line, or 0 on the first
+ *   gyro_samples           gyro samples with timestamps in (previous, timestamp]
+ *   qw qx qy qz            rotation from the body at timestamp to the body at previous
+ *   dvx dvy dvz            accel integrated over the interval in the body at previous,
+ *                          gravity included
+ *   mid_exposure_ns        timestamp + (exposure + rolling shutter skew) / 2, when the
+ *                          middle row is half exposed
+ *   gx gy gz ax ay az      gyro and accel at mid_exposure_ns
+ *
+ * Integrated values are "%a" of a double, the others of a float, as in the IMU logs.
+ * Both streams are taken to change linearly between samples.  Every step between gyro
+ * sample times (and the frame timestamps) rotates by the mean rate over the step and adds
+ * the mean of the rotated accel at its ends.  The timestamps are those of the logs,
+ * offsets applied, so each line can be reproduced from gyro.txt, accel.txt and the
+ * metadata log; GyroPreintegratorTest does that with an offline integrator.
+ *
+ * Frames arrive from the camera thread and samples from the IMU writer thread.  A frame
+ * waits until both streams have passed its timestamp and mid-exposure, and is written
+ * by whichever thread delivers the last sample it needs.  Nothing is allocated once
+ * constructed: samples are kept in a fixed ring per stream, trimmed as frames are
+ * written, and waiting frames in another.  A frame that finds MAX_PENDING_FRAMES waiting
+ * pushes out the oldest, which is counted as dropped; the next line then spans both.
+ */
+class GyroPreintegrator {
+    static final String LOG_HEADER = "# timestamp_ns previous_timestamp_ns gyro_samples qw qx qy qz"
+            + " dvx dvy dvz mid_exposure_ns gx gy gz ax ay az";
+
+    // Four seconds at 1 kHz, well beyond how far IMU delivery trails the camera.
+    static final int HISTORY_SAMPLES = 4096;
+    static final int MAX_PENDING_FRAMES = 32;
+
+    private static final double NS_TO_S = 1e-9;
+
+    GyroPreintegrator(@NonNull Writer writer) {
+        this(writer, HISTORY_SAMPLES);
+    }
+
+    GyroPreintegrator(@NonNull Writer writer, int history_samples) {
+        mWriter = writer;
+        mGyro = new History(history_samples);
+        mAccel = new History(history_samples);
+    }
+
+    /**
+     * Adds a frame; exposure_ns and skew_ns may be CaptureMetadataFormat.MISSING.  Frames
+     * that do not move forward in time are ignored.
+     */
+    synchronized void addFrame(long timestamp_ns, long exposure_ns, long skew_ns) throws IOException {
+        if (mFinished) {
+            return;
+        }
+        if (mFrames > 0 && timestamp_ns <= mLastFrameNs) {
+            ++mReorderedFrames;
+            return;
+        }
+        ++mFrames;
+        mLastFrameNs = timestamp_ns;
+        if (mPendingCount == MAX_PENDING_FRAMES) {
+            mPendingHead = (mPendingHead + 1) % MAX_PENDING_FRAMES;
+            --mPendingCount;
+            ++mDroppedFrames;
+        }
+        int slot = (mPendingHead + mPendingCount) % MAX_PENDING_FRAMES;
+        mPendingNs[slot] = timestamp_ns;
+        mPendingMidNs[slot] = timestamp_ns
+                + (Math.max(0, exposure_ns) + Math.max(0, skew_ns)) / 2;
+        ++mPendingCount;
+        writeReadyFrames();
+    }
+
+    synchronized void addGyro(long timestamp_ns, float x, float y, float z) throws IOException {
+        if (!mFinished) {
+            addSample(mGyro, timestamp_ns, x, y, z);
+            writeReadyFrames();
+        }
+    }
+
+    /**
+     * Adds count samples laid out as ImuSink.write() takes them.
+     */
+    synchronized void addGyro(@NonNull long[] timestamps_ns, @NonNull float[] values, int values_per_sample,
+                              int count) throws IOException {
+        if (!mFinished) {
+            addSamples(mGyro, timestamps_ns, values, values_per_sample, count);
+            writeReadyFrames();
+        }
+    }
+
+    synchronized void addAccel(long timestamp_ns, float x, float y, float z) throws IOException {
+        if (!mFinished) {
+            addSample(mAccel, timestamp_ns, x, y, z);
+            writeReadyFrames();
+        }
+    }
+
+    synchronized void addAccel(@NonNull long[] timestamps_ns, @NonNull float[] values, int values_per_sample,
+                               int count) throws IOException {
+        if (!mFinished) {
+            addSamples(mAccel, timestamps_ns, values, values_per_sample, count);
+            writeReadyFrames();
+        }
+    }
+
+    /**
+     * Counts every frame still waiting for samples as dropped and ignores anything added
+     * later.
+     */
+    synchronized void finish() {
+        mDroppedFrames += mPendingCount;
+        mPendingCount = 0;
+        mFinished = true;
+    }
+
+    synchronized long getWrittenFrameCount() {
+        return mWrittenFrames;
+    }
+
+    synchronized long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    synchronized String formatStats() {
+        return "frames=" + mFrames + " written=" + mWrittenFrames + " dropped=" + mDroppedFrames
+                + " reordered=" + mReorderedFrames + " ignored_samples=" + mIgnoredSamples
+                + " lost_samples=" + mLostSamples;
+    }
+
+    private void addSamples(History history, long[] timestamps_ns, float[] values, int values_per_sample,
+                            int count) {
+        for (int i = 0; i < count; ++i) {
+            int base = values_per_sample * i;
+            addSample(history, timestamps_ns[i], values[base], values[base + 1], values[base + 2]);
+        }
+    }
+
+    private void addSample(History history, long timestamp_ns, float x, float y, float z) {
+        if (history.size() > 0 && timestamp_ns <= history.latest()) {
+            ++mIgnoredSamples;
+            return;
+        }
+        // Once a frame is written, the ring holds nothing the next one does not need.
+        if (history.isFull() && mWrittenFrames > 0) {
+            ++mLostSamples;
+        }
+        history.add(timestamp_ns, x, y, z);
+    }
+
+    private void writeReadyFrames() throws IOException {
+        while (mPendingCount > 0) {
+            long timestamp_ns = mPendingNs[mPendingHead];
+            long mid_exposure_ns = mPendingMidNs[mPendingHead];
+            long needed_ns = Math.max(timestamp_ns, mid_exposure_ns);
+            if (mGyro.size() == 0 || mGyro.latest() < needed_ns
+                    || mAccel.size() == 0 || mAccel.latest() < needed_ns) {
+                return;
+            }
+            mPendingHead = (mPendingHead + 1) % MAX_PENDING_FRAMES;
+            --mPendingCount;
+            writeFrame(timestamp_ns, mid_exposure_ns);
+        }
+    }
+
+    private void writeFrame(long timestamp_ns, long mid_exposure_ns) throws IOException {
+        long previous_ns = 0;
+        long samples = 0;
+        mQ[0] = 1;
+        mQ[1] = mQ[2] = mQ[3] = 0;
+        mDv[0] = mDv[1] = mDv[2] = 0;
+        if (mWrittenFrames > 0) {
+            previous_ns = mCursorNs;
+            samples = mGyro.floor(timestamp_ns) - mGyro.floor(previous_ns);
+            integrate(previous_ns, timestamp_ns);
+        }
+        mGyro.interpolate(mid_exposure_ns, mW1);
+        mAccel.interpolate(mid_exposure_ns, mA1);
+
+        mEncoder.clear().putLong(timestamp_ns).putSpace().putLong(previous_ns).putSpace().putLong(samples);
+        for (double q : mQ) {
+            mEncoder.putSpace().putHexDouble(q);
+        }
+        for (double dv : mDv) {
+            mEncoder.putSpace().putHexDouble(dv);
+        }
+        mEncoder.putSpace().putLong(mid_exposure_ns);
+        for (double w : mW1) {
+            mEncoder.putSpace().putHexFloat((float) w);
+        }
+        for (double a : mA1) {
+            mEncoder.putSpace().putHexFloat((float) a);
+        }
+        mEncoder.putNewline().writeTo(mWriter);
+
+        ++mWrittenFrames;
+        mCursorNs = timestamp_ns;
+        mGyro.trimBefore(timestamp_ns);
+        mAccel.trimBefore(timestamp_ns);
+    }
+
+    // Integrates into mQ and mDv from start_ns to end_ns, stepping at every gyro sample.
+    private void integrate(long start_ns, long end_ns) {
+        mGyro.interpolate(start_ns, mW0);
+        mAccel.interpolate(start_ns, mA0);
+        rotate(mQ, mA0, mRa0);
+        long t0_ns = start_ns;
+        int next = mGyro.floor(start_ns) + 1;
+        while (t0_ns < end_ns) {
+            long t1_ns = end_ns;
+            if (next < mGyro.size() && mGyro.timestamp(next) < end_ns) {
+                t1_ns = mGyro.timestamp(next);
+                ++next;
+            }
+            double dt = (t1_ns - t0_ns) * NS_TO_S;
+            mGyro.interpolate(t1_ns, mW1);
+            mAccel.interpolate(t1_ns, mA1);
+            rotateBy(mQ, 0.5 * (mW0[0] + mW1[0]) * dt, 0.5 * (mW0[1] + mW1[1]) * dt,
+                    0.5 * (mW0[2] + mW1[2]) * dt);
+            rotate(mQ, mA1, mRa1);
+            for (int i = 0; i < 3; ++i) {
+                mDv[i] += 0.5 * (mRa0[i] + mRa1[i]) * dt;
+                mW0[i] = mW1[i];
+                mRa0[i] = mRa1[i];
+            }
+            t0_ns = t1_ns;
+        }
+    }
+
+    // q = q * exp(rotation vector / 2), renormalized.
+    private static void rotateBy(double[] q, double rx, double ry, double rz) {
+        double angle = Math.sqrt(rx * rx + ry * ry + rz * rz);
+        double w;
+        double s;
+        if (angle < 1e-8) {
+            // Second order; exact to double precision at this size.
+            w = 1 - angle * angle / 8;
+            s = 0.5;
+        } else {
+            w = Math.cos(0.5 * angle);
+            s = Math.sin(0.5 * angle) / angle;
+        }
+        double x = s * rx;
+        double y = s * ry;
+        double z = s * rz;
+        double qw = q[0] * w - q[1] * x - q[2] * y - q[3] * z;
+        double qx = q[0] * x + q[1] * w + q[2] * z - q[3] * y;
+        double qy = q[0] * y - q[1] * z + q[2] * w + q[3] * x;
+        double qz = q[0] * z + q[1] * y - q[2] * x + q[3] * w;
+        double norm = Math.sqrt(qw * qw + qx * qx + qy * qy + qz * qz);
+        q[0] = qw / norm;
+        q[1] = qx / norm;
+        q[2] = qy / norm;
+        q[3] = qz / norm;
+    }
+
+    // out = q v q*.
+    private static void rotate(double[] q, double[] v, double[] out) {
+        double w = q[0];
+        double x = q[1];
+        double y = q[2];
+        double z = q[3];
+        // t = 2 (q.xyz x v); out = v + w t + q.xyz x t.
+        double tx = 2 * (y * v[2] - z * v[1]);
+        double ty = 2 * (z * v[0] - x * v[2]);
+        double tz = 2 * (x * v[1] - y * v[0]);
+        out[0] = v[0] + w * tx + (y * tz - z * ty);
+        out[1] = v[1] + w * ty + (z * tx - x * tz);
+        out[2] = v[2] + w * tz + (x * ty - y * tx);
+    }
+
+    /**
+     * The latest samples of one stream, oldest first, in a fixed ring.  Adding to a full
+     * ring drops the oldest.
+     */
+    private static class History {
+        History(int capacity) {
+            mTimestampsNs = new long[capacity];
+            mValues = new float[3 * capacity];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        boolean isFull() {
+            return mSize == mTimestampsNs.length;
+        }
+
+        long timestamp(int i) {
+            return mTimestampsNs[slot(i)];
+        }
+
+        long latest() {
+            return timestamp(mSize - 1);
+        }
+
+        void add(long timestamp_ns, float x, float y, float z) {
+            if (isFull()) {
+                mHead = slot(1);
+                --mSize;
+            }
+            int slot = slot(mSize);
+            mTimestampsNs[slot] = timestamp_ns;
+            mValues[3 * slot] = x;
+            mValues[3 * slot + 1] = y;
+            mValues[3 * slot + 2] = z;
+            ++mSize;
+        }
+
+        /**
+         * Returns the index of the last sample at or before timestamp_ns, or -1.
+         */
+        int floor(long timestamp_ns) {
+            int i = 0;
+            while (i < mSize && timestamp(i) <= timestamp_ns) {
+                ++i;
+            }
+            return i - 1;
+        }
+
+        /**
+         * Values at timestamp_ns, linear between samples and held beyond the first and last.
+         * Zero with no samples.
+         */
+        void interpolate(long timestamp_ns, double[] out) {
+            int i = floor(timestamp_ns);
+            if (mSize == 0) {
+                out[0] = out[1] = out[2] = 0;
+                return;
+            }
+            if (i < 0 || i == mSize - 1) {
+                int slot = slot(Math.max(i, 0));
+                for (int axis = 0; axis < 3; ++axis) {
+                    out[axis] = mValues[3 * slot + axis];
+                }
+                return;
+            }
+            int a = slot(i);
+            int b = slot(i + 1);
+            double f = (double) (timestamp_ns - mTimestampsNs[a]) / (mTimestampsNs[b] - mTimestampsNs[a]);
+            for (int axis = 0; axis < 3; ++axis) {
+                out[axis] = mValues[3 * a + axis] + f * (mValues[3 * b + axis] - mValues[3 * a + axis]);
+            }
+        }
+
+        /**
+         * Drops the samples before the last one at or before timestamp_ns.
+         */
+        void trimBefore(long timestamp_ns) {
+            int keep_from = Math.max(0, floor(timestamp_ns));
+            mHead = slot(keep_from);
+            mSize -= keep_from;
+        }
+
+        private int slot(int i) {
+            return (mHead + i) % mTimestampsNs.length;
+        }
+
+        private final long[] mTimestampsNs;
+        private final float[] mValues;
+        private int mHead;
+        private int mSize;
+    }
+
+    private final Writer mWriter;
+    private final History mGyro;
+    private final History mAccel;
+    private final TextRecordEncoder mEncoder = new TextRecordEncoder();
+
+    private final long[] mPendingNs = new long[MAX_PENDING_FRAMES];
+    private final long[] mPendingMidNs = new long[MAX_PENDING_FRAMES];
+    private int mPendingHead;
+    private int mPendingCount;
+
+    // Integration state and scratch.
+    private long mCursorNs;
+    private final double[] mQ = new double[4];
+    private final double[] mDv = new double[3];
+    private final double[] mW0 = new double[3];
+    private final double[] mW1 = new double[3];
+    private final double[] mA0 = new double[3];
+    private final double[] mA1 = new double[3];
+    private final double[] mRa0 = new double[3];
+    private final double[] mRa1 = new double[3];
+
+    private boolean mFinished;
+    private long mLastFrameNs;
+    private long mFrames;
+    private long mWrittenFrames;
+    private long mDroppedFrames;
+    private long mReorderedFrames;
+    private long mIgnoredSamples;
+    private long mLostSamples;
+}
@@ -0,0 +1,167 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of threads that write frames to storage.
+ *
+ * Frames are never queued beyond the configured depth: when the queue is full the frame
+ * is dropped on the spot and its buffer released, so a slow disk cannot starve the
+ * producer (typically an ImageReader with a handful of buffers) of images.
+ */
+class ImageWriterPool {
+    interface Job {
+        /** Returns the number of bytes written. */
+        long write() throws IOException;
+
+        /** Called exactly once, whether the job was written, failed or dropped. */
+        void release();
+    }
+
+    interface Listener {
+        void onFrameDropped(long frame_number, int queue_depth);
+
+        void onFrameWritten(long frame_number, long queue_wait_ns, long write_ns, long bytes);
+
+        void onFrameFailed(long frame_number, @NonNull IOException e);
+    }
+
+    ImageWriterPool(@NonNull String name, int threads, int queue_depth, @NonNull Listener listener) {
+        mListener = listener;
+        mQueueDepth = queue_depth;
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queue_depth), new NamedThreadFactory(name),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Queues the job for writing.  Returns false, after releasing the job, if the queue was
+     * full or the pool is shut down.
+     */
+    boolean submit(long frame_number, @NonNull Job job) {
+        mSubmitted.incrementAndGet();
+        synchronized (mIdleLock) {
+            ++mInFlight;
+        }
+        try {
+            mExecutor.execute(new Task(frame_number, job));
+            return true;
+        } catch (RejectedExecutionException e) {
+            finished();
+            mDropped.incrementAndGet();
+            job.release();
+            mListener.onFrameDropped(frame_number, mExecutor.getQueue().size());
+            return false;
+        }
+    }
+
+    int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    int getMaxQueueDepth() {
+        return mQueueDepth;
+    }
+
+    long getSubmittedCount() {
+        return mSubmitted.get();
+    }
+
+    long getWrittenCount() {
+        return mWritten.get();
+    }
+
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Waits until every job submitted so far has been written or has failed.  Unlike
+     * shutdown(), the pool keeps accepting frames.
+     */
+    void awaitIdle() throws InterruptedException {
+        synchronized (mIdleLock) {
+            while (mInFlight > 0) {
+                mIdleLock.wait();
+            }
+        }
+    }
+
+    private void finished() {
+        synchronized (mIdleLock) {
+            if (--mInFlight == 0) {
+                mIdleLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting frames and waits for the queued ones to be written.
+     */
+    void shutdown() throws InterruptedException {
+        mExecutor.shutdown();
+        mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    private class Task implements Runnable {
+        Task(long frame_number, Job job) {
+            mFrameNumber = frame_number;
+            mJob = job;
+            mEnqueueTimeNs = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            long start_ns = System.nanoTime();
+            try {
+                long bytes = mJob.write();
+                long end_ns = System.nanoTime();
+                mWritten.incrementAndGet();
+                mListener.onFrameWritten(mFrameNumber, start_ns - mEnqueueTimeNs, end_ns - start_ns, bytes);
+            } catch (IOException e) {
+                mListener.onFrameFailed(mFrameNumber, e);
+            } finally {
+                mJob.release();
+                finished();
+            }
+        }
+
+        private final long mFrameNumber;
+        private final Job mJob;
+        private final long mEnqueueTimeNs;
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            return new Thread(runnable, mName + "-" + mCount.getAndIncrement());
+        }
+
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger(0);
+    }
+
+    private final Listener mListener;
+    private final int mQueueDepth;
+    private final ThreadPoolExecutor mExecutor;
+
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mWritten = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private final Object mIdleLock = new Object();
+    private int mInFlight;
+}
@@ -0,0 +1,163 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads binary IMU logs written by ImuBinaryWriter.
+ *
+ * Also usable off-device to convert a binary log back to the text format:
+ *
+ *   java com.google.charliehotel.calibrationrecorder.ImuBinaryReader accel.bin accel.txt
+ *
+ * or to pull one stream out of a shared log, given its sensor id and value count:
+ *
+ *   java com.google.charliehotel.calibrationrecorder.ImuBinaryReader imu.bin mag.txt 2 3
+ */
+class ImuBinaryReader implements Closeable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    ImuBinaryReader(@NonNull ReadableByteChannel channel) throws IOException {
+        mChannel = channel;
+        mBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        mBuffer.order(ImuLogFormat.BYTE_ORDER);
+        mBuffer.limit(0);
+        if (!fill(ImuLogFormat.HEADER_SIZE)) {
+            throw new EOFException("Truncated binary IMU log header");
+        }
+        mValuesPerRecord = ImuLogFormat.getHeader(mBuffer);
+        mDataStart = mBuffer.position();
+        mRecordSize = ImuLogFormat.recordSize(mValuesPerRecord);
+        mValues = new float[mValuesPerRecord];
+    }
+
+    int getValuesPerRecord() {
+        return mValuesPerRecord;
+    }
+
+    /**
+     * Advances to the next record.  Returns false at the end of the log; a torn trailing
+     * record is treated as the end.
+     */
+    boolean next() throws IOException {
+        if (!fill(mRecordSize)) {
+            return false;
+        }
+        mTimestampNs = mBuffer.getLong();
+        mSensorId = mBuffer.getInt();
+        for (int i = 0; i < mValuesPerRecord; ++i) {
+            mValues[i] = mBuffer.getFloat();
+        }
+        ++mRecordCount;
+        return true;
+    }
+
+    /**
+     * Returns the file offset of the current record.
+     */
+    long getRecordOffset() {
+        return mDataStart + (mRecordCount - 1) * mRecordSize;
+    }
+
+    long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    int getSensorId() {
+        return mSensorId;
+    }
+
+    float getValue(int i) {
+        return mValues[i];
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    private boolean fill(int needed) throws IOException {
+        if (mBuffer.remaining() >= needed) {
+            return true;
+        }
+        mBuffer.compact();
+        while (mBuffer.position() < needed) {
+            if (mChannel.read(mBuffer) < 0) {
+                mBuffer.flip();
+                return false;
+            }
+        }
+        mBuffer.flip();
+        return true;
+    }
+
+    /**
+     * Writes every record of a three-axis log in the text format, byte for byte what the
+     * text path would have produced.
+     */
+    static void convertToText(@NonNull ImuBinaryReader reader, @NonNull Writer writer)
+            throws IOException {
+        TextRecordEncoder encoder = new TextRecordEncoder();
+        while (reader.next()) {
+            ImuLogFormat.encodeTextLine(encoder.clear(), reader.getTimestampNs(),
+                    reader.getValue(0), reader.getValue(1), reader.getValue(2));
+            encoder.writeTo(writer);
+        }
+    }
+
+    /**
+     * Writes the records of one sensor id in the text format, keeping the first
+     * value_count values of each.
+     */
+    static void convertToText(@NonNull ImuBinaryReader reader, @NonNull Writer writer,
+                              int sensor_id, int value_count) throws IOException {
+        if (value_count > reader.getValuesPerRecord()) {
+            throw new IOException("Log has only " + reader.getValuesPerRecord() + " values per record");
+        }
+        TextRecordEncoder encoder = new TextRecordEncoder();
+        while (reader.next()) {
+            if (reader.getSensorId() != sensor_id) {
+                continue;
+            }
+            ImuLogFormat.encodeTextLine(encoder.clear(), reader.getTimestampNs(),
+                    reader.mValues, 0, value_count);
+            encoder.writeTo(writer);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 && args.length != 4) {
+            System.err.println("usage: ImuBinaryReader <in.bin> <out.txt> [<sensor id> <value count>]");
+            System.exit(2);
+        }
+        try (ImuBinaryReader reader = new ImuBinaryReader(new FileInputStream(args[0]).getChannel());
+             Writer writer = new BufferedWriter(new FileWriter(args[1]))) {
+            if (args.length == 4) {
+                convertToText(reader, writer, Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            } else {
+                convertToText(reader, writer);
+            }
+        }
+    }
+
+    private final ReadableByteChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final int mValuesPerRecord;
+    private final int mRecordSize;
+    private final float[] mValues;
+    private final int mDataStart;
+
+    private long mRecordCount;
+
+    private long mTimestampNs;
+    private int mSensorId;
+}
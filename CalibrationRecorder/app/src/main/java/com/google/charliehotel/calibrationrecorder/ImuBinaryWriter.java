@@ -0,0 +1,145 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes IMU samples as fixed size binary records (see ImuLogFormat).
+ *
+ * Records are staged in a direct buffer that is reused for the life of the writer, so
+ * writing a sample allocates nothing.  The buffer goes to the channel when it fills up
+ * or on flush().
+ *
+ * Several streams can share one writer through forSensor() as long as they are all
+ * written from the same thread, e.g. one ImuWriterThread.
+ */
+class ImuBinaryWriter implements ImuSink {
+    private static final int RECORDS_PER_BUFFER = 512;
+
+    ImuBinaryWriter(@NonNull WritableByteChannel channel, int sensor_id) throws IOException {
+        this(channel, sensor_id, ImuLogFormat.THREE_AXIS_VALUES);
+    }
+
+    ImuBinaryWriter(@NonNull WritableByteChannel channel, int sensor_id, int values_per_record)
+            throws IOException {
+        if (values_per_record < ImuLogFormat.THREE_AXIS_VALUES
+                || values_per_record > ImuLogFormat.MAX_VALUES) {
+            throw new IllegalArgumentException("values_per_record out of range: " + values_per_record);
+        }
+        mChannel = channel;
+        mSensorId = sensor_id;
+        mValuesPerRecord = values_per_record;
+        mRecordSize = ImuLogFormat.recordSize(values_per_record);
+        mBuffer = ByteBuffer.allocateDirect(mRecordSize * RECORDS_PER_BUFFER);
+        mBuffer.order(ImuLogFormat.BYTE_ORDER);
+        ImuLogFormat.putHeader(mBuffer, values_per_record);
+    }
+
+    /**
+     * Returns a sink that writes into this log under another sensor id.  Closing it only
+     * flushes; the owner closes this writer.
+     */
+    @NonNull
+    ImuSink forSensor(final int sensor_id) {
+        return new ImuSink() {
+            @Override
+            public void write(long timestamp_ns, float x, float y, float z) throws IOException {
+                putRecord(sensor_id, timestamp_ns, x, y, z);
+            }
+
+            @Override
+            public void write(long[] timestamps_ns, float[] values, int values_per_sample, int count)
+                    throws IOException {
+                putRecords(sensor_id, timestamps_ns, values, values_per_sample, count);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                ImuBinaryWriter.this.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                ImuBinaryWriter.this.flush();
+            }
+        };
+    }
+
+    @Override
+    public void write(long timestamp_ns, float x, float y, float z) throws IOException {
+        putRecord(mSensorId, timestamp_ns, x, y, z);
+    }
+
+    @Override
+    public void write(long[] timestamps_ns, float[] values, int values_per_sample, int count)
+            throws IOException {
+        putRecords(mSensorId, timestamps_ns, values, values_per_sample, count);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    private void putRecord(int sensor_id, long timestamp_ns, float x, float y, float z)
+            throws IOException {
+        if (mBuffer.remaining() < mRecordSize) {
+            drain();
+        }
+        mBuffer.putLong(timestamp_ns);
+        mBuffer.putInt(sensor_id);
+        mBuffer.putFloat(x);
+        mBuffer.putFloat(y);
+        mBuffer.putFloat(z);
+        padValues(ImuLogFormat.THREE_AXIS_VALUES);
+    }
+
+    private void putRecords(int sensor_id, long[] timestamps_ns, float[] values,
+                            int values_per_sample, int count) throws IOException {
+        int kept = Math.min(values_per_sample, mValuesPerRecord);
+        for (int i = 0; i < count; ++i) {
+            if (mBuffer.remaining() < mRecordSize) {
+                drain();
+            }
+            mBuffer.putLong(timestamps_ns[i]);
+            mBuffer.putInt(sensor_id);
+            int base = values_per_sample * i;
+            for (int j = 0; j < kept; ++j) {
+                mBuffer.putFloat(values[base + j]);
+            }
+            padValues(kept);
+        }
+    }
+
+    private void padValues(int written) {
+        for (int j = written; j < mValuesPerRecord; ++j) {
+            mBuffer.putFloat(0.0f);
+        }
+    }
+
+    private void drain() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    private final WritableByteChannel mChannel;
+    private final int mSensorId;
+    private final int mValuesPerRecord;
+    private final int mRecordSize;
+    private final ByteBuffer mBuffer;
+}
@@ -0,0 +1,87 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Layout of the IMU logs.
+ *
+ * The text format is one "%d %a %a %a\n" line per sample, with as many "%a" as the stream
+ * has values.  The binary format is a fixed size little-endian header followed by fixed
+ * size records:
+ *
+ *   header:  magic "IMUB", u16 version, u16 header size, u16 values per record,
+ *            u16 record size, 4 reserved bytes
+ *   record:  i64 timestamp [ns], i32 sensor id, values per record x f32
+ *
+ * A log shared by several streams uses the widest stream's value count; narrower streams
+ * pad their records with zeros and are told apart by sensor id.
+ */
+class ImuLogFormat {
+    static final int MAGIC = 0x42554d49;  // "IMUB" read little-endian
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int THREE_AXIS_VALUES = 3;
+    static final int MAX_VALUES = 6;
+
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    static int recordSize(int values_per_record) {
+        return 8 + 4 + 4 * values_per_record;
+    }
+
+    /**
+     * Appends one text line, identical to String.format("%d %a %a %a\n", ...).
+     */
+    static void encodeTextLine(TextRecordEncoder encoder, long timestamp_ns,
+                               float x, float y, float z) {
+        encoder.putLong(timestamp_ns)
+                .putSpace().putHexFloat(x)
+                .putSpace().putHexFloat(y)
+                .putSpace().putHexFloat(z)
+                .putNewline();
+    }
+
+    /**
+     * Appends one text line with count values starting at values[offset].
+     */
+    static void encodeTextLine(TextRecordEncoder encoder, long timestamp_ns,
+                               float[] values, int offset, int count) {
+        encoder.putLong(timestamp_ns);
+        for (int i = 0; i < count; ++i) {
+            encoder.putSpace().putHexFloat(values[offset + i]);
+        }
+        encoder.putNewline();
+    }
+
+    static void putHeader(ByteBuffer buffer, int values_per_record) {
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) HEADER_SIZE);
+        buffer.putShort((short) values_per_record);
+        buffer.putShort((short) recordSize(values_per_record));
+        buffer.putInt(0);
+    }
+
+    /**
+     * Validates the header at the buffer's position and returns the values per record.
+     */
+    static int getHeader(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a binary IMU log");
+        }
+        int version = buffer.getShort() & 0xffff;
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary IMU log version " + version);
+        }
+        int header_size = buffer.getShort() & 0xffff;
+        int values_per_record = buffer.getShort() & 0xffff;
+        int record_size = buffer.getShort() & 0xffff;
+        if (header_size < HEADER_SIZE || record_size != recordSize(values_per_record)) {
+            throw new IOException("Corrupt binary IMU log header");
+        }
+        buffer.position(buffer.position() + header_size - 12);
+        return values_per_record;
+    }
+}
@@ -0,0 +1,229 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer queue of IMU samples.
+ *
+ * Each slot holds a timestamp and a fixed number of values, up to ImuLogFormat.MAX_VALUES.
+ * Slots are preallocated primitive arrays, so neither side allocates.  The producer is the
+ * sensor delivery thread and the consumer is an ImuWriterThread.  The consumer copies a
+ * batch out of the ring before publishing its new read position, so under DROP_OLDEST the
+ * producer may reclaim slots at any time; a batch that lost that race is simply re-read.
+ *
+ * Throughput: a capacity of C slots drained every D ms absorbs a producer at R Hz with no
+ * loss as long as R * (D + S) < C, where S is the longest sink stall.  The default
+ * 4096 slots at a 2 ms drain interval therefore ride out a one second storage stall at
+ * 4 kHz.
+ */
+class ImuRingBuffer {
+    enum OverflowPolicy {
+        /** The producer waits for the consumer.  Stalls sensor delivery; use with care. */
+        BLOCK,
+        /** The incoming sample is discarded. */
+        DROP_NEWEST,
+        /** The oldest unread sample is discarded to make room. */
+        DROP_OLDEST,
+    }
+
+    private static final long BLOCK_PARK_NS = 100 * 1000;
+
+    ImuRingBuffer(int capacity, @NonNull OverflowPolicy policy) {
+        this(capacity, ImuLogFormat.THREE_AXIS_VALUES, policy);
+    }
+
+    ImuRingBuffer(int capacity, int values_per_sample, @NonNull OverflowPolicy policy) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        if (values_per_sample < 1 || values_per_sample > ImuLogFormat.MAX_VALUES) {
+            throw new IllegalArgumentException("values_per_sample out of range: " + values_per_sample);
+        }
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mWidth = values_per_sample;
+        mPolicy = policy;
+        mTimestamps = new long[capacity];
+        mValues = new float[mWidth * capacity];
+        mBatchTimestamps = new long[capacity];
+        mBatchValues = new float[mWidth * capacity];
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    int getValuesPerSample() {
+        return mWidth;
+    }
+
+    /**
+     * Producer side, for three-value rings.  Returns false if the sample was dropped.
+     */
+    boolean offer(long timestamp_ns, float x, float y, float z) {
+        long head = reserve();
+        if (head < 0) {
+            return false;
+        }
+        int slot = (int) (head & mMask);
+        int base = mWidth * slot;
+        mTimestamps[slot] = timestamp_ns;
+        mValues[base] = x;
+        mValues[base + 1] = y;
+        mValues[base + 2] = z;
+        publish(head);
+        return true;
+    }
+
+    /**
+     * Producer side.  Copies the first values_per_sample entries of values, padding with
+     * zeros if it is shorter (some sensors report fewer values than others of their type).
+     * Returns false if the sample was dropped.
+     */
+    boolean offer(long timestamp_ns, float[] values) {
+        long head = reserve();
+        if (head < 0) {
+            return false;
+        }
+        int slot = (int) (head & mMask);
+        int base = mWidth * slot;
+        int n = Math.min(values.length, mWidth);
+        mTimestamps[slot] = timestamp_ns;
+        System.arraycopy(values, 0, mValues, base, n);
+        for (int i = n; i < mWidth; ++i) {
+            mValues[base + i] = 0.0f;
+        }
+        publish(head);
+        return true;
+    }
+
+    /**
+     * Waits for or makes room according to the overflow policy.  Returns the sequence
+     * number to write, or -1 if the sample is to be dropped.
+     */
+    private long reserve() {
+        long head = mHead.get();
+        long tail = mTail.get();
+        while (head - tail >= mCapacity) {
+            switch (mPolicy) {
+                case DROP_NEWEST:
+                    mOverruns++;
+                    return -1;
+                case DROP_OLDEST:
+                    if (mTail.compareAndSet(tail, tail + 1)) {
+                        mOverruns++;
+                    }
+                    break;
+                case BLOCK:
+                    mBlockedOffers++;
+                    LockSupport.parkNanos(BLOCK_PARK_NS);
+                    break;
+            }
+            tail = mTail.get();
+        }
+        return head;
+    }
+
+    private void publish(long head) {
+        mHead.lazySet(head + 1);
+        long depth = head + 1 - mTail.get();
+        if (depth > mHighWaterMark) {
+            mHighWaterMark = depth;
+        }
+    }
+
+    /**
+     * Consumer side.  Moves up to max_samples samples to the sink and returns how many.
+     */
+    int drainTo(@NonNull ImuSink sink, int max_samples) throws IOException {
+        int count;
+        while (true) {
+            long tail = mTail.get();
+            long head = mHead.get();
+            count = (int) Math.min(head - tail, Math.min(max_samples, mCapacity));
+            if (count == 0) {
+                return 0;
+            }
+            for (int i = 0; i < count; ++i) {
+                int slot = (int) ((tail + i) & mMask);
+                mBatchTimestamps[i] = mTimestamps[slot];
+                System.arraycopy(mValues, mWidth * slot, mBatchValues, mWidth * i, mWidth);
+            }
+            if (mTail.compareAndSet(tail, tail + count)) {
+                break;
+            }
+        }
+        sink.write(mBatchTimestamps, mBatchValues, mWidth, count);
+        mDrainedBatches++;
+        mDrainedSamples += count;
+        if (count > mMaxBatchSize) {
+            mMaxBatchSize = count;
+        }
+        return count;
+    }
+
+    int size() {
+        return (int) (mHead.get() - mTail.get());
+    }
+
+    long getOverruns() {
+        return mOverruns;
+    }
+
+    long getBlockedOffers() {
+        return mBlockedOffers;
+    }
+
+    long getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    long getDrainedBatches() {
+        return mDrainedBatches;
+    }
+
+    long getDrainedSamples() {
+        return mDrainedSamples;
+    }
+
+    int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    String formatStats() {
+        return "drained=" + mDrainedSamples + " batches=" + mDrainedBatches
+                + " max_batch=" + mMaxBatchSize + " high_water=" + mHighWaterMark
+                + "/" + mCapacity + " overruns=" + mOverruns + " blocked=" + mBlockedOffers;
+    }
+
+    private final int mCapacity;
+    private final int mMask;
+    private final int mWidth;
+    private final OverflowPolicy mPolicy;
+
+    private final long[] mTimestamps;
+    private final float[] mValues;
+
+    // Next sequence number to write (producer) and to read (consumer, or producer when
+    // dropping the oldest sample).
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+
+    // Consumer-owned copy of the batch being drained.
+    private final long[] mBatchTimestamps;
+    private final float[] mBatchValues;
+
+    // Producer-owned counters.
+    private volatile long mOverruns;
+    private volatile long mBlockedOffers;
+    private volatile long mHighWaterMark;
+
+    // Consumer-owned counters.
+    private volatile long mDrainedBatches;
+    private volatile long mDrainedSamples;
+    private volatile int mMaxBatchSize;
+}
@@ -0,0 +1,91 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * Passes IMU samples through to another sink while checking their timestamps.
+ *
+ * A gap is a step longer than gap_factor nominal periods; a reorder is a step that does
+ * not move forward at all (a duplicate or an out-of-order sample).  Hardware FIFO batching
+ * delivers samples in bursts, so this runs on the writer thread over whole batches rather
+ * than in the sensor callback.  A nominal period of zero (a sensor with no fixed rate)
+ * disables gap counting.
+ */
+class ImuSequenceChecker implements ImuSink {
+    ImuSequenceChecker(@NonNull ImuSink sink, long nominal_period_ns, double gap_factor) {
+        mSink = sink;
+        mGapThresholdNs = nominal_period_ns > 0 ? (long) (nominal_period_ns * gap_factor) : Long.MAX_VALUE;
+    }
+
+    @Override
+    public void write(long timestamp_ns, float x, float y, float z) throws IOException {
+        check(timestamp_ns);
+        mSink.write(timestamp_ns, x, y, z);
+    }
+
+    @Override
+    public void write(long[] timestamps_ns, float[] values, int values_per_sample, int count)
+            throws IOException {
+        for (int i = 0; i < count; ++i) {
+            check(timestamps_ns[i]);
+        }
+        mSink.write(timestamps_ns, values, values_per_sample, count);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mSink.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSink.close();
+    }
+
+    long getSampleCount() {
+        return mSamples;
+    }
+
+    long getGapCount() {
+        return mGaps;
+    }
+
+    long getReorderCount() {
+        return mReorders;
+    }
+
+    long getLongestGapNs() {
+        return mLongestGapNs;
+    }
+
+    String formatStats() {
+        return "samples=" + mSamples + " gaps=" + mGaps + " reorders=" + mReorders
+                + " longest_gap_us=" + mLongestGapNs / 1000;
+    }
+
+    private void check(long timestamp_ns) {
+        if (mSamples > 0) {
+            long step_ns = timestamp_ns - mLastTimestampNs;
+            if (step_ns <= 0) {
+                ++mReorders;
+            } else if (step_ns > mGapThresholdNs) {
+                ++mGaps;
+                mLongestGapNs = Math.max(mLongestGapNs, step_ns);
+            }
+        }
+        // Measure later steps from the newest sample so one straggler is not also a gap.
+        mLastTimestampNs = mSamples > 0 ? Math.max(mLastTimestampNs, timestamp_ns) : timestamp_ns;
+        ++mSamples;
+    }
+
+    private final ImuSink mSink;
+    private final long mGapThresholdNs;
+
+    private long mSamples;
+    private long mLastTimestampNs;
+    private volatile long mGaps;
+    private volatile long mReorders;
+    private volatile long mLongestGapNs;
+}
@@ -0,0 +1,20 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination for one stream of IMU samples.
+ */
+interface ImuSink extends Closeable {
+    void write(long timestamp_ns, float x, float y, float z) throws IOException;
+
+    /**
+     * Writes count samples at once; values holds values_per_sample values for each sample
+     * in turn.
+     */
+    void write(long[] timestamps_ns, float[] values, int values_per_sample, int count)
+            throws IOException;
+
+    void flush() throws IOException;
+}
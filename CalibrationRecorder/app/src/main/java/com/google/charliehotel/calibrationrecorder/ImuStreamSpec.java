@@ -0,0 +1,91 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Declares one sensor stream to record: which sensor, how fast, and how many values of
+ * each event to keep.
+ *
+ * The requested period is only a wish.  negotiatePeriodUs() turns it into what the
+ * device can deliver, given the sensor's minimum and maximum delay.
+ */
+class ImuStreamSpec {
+    /** Requests the sensor's minimum delay, i.e. its native maximum rate. */
+    static final int FASTEST = 0;
+
+    /** No fallback sensor type. */
+    static final int NO_FALLBACK = -1;
+
+    ImuStreamSpec(@NonNull String name, int sensor_type, int fallback_sensor_type,
+                  int requested_period_us, int values_per_sample, boolean required) {
+        if (values_per_sample < 1 || values_per_sample > ImuLogFormat.MAX_VALUES) {
+            throw new IllegalArgumentException("values_per_sample out of range: " + values_per_sample);
+        }
+        mName = name;
+        mSensorType = sensor_type;
+        mFallbackSensorType = fallback_sensor_type;
+        mRequestedPeriodUs = requested_period_us;
+        mValuesPerSample = values_per_sample;
+        mRequired = required;
+    }
+
+    @NonNull
+    String getName() {
+        return mName;
+    }
+
+    int getSensorType() {
+        return mSensorType;
+    }
+
+    int getFallbackSensorType() {
+        return mFallbackSensorType;
+    }
+
+    int getRequestedPeriodUs() {
+        return mRequestedPeriodUs;
+    }
+
+    int getValuesPerSample() {
+        return mValuesPerSample;
+    }
+
+    /**
+     * Whether a device without this sensor is an error rather than a skipped stream.
+     */
+    boolean isRequired() {
+        return mRequired;
+    }
+
+    /**
+     * Returns the sampling period to register with.
+     *
+     * min_delay_us and max_delay_us are Sensor.getMinDelay() and getMaxDelay().  A
+     * min_delay_us of zero means the sensor reports on change and has no rate of its own;
+     * a max_delay_us of zero means the device did not say.
+     */
+    int negotiatePeriodUs(int min_delay_us, int max_delay_us) {
+        if (min_delay_us <= 0) {
+            return mRequestedPeriodUs;
+        }
+        int period_us = Math.max(mRequestedPeriodUs, min_delay_us);
+        if (max_delay_us > 0) {
+            period_us = Math.min(period_us, max_delay_us);
+        }
+        return period_us;
+    }
+
+    @Override
+    public String toString() {
+        return mName + "(type=" + mSensorType + " period_us="
+                + (mRequestedPeriodUs == FASTEST ? "fastest" : Integer.toString(mRequestedPeriodUs))
+                + " values=" + mValuesPerSample + ")";
+    }
+
+    private final String mName;
+    private final int mSensorType;
+    private final int mFallbackSensorType;
+    private final int mRequestedPeriodUs;
+    private final int mValuesPerSample;
+    private final boolean mRequired;
+}
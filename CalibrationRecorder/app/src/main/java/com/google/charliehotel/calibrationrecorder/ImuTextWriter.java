@@ -0,0 +1,42 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.Writer;
+
+class ImuTextWriter implements ImuSink {
+    ImuTextWriter(@NonNull Writer writer) {
+        mWriter = writer;
+    }
+
+    @Override
+    public void write(long timestamp_ns, float x, float y, float z) throws IOException {
+        ImuLogFormat.encodeTextLine(mEncoder.clear(), timestamp_ns, x, y, z);
+        mEncoder.writeTo(mWriter);
+    }
+
+    @Override
+    public void write(long[] timestamps_ns, float[] values, int values_per_sample, int count)
+            throws IOException {
+        mEncoder.clear();
+        for (int i = 0; i < count; ++i) {
+            ImuLogFormat.encodeTextLine(mEncoder, timestamps_ns[i],
+                    values, values_per_sample * i, values_per_sample);
+        }
+        mEncoder.writeTo(mWriter);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mWriter.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mWriter.close();
+    }
+
+    private final Writer mWriter;
+    private final TextRecordEncoder mEncoder = new TextRecordEncoder();
+}
@@ -0,0 +1,118 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.os.Debug;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drains ImuRingBuffers into their sinks off the sensor delivery thread, and
+ * DirectImuRings into their consumers.
+ */
+class ImuWriterThread extends Thread {
+    private static final String TAG = "CalibrationRecorder";
+
+    static final long DRAIN_INTERVAL_NS = 2 * 1000 * 1000;
+    static final int MAX_BATCH_SAMPLES = 512;
+
+    ImuWriterThread() {
+        super("ImuWriterThread");
+    }
+
+    /**
+     * Must be called before start().
+     */
+    void addStream(@NonNull String name, @NonNull ImuRingBuffer ring, @NonNull ImuSink sink) {
+        mNames.add(name);
+        mRings.add(ring);
+        mSinks.add(sink);
+    }
+
+    /**
+     * Must be called before start().
+     */
+    void addDirectRing(@NonNull String name, @NonNull DirectImuRing ring,
+                       @NonNull DirectImuRing.Consumer consumer) {
+        mDirectNames.add(name);
+        mDirectRings.add(ring);
+        mDirectConsumers.add(consumer);
+    }
+
+    /** CPU time this thread used, once shut down. */
+    long getCpuNs() {
+        return mCpuNs;
+    }
+
+    /**
+     * Stops the thread after everything queued so far has reached the sinks.
+     */
+    void shutdown() {
+        mRunning = false;
+        LockSupport.unpark(this);
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted waiting for IMU writer");
+            Thread.currentThread().interrupt();
+        }
+        for (int i = 0; i < mRings.size(); ++i) {
+            Log.i(TAG, mNames.get(i) + " ring: " + mRings.get(i).formatStats());
+        }
+        for (int i = 0; i < mDirectRings.size(); ++i) {
+            Log.i(TAG, mDirectNames.get(i) + " ring: " + mDirectRings.get(i).formatStats());
+        }
+    }
+
+    @Override
+    public void run() {
+        while (mRunning) {
+            if (drainAll() == 0) {
+                LockSupport.parkNanos(DRAIN_INTERVAL_NS);
+            }
+        }
+        while (drainAll() > 0) {
+            // Keep going until the rings are empty.
+        }
+        for (int i = 0; i < mSinks.size(); ++i) {
+            try {
+                mSinks.get(i).flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to flush " + mNames.get(i) + ": " + e);
+            }
+        }
+        mCpuNs = Debug.threadCpuTimeNanos();
+    }
+
+    private int drainAll() {
+        int drained = 0;
+        for (int i = 0; i < mRings.size(); ++i) {
+            try {
+                drained += mRings.get(i).drainTo(mSinks.get(i), MAX_BATCH_SAMPLES);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write " + mNames.get(i) + ": " + e);
+            }
+        }
+        for (int i = 0; i < mDirectRings.size(); ++i) {
+            try {
+                drained += mDirectRings.get(i).drainTo(mDirectConsumers.get(i), MAX_BATCH_SAMPLES);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write " + mDirectNames.get(i) + ": " + e);
+            }
+        }
+        return drained;
+    }
+
+    private final List<String> mNames = new ArrayList<>();
+    private final List<ImuRingBuffer> mRings = new ArrayList<>();
+    private final List<ImuSink> mSinks = new ArrayList<>();
+    private final List<String> mDirectNames = new ArrayList<>();
+    private final List<DirectImuRing> mDirectRings = new ArrayList<>();
+    private final List<DirectImuRing.Consumer> mDirectConsumers = new ArrayList<>();
+
+    private volatile boolean mRunning = true;
+    private volatile long mCpuNs;
+}
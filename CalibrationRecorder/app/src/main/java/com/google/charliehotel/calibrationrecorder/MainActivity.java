@@ -4,41 +4,36 @@ package com.google.charliehotel.calibrationrecorder;
 // am start -n com.google.charliehotel.calibrationrecorder/.MainActivity
 // am start -n "com.google.charliehotel.calibrationrecorder/com.google.charliehotel.calibrationrecorder.MainActivity" -a android.intent.action.MAIN -c android.intent.category.LAUNCHER
 
+import android.Manifest;
 import android.app.Activity;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
-import android.os.PowerManager;
-import android.os.PowerManager.WakeLock;
+import android.os.IBinder;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.Writer;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-
 
+/**
+ * Records a take while in the foreground.  The cameras and sensors belong to
+ * RecordingService, which keeps them open between takes.
+ */
 public class MainActivity extends Activity {
     private static final String TAG = "CalibrationRecorder";
 
-    private static final boolean ENABLE_LEFT_CAMERA = true;
-    private static final boolean ENABLE_RIGHT_CAMERA = false;
-    private static final boolean ENABLE_SENSORS = true;
-
     private static final boolean FINISH_UPON_PAUSING = true;
 
-    private static final String LEFT_CAMERA_ID = "0";
-    private static final String RIGHT_CAMERA_ID = "1";
+    // Leave the service running after the activity goes away, so the next take starts on
+    // a warm session.  It stops itself after idling; stop it with am stopservice.  With
+    // FINISH_UPON_PAUSING the activity goes away on every pause, so this is what keeps
+    // the cameras open between takes.
+    private static final boolean KEEP_SERVICE_WARM = true;
 
-    private static final String ACCEL_DATA_FILENAME = "accel.txt";
-    private static final String GYRO_DATA_FILENAME = "gyro.txt";
-    private static final String CAMERA_LEFT_METADATA_FILENAME = "left_image_metadata.txt";
-    private static final String CAMERA_RIGHT_METADATA_FILENAME = "right_image_metadata.txt";
-    private static final String LEFT_IMAGE_DIRNAME = "left_images";
-    private static final String RIGHT_IMAGE_DIRNAME = "right_images";
+    private static final int CAMERA_PERMISSION_REQUEST = 1;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -47,81 +42,46 @@ public class MainActivity extends Activity {
 
         setContentView(R.layout.activity_main);
 
-        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
-        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG + "WakeLock");
-        mWakeLock.acquire();
-
-        if (ENABLE_SENSORS) {
-            mSensors = new Sensors(this);
-        }
-
-        if (ENABLE_LEFT_CAMERA) {
-            mLeftCamera = new Camera(this, LEFT_CAMERA_ID);
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED) {
+            bindRecordingService();
+        } else {
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.CAMERA}, CAMERA_PERMISSION_REQUEST);
         }
-        if (ENABLE_RIGHT_CAMERA) {
-            mRightCamera = new Camera(this, RIGHT_CAMERA_ID);
-        }
-
-        mDir = getRunDir(getExternalFilesDir(null));
-        Log.i(TAG, "mDir=" + mDir);
 
         Log.i(TAG, "onCreate done");
     }
 
     @Override
-    public void onStart() {
-        super.onStart();
-        Log.i(TAG, "onStart");
-        Log.i(TAG, "onStart done");
+    public void onRequestPermissionsResult(int request_code, String[] permissions, int[] grant_results) {
+        if (request_code != CAMERA_PERMISSION_REQUEST) {
+            return;
+        }
+        if (grant_results.length > 0 && grant_results[0] == PackageManager.PERMISSION_GRANTED) {
+            bindRecordingService();
+        } else {
+            Log.e(TAG, "Camera permission denied");
+            finish();
+        }
     }
 
     @Override
     public void onResume() {
         super.onResume();
         Log.i(TAG, "onResume");
-
-        setupFiles();
-
-        if (mSensors != null) {
-            mSensors.setAccelWriter(mAccelWriter);
-            mSensors.setGyroWriter(mGyroWriter);
-            mSensors.open();
-        }
-
-        if (mLeftCamera != null) {
-            mLeftCamera.setImageDir(mLeftImageDir);
-            mLeftCamera.setMetadataWriter(mLeftCameraMetadataWriter);
-            mLeftCamera.open();
-        }
-
-        if (mRightCamera != null) {
-            mRightCamera.setImageDir(mRightImageDir);
-            mRightCamera.setMetadataWriter(mRightCameraMetadataWriter);
-            mRightCamera.open();
+        mResumed = true;
+        if (mService != null) {
+            mService.startTake();
         }
-
         Log.i(TAG, "onResume done");
     }
 
     @Override
     public void onPause() {
         Log.i(TAG, "onPause");
-
-        if (mSensors != null) {
-            mSensors.close();
-            mSensors = null;
-        }
-
-        if (mLeftCamera != null) {
-            mLeftCamera.close();
-            mLeftCamera = null;
+        mResumed = false;
+        if (mService != null) {
+            mService.stopTake();
         }
-        if (mRightCamera != null) {
-            mRightCamera.close();
-            mRightCamera = null;
-        }
-
-        cleanupFiles();
 
         if (FINISH_UPON_PAUSING) {
             finish();
@@ -132,87 +92,47 @@ public class MainActivity extends Activity {
     }
 
     @Override
-    public void onStop() {
-        Log.i(TAG, "onStop");
-        mWakeLock.release();
-        Log.i(TAG, "onStop done");
-        super.onStop();
-    }
-
-    private static void noisyMkdir(File path) {
-        if (!path.mkdir()) {
-            Log.wtf(TAG, "Could not mkdir " + path);
+    public void onDestroy() {
+        Log.i(TAG, "onDestroy");
+        if (mBound) {
+            unbindService(mConnection);
+            mBound = false;
+        }
+        mService = null;
+        if (!KEEP_SERVICE_WARM) {
+            stopService(new Intent(this, RecordingService.class));
         }
+        Log.i(TAG, "onDestroy done");
+        super.onDestroy();
     }
 
-    private void setupFiles() {
-        try {
-            noisyMkdir(mDir);
-
-            if (mSensors != null) {
-                mAccelWriter = new FileWriter(new File(mDir, ACCEL_DATA_FILENAME));
-                mGyroWriter = new FileWriter(new File(mDir, GYRO_DATA_FILENAME));
-            }
-
-            if (mLeftCamera != null) {
-                mLeftImageDir = new File(mDir, LEFT_IMAGE_DIRNAME);
-                noisyMkdir(mLeftImageDir);
-                mLeftCameraMetadataWriter = new FileWriter(new File(mDir, CAMERA_LEFT_METADATA_FILENAME));
-            }
-            if (mRightCamera != null) {
-                mRightImageDir = new File(mDir, RIGHT_IMAGE_DIRNAME);
-                noisyMkdir(mRightImageDir);
-                mRightCameraMetadataWriter = new FileWriter(new File(mDir, CAMERA_RIGHT_METADATA_FILENAME));
-            }
-        } catch (IOException e) {
-            Log.wtf(TAG, "Failed to setup files: " + e);
+    private void bindRecordingService() {
+        Intent intent = new Intent(this, RecordingService.class);
+        startService(intent);
+        mBound = bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+        if (!mBound) {
+            Log.wtf(TAG, "Could not bind RecordingService");
         }
     }
 
-    private static void closeQuietly(Writer writer) {
-        try {
-            if (writer != null) {
-                writer.flush();
-                writer.close();
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            Log.i(TAG, "RecordingService connected");
+            mService = ((RecordingService.LocalBinder) binder).getService();
+            if (mResumed) {
+                mService.startTake();
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Could not close writer");
         }
-    }
-
-    private void cleanupFiles() {
-        closeQuietly(mAccelWriter);
-        mAccelWriter = null;
-        closeQuietly(mGyroWriter);
-        mGyroWriter = null;
-        closeQuietly(mLeftCameraMetadataWriter);
-        mLeftCameraMetadataWriter = null;
-        closeQuietly(mRightCameraMetadataWriter);
-        mRightCameraMetadataWriter = null;
-        Log.i(TAG, "file cleanup complete");
-    }
-
-    private static File getRunDir(File external_dir) {
-        DateFormat date_format = new SimpleDateFormat("YYYYMMDDHHMMSS", Locale.US);
-        date_format.setTimeZone(java.util.TimeZone.getTimeZone("UTC"));
-        String run_name = date_format.format(new Date());
-        return new File(external_dir, run_name);
-    }
 
-    private WakeLock mWakeLock;
-
-    private Sensors mSensors;
-
-    private Camera mLeftCamera;
-    private Camera mRightCamera;
-
-    private File mDir;
-
-    private FileWriter mAccelWriter;
-    private FileWriter mGyroWriter;
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            Log.w(TAG, "RecordingService disconnected");
+            mService = null;
+        }
+    };
 
-    private File mLeftImageDir;
-    private File mRightImageDir;
-    private FileWriter mLeftCameraMetadataWriter;
-    private FileWriter mRightCameraMetadataWriter;
+    private RecordingService mService;
+    private boolean mBound;
+    private boolean mResumed;
 }
@@ -0,0 +1,280 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Crash-safe append-only log backed by memory-mapped segments.
+ *
+ * Every write() call is one record: it is copied into the mapped file, which the kernel
+ * keeps even if the process dies.  On a timer the length up to the last complete record is
+ * forced to storage and recorded in a small "&lt;name&gt;.commit" sidecar.  A clean close()
+ * trims the file to its real length and deletes the sidecar, leaving a file identical to
+ * what a FileWriter would have produced.  After a crash, recover() trims the file back to
+ * the committed length, dropping the preallocated tail and any torn record; at most one
+ * checkpoint interval of records is lost.
+ *
+ * Text is encoded as UTF-8.  As a WritableByteChannel it can also carry binary logs.
+ */
+class MappedLogWriter extends Writer implements WritableByteChannel {
+    private static final String TAG = "CalibrationRecorder";
+
+    static final String COMMIT_SUFFIX = ".commit";
+
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final long CHECKPOINT_INTERVAL_MS = 250;
+
+    private static final int COMMIT_MAGIC = 0x544d4d43;  // "CMMT"
+    private static final int COMMIT_SIZE = 16;
+
+    private static ScheduledExecutorService sCheckpointExecutor;
+
+    MappedLogWriter(@NonNull File file) throws IOException {
+        mCommitFile = new File(file.getPath() + COMMIT_SUFFIX);
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mChannel.truncate(0);
+
+        mCommitRandomAccessFile = new RandomAccessFile(mCommitFile, "rw");
+        mCommit = mCommitRandomAccessFile.getChannel()
+                .map(FileChannel.MapMode.READ_WRITE, 0, COMMIT_SIZE);
+        mCommit.order(ByteOrder.LITTLE_ENDIAN);
+        mCommit.putInt(0, COMMIT_MAGIC);
+        mCommit.putLong(8, 0);
+        mCommit.force();
+
+        mSegment = mapSegment(0, SEGMENT_SIZE);
+        mCheckpointFuture = checkpointExecutor().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to checkpoint " + mCommitFile + ": " + e);
+                }
+            }
+        }, CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int write(@NonNull ByteBuffer src) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            int length = src.remaining();
+            ensureCapacity(length);
+            mSegment.put(src);
+            mPosition += length;
+            return length;
+        }
+    }
+
+    @Override
+    public void write(@NonNull String str, int off, int len) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            for (int i = off; i < off + len; ++i) {
+                if (str.charAt(i) >= 0x80) {
+                    write(ByteBuffer.wrap(str.substring(off, off + len)
+                            .getBytes(StandardCharsets.UTF_8)));
+                    return;
+                }
+            }
+            ensureCapacity(len);
+            for (int i = off; i < off + len; ++i) {
+                mSegment.put((byte) str.charAt(i));
+            }
+            mPosition += len;
+        }
+    }
+
+    @Override
+    public void write(@NonNull char[] cbuf, int off, int len) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            for (int i = off; i < off + len; ++i) {
+                if (cbuf[i] >= 0x80) {
+                    write(new String(cbuf, off, len), 0, len);
+                    return;
+                }
+            }
+            ensureCapacity(len);
+            for (int i = off; i < off + len; ++i) {
+                mSegment.put((byte) cbuf[i]);
+            }
+            mPosition += len;
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        write(String.valueOf((char) c), 0, 1);
+    }
+
+    /**
+     * Data is always visible to readers of the file; flush() only forces a checkpoint.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkpoint();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !mClosed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+        mCheckpointFuture.cancel(false);
+        try {
+            synchronized (mCheckpointLock) {
+                mSegment.force();
+                mChannel.truncate(mPosition);
+                mChannel.force(true);
+            }
+        } finally {
+            mFile.close();
+            mCommitRandomAccessFile.close();
+        }
+        if (!mCommitFile.delete()) {
+            throw new IOException("Could not delete " + mCommitFile);
+        }
+    }
+
+    /**
+     * Forces everything written so far to storage and advances the committed length.
+     */
+    void checkpoint() throws IOException {
+        synchronized (mCheckpointLock) {
+            if (mClosed) {
+                return;
+            }
+            long committed = mPosition;
+            if (committed == mCommitted) {
+                return;
+            }
+            MappedByteBuffer previous = mPreviousSegment;
+            if (previous != null) {
+                previous.force();
+                mPreviousSegment = null;
+            }
+            mSegment.force();
+            mCommit.putLong(8, committed);
+            mCommit.force();
+            mCommitted = committed;
+        }
+    }
+
+    /**
+     * Trims a log that was not closed cleanly back to its committed length.  Returns the
+     * recovered length, or -1 if the log did not need recovery.
+     */
+    static long recover(@NonNull File file) throws IOException {
+        File commit_file = new File(file.getPath() + COMMIT_SUFFIX);
+        if (!commit_file.exists()) {
+            return -1;
+        }
+        long committed = 0;
+        RandomAccessFile commit = new RandomAccessFile(commit_file, "r");
+        try {
+            if (commit.length() >= COMMIT_SIZE) {
+                ByteBuffer buffer = ByteBuffer.allocate(COMMIT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                commit.getChannel().read(buffer, 0);
+                if (buffer.getInt(0) == COMMIT_MAGIC) {
+                    committed = buffer.getLong(8);
+                }
+            }
+        } finally {
+            commit.close();
+        }
+        if (file.exists()) {
+            RandomAccessFile data = new RandomAccessFile(file, "rw");
+            try {
+                committed = Math.min(committed, data.length());
+                data.getChannel().truncate(committed);
+            } finally {
+                data.close();
+            }
+        }
+        if (!commit_file.delete()) {
+            throw new IOException("Could not delete " + commit_file);
+        }
+        return committed;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mClosed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (mSegment.remaining() >= length) {
+            return;
+        }
+        synchronized (mCheckpointLock) {
+            if (mPreviousSegment != null) {
+                mPreviousSegment.force();
+            }
+            mPreviousSegment = mSegment;
+            mSegment = mapSegment(mPosition, Math.max(SEGMENT_SIZE, length));
+        }
+    }
+
+    private MappedByteBuffer mapSegment(long position, int size) throws IOException {
+        return mChannel.map(FileChannel.MapMode.READ_WRITE, position, size);
+    }
+
+    private static synchronized ScheduledExecutorService checkpointExecutor() {
+        if (sCheckpointExecutor == null) {
+            sCheckpointExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "LogCheckpointThread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sCheckpointExecutor;
+    }
+
+    private final File mCommitFile;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final RandomAccessFile mCommitRandomAccessFile;
+    private final MappedByteBuffer mCommit;
+    private final ScheduledFuture<?> mCheckpointFuture;
+
+    // Guards segment replacement against a concurrent checkpoint.
+    private final Object mCheckpointLock = new Object();
+
+    private volatile MappedByteBuffer mSegment;
+    private MappedByteBuffer mPreviousSegment;
+    private volatile long mPosition;
+    private long mCommitted;
+    private volatile boolean mClosed;
+}
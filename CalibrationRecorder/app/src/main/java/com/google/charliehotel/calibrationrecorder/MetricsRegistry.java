@@ -0,0 +1,184 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Named counters and histograms for the recording hot paths.
+ *
+ * Look metrics up once, when wiring a component, and keep the reference: updating a
+ * Counter or Histogram is a handful of atomic operations with no locking or allocation.
+ */
+class MetricsRegistry {
+    static class Counter {
+        void increment() {
+            mValue.incrementAndGet();
+        }
+
+        void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        void set(long value) {
+            mValue.set(value);
+        }
+
+        long get() {
+            return mValue.get();
+        }
+
+        private final AtomicLong mValue = new AtomicLong();
+    }
+
+    /**
+     * Log-linear histogram of non-negative values with a fixed bucket layout: exact below
+     * 32, then 16 buckets per power of two (about 6% relative resolution) up to 2^63.
+     */
+    static class Histogram {
+        private static final int LINEAR_BUCKETS = 32;
+        private static final int SUB_BUCKETS = 16;
+        private static final int BUCKETS = LINEAR_BUCKETS + 58 * SUB_BUCKETS;
+
+        /**
+         * Records one value; negative values are clamped to zero.
+         */
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mBuckets.incrementAndGet(bucketIndex(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+
+        long getMax() {
+            return mMax.get();
+        }
+
+        double getMean() {
+            long count = mCount.get();
+            return count == 0 ? 0 : (double) mSum.get() / count;
+        }
+
+        /**
+         * Upper bound of the bucket holding the quantile, clamped to the maximum.
+         */
+        long getQuantile(double quantile) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        static int bucketIndex(long value) {
+            if (value < LINEAR_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+            int top = (int) (value >>> shift);
+            return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+        }
+
+        static long bucketUpperBound(int index) {
+            if (index < LINEAR_BUCKETS) {
+                return index;
+            }
+            int k = index - LINEAR_BUCKETS;
+            int shift = k / SUB_BUCKETS + 1;
+            long top = SUB_BUCKETS + k % SUB_BUCKETS;
+            return ((top + 1) << shift) - 1;
+        }
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+    }
+
+    @NonNull
+    Counter counter(@NonNull String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            mCounters.putIfAbsent(name, new Counter());
+            counter = mCounters.get(name);
+        }
+        return counter;
+    }
+
+    @NonNull
+    Histogram histogram(@NonNull String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            mHistograms.putIfAbsent(name, new Histogram());
+            histogram = mHistograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * One line with every counter and the count/p50/p99/max of every histogram.
+     */
+    String formatSummary() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(mCounters).entrySet()) {
+            builder.append(entry.getKey()).append('=').append(entry.getValue().get()).append(' ');
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(mHistograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            builder.append(entry.getKey()).append("=[n=").append(histogram.getCount())
+                    .append(" p50=").append(histogram.getQuantile(0.5))
+                    .append(" p99=").append(histogram.getQuantile(0.99))
+                    .append(" max=").append(histogram.getMax()).append("] ");
+        }
+        return builder.toString().trim();
+    }
+
+    void writeJson(@NonNull Writer writer) throws IOException {
+        writer.write("{\n  \"counters\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(mCounters).entrySet()) {
+            writer.write(separator + "    \"" + entry.getKey() + "\": " + entry.getValue().get());
+            separator = ",\n";
+        }
+        writer.write("\n  },\n  \"histograms\": {");
+        separator = "\n";
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(mHistograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            writer.write(String.format(Locale.US, "%s    \"%s\": {\"count\": %d, \"mean\": %.1f, "
+                            + "\"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d}",
+                    separator, entry.getKey(), histogram.getCount(), histogram.getMean(),
+                    histogram.getQuantile(0.5), histogram.getQuantile(0.9),
+                    histogram.getQuantile(0.99), histogram.getQuantile(0.999), histogram.getMax()));
+            separator = ",\n";
+        }
+        writer.write("\n  }\n}\n");
+    }
+
+    private final ConcurrentHashMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+}
@@ -0,0 +1,125 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives sensor events in native code, on a looper thread of its own, and writes them
+ * into a DirectImuRing, so no SensorEvent objects or Java callbacks are involved per
+ * sample.  See native_imu.cpp.
+ *
+ * Sensors are looked up by type with ASensorManager_getDefaultSensor(), as Sensors does
+ * with getDefaultSensor(), and enabled at the given periods.  The native side has no
+ * batching or FIFO flush before API 26, so samples are delivered as they come.
+ */
+class NativeImuBackend {
+    private static final String TAG = "CalibrationRecorder";
+
+    // The library is missing on ABIs it was not built for; Sensors then falls back to
+    // BACKEND_JAVA.
+    private static final boolean AVAILABLE = loadLibrary();
+
+    /** Cursors backed by C11 atomics on the ring's memory. */
+    static final DirectImuRing.Cursors CURSORS = new DirectImuRing.Cursors() {
+        @Override
+        public long loadHead(@NonNull ByteBuffer ring) {
+            return nativeLoadAcquire(ring, DirectImuRing.HEAD_OFFSET);
+        }
+
+        @Override
+        public void storeHead(@NonNull ByteBuffer ring, long head) {
+            nativeStoreRelease(ring, DirectImuRing.HEAD_OFFSET, head);
+        }
+
+        @Override
+        public long loadTail(@NonNull ByteBuffer ring) {
+            return nativeLoadAcquire(ring, DirectImuRing.TAIL_OFFSET);
+        }
+
+        @Override
+        public void storeTail(@NonNull ByteBuffer ring, long tail) {
+            nativeStoreRelease(ring, DirectImuRing.TAIL_OFFSET, tail);
+        }
+    };
+
+    /**
+     * Stream i is the sensor of type sensor_types[i], sampled every periods_us[i] and
+     * recorded with values_per_sample[i] values.
+     */
+    NativeImuBackend(@NonNull DirectImuRing ring, @NonNull int[] sensor_types, @NonNull int[] periods_us,
+                     @NonNull int[] values_per_sample) {
+        if (sensor_types.length != periods_us.length || sensor_types.length != values_per_sample.length) {
+            throw new IllegalArgumentException("Stream arrays differ in length");
+        }
+        mRing = ring;
+        mSensorTypes = sensor_types.clone();
+        mPeriodsUs = periods_us.clone();
+        mValuesPerSample = values_per_sample.clone();
+    }
+
+    /** Whether the native library loaded, so instances can be started. */
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Starts the native thread; it has enabled the sensors when this returns.
+     */
+    void start() {
+        if (mHandle != 0) {
+            return;
+        }
+        if (!AVAILABLE) {
+            throw new IllegalStateException("native_imu library not loaded");
+        }
+        mHandle = nativeStart(mRing.getBuffer(), mSensorTypes, mPeriodsUs, mValuesPerSample);
+        if (mHandle == 0) {
+            throw new IllegalStateException("Could not start native sensor thread");
+        }
+    }
+
+    /**
+     * Disables the sensors and ends the native thread.  Everything it wrote is in the ring.
+     */
+    void stop() {
+        if (mHandle == 0) {
+            return;
+        }
+        mThreadCpuNs = nativeStop(mHandle);
+        mHandle = 0;
+    }
+
+    /** CPU time the native thread used, once stopped. */
+    long getThreadCpuNs() {
+        return mThreadCpuNs;
+    }
+
+    private static boolean loadLibrary() {
+        try {
+            System.loadLibrary("native_imu");
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "No native IMU backend: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static native long nativeStart(ByteBuffer ring, int[] sensor_types, int[] periods_us,
+                                           int[] values_per_sample);
+
+    // Returns the thread's CPU time.
+    private static native long nativeStop(long handle);
+
+    private static native long nativeLoadAcquire(ByteBuffer ring, int offset);
+
+    private static native void nativeStoreRelease(ByteBuffer ring, int offset, long value);
+
+    private final DirectImuRing mRing;
+    private final int[] mSensorTypes;
+    private final int[] mPeriodsUs;
+    private final int[] mValuesPerSample;
+    private long mHandle;
+    private long mThreadCpuNs;
+}
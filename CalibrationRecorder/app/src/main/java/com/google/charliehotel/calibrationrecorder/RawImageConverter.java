@@ -0,0 +1,171 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.graphics.ImageFormat;
+import android.support.annotation.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Offline converter from raw images written by CameraUtils to PGM or PNG.
+ *
+ * YUV_420_888 images become 8-bit grayscale from the luma plane; RAW_SENSOR images become
+ * 16-bit grayscale holding the unprocessed Bayer mosaic.  Usage:
+ *
+ *   java com.google.charliehotel.calibrationrecorder.RawImageConverter 00042.yuv 00042.png
+ */
+class RawImageConverter {
+    /**
+     * Single channel image; samples hold 8 or 16 significant bits.
+     */
+    static class GrayImage {
+        GrayImage(int width, int height, int bit_depth) {
+            this.width = width;
+            this.height = height;
+            this.bitDepth = bit_depth;
+            this.samples = new int[width * height];
+        }
+
+        final int width;
+        final int height;
+        final int bitDepth;
+        final int[] samples;
+    }
+
+    /**
+     * Extracts the grayscale image from an encoded raw image at the buffer's position.
+     */
+    @NonNull
+    static GrayImage decode(@NonNull ByteBuffer buffer) throws IOException {
+        RawImageHeader header = RawImageHeader.decode(buffer);
+        ByteBuffer plane = buffer.slice().order(RawImageHeader.BYTE_ORDER);
+        int row_stride = header.getRowStride(0);
+        int pixel_stride = header.getPixelStride(0);
+        int width = header.getWidth();
+        int height = header.getHeight();
+        switch (header.getFormat()) {
+            case ImageFormat.YUV_420_888: {
+                checkPlaneLength(header, row_stride, pixel_stride, 1);
+                GrayImage image = new GrayImage(width, height, 8);
+                for (int y = 0; y < height; ++y) {
+                    for (int x = 0; x < width; ++x) {
+                        image.samples[y * width + x] =
+                                plane.get(y * row_stride + x * pixel_stride) & 0xff;
+                    }
+                }
+                return image;
+            }
+            case ImageFormat.RAW_SENSOR: {
+                checkPlaneLength(header, row_stride, pixel_stride, 2);
+                GrayImage image = new GrayImage(width, height, 16);
+                for (int y = 0; y < height; ++y) {
+                    for (int x = 0; x < width; ++x) {
+                        image.samples[y * width + x] =
+                                plane.getShort(y * row_stride + x * pixel_stride) & 0xffff;
+                    }
+                }
+                return image;
+            }
+            default:
+                throw new IOException("Cannot convert image format " + header.getFormat());
+        }
+    }
+
+    private static void checkPlaneLength(RawImageHeader header, int row_stride,
+                                         int pixel_stride, int bytes_per_sample)
+            throws IOException {
+        // The last row is not necessarily padded out to the full row stride.
+        long needed = (long) (header.getHeight() - 1) * row_stride
+                + (long) (header.getWidth() - 1) * pixel_stride + bytes_per_sample;
+        if (pixel_stride < bytes_per_sample || header.getLength(0) < needed) {
+            throw new IOException("Plane 0 too short for " + header.getWidth() + "x"
+                    + header.getHeight() + " with row stride " + row_stride);
+        }
+    }
+
+    static void writePgm(@NonNull GrayImage image, @NonNull OutputStream stream)
+            throws IOException {
+        int max_value = (1 << image.bitDepth) - 1;
+        stream.write(("P5\n" + image.width + " " + image.height + "\n" + max_value + "\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        for (int sample : image.samples) {
+            if (image.bitDepth == 16) {
+                stream.write(sample >>> 8);
+            }
+            stream.write(sample);
+        }
+    }
+
+    static void writePng(@NonNull GrayImage image, @NonNull OutputStream stream)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+
+        ByteBuffer ihdr = ByteBuffer.allocate(13);
+        ihdr.putInt(image.width);
+        ihdr.putInt(image.height);
+        ihdr.put((byte) image.bitDepth);
+        ihdr.put((byte) 0);  // grayscale
+        ihdr.put((byte) 0);  // deflate
+        ihdr.put((byte) 0);  // adaptive filtering
+        ihdr.put((byte) 0);  // no interlace
+        writePngChunk(out, "IHDR", ihdr.array());
+
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        DeflaterOutputStream deflater = new DeflaterOutputStream(idat);
+        for (int y = 0; y < image.height; ++y) {
+            deflater.write(0);  // filter type none
+            for (int x = 0; x < image.width; ++x) {
+                int sample = image.samples[y * image.width + x];
+                if (image.bitDepth == 16) {
+                    deflater.write(sample >>> 8);
+                }
+                deflater.write(sample);
+            }
+        }
+        deflater.finish();
+        writePngChunk(out, "IDAT", idat.toByteArray());
+        writePngChunk(out, "IEND", new byte[0]);
+        out.flush();
+    }
+
+    private static void writePngChunk(DataOutputStream out, String type, byte[] data)
+            throws IOException {
+        byte[] type_bytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(type_bytes);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(type_bytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 || !(args[1].endsWith(".pgm") || args[1].endsWith(".png"))) {
+            System.err.println("usage: RawImageConverter <in.yuv|in.raw> <out.pgm|out.png>");
+            System.exit(2);
+        }
+        GrayImage image;
+        try (RandomAccessFile file = new RandomAccessFile(args[0], "r")) {
+            image = decode(file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]))) {
+            if (args[1].endsWith(".png")) {
+                writePng(image, out);
+            } else {
+                writePgm(image, out);
+            }
+        }
+    }
+}
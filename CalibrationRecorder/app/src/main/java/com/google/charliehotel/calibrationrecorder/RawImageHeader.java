@@ -0,0 +1,138 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Header written in front of uncompressed (YUV_420_888, RAW_SENSOR) images.
+ *
+ * The planes follow the header back to back, exactly as the camera delivered them,
+ * including row padding.  Little-endian layout:
+ *
+ *   magic "CRIM", u16 version, u16 plane count, i32 ImageFormat, i32 width, i32 height,
+ *   i64 timestamp [ns], then per plane: i32 row stride, i32 pixel stride, i32 byte length
+ */
+class RawImageHeader {
+    static final int MAGIC = 0x4d495243;  // "CRIM" read little-endian
+    static final int VERSION = 1;
+    static final int MAX_PLANES = 4;
+
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private static final int FIXED_SIZE = 28;
+    private static final int PLANE_SIZE = 12;
+
+    static int size(int plane_count) {
+        return FIXED_SIZE + PLANE_SIZE * plane_count;
+    }
+
+    RawImageHeader(int format, int width, int height, long timestamp_ns, int plane_count) {
+        if (plane_count < 1 || plane_count > MAX_PLANES) {
+            throw new IllegalArgumentException("Bad plane count " + plane_count);
+        }
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mTimestampNs = timestamp_ns;
+        mRowStrides = new int[plane_count];
+        mPixelStrides = new int[plane_count];
+        mLengths = new int[plane_count];
+    }
+
+    void setPlane(int plane, int row_stride, int pixel_stride, int length) {
+        mRowStrides[plane] = row_stride;
+        mPixelStrides[plane] = pixel_stride;
+        mLengths[plane] = length;
+    }
+
+    int getFormat() {
+        return mFormat;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    int getPlaneCount() {
+        return mLengths.length;
+    }
+
+    int getRowStride(int plane) {
+        return mRowStrides[plane];
+    }
+
+    int getPixelStride(int plane) {
+        return mPixelStrides[plane];
+    }
+
+    int getLength(int plane) {
+        return mLengths[plane];
+    }
+
+    /**
+     * Returns a buffer holding the encoded header, ready to be written.
+     */
+    @NonNull
+    ByteBuffer encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(size(getPlaneCount())).order(BYTE_ORDER);
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) getPlaneCount());
+        buffer.putInt(mFormat);
+        buffer.putInt(mWidth);
+        buffer.putInt(mHeight);
+        buffer.putLong(mTimestampNs);
+        for (int i = 0; i < getPlaneCount(); ++i) {
+            buffer.putInt(mRowStrides[i]);
+            buffer.putInt(mPixelStrides[i]);
+            buffer.putInt(mLengths[i]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes a header at the buffer's position, leaving the position at the first plane.
+     */
+    @NonNull
+    static RawImageHeader decode(@NonNull ByteBuffer buffer) throws IOException {
+        buffer.order(BYTE_ORDER);
+        if (buffer.remaining() < FIXED_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a raw image");
+        }
+        int version = buffer.getShort() & 0xffff;
+        if (version != VERSION) {
+            throw new IOException("Unsupported raw image version " + version);
+        }
+        int plane_count = buffer.getShort() & 0xffff;
+        if (plane_count < 1 || plane_count > MAX_PLANES
+                || buffer.remaining() < size(plane_count) - 12) {
+            throw new IOException("Corrupt raw image header");
+        }
+        RawImageHeader header = new RawImageHeader(
+                buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getLong(), plane_count);
+        for (int i = 0; i < plane_count; ++i) {
+            header.setPlane(i, buffer.getInt(), buffer.getInt(), buffer.getInt());
+        }
+        return header;
+    }
+
+    private final int mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final long mTimestampNs;
+    private final int[] mRowStrides;
+    private final int[] mPixelStrides;
+    private final int[] mLengths;
+}
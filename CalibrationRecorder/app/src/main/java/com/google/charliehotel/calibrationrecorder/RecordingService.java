@@ -0,0 +1,1121 @@
+package com.google.charliehotel.calibrationrecorder;
+
+// am startservice -n com.google.charliehotel.calibrationrecorder/.RecordingService -a com.google.charliehotel.calibrationrecorder.START_TAKE
+// am startservice -n com.google.charliehotel.calibrationrecorder/.RecordingService -a com.google.charliehotel.calibrationrecorder.STOP_TAKE
+// am stopservice -n com.google.charliehotel.calibrationrecorder/.RecordingService
+
+import android.app.Notification;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraCharacteristics;
+import android.media.MediaFormat;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Owns the cameras and sensors for as long as it runs and records takes on request.
+ *
+ * The capture sessions and sensor listeners are opened once, in onCreate, and stay warm
+ * between takes; a take only opens a fresh set of output files under the run directory
+ * and swaps them in (see TakeController).  Control it by binding, as MainActivity does,
+ * or with the START_TAKE and STOP_TAKE actions.  Takes are started, stopped and rotated
+ * on the TakeControl thread, so a caller on the main thread never waits for the image
+ * writers to drain.  Run-level stats are written when the service is destroyed.
+ */
+public class RecordingService extends Service {
+    private static final String TAG = "CalibrationRecorder";
+
+    static final String ACTION_START_TAKE = "com.google.charliehotel.calibrationrecorder.START_TAKE";
+    static final String ACTION_STOP_TAKE = "com.google.charliehotel.calibrationrecorder.STOP_TAKE";
+
+    private static final boolean ENABLE_LEFT_CAMERA = true;
+    private static final boolean ENABLE_RIGHT_CAMERA = false;
+    private static final boolean ENABLE_SENSORS = true;
+
+    // Receive sensor events in Java or in native code; see Sensors.  ImuBackendBenchmarkTest
+    // compares the CPU time per sample of both on a device.
+    private static final int IMU_BACKEND = Sensors.BACKEND_JAVA;
+
+    // With both cameras enabled, frames are paired by sensor timestamp into
+    // STEREO_PAIRS_FILENAME.  Keep the tolerance under half the frame period.
+    private static final long STEREO_PAIRING_TOLERANCE_NS = 2 * 1000 * 1000;
+    private static final int STEREO_STATS_LOG_INTERVAL_PAIRS = 300;
+
+    private static final long METRICS_SUMMARY_INTERVAL_MS = 5000;
+
+    // Takes are rotated into a new segment after this long or this many frames;
+    // TakeController.UNLIMITED turns a limit off.
+    private static final long MAX_SEGMENT_DURATION_NS = TakeController.UNLIMITED;
+    private static final long MAX_SEGMENT_FRAMES = TakeController.UNLIMITED;
+
+    // Decimate images when storage cannot keep up, and stop the take before the disk fills;
+    // see StorageGovernor.  Decisions are logged to STORAGE_GOVERNOR_FILENAME.
+    private static final boolean ENABLE_STORAGE_GOVERNOR = true;
+    private static final long STORAGE_GOVERNOR_TICK_MS = 1000;
+    private static final long STORAGE_RESERVE_BYTES = 256L * 1024 * 1024;
+    private static final double MIN_REMAINING_RECORDING_S = 30;
+
+    // Under POLICY_MOTION, decimation keeps the frames taken while the gyro reads at least
+    // the threshold.  Needs ENABLE_SENSORS.
+    private static final int DECIMATION_POLICY = StorageGovernor.POLICY_EVERY_NTH;
+    private static final String MOTION_STREAM = "gyro";
+    private static final float MOTION_THRESHOLD_RAD_S = 0.5f;
+
+    // Sample the thermal zones into THERMAL_FILENAME, on the IMU clock.  With THERMAL_THROTTLE,
+    // also decimate images while the device runs hot, before the OS throttles the cameras and
+    // sensors for us.  THERMAL_KEEP_EVERY_N is the least decimation per ThermalSampler
+    // throttle level; applying it needs ENABLE_STORAGE_GOVERNOR.  Decimated images keep their
+    // index and are listed in the camera's skipped images log.  The thresholds apply to the
+    // hottest zone of THERMAL_ZONE_TYPES, or of all zones if it is null.  Zone types and safe
+    // temperatures vary by device, so set THERMAL_ZONE_TYPES to the device's CPU and SoC
+    // zones, as thermal.txt lists them, and tune the thresholds before turning it on.
+    private static final boolean ENABLE_THERMAL_SAMPLER = true;
+    private static final boolean THERMAL_THROTTLE = false;
+    private static final String THERMAL_DIR = "/sys/class/thermal";
+    private static final String[] THERMAL_ZONE_TYPES = null;
+    private static final long THERMAL_SAMPLE_INTERVAL_MS = 1000;
+    private static final long THERMAL_MODERATE_MILLI_C = 70000;
+    private static final long THERMAL_SEVERE_MILLI_C = 85000;
+    private static final long THERMAL_HYSTERESIS_MILLI_C = 5000;
+    private static final int[] THERMAL_KEEP_EVERY_N = {1, 2, 4};
+
+    // The service stops itself after idling this long with no client bound.
+    private static final long IDLE_SHUTDOWN_MS = 10 * 60 * 1000;
+
+    private static final int NOTIFICATION_ID = 1;
+
+    // Binary IMU logs avoid per-sample formatting.  All streams share IMU_BINARY_DATA_FILENAME,
+    // told apart by sensor type; convert with ImuBinaryReader.
+    private static final boolean USE_BINARY_IMU_LOG = false;
+
+    // Pack images into one container file per camera instead of one file per image;
+    // unpack with FrameContainerReader.
+    private static final boolean USE_FRAME_CONTAINER = false;
+
+    // Write IMU and metadata logs through MappedLogWriter so a crash loses at most one
+    // checkpoint interval instead of everything since the last flush.
+    private static final boolean USE_MAPPED_LOGS = true;
+
+    // Index every take's logs by timestamp when it stops (see SessionIndex).  Takes a pass
+    // over each log, so it delays the next take; it can also be run off-device.
+    private static final boolean BUILD_SESSION_INDEX = false;
+
+    // Check every take for dropped or cut-short frames, log gaps and IMU coverage when it
+    // stops (see RunVerifier), and write the findings to RunVerifier.REPORT_FILENAME in it.
+    // Runs in the background on a small pool so the next take is not delayed.
+    private static final boolean VERIFY_TAKES = true;
+    private static final int VERIFIER_PARALLELISM = 2;
+
+    // What each camera captures; see StreamConfigSelector for how it is matched to the
+    // device.  Full sensor resolution JPEG is slow and far more than the writers sustain.
+    private static final CaptureProfile CAPTURE_PROFILE = CaptureProfile.DEFAULT;
+
+    // Capture at 120/240 fps in a constrained high-speed session instead, for rolling
+    // shutter and camera-IMU time calibration (see Camera.setHighSpeed).  Frames can only go
+    // to the encoder, so this records video instead of images; the metadata log keeps
+    // every frame's timestamp and skew.  CaptureMetadataBenchmarkTest checks that the
+    // metadata path keeps up.
+    private static final boolean HIGH_SPEED_CAPTURE = false;
+    private static final CaptureProfile HIGH_SPEED_CAPTURE_PROFILE = new CaptureProfile(
+            ImageFormat.YUV_420_888, 1280, 720, 240, 240, CaptureProfile.EXPOSURE_AUTO,
+            CaptureProfile.UNSPECIFIED, CaptureProfile.UNSPECIFIED);
+
+    // Write only images that show the calibration target, sharp and in a new pose, as
+    // judged on a low-res stream beside the images (see Camera.setTargetSelection).  Every
+    // image's decision goes to LEFT/RIGHT_FRAME_SELECTION_FILENAME, and rejected images keep
+    // their index in the skipped images log.  TargetDetectorTest checks the detector's
+    // accuracy and speed.
+    private static final boolean SELECT_FRAMES_BY_TARGET = false;
+
+    // Integrate gyro and accel between consecutive left frames while recording and write
+    // the rotation, change of velocity and mid-exposure IMU values of every frame to
+    // LEFT_IMU_DELTAS_FILENAME (see GyroPreintegrator), so calibration need not
+    // re-integrate the IMU logs.  GyroPreintegratorTest checks it against an offline
+    // integrator.
+    private static final boolean PREINTEGRATE_IMU = true;
+
+    // Encode video in-process beside or instead of the images while recording; see
+    // Camera.VIDEO_*.  Decode with h264_decode and map its frame times back to captures
+    // with VideoTimestampMap.
+    private static final int VIDEO_MODE = HIGH_SPEED_CAPTURE ? Camera.VIDEO_INSTEAD_OF_IMAGES : Camera.VIDEO_NONE;
+    private static final VideoEncoder.Config VIDEO_CONFIG =
+            new VideoEncoder.Config(MediaFormat.MIMETYPE_VIDEO_AVC, 20 * 1000 * 1000, 1);
+
+    private static final String LEFT_CAMERA_ID = "0";
+    private static final String RIGHT_CAMERA_ID = "1";
+
+    // Text IMU logs are named after their stream, e.g. accel.txt.
+    private static final String IMU_TEXT_DATA_SUFFIX = ".txt";
+    private static final String IMU_BINARY_DATA_FILENAME = "imu.bin";
+    private static final String IMU_STREAMS_FILENAME = "imu_streams.txt";
+    private static final String CAMERA_LEFT_METADATA_FILENAME = "left_image_metadata.txt";
+    private static final String CAMERA_RIGHT_METADATA_FILENAME = "right_image_metadata.txt";
+    private static final String STEREO_PAIRS_FILENAME = "stereo_pairs.txt";
+    private static final String STATS_FILENAME = "stats.json";
+    private static final String CAMERA_CAPABILITIES_SUFFIX = "_capabilities.txt";
+    private static final String CAMERA_PROFILES_FILENAME = "camera_profiles.txt";
+    private static final String TAKES_FILENAME = "takes.txt";
+    private static final String STORAGE_GOVERNOR_FILENAME = "storage_governor.txt";
+    private static final String THERMAL_FILENAME = "thermal.txt";
+    private static final String TIMESTAMP_ALIGNMENT_FILENAME = "timestamp_alignment.txt";
+    private static final String TIMESTAMP_OFFSET_PROFILES_FILENAME = "timestamp_offsets.properties";
+    private static final String LEFT_VIDEO_FILENAME = "left_video.mp4";
+    private static final String RIGHT_VIDEO_FILENAME = "right_video.mp4";
+    private static final String LEFT_VIDEO_FRAMES_FILENAME = "left_video_frames.txt";
+    private static final String RIGHT_VIDEO_FRAMES_FILENAME = "right_video_frames.txt";
+    private static final String LEFT_FRAME_SELECTION_FILENAME = "left_frame_selection.txt";
+    private static final String RIGHT_FRAME_SELECTION_FILENAME = "right_frame_selection.txt";
+    private static final String LEFT_SKIPPED_IMAGES_FILENAME = "left_skipped_images.txt";
+    private static final String RIGHT_SKIPPED_IMAGES_FILENAME = "right_skipped_images.txt";
+    private static final String LEFT_IMU_DELTAS_FILENAME = "left_imu_deltas.txt";
+    private static final String LEFT_IMAGE_DIRNAME = "left_images";
+    private static final String RIGHT_IMAGE_DIRNAME = "right_images";
+    private static final String LEFT_IMAGE_CONTAINER_FILENAME = "left_images.frames";
+    private static final String RIGHT_IMAGE_CONTAINER_FILENAME = "right_images.frames";
+
+    class LocalBinder extends Binder {
+        @NonNull
+        RecordingService getService() {
+            return RecordingService.this;
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        Log.i(TAG, "RecordingService onCreate");
+        super.onCreate();
+
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG + "WakeLock");
+        mWakeLock.acquire();
+        startForeground(NOTIFICATION_ID, new Notification.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText("Camera and sensors warm")
+                .build());
+
+        File external_dir = getExternalFilesDir(null);
+        mTimestampOffsetProfile = loadTimestampOffsetProfile(external_dir);
+        Log.i(TAG, "timestamp offsets for " + Build.MODEL + ": " + mTimestampOffsetProfile);
+        recoverLogs(external_dir);
+        mRunDir = getRunDir(external_dir);
+        noisyMkdir(mRunDir);
+        Log.i(TAG, "mRunDir=" + mRunDir);
+
+        mTakeController = new TakeController(mTakeListener, MAX_SEGMENT_DURATION_NS, MAX_SEGMENT_FRAMES);
+        mTakeThread = new HandlerThread("TakeControl");
+        mTakeThread.start();
+        mTakeHandler = new Handler(mTakeThread.getLooper());
+
+        if (ENABLE_SENSORS) {
+            mSensors = new Sensors(this, mMetrics, IMU_BACKEND);
+            mSensors.setTimestampOffsets(mTimestampOffsetProfile);
+            mSensors.open();
+        }
+        if (ENABLE_LEFT_CAMERA) {
+            mLeftCamera = openCamera(LEFT_CAMERA_ID, true);
+        }
+        if (ENABLE_RIGHT_CAMERA) {
+            mRightCamera = openCamera(RIGHT_CAMERA_ID, false);
+        }
+
+        if (ENABLE_STORAGE_GOVERNOR) {
+            startStorageGovernors();
+        }
+        if (ENABLE_THERMAL_SAMPLER) {
+            startThermalSampler();
+        }
+
+        mHandler.postDelayed(mMetricsSummaryRunnable, METRICS_SUMMARY_INTERVAL_MS);
+        Log.i(TAG, "RecordingService onCreate done");
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int start_id) {
+        String action = intent != null ? intent.getAction() : null;
+        if (ACTION_START_TAKE.equals(action)) {
+            startTake();
+        } else if (ACTION_STOP_TAKE.equals(action)) {
+            stopTake();
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        ++mBoundClients;
+        mHandler.removeCallbacks(mIdleShutdownRunnable);
+        return mBinder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        ++mBoundClients;
+        mHandler.removeCallbacks(mIdleShutdownRunnable);
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        --mBoundClients;
+        scheduleIdleShutdown();
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.i(TAG, "RecordingService onDestroy");
+        mHandler.removeCallbacks(mMetricsSummaryRunnable);
+        mHandler.removeCallbacks(mIdleShutdownRunnable);
+        mHandler.removeCallbacks(mStorageGovernorRunnable);
+        stopThermalSampler();
+
+        // Stop the take and wait for it to close before the cameras go away.
+        mTakeHandler.removeCallbacks(mRotateRunnable);
+        stopTake();
+        mTakeThread.quitSafely();
+        try {
+            mTakeThread.join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted waiting for the take to close");
+            Thread.currentThread().interrupt();
+        }
+
+        if (mSensors != null) {
+            mSensors.close();
+        }
+        if (mLeftCamera != null) {
+            mLeftCamera.close();
+        }
+        if (mRightCamera != null) {
+            mRightCamera.close();
+        }
+
+        writeTimestampAlignment();
+        writeCameraProfiles();
+        writeStats();
+        closeQuietly(mStorageGovernorLog);
+        mStorageGovernorLog = null;
+        mSensors = null;
+        mLeftCamera = null;
+        mRightCamera = null;
+
+        stopForeground(true);
+        mWakeLock.release();
+        Log.i(TAG, "RecordingService onDestroy done");
+        super.onDestroy();
+    }
+
+    /**
+     * Starts a take unless one is running.  Returns at once; the take starts on the
+     * TakeControl thread, after any stop requested before it.
+     */
+    void startTake() {
+        mHandler.removeCallbacks(mIdleShutdownRunnable);
+        mTakeHandler.post(mStartTakeRunnable);
+    }
+
+    /**
+     * Stops the running take, if any.  Returns at once; the take's files are closed on the
+     * TakeControl thread.
+     */
+    void stopTake() {
+        mTakeHandler.post(mStopTakeRunnable);
+    }
+
+    // The TakeControl thread.
+    private final Runnable mStartTakeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mTakeController.getCurrentTake() != null) {
+                return;
+            }
+            for (StorageGovernor governor : mStorageGovernors) {
+                if (governor.isExhausted()) {
+                    Log.e(TAG, "Not starting a take; storage is exhausted: " + governor);
+                    return;
+                }
+            }
+            try {
+                TakeController.Take take = mTakeController.start(SystemClock.elapsedRealtimeNanos());
+                Log.i(TAG, "started " + take.getName());
+            } catch (IOException e) {
+                Log.e(TAG, "Could not start take: " + e);
+            }
+        }
+    };
+
+    // The TakeControl thread.
+    private final Runnable mStopTakeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            TakeController.Take take = mTakeController.stop(SystemClock.elapsedRealtimeNanos());
+            if (take != null) {
+                Log.i(TAG, "stopped " + take.getName() + ": frames=" + take.getFrameCount()
+                        + " time_to_first_frame_ms=" + take.getTimeToFirstFrameNs() / 1000000);
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    scheduleIdleShutdown();
+                }
+            });
+        }
+    };
+
+    boolean isRecording() {
+        return mTakeController.isRecording();
+    }
+
+    private void startStorageGovernors() {
+        try {
+            mStorageGovernorLog = new FileWriter(new File(mRunDir, STORAGE_GOVERNOR_FILENAME));
+            mStorageGovernorLog.write(StorageGovernor.DECISION_LOG_HEADER + "\n");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open storage governor log: " + e);
+            closeQuietly(mStorageGovernorLog);
+            mStorageGovernorLog = null;
+        }
+        for (Camera camera : new Camera[]{mLeftCamera, mRightCamera}) {
+            if (camera == null) {
+                continue;
+            }
+            StorageGovernor governor = new StorageGovernor("camera" + camera.getCameraId(),
+                    mStorageListener, camera.getImageWriterThreads(), STORAGE_RESERVE_BYTES,
+                    MIN_REMAINING_RECORDING_S);
+            if (DECIMATION_POLICY == StorageGovernor.POLICY_MOTION && mSensors != null) {
+                governor.setMotionPolicy(new StorageGovernor.MotionProbe() {
+                    @Override
+                    public float getMotion() {
+                        return mSensors.getLatestMagnitude(MOTION_STREAM);
+                    }
+                }, MOTION_THRESHOLD_RAD_S);
+            }
+            governor.setDecisionLog(mStorageGovernorLog);
+            camera.setStorageGovernor(governor);
+            mStorageGovernors.add(governor);
+        }
+        mStorageGovernorRunnable.run();
+    }
+
+    private final Runnable mStorageGovernorRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long now_ns = SystemClock.elapsedRealtimeNanos();
+            long free_bytes = mRunDir.getUsableSpace();
+            for (StorageGovernor governor : mStorageGovernors) {
+                governor.tick(now_ns, free_bytes);
+            }
+            mHandler.postDelayed(this, STORAGE_GOVERNOR_TICK_MS);
+        }
+    };
+
+    private final StorageGovernor.Listener mStorageListener = new StorageGovernor.Listener() {
+        @Override
+        public void onStorageExhausted(@NonNull StorageGovernor governor, long free_bytes, double remaining_s) {
+            Log.e(TAG, "Storage exhausted, stopping take: " + governor + " free_bytes=" + free_bytes);
+            stopTake();
+        }
+    };
+
+    private void startThermalSampler() {
+        ThermalSampler sampler = new ThermalSampler(new File(THERMAL_DIR), THERMAL_MODERATE_MILLI_C,
+                THERMAL_SEVERE_MILLI_C, THERMAL_HYSTERESIS_MILLI_C);
+        try {
+            sampler.open(THERMAL_ZONE_TYPES);
+            mThermalLog = new FileWriter(new File(mRunDir, THERMAL_FILENAME));
+            mThermalLog.write(sampler.getHeader() + "\n");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start thermal sampler: " + e);
+            sampler.close();
+            closeQuietly(mThermalLog);
+            mThermalLog = null;
+            return;
+        }
+        Log.i(TAG, "thermal zones: " + Arrays.toString(sampler.getZoneNames()));
+        sampler.setLog(mThermalLog);
+        if (THERMAL_THROTTLE) {
+            sampler.setListener(mThermalListener);
+        }
+        mThermalSampler = sampler;
+        mThermalTemperature = mMetrics.histogram("thermal_max_milli_c");
+        mThermalThread = new HandlerThread("ThermalSampler");
+        mThermalThread.start();
+        mThermalHandler = new Handler(mThermalThread.getLooper());
+        mThermalHandler.post(mThermalRunnable);
+    }
+
+    private void stopThermalSampler() {
+        if (mThermalThread == null) {
+            return;
+        }
+        mThermalHandler.removeCallbacks(mThermalRunnable);
+        mThermalThread.quitSafely();
+        try {
+            mThermalThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThermalSampler.close();
+        closeQuietly(mThermalLog);
+        mThermalLog = null;
+        mThermalThread = null;
+        mThermalHandler = null;
+    }
+
+    // Runs on mThermalThread.
+    private final Runnable mThermalRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                long max_milli_c = mThermalSampler.sample(SystemClock.elapsedRealtimeNanos());
+                if (max_milli_c != ThermalSampler.UNAVAILABLE) {
+                    mThermalTemperature.record(max_milli_c);
+                }
+                mThermalLog.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write thermal sample: " + e);
+            }
+            mThermalHandler.postDelayed(this, THERMAL_SAMPLE_INTERVAL_MS);
+        }
+    };
+
+    private final ThermalSampler.Listener mThermalListener = new ThermalSampler.Listener() {
+        @Override
+        public void onThrottleLevelChanged(@NonNull ThermalSampler sampler, int level, long max_milli_c) {
+            int keep_every_n = THERMAL_KEEP_EVERY_N[level];
+            Log.w(TAG, "thermal throttle level " + level + " at " + max_milli_c
+                    + " mC, keeping at least every " + keep_every_n + " frames");
+            for (StorageGovernor governor : mStorageGovernors) {
+                governor.setMinKeepEveryN(keep_every_n);
+            }
+        }
+    };
+
+    private Camera openCamera(String camera_id, final boolean is_left) {
+        Camera camera = new Camera(this, camera_id, mMetrics);
+        camera.setTimestampOffset(mTimestampOffsetProfile);
+        camera.setCaptureProfile(HIGH_SPEED_CAPTURE ? HIGH_SPEED_CAPTURE_PROFILE : CAPTURE_PROFILE);
+        camera.setHighSpeed(HIGH_SPEED_CAPTURE);
+        camera.setTargetSelection(SELECT_FRAMES_BY_TARGET);
+        if (VIDEO_MODE != Camera.VIDEO_NONE) {
+            camera.setVideoMode(VIDEO_MODE, VIDEO_CONFIG);
+        }
+        camera.setFrameListener(new Camera.FrameListener() {
+            @Override
+            public void onFrame(long timestamp_ns, long frame_number, long exposure_ns, long skew_ns) {
+                onCameraFrame(is_left, timestamp_ns, frame_number, exposure_ns, skew_ns);
+            }
+        });
+        camera.open();
+        writeCameraCapabilities(camera);
+        return camera;
+    }
+
+    // Camera background threads.
+    private void onCameraFrame(boolean is_left, long timestamp_ns, long frame_number, long exposure_ns,
+                               long skew_ns) {
+        if (is_left && mTakeController.onFrame(timestamp_ns, SystemClock.elapsedRealtimeNanos())
+                && !mRotationPending) {
+            mRotationPending = true;
+            mTakeHandler.post(mRotateRunnable);
+        }
+        StereoFramePairer pairer = mStereoPairer;
+        if (pairer != null) {
+            if (is_left) {
+                pairer.addLeft(timestamp_ns, frame_number);
+            } else {
+                pairer.addRight(timestamp_ns, frame_number);
+            }
+        }
+        GyroPreintegrator preintegrator = mPreintegrator;
+        if (is_left && preintegrator != null) {
+            try {
+                preintegrator.addFrame(timestamp_ns, exposure_ns, skew_ns);
+            } catch (IOException e) {
+                Log.e(TAG, "I/O Exception on mImuDeltasWriter");
+            }
+        }
+    }
+
+    private final TakeController.Listener mTakeListener = new TakeController.Listener() {
+        @Override
+        public void onTakeStarted(@NonNull TakeController.Take take) throws IOException {
+            mTakeDir = new File(mRunDir, take.getName());
+            noisyMkdir(mTakeDir);
+            try {
+                openTakeFiles();
+            } catch (IOException e) {
+                closeTakeFiles();
+                throw e;
+            }
+        }
+
+        @Override
+        public void onTakeStopped(@NonNull TakeController.Take take) {
+            closeTakeFiles();
+            appendTakeSummary(take);
+            if (BUILD_SESSION_INDEX) {
+                try {
+                    SessionIndex.build(mTakeDir);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not index " + mTakeDir + ": " + e);
+                }
+            }
+            if (VERIFY_TAKES) {
+                verifyTake(mTakeDir);
+            }
+        }
+    };
+
+    private void verifyTake(final File take_dir) {
+        if (mVerifierPool == null) {
+            // Pool threads are daemons and exit when idle, so the pool is never shut down;
+            // a take stopped by onDestroy is still verified.
+            mVerifierPool = new ForkJoinPool(VERIFIER_PARALLELISM);
+        }
+        final RunVerifier verifier = new RunVerifier(mVerifierPool, RunVerifier.DEFAULT_GAP_FACTOR);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    RunVerifier.Report report = verifier.verifyAndWrite(take_dir);
+                    if (report.passed()) {
+                        Log.i(TAG, "Verified " + take_dir);
+                    } else {
+                        Log.w(TAG, "Verification of " + take_dir + " found " + report.getProblemCount()
+                                + " problems; see " + RunVerifier.REPORT_FILENAME);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not verify " + take_dir + ": " + e);
+                }
+            }
+        }, "RunVerifier").start();
+    }
+
+    // The TakeControl thread.
+    private final Runnable mRotateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mRotationPending = false;
+            if (!mTakeController.isRecording()) {
+                return;
+            }
+            try {
+                TakeController.Take take = mTakeController.rotate(SystemClock.elapsedRealtimeNanos());
+                Log.i(TAG, "rotated to " + take.getName());
+            } catch (IOException e) {
+                Log.e(TAG, "Could not rotate take: " + e);
+            }
+        }
+    };
+
+    private final Runnable mIdleShutdownRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mBoundClients == 0 && !mTakeController.isRecording()) {
+                Log.i(TAG, "RecordingService idle; stopping");
+                stopSelf();
+            }
+        }
+    };
+
+    private void scheduleIdleShutdown() {
+        mHandler.removeCallbacks(mIdleShutdownRunnable);
+        if (mBoundClients == 0) {
+            mHandler.postDelayed(mIdleShutdownRunnable, IDLE_SHUTDOWN_MS);
+        }
+    }
+
+    private static void noisyMkdir(File path) {
+        if (!path.mkdir()) {
+            Log.wtf(TAG, "Could not mkdir " + path);
+        }
+    }
+
+    /**
+     * Opens the take's files and swaps them in for the cameras and sensors.
+     */
+    private void openTakeFiles() throws IOException {
+        if (mSensors != null) {
+            if (USE_BINARY_IMU_LOG) {
+                ImuBinaryWriter shared_sink = new ImuBinaryWriter(
+                        openBinaryLog(IMU_BINARY_DATA_FILENAME), 0, ImuLogFormat.MAX_VALUES);
+                mImuSinks.add(shared_sink);
+                for (String name : mSensors.getStreamNames()) {
+                    mSensors.setSink(name, shared_sink.forSensor(mSensors.getSensorType(name)));
+                }
+            } else {
+                for (String name : mSensors.getStreamNames()) {
+                    ImuSink sink = new ImuTextWriter(openTextLog(name + IMU_TEXT_DATA_SUFFIX));
+                    mImuSinks.add(sink);
+                    mSensors.setSink(name, sink);
+                }
+            }
+        }
+
+        if (mLeftCamera != null && mRightCamera != null) {
+            mStereoPairsWriter = openTextLog(STEREO_PAIRS_FILENAME);
+            mStereoPairer = new StereoFramePairer(STEREO_PAIRING_TOLERANCE_NS,
+                    new StereoPairLogger(mStereoPairsWriter));
+        }
+        if (PREINTEGRATE_IMU && mSensors != null && mLeftCamera != null) {
+            mImuDeltasWriter = openTextLog(LEFT_IMU_DELTAS_FILENAME);
+            mImuDeltasWriter.write(GyroPreintegrator.LOG_HEADER + "\n");
+            mPreintegrator = new GyroPreintegrator(mImuDeltasWriter);
+            mSensors.setPreintegrator(mPreintegrator);
+        }
+        if (mLeftCamera != null) {
+            File image_dir = new File(mTakeDir, LEFT_IMAGE_DIRNAME);
+            if (USE_FRAME_CONTAINER) {
+                mLeftImageContainer = new FrameContainerWriter(
+                        new File(mTakeDir, LEFT_IMAGE_CONTAINER_FILENAME));
+            } else {
+                noisyMkdir(image_dir);
+            }
+            mLeftCameraMetadataWriter = openTextLog(CAMERA_LEFT_METADATA_FILENAME);
+            File video_file = null;
+            if (VIDEO_MODE != Camera.VIDEO_NONE) {
+                video_file = new File(mTakeDir, LEFT_VIDEO_FILENAME);
+                mLeftVideoFramesWriter = openTextLog(LEFT_VIDEO_FRAMES_FILENAME);
+            }
+            if (SELECT_FRAMES_BY_TARGET) {
+                mLeftFrameSelectionWriter = openTextLog(LEFT_FRAME_SELECTION_FILENAME);
+                mLeftFrameSelectionWriter.write(TargetFrameFilter.SELECTION_LOG_HEADER + "\n");
+            }
+            mLeftSkippedImagesWriter = openTextLog(LEFT_SKIPPED_IMAGES_FILENAME);
+            mLeftSkippedImagesWriter.write(Camera.SKIPPED_IMAGES_LOG_HEADER + "\n");
+            mLeftCamera.setOutputs(new Camera.Outputs(image_dir, mLeftImageContainer, mLeftCameraMetadataWriter,
+                    video_file, mLeftVideoFramesWriter, mLeftFrameSelectionWriter, mLeftSkippedImagesWriter));
+        }
+        if (mRightCamera != null) {
+            File image_dir = new File(mTakeDir, RIGHT_IMAGE_DIRNAME);
+            if (USE_FRAME_CONTAINER) {
+                mRightImageContainer = new FrameContainerWriter(
+                        new File(mTakeDir, RIGHT_IMAGE_CONTAINER_FILENAME));
+            } else {
+                noisyMkdir(image_dir);
+            }
+            mRightCameraMetadataWriter = openTextLog(CAMERA_RIGHT_METADATA_FILENAME);
+            File video_file = null;
+            if (VIDEO_MODE != Camera.VIDEO_NONE) {
+                video_file = new File(mTakeDir, RIGHT_VIDEO_FILENAME);
+                mRightVideoFramesWriter = openTextLog(RIGHT_VIDEO_FRAMES_FILENAME);
+            }
+            if (SELECT_FRAMES_BY_TARGET) {
+                mRightFrameSelectionWriter = openTextLog(RIGHT_FRAME_SELECTION_FILENAME);
+                mRightFrameSelectionWriter.write(TargetFrameFilter.SELECTION_LOG_HEADER + "\n");
+            }
+            mRightSkippedImagesWriter = openTextLog(RIGHT_SKIPPED_IMAGES_FILENAME);
+            mRightSkippedImagesWriter.write(Camera.SKIPPED_IMAGES_LOG_HEADER + "\n");
+            mRightCamera.setOutputs(new Camera.Outputs(image_dir, mRightImageContainer, mRightCameraMetadataWriter,
+                    video_file, mRightVideoFramesWriter, mRightFrameSelectionWriter, mRightSkippedImagesWriter));
+        }
+    }
+
+    /**
+     * Swaps the take's files out, waits for in-flight writes and closes them.
+     */
+    private void closeTakeFiles() {
+        for (Camera camera : new Camera[]{mLeftCamera, mRightCamera}) {
+            if (camera != null) {
+                camera.setOutputs(null);
+                camera.awaitOutputsReleased();
+            }
+        }
+        if (mSensors != null) {
+            for (String name : mSensors.getStreamNames()) {
+                mSensors.setSink(name, null);
+            }
+            writeImuStreams();
+        }
+        StereoFramePairer pairer = mStereoPairer;
+        mStereoPairer = null;
+        if (pairer != null) {
+            pairer.finish();
+            Log.i(TAG, "stereo " + pairer.formatStats());
+        }
+        GyroPreintegrator preintegrator = mPreintegrator;
+        mPreintegrator = null;
+        if (preintegrator != null) {
+            mSensors.setPreintegrator(null);
+            preintegrator.finish();
+            Log.i(TAG, "imu deltas " + preintegrator.formatStats());
+        }
+
+        for (ImuSink sink : mImuSinks) {
+            closeQuietly(sink);
+        }
+        mImuSinks.clear();
+        closeQuietly(mLeftCameraMetadataWriter);
+        mLeftCameraMetadataWriter = null;
+        closeQuietly(mRightCameraMetadataWriter);
+        mRightCameraMetadataWriter = null;
+        closeQuietly(mStereoPairsWriter);
+        mStereoPairsWriter = null;
+        closeQuietly(mImuDeltasWriter);
+        mImuDeltasWriter = null;
+        closeQuietly(mLeftVideoFramesWriter);
+        mLeftVideoFramesWriter = null;
+        closeQuietly(mRightVideoFramesWriter);
+        mRightVideoFramesWriter = null;
+        closeQuietly(mLeftFrameSelectionWriter);
+        mLeftFrameSelectionWriter = null;
+        closeQuietly(mRightFrameSelectionWriter);
+        mRightFrameSelectionWriter = null;
+        closeQuietly(mLeftSkippedImagesWriter);
+        mLeftSkippedImagesWriter = null;
+        closeQuietly(mRightSkippedImagesWriter);
+        mRightSkippedImagesWriter = null;
+        closeQuietly(mLeftImageContainer);
+        mLeftImageContainer = null;
+        closeQuietly(mRightImageContainer);
+        mRightImageContainer = null;
+        Log.i(TAG, "file cleanup complete");
+    }
+
+    private Writer openTextLog(String filename) throws IOException {
+        File file = new File(mTakeDir, filename);
+        if (USE_MAPPED_LOGS) {
+            return new MappedLogWriter(file);
+        }
+        return new FileWriter(file);
+    }
+
+    private WritableByteChannel openBinaryLog(String filename) throws IOException {
+        File file = new File(mTakeDir, filename);
+        if (USE_MAPPED_LOGS) {
+            return new MappedLogWriter(file);
+        }
+        return new FileOutputStream(file).getChannel();
+    }
+
+    private static TimestampOffsetProfile loadTimestampOffsetProfile(File external_dir) {
+        File file = new File(external_dir, TIMESTAMP_OFFSET_PROFILES_FILENAME);
+        try {
+            return TimestampOffsetProfile.load(file, Build.MODEL);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not load " + file + ": " + e);
+            return TimestampOffsetProfile.NONE;
+        }
+    }
+
+    private final Runnable mMetricsSummaryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "stats: " + mMetrics.formatSummary());
+            for (StorageGovernor governor : mStorageGovernors) {
+                Log.i(TAG, "storage: " + governor);
+            }
+            mHandler.postDelayed(this, METRICS_SUMMARY_INTERVAL_MS);
+        }
+    };
+
+    private void writeStats() {
+        Log.i(TAG, "final stats: " + mMetrics.formatSummary());
+        Writer writer = null;
+        try {
+            writer = new FileWriter(new File(mRunDir, STATS_FILENAME));
+            mMetrics.writeJson(writer);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write stats: " + e);
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private void appendTakeSummary(TakeController.Take take) {
+        File file = new File(mRunDir, TAKES_FILENAME);
+        boolean is_new = !file.exists();
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file, true);
+            if (is_new) {
+                writer.write(TakeController.SUMMARY_HEADER + "\n");
+            }
+            writer.write(take.formatSummary() + "\n");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write take summary: " + e);
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Records the negotiated and achieved rate of every IMU stream so far.
+     */
+    private void writeImuStreams() {
+        Writer writer = null;
+        try {
+            writer = new FileWriter(new File(mTakeDir, IMU_STREAMS_FILENAME));
+            mSensors.writeStreamSummary(writer);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write IMU stream summary: " + e);
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Records what the camera supports, so the stream selection can be replayed with
+     * StreamConfigSelector.
+     */
+    private void writeCameraCapabilities(Camera camera) {
+        StreamConfigSelector.Capabilities capabilities = camera.getCapabilities();
+        if (capabilities == null) {
+            return;
+        }
+        Writer writer = null;
+        try {
+            writer = new FileWriter(new File(mRunDir,
+                    "camera" + camera.getCameraId() + CAMERA_CAPABILITIES_SUFFIX));
+            capabilities.write(writer);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write camera capabilities: " + e);
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Records the selected stream configuration of every camera, with its predicted
+     * and achieved frame rate.
+     */
+    private void writeCameraProfiles() {
+        StringBuilder report = new StringBuilder();
+        report.append("# camera ").append(StreamConfigSelector.Selection.HEADER.substring(2))
+                .append(" achieved_fps\n");
+        for (Camera camera : new Camera[]{mLeftCamera, mRightCamera}) {
+            if (camera == null || camera.getSelection() == null) {
+                continue;
+            }
+            StreamConfigSelector.Selection selection = camera.getSelection();
+            String achieved_fps = String.format(Locale.US, "%.3f", camera.getAchievedFps());
+            Log.i(TAG, "camera " + camera.getCameraId() + " predicted_fps=" + selection.getPredictedFps()
+                    + " achieved_fps=" + achieved_fps
+                    + " predicted_bytes_per_s=" + selection.getPredictedBytesPerSecond());
+            report.append(camera.getCameraId()).append(' ').append(selection.formatSummary())
+                    .append(' ').append(achieved_fps).append('\n');
+        }
+
+        Writer writer = null;
+        try {
+            writer = new FileWriter(new File(mRunDir, CAMERA_PROFILES_FILENAME));
+            writer.write(report.toString());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write camera profiles: " + e);
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Records the applied offsets and the measured delivery latency of every stream.
+     */
+    private void writeTimestampAlignment() {
+        List<DeliveryLatencyEstimator> estimators = new ArrayList<>();
+        StringBuilder report = new StringBuilder();
+        report.append("# device ").append(Build.MODEL).append('\n');
+        report.append("# applied ").append(mTimestampOffsetProfile).append('\n');
+        if (mSensors != null) {
+            estimators.addAll(mSensors.getLatencyEstimators());
+        }
+        for (Camera camera : new Camera[]{mLeftCamera, mRightCamera}) {
+            if (camera != null) {
+                estimators.add(camera.getLatencyEstimator());
+                report.append("# ").append(camera.getLatencyEstimator().getName())
+                        .append(" timestamp_source=").append(
+                        camera.getTimestampSource() == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME
+                                ? "realtime" : "unknown").append('\n');
+            }
+        }
+        report.append("# latency: stream count min p50 p99 max mean stddev\n");
+        for (DeliveryLatencyEstimator estimator : estimators) {
+            report.append(estimator.formatSummary()).append('\n');
+        }
+        report.append("# histogram: stream first_bucket_ns bucket_width_ns underflow counts... overflow\n");
+        for (DeliveryLatencyEstimator estimator : estimators) {
+            report.append(estimator.formatHistogram()).append('\n');
+        }
+
+        Writer writer = null;
+        try {
+            writer = new FileWriter(new File(mRunDir, TIMESTAMP_ALIGNMENT_FILENAME));
+            writer.write(report.toString());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write timestamp alignment: " + e);
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Trims the logs of runs that were killed before they could be closed.  Logs live in
+     * take directories, one level below each run directory.
+     */
+    private static void recoverLogs(File dir) {
+        recoverLogs(dir, 3);
+    }
+
+    private static void recoverLogs(File dir, int depth) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (depth > 1) {
+                    recoverLogs(file, depth - 1);
+                }
+                continue;
+            }
+            String path = file.getPath();
+            if (!path.endsWith(MappedLogWriter.COMMIT_SUFFIX)) {
+                continue;
+            }
+            File log = new File(path.substring(0, path.length() - MappedLogWriter.COMMIT_SUFFIX.length()));
+            try {
+                long length = MappedLogWriter.recover(log);
+                Log.w(TAG, "Recovered " + length + " bytes of " + log);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not recover " + log + ": " + e);
+            }
+        }
+    }
+
+    private static void closeQuietly(Writer writer) {
+        try {
+            if (writer != null) {
+                writer.flush();
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close writer");
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close " + closeable);
+        }
+    }
+
+    /**
+     * Writes one take's stereo pairs.  Each take has its own logger and pairer, so pairs
+     * can only ever reach the writer of the take they were made in.  Called under the
+     * pairer's lock.
+     */
+    private static class StereoPairLogger implements StereoFramePairer.Listener {
+        StereoPairLogger(@NonNull Writer writer) {
+            mWriter = writer;
+        }
+
+        @Override
+        public void onPair(@NonNull StereoFramePairer pairer, long left_timestamp_ns, long left_frame_number,
+                           long right_timestamp_ns, long right_frame_number) {
+            try {
+                mEncoder.clear().putLong(left_timestamp_ns).putSpace().putZeroPadded(left_frame_number, 5)
+                        .putSpace().putLong(right_timestamp_ns).putSpace().putZeroPadded(right_frame_number, 5)
+                        .putSpace().putLong(right_timestamp_ns - left_timestamp_ns).putNewline()
+                        .writeTo(mWriter);
+            } catch (IOException e) {
+                Log.e(TAG, "I/O Exception on mStereoPairsWriter");
+            }
+            if (pairer.getPairCount() % STEREO_STATS_LOG_INTERVAL_PAIRS == 0) {
+                Log.i(TAG, "stereo " + pairer.formatStats());
+            }
+        }
+
+        private final Writer mWriter;
+        private final TextRecordEncoder mEncoder = new TextRecordEncoder();
+    }
+
+    private static File getRunDir(File external_dir) {
+        DateFormat date_format = new SimpleDateFormat("YYYYMMDDHHMMSS", Locale.US);
+        date_format.setTimeZone(java.util.TimeZone.getTimeZone("UTC"));
+        String run_name = date_format.format(new Date());
+        return new File(external_dir, run_name);
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+
+    private WakeLock mWakeLock;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+
+    private TimestampOffsetProfile mTimestampOffsetProfile;
+
+    private TakeController mTakeController;
+    private HandlerThread mTakeThread;
+    private Handler mTakeHandler;
+    private volatile boolean mRotationPending;
+    private int mBoundClients;
+
+    private Sensors mSensors;
+
+    private Camera mLeftCamera;
+    private Camera mRightCamera;
+
+    private File mRunDir;
+    // The take's directory and outputs are opened and closed on the TakeControl thread.
+    private File mTakeDir;
+
+    private final List<ImuSink> mImuSinks = new ArrayList<>();
+
+    private final List<StorageGovernor> mStorageGovernors = new ArrayList<>();
+    private Writer mStorageGovernorLog;
+
+    private ThermalSampler mThermalSampler;
+    private Writer mThermalLog;
+    private HandlerThread mThermalThread;
+    private Handler mThermalHandler;
+    private MetricsRegistry.Histogram mThermalTemperature;
+
+    private ForkJoinPool mVerifierPool;
+
+    private Writer mLeftCameraMetadataWriter;
+    private Writer mRightCameraMetadataWriter;
+    private Writer mStereoPairsWriter;
+    private Writer mImuDeltasWriter;
+    private Writer mLeftVideoFramesWriter;
+    private Writer mRightVideoFramesWriter;
+    private Writer mLeftFrameSelectionWriter;
+    private Writer mRightFrameSelectionWriter;
+    private Writer mLeftSkippedImagesWriter;
+    private Writer mRightSkippedImagesWriter;
+    private volatile StereoFramePairer mStereoPairer;
+    private volatile GyroPreintegrator mPreintegrator;
+    private FrameContainerWriter mLeftImageContainer;
+    private FrameContainerWriter mRightImageContainer;
+}
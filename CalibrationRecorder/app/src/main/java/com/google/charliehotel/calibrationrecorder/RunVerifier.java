@@ -0,0 +1,808 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Checks a recording for the problems that otherwise only show when calibration fails
+ * hours later:
+ *
+ *   images    gaps in the %05d image sequence (images the writers dropped; images the
+ *             camera logged as skipped are counted apart), and images that are cut
+ *             short: a JPEG without SOI or EOI marker, or a raw image whose length does
+ *             not match its RawImageHeader
+ *   metadata  capture results missing from the frame number sequence, and timestamps
+ *             that go backwards or jump by more than gap_factor frame periods
+ *   imu       timestamps of every IMU stream that go backwards, repeat, or jump by more
+ *             than gap_factor sample periods
+ *   coverage  frames of each camera without an accel or gyro sample within gap_factor
+ *             periods on both sides
+ *
+ * Periods are the median step of each log.  A run directory is checked take by take;
+ * a directory without takes is checked as one.  Image directories and frame containers
+ * are both understood.  Every log, image directory and coverage check is a fork/join
+ * task, and image checks and coverage are split further, so a 100k frame take is done in
+ * seconds.  Images are probed with two small positional reads, at the start and at the
+ * end; containers are mapped in one window per task.
+ *
+ * The report lists one line per check, "<subject> <check> ok|FAIL key=value ...", up to
+ * MAX_LISTED detail lines under each failed one, and a final result line.  Off-device:
+ *
+ *   java com.google.charliehotel.calibrationrecorder.RunVerifier [-n <gap factor>] <dir>
+ */
+class RunVerifier {
+    static final String REPORT_FILENAME = "verification.txt";
+    static final double DEFAULT_GAP_FACTOR = 1.8;
+
+    private static final String TAKE_PREFIX = "take_";
+
+    // name, image directory, frame container, metadata file and skipped images log of
+    // each camera.
+    private static final String[][] CAMERAS = {
+            {"left", "left_images", "left_images.frames", "left_image_metadata.txt", "left_skipped_images.txt"},
+            {"right", "right_images", "right_images.frames", "right_image_metadata.txt", "right_skipped_images.txt"},
+    };
+    private static final String IMU_TEXT_DATA_SUFFIX = ".txt";
+    private static final String[] COVERAGE_STREAMS = {"accel", "gyro"};
+
+    private static final int MAX_LISTED = 20;
+    private static final int IMAGES_PER_TASK = 256;
+    private static final int FRAMES_PER_TASK = 8192;
+
+    // Bytes read at each end of an image; JPEGs may have zero padding after EOI.
+    private static final int PROBE_SIZE = 4096;
+
+    /**
+     * Findings, in the order the checks ran.
+     */
+    static class Report {
+        long getProblemCount() {
+            return mProblems;
+        }
+
+        boolean passed() {
+            return mProblems == 0;
+        }
+
+        void writeTo(@NonNull Writer writer) throws IOException {
+            for (String line : mLines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+            writer.write("result " + (passed() ? "ok" : "FAIL") + " problems=" + mProblems + "\n");
+            writer.flush();
+        }
+
+        private void check(String subject, String check, long problems, String details,
+                           @Nullable List<String> listed) {
+            mLines.add(subject + " " + check + " " + (problems == 0 ? "ok" : "FAIL") + " " + details);
+            mProblems += problems;
+            if (problems > 0 && listed != null) {
+                for (String item : listed) {
+                    mLines.add("  " + item);
+                }
+                if (listed.size() >= MAX_LISTED) {
+                    mLines.add("  ...");
+                }
+            }
+        }
+
+        private void note(String line) {
+            mLines.add("# " + line);
+        }
+
+        private final List<String> mLines = new ArrayList<>();
+        private long mProblems;
+    }
+
+    RunVerifier(@NonNull ForkJoinPool pool, double gap_factor) {
+        mPool = pool;
+        mGapFactor = gap_factor;
+    }
+
+    /**
+     * Checks dir, a run directory with takes or a take directory.
+     */
+    @NonNull
+    Report verify(@NonNull File dir) throws IOException {
+        if (!dir.isDirectory()) {
+            throw new IOException("Not a directory: " + dir);
+        }
+        Report report = new Report();
+        File[] takes = dir.listFiles();
+        List<File> take_dirs = new ArrayList<>();
+        if (takes != null) {
+            Arrays.sort(takes);
+            for (File take : takes) {
+                if (take.isDirectory() && take.getName().startsWith(TAKE_PREFIX)) {
+                    take_dirs.add(take);
+                }
+            }
+        }
+        if (take_dirs.isEmpty()) {
+            verifyTake(dir, "", report);
+        }
+        for (File take : take_dirs) {
+            verifyTake(take, take.getName() + "/", report);
+        }
+        return report;
+    }
+
+    /**
+     * Checks dir and writes the report to REPORT_FILENAME in it.
+     */
+    @NonNull
+    Report verifyAndWrite(@NonNull File dir) throws IOException {
+        Report report = verify(dir);
+        Writer writer = new FileWriter(new File(dir, REPORT_FILENAME));
+        try {
+            report.writeTo(writer);
+        } finally {
+            writer.close();
+        }
+        return report;
+    }
+
+    private void verifyTake(File dir, String prefix, Report report) throws IOException {
+        long start_ns = System.nanoTime();
+        List<ImageScan> scans = new ArrayList<>();
+        List<ParseTask> metadata = new ArrayList<>();
+        for (String[] camera : CAMERAS) {
+            File image_dir = new File(dir, camera[1]);
+            File container = new File(dir, camera[2]);
+            File skipped = new File(dir, camera[4]);
+            if (image_dir.isDirectory()) {
+                scans.add(submit(new ImageScan(prefix + camera[1], image_dir, null, skipped)));
+            } else if (container.isFile()) {
+                scans.add(submit(new ImageScan(prefix + camera[2], null, container, skipped)));
+            }
+            File log = new File(dir, camera[3]);
+            if (log.isFile()) {
+                metadata.add(submit(new ParseTask(prefix + camera[0] + "_metadata", camera[0], log, true)));
+            }
+        }
+        List<ParseTask> imu = new ArrayList<>();
+        for (String name : SessionIndex.listImuStreams(dir)) {
+            File log = new File(dir, name + IMU_TEXT_DATA_SUFFIX);
+            if (log.isFile()) {
+                imu.add(submit(new ParseTask(prefix + name, name, log, false)));
+            }
+        }
+        if (scans.isEmpty() && metadata.isEmpty() && imu.isEmpty()) {
+            report.note(prefix + " nothing to verify in " + dir);
+            return;
+        }
+
+        for (ImageScan scan : scans) {
+            scan.join().report(report);
+        }
+        for (ParseTask task : metadata) {
+            task.join().report(report, "metadata");
+        }
+        for (ParseTask task : imu) {
+            task.join().report(report, "imu");
+        }
+
+        List<CoverageTask> coverage = new ArrayList<>();
+        for (ParseTask frames : metadata) {
+            for (String name : COVERAGE_STREAMS) {
+                for (ParseTask samples : imu) {
+                    Series series = samples.join();
+                    if (series.mStream.equals(name) && series.mError == null && frames.join().mError == null) {
+                        coverage.add(submit(new CoverageTask(frames.join(), series, 0, frames.join().mCount)));
+                    }
+                }
+            }
+        }
+        for (CoverageTask task : coverage) {
+            Coverage result = task.join();
+            report.check(prefix + task.mFrames.mStream + "_" + task.mSamples.mStream, "coverage",
+                    result.mUncovered, "frames=" + task.mFrames.mCount + " uncovered=" + result.mUncovered,
+                    result.mListed);
+        }
+        report.note(prefix + " verified in " + (System.nanoTime() - start_ns) / 1000000 + " ms");
+    }
+
+    private <T extends ForkJoinTask<?>> T submit(T task) {
+        mPool.execute(task);
+        return task;
+    }
+
+    /**
+     * One timestamped log, in log order.
+     */
+    private static class Series {
+        Series(String name, String stream) {
+            mName = name;
+            mStream = stream;
+        }
+
+        void analyze(double gap_factor, boolean keys_are_frame_numbers) {
+            mSorted = Arrays.copyOf(mTimestamps, mCount);
+            Arrays.sort(mSorted);
+            if (mCount > 1) {
+                long[] steps = new long[mCount - 1];
+                for (int i = 1; i < mCount; ++i) {
+                    steps[i - 1] = mSorted[i] - mSorted[i - 1];
+                }
+                Arrays.sort(steps);
+                mMedianPeriodNs = steps[steps.length / 2];
+            }
+            long gap_threshold_ns = mMedianPeriodNs > 0 ? (long) (mMedianPeriodNs * gap_factor) : Long.MAX_VALUE;
+            for (int i = 1; i < mCount; ++i) {
+                long step = mTimestamps[i] - mTimestamps[i - 1];
+                if (step < 0) {
+                    ++mBackwards;
+                    list(mOrderListed, "line " + (i + 1) + " goes back " + -step + " ns to " + mTimestamps[i]);
+                } else if (step == 0) {
+                    ++mDuplicates;
+                    list(mOrderListed, "line " + (i + 1) + " repeats " + mTimestamps[i]);
+                } else if (step > gap_threshold_ns) {
+                    ++mGaps;
+                    mMaxGapNs = Math.max(mMaxGapNs, step);
+                    list(mGapListed, "gap of " + step + " ns after " + mTimestamps[i - 1]);
+                }
+                if (keys_are_frame_numbers) {
+                    long key_step = mKeys[i] - mKeys[i - 1];
+                    if (key_step > 1) {
+                        mMissingKeys += key_step - 1;
+                        list(mKeyListed, "frames " + (mKeys[i - 1] + 1) + ".." + (mKeys[i] - 1) + " missing");
+                    } else if (key_step < 1) {
+                        ++mBadKeys;
+                        list(mKeyListed, "frame " + mKeys[i] + " after " + mKeys[i - 1]);
+                    }
+                }
+            }
+        }
+
+        void report(Report report, String check) {
+            if (mError != null) {
+                report.check(mName, check, 1, "error=" + mError.replace(' ', '_'), null);
+                return;
+            }
+            String period = " median_period_ns=" + mMedianPeriodNs;
+            if (check.equals("metadata")) {
+                report.check(mName, "frame_numbers", mMissingKeys + mBadKeys,
+                        "lines=" + mCount + " missing=" + mMissingKeys + " out_of_order=" + mBadKeys, mKeyListed);
+            }
+            report.check(mName, "order", mBackwards + mDuplicates,
+                    "lines=" + mCount + " backwards=" + mBackwards + " duplicates=" + mDuplicates, mOrderListed);
+            report.check(mName, "gaps", mGaps, "gaps=" + mGaps + " max_gap_ns=" + mMaxGapNs + period, mGapListed);
+        }
+
+        final String mName;
+        final String mStream;
+        String mError;
+        long[] mTimestamps;
+        long[] mKeys;
+        int mCount;
+
+        long[] mSorted;
+        long mMedianPeriodNs;
+        long mBackwards;
+        long mDuplicates;
+        long mGaps;
+        long mMaxGapNs;
+        long mMissingKeys;
+        long mBadKeys;
+        final List<String> mOrderListed = new ArrayList<>();
+        final List<String> mGapListed = new ArrayList<>();
+        final List<String> mKeyListed = new ArrayList<>();
+    }
+
+    private class ParseTask extends RecursiveTask<Series> {
+        private static final long serialVersionUID = 1L;
+
+        ParseTask(String name, String stream, File log, boolean frames) {
+            mName = name;
+            mStream = stream;
+            mLog = log;
+            mFrames = frames;
+        }
+
+        @Override
+        protected Series compute() {
+            Series series = new Series(mName, mStream);
+            try {
+                StreamIndex.Builder builder = SessionIndex.indexTextLog(mLog, mFrames);
+                int count = builder.getCount();
+                series.mTimestamps = new long[count];
+                series.mKeys = new long[count];
+                for (int i = 0; i < count; ++i) {
+                    series.mTimestamps[i] = builder.getTimestampNs(i);
+                    series.mKeys[i] = builder.getKey(i);
+                }
+                series.mCount = count;
+                series.analyze(mGapFactor, mFrames);
+            } catch (IOException e) {
+                series.mError = e.getMessage();
+            }
+            return series;
+        }
+
+        private final String mName;
+        private final String mStream;
+        private final File mLog;
+        private final boolean mFrames;
+    }
+
+    /**
+     * The images of one camera, from a directory or a frame container.  Gaps that the
+     * camera logged as skipped (see Camera.SKIPPED_IMAGES_LOG_HEADER) are not missing.
+     */
+    private class ImageScan extends RecursiveTask<ImageScan> {
+        private static final long serialVersionUID = 1L;
+
+        ImageScan(String name, @Nullable File dir, @Nullable File container, @NonNull File skipped_log) {
+            mName = name;
+            mDir = dir;
+            mContainer = container;
+            mSkippedLog = skipped_log;
+        }
+
+        @Override
+        protected ImageScan compute() {
+            try {
+                mSkipped = readSkipped(mSkippedLog);
+                if (mDir != null) {
+                    scanDirectory();
+                } else {
+                    scanContainer();
+                }
+            } catch (IOException e) {
+                mError = e.getMessage();
+            }
+            return this;
+        }
+
+        private void scanDirectory() {
+            String[] names = mDir.list();
+            if (names == null) {
+                names = new String[0];
+            }
+            Arrays.sort(names);
+            List<String> files = new ArrayList<>();
+            List<Long> indices = new ArrayList<>();
+            for (String name : names) {
+                long index = leadingNumber(name);
+                if (index >= 0) {
+                    files.add(name);
+                    indices.add(index);
+                }
+            }
+            mFiles = files.toArray(new String[files.size()]);
+            mIndices = new long[mFiles.length];
+            for (int i = 0; i < mIndices.length; ++i) {
+                mIndices[i] = indices.get(i);
+            }
+            mReasons = new String[mFiles.length];
+            invokeAll(new FileCheck(this, 0, mFiles.length));
+        }
+
+        private void scanContainer() throws IOException {
+            FrameContainerReader reader = new FrameContainerReader(mContainer);
+            RandomAccessFile file = new RandomAccessFile(mContainer, "r");
+            try {
+                int count = reader.getFrameCount();
+                mRecovered = reader.wasRecovered();
+                mFiles = new String[count];
+                mIndices = new long[count];
+                mOffsets = new long[count];
+                mLengths = new int[count];
+                for (int i = 0; i < count; ++i) {
+                    mIndices[i] = reader.getFrameNumber(i);
+                    mFiles[i] = String.format(Locale.US, "frame %05d", mIndices[i]);
+                    mOffsets[i] = reader.getOffset(i);
+                    mLengths[i] = reader.getLength(i);
+                }
+                mReasons = new String[count];
+                mChannel = file.getChannel();
+                invokeAll(new ContainerCheck(this, 0, count));
+            } finally {
+                file.close();
+                reader.close();
+            }
+        }
+
+        void report(Report report) {
+            if (mError != null) {
+                report.check(mName, "images", 1, "error=" + mError.replace(' ', '_'), null);
+                return;
+            }
+            long[] sorted = mIndices.clone();
+            Arrays.sort(sorted);
+            long missing = 0;
+            long skipped = 0;
+            long duplicates = 0;
+            List<String> listed = new ArrayList<>();
+            for (int i = 1; i < sorted.length; ++i) {
+                long step = sorted[i] - sorted[i - 1];
+                if (step > 1) {
+                    long gap_skipped = countSkipped(sorted[i - 1] + 1, sorted[i]);
+                    long gap_missing = step - 1 - gap_skipped;
+                    skipped += gap_skipped;
+                    missing += gap_missing;
+                    if (gap_missing == step - 1) {
+                        list(listed, String.format(Locale.US, "%05d..%05d missing", sorted[i - 1] + 1, sorted[i] - 1));
+                    } else if (gap_missing > 0) {
+                        list(listed, String.format(Locale.US, "%05d..%05d missing=%d skipped=%d",
+                                sorted[i - 1] + 1, sorted[i] - 1, gap_missing, gap_skipped));
+                    }
+                } else if (step == 0) {
+                    ++duplicates;
+                    list(listed, String.format(Locale.US, "%05d duplicated", sorted[i]));
+                }
+            }
+            String range = sorted.length > 0 ? " first=" + sorted[0] + " last=" + sorted[sorted.length - 1] : "";
+            report.check(mName, "sequence", missing + duplicates, "images=" + sorted.length + range
+                    + " missing=" + missing + " skipped=" + skipped + " duplicates=" + duplicates
+                    + (mRecovered ? " recovered_index=1" : ""), listed);
+
+            long corrupt = 0;
+            List<String> corrupt_listed = new ArrayList<>();
+            for (int i = 0; i < mReasons.length; ++i) {
+                if (mReasons[i] != null) {
+                    ++corrupt;
+                    list(corrupt_listed, mFiles[i] + " " + mReasons[i]);
+                }
+            }
+            report.check(mName, "integrity", corrupt, "images=" + mReasons.length + " corrupt=" + corrupt,
+                    corrupt_listed);
+        }
+
+        // Logged skipped indices in [from, to).
+        private long countSkipped(long from, long to) {
+            return lowerBound(mSkipped, to) - lowerBound(mSkipped, from);
+        }
+
+        private final String mName;
+        private final File mDir;
+        private final File mContainer;
+        private final File mSkippedLog;
+        // Sorted indices of the images the camera skipped on purpose.
+        private long[] mSkipped;
+        private String mError;
+        private boolean mRecovered;
+        private String[] mFiles;
+        private long[] mIndices;
+        private long[] mOffsets;
+        private int[] mLengths;
+        private FileChannel mChannel;
+        // Why image i is corrupt, or null; each task writes its own range.
+        private String[] mReasons;
+    }
+
+    private static class FileCheck extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        FileCheck(ImageScan scan, int from, int to) {
+            mScan = scan;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > IMAGES_PER_TASK) {
+                int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new FileCheck(mScan, mFrom, middle), new FileCheck(mScan, middle, mTo));
+                return;
+            }
+            ByteBuffer head = ByteBuffer.allocate(PROBE_SIZE);
+            ByteBuffer tail = ByteBuffer.allocate(PROBE_SIZE);
+            for (int i = mFrom; i < mTo; ++i) {
+                File file = new File(mScan.mDir, mScan.mFiles[i]);
+                try {
+                    RandomAccessFile raf = new RandomAccessFile(file, "r");
+                    try {
+                        FileChannel channel = raf.getChannel();
+                        long length = channel.size();
+                        head.clear();
+                        tail.clear();
+                        readFully(channel, head, 0, length);
+                        readFully(channel, tail, Math.max(0, length - PROBE_SIZE), length);
+                        head.flip();
+                        tail.flip();
+                        mScan.mReasons[i] = checkImage(head, tail, length);
+                    } finally {
+                        raf.close();
+                    }
+                } catch (IOException e) {
+                    mScan.mReasons[i] = "unreadable";
+                }
+            }
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position, long length)
+                throws IOException {
+            while (buffer.hasRemaining() && position < length) {
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    break;
+                }
+                position += n;
+            }
+        }
+
+        private final ImageScan mScan;
+        private final int mFrom;
+        private final int mTo;
+    }
+
+    private static class ContainerCheck extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        ContainerCheck(ImageScan scan, int from, int to) {
+            mScan = scan;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > IMAGES_PER_TASK) {
+                int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new ContainerCheck(mScan, mFrom, middle), new ContainerCheck(mScan, middle, mTo));
+                return;
+            }
+            // Frames are written by several threads, so a range of them is not contiguous
+            // in the file, but it is close; map the span they cover once.
+            long start = Long.MAX_VALUE;
+            long end = 0;
+            for (int i = mFrom; i < mTo; ++i) {
+                start = Math.min(start, mScan.mOffsets[i]);
+                end = Math.max(end, mScan.mOffsets[i] + mScan.mLengths[i]);
+            }
+            if (mFrom == mTo) {
+                return;
+            }
+            ByteBuffer window = null;
+            if (end - start <= Integer.MAX_VALUE) {
+                try {
+                    window = mScan.mChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                } catch (IOException e) {
+                    // Fall back to one mapping per frame.
+                }
+            }
+            for (int i = mFrom; i < mTo; ++i) {
+                try {
+                    ByteBuffer frame;
+                    if (window != null) {
+                        ByteBuffer view = window.duplicate();
+                        int offset = (int) (mScan.mOffsets[i] - start);
+                        view.position(offset);
+                        view.limit(offset + mScan.mLengths[i]);
+                        frame = view.slice();
+                    } else {
+                        frame = mScan.mChannel.map(FileChannel.MapMode.READ_ONLY, mScan.mOffsets[i],
+                                mScan.mLengths[i]);
+                    }
+                    ByteBuffer tail = frame.duplicate();
+                    tail.position(Math.max(0, frame.limit() - PROBE_SIZE));
+                    mScan.mReasons[i] = checkImage(frame, tail.slice(), frame.limit());
+                } catch (IOException e) {
+                    mScan.mReasons[i] = "unreadable";
+                }
+            }
+        }
+
+        private final ImageScan mScan;
+        private final int mFrom;
+        private final int mTo;
+    }
+
+    /**
+     * Checks an image from its first and last bytes.  Returns why it is corrupt, or null.
+     */
+    @Nullable
+    static String checkImage(@NonNull ByteBuffer head, @NonNull ByteBuffer tail, long length) {
+        if (length < 4 || head.remaining() < 4) {
+            return "too_short length=" + length;
+        }
+        int start = head.position();
+        if ((head.get(start) & 0xff) == 0xff && (head.get(start + 1) & 0xff) == 0xd8) {
+            // JPEG: the last bytes that are not padding must be EOI.
+            int end = tail.limit();
+            while (end > tail.position() && tail.get(end - 1) == 0) {
+                --end;
+            }
+            if (end - tail.position() < 2 || (tail.get(end - 2) & 0xff) != 0xff
+                    || (tail.get(end - 1) & 0xff) != 0xd9) {
+                return "no_eoi";
+            }
+            return null;
+        }
+        ByteBuffer header = head.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt(start) == RawImageHeader.MAGIC) {
+            try {
+                RawImageHeader raw = RawImageHeader.decode(header);
+                long expected = RawImageHeader.size(raw.getPlaneCount());
+                for (int plane = 0; plane < raw.getPlaneCount(); ++plane) {
+                    expected += raw.getLength(plane);
+                }
+                return length == expected ? null : "bad_length length=" + length + " expected=" + expected;
+            } catch (IOException e) {
+                return "bad_raw_header";
+            }
+        }
+        return "no_soi";
+    }
+
+    private static class Coverage {
+        long mUncovered;
+        final List<String> mListed = new ArrayList<>();
+    }
+
+    /**
+     * Frames in [from, to) of mFrames, in timestamp order, without a sample of mSamples close
+     * enough on either side.
+     */
+    private class CoverageTask extends RecursiveTask<Coverage> {
+        private static final long serialVersionUID = 1L;
+
+        CoverageTask(Series frames, Series samples, int from, int to) {
+            mFrames = frames;
+            mSamples = samples;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected Coverage compute() {
+            if (mTo - mFrom > FRAMES_PER_TASK) {
+                int middle = (mFrom + mTo) >>> 1;
+                CoverageTask left = new CoverageTask(mFrames, mSamples, mFrom, middle);
+                CoverageTask right = new CoverageTask(mFrames, mSamples, middle, mTo);
+                right.fork();
+                Coverage coverage = left.compute();
+                Coverage other = right.join();
+                coverage.mUncovered += other.mUncovered;
+                for (String item : other.mListed) {
+                    list(coverage.mListed, item);
+                }
+                return coverage;
+            }
+            Coverage coverage = new Coverage();
+            long[] samples = mSamples.mSorted;
+            long max_distance_ns = mSamples.mMedianPeriodNs > 0
+                    ? (long) (mSamples.mMedianPeriodNs * mGapFactor) : Long.MAX_VALUE;
+            for (int i = mFrom; i < mTo; ++i) {
+                long t = mFrames.mSorted[i];
+                int after = Arrays.binarySearch(samples, t);
+                int before;
+                if (after >= 0) {
+                    before = after;
+                } else {
+                    after = -after - 1;
+                    before = after - 1;
+                }
+                boolean covered = before >= 0 && after < samples.length
+                        && t - samples[before] <= max_distance_ns && samples[after] - t <= max_distance_ns;
+                if (!covered) {
+                    ++coverage.mUncovered;
+                    list(coverage.mListed, "frame at " + t);
+                }
+            }
+            return coverage;
+        }
+
+        private final Series mFrames;
+        private final Series mSamples;
+        private final int mFrom;
+        private final int mTo;
+    }
+
+    private static void list(List<String> listed, String item) {
+        if (listed.size() < MAX_LISTED) {
+            listed.add(item);
+        }
+    }
+
+    /**
+     * Reads the sorted image indices of a skipped images log; none if there is no log.
+     * A torn last line is ignored.
+     */
+    private static long[] readSkipped(File log) throws IOException {
+        if (!log.isFile()) {
+            return new long[0];
+        }
+        List<Long> indices = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(log));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (line.startsWith("#") || space <= 0) {
+                    continue;
+                }
+                try {
+                    indices.add(Long.parseLong(line.substring(0, space)));
+                } catch (NumberFormatException e) {
+                    // Torn line.
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        long[] sorted = new long[indices.size()];
+        for (int i = 0; i < sorted.length; ++i) {
+            sorted[i] = indices.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    // Index of the first value >= key.
+    private static int lowerBound(long[] sorted, long key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static long leadingNumber(String name) {
+        int dot = name.indexOf('.');
+        if (dot <= 0) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < dot; ++i) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = 10 * value + (c - '0');
+        }
+        return value;
+    }
+
+    public static void main(String[] args) throws IOException {
+        double gap_factor = DEFAULT_GAP_FACTOR;
+        int i = 0;
+        if (args.length == 3 && args[0].equals("-n")) {
+            gap_factor = Double.parseDouble(args[1]);
+            i = 2;
+        }
+        if (args.length != i + 1) {
+            System.err.println("usage: RunVerifier [-n <gap factor>] <run or take dir>");
+            System.exit(2);
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        long start_ns = System.nanoTime();
+        Report report = new RunVerifier(pool, gap_factor).verify(new File(args[i]));
+        report.writeTo(new OutputStreamWriter(System.out));
+        System.err.println("verified in " + (System.nanoTime() - start_ns) / 1000000 + " ms");
+        pool.shutdown();
+        System.exit(report.passed() ? 0 : 1);
+    }
+
+    private final ForkJoinPool mPool;
+    private final double mGapFactor;
+}
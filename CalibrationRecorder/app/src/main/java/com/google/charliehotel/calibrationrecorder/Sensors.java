@@ -3,102 +3,568 @@ package com.google.charliehotel.calibrationrecorder;
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Records a declared list of sensor streams, at 200 Hz or, opted in with
+ * RECORD_AT_NATIVE_RATE, at the fastest rate each sensor offers.
+ *
+ * With BACKEND_JAVA, SensorEvents are delivered on a thread of their own and every stream
+ * has its own ring.  With BACKEND_NATIVE, NativeImuBackend receives the events in native
+ * code and all streams share one DirectImuRing; on an ABI the native library was not
+ * built for, BACKEND_JAVA is used instead.  Either way one shared ImuWriterThread
+ * drains the samples into the stream's sink, and the sinks may all be views of one shared
+ * ImuBinaryWriter.  Both backends apply the same timestamp offsets and padding and go
+ * through the same sequence checker, so their logs are identical in format; the
+ * instrumented ImuBackendBenchmarkTest compares what they cost.  On the writer thread the accel and gyro
+ * samples also go to the GyroPreintegrator, if one is set.
+ */
 class Sensors {
     private static final String TAG = "CalibrationRecorder";
 
-    private static final int ACCEL_LPF_TIMESTAMP_OFFSET_NS = 0;  // BMI160: 1370833;
-    private static final int GYRO_LPF_TIMESTAMP_OFFSET_NS = 0;  // BMI160: 1370833;
+    static final int BACKEND_JAVA = 0;
+    static final int BACKEND_NATIVE = 1;
 
-    private static final int ACCEL_200HZ_PERIOD_US = 5000;
-    private static final int GYRO_200HZ_PERIOD_US = 5000;
+    // Sensor.TYPE_ACCELEROMETER_UNCALIBRATED, added in API 26.  Older devices skip the stream.
+    private static final int TYPE_ACCELEROMETER_UNCALIBRATED = 35;
 
-    Sensors(@NonNull Context context) {
+    // Records the motion streams at each sensor's native maximum rate (up to a few kHz on
+    // some devices) instead of the original 200 Hz.  Calibration pipelines tuned for
+    // 200 Hz logs should leave this off.
+    private static final boolean RECORD_AT_NATIVE_RATE = false;
+    private static final int IMU_PERIOD_US = RECORD_AT_NATIVE_RATE ? ImuStreamSpec.FASTEST : 5000;
+
+    // The streams to record.  accel and gyro keep their original names, file names, rate
+    // and three-value text format.
+    private static final ImuStreamSpec[] STREAMS = {
+            new ImuStreamSpec("accel", Sensor.TYPE_ACCELEROMETER, ImuStreamSpec.NO_FALLBACK,
+                    IMU_PERIOD_US, 3, true),
+            new ImuStreamSpec("gyro", Sensor.TYPE_GYROSCOPE_UNCALIBRATED, Sensor.TYPE_GYROSCOPE,
+                    IMU_PERIOD_US, 3, true),
+            new ImuStreamSpec("accel_uncal", TYPE_ACCELEROMETER_UNCALIBRATED, ImuStreamSpec.NO_FALLBACK,
+                    IMU_PERIOD_US, 6, false),
+            new ImuStreamSpec("mag", Sensor.TYPE_MAGNETIC_FIELD, ImuStreamSpec.NO_FALLBACK,
+                    IMU_PERIOD_US, 3, false),
+            new ImuStreamSpec("game_rv", Sensor.TYPE_GAME_ROTATION_VECTOR, ImuStreamSpec.NO_FALLBACK,
+                    5000, 4, false),
+    };
+
+    // Hardware FIFO batching: samples are held in the sensor hub for up to this long and
+    // delivered in bursts, so the CPU wakes a few times a second instead of every sample.
+    private static final boolean ENABLE_SENSOR_BATCHING = false;
+    private static final int MAX_REPORT_LATENCY_US = 200 * 1000;
+    private static final long FLUSH_TIMEOUT_MS = 1000;
+
+    // Steps longer than this many nominal periods are counted as gaps.
+    static final double GAP_FACTOR = 1.8;
+
+    // 4096 slots hold four seconds at 1 kHz.
+    private static final int IMU_RING_CAPACITY = 4096;
+    private static final ImuRingBuffer.OverflowPolicy IMU_RING_OVERFLOW_POLICY =
+            ImuRingBuffer.OverflowPolicy.DROP_NEWEST;
+
+    // Shared by all streams under BACKEND_NATIVE.
+    static final int DIRECT_RING_CAPACITY = 8192;
+
+    Sensors(@NonNull Context context, @NonNull MetricsRegistry metrics) {
+        this(context, metrics, BACKEND_JAVA);
+    }
+
+    Sensors(@NonNull Context context, @NonNull MetricsRegistry metrics, int backend) {
+        if (backend == BACKEND_NATIVE && !NativeImuBackend.isAvailable()) {
+            Log.w(TAG, "Native IMU backend unavailable on this ABI; using the Java backend");
+            backend = BACKEND_JAVA;
+        }
+        mBackend = backend;
         mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-        mAccelSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        assert mAccelSensor != null;
-        mGyroSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE_UNCALIBRATED);
-        if (mGyroSensor == null) {
-            Log.w(TAG, "Falling back to calibrated gyro.  Will use, but do not want.");
-            mGyroSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        for (ImuStreamSpec spec : STREAMS) {
+            Sensor sensor = mSensorManager.getDefaultSensor(spec.getSensorType());
+            if (sensor == null && spec.getFallbackSensorType() != ImuStreamSpec.NO_FALLBACK) {
+                Log.w(TAG, "Falling back to type " + spec.getFallbackSensorType() + " for "
+                        + spec.getName() + ".  Will use, but do not want.");
+                sensor = mSensorManager.getDefaultSensor(spec.getFallbackSensorType());
+            }
+            if (sensor == null) {
+                if (spec.isRequired()) {
+                    throw new IllegalStateException("No sensor for " + spec);
+                }
+                Log.w(TAG, "No sensor for " + spec + "; skipping");
+                continue;
+            }
+            Stream stream = new Stream(spec, sensor, metrics);
+            Log.i(TAG, spec.getName() + ": " + sensor.getName() + " min_delay_us=" + sensor.getMinDelay()
+                    + " max_delay_us=" + sensor.getMaxDelay() + " period_us=" + stream.mPeriodUs);
+            mStreams.add(stream);
         }
-        assert mGyroSensor != null;
     }
 
-    void setAccelWriter(@NonNull FileWriter writer) {
-        mAccelWriter = writer;
+    /**
+     * Returns the names of the streams this device can record, in declaration order.
+     */
+    @NonNull
+    List<String> getStreamNames() {
+        List<String> names = new ArrayList<>();
+        for (Stream stream : mStreams) {
+            names.add(stream.mSpec.getName());
+        }
+        return names;
     }
 
-    void setGyroWriter(@NonNull FileWriter writer) {
-        mGyroWriter = writer;
+    int getSensorType(@NonNull String stream_name) {
+        return getStream(stream_name).mSensor.getType();
+    }
+
+    int getValuesPerSample(@NonNull String stream_name) {
+        return getStream(stream_name).mSpec.getValuesPerSample();
+    }
+
+    /**
+     * Sets the low-pass filter delays subtracted from the sensor timestamps.  Accelerometer
+     * streams get the accel offset and gyro streams the gyro offset; the others get none.
+     */
+    void setTimestampOffsets(@NonNull TimestampOffsetProfile profile) {
+        for (Stream stream : mStreams) {
+            switch (stream.mSensor.getType()) {
+                case Sensor.TYPE_ACCELEROMETER:
+                case TYPE_ACCELEROMETER_UNCALIBRATED:
+                    stream.mTimestampOffsetNs = profile.getAccelOffsetNs();
+                    break;
+                case Sensor.TYPE_GYROSCOPE:
+                case Sensor.TYPE_GYROSCOPE_UNCALIBRATED:
+                    stream.mTimestampOffsetNs = profile.getGyroOffsetNs();
+                    break;
+                default:
+                    stream.mTimestampOffsetNs = 0;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Returns the magnitude of the first three values of the stream's latest sample, e.g.
+     * the angular rate of a gyro stream, or zero before the first sample.
+     */
+    float getLatestMagnitude(@NonNull String stream_name) {
+        return (float) Math.sqrt(getStream(stream_name).mLatestMagnitudeSquared);
+    }
+
+    int getBackend() {
+        return mBackend;
+    }
+
+    /** Samples received over all streams. */
+    long getSampleCount() {
+        long samples = 0;
+        for (Stream stream : mStreams) {
+            samples += stream.mSamples;
+        }
+        return samples;
+    }
+
+    /** CPU time of the thread that received the sensor events, once closed. */
+    long getDeliveryCpuNs() {
+        return mDeliveryCpuNs;
+    }
+
+    /** CPU time of the thread that wrote the samples, once closed. */
+    long getWriterCpuNs() {
+        return mWriterCpuNs;
+    }
+
+    @NonNull
+    List<DeliveryLatencyEstimator> getLatencyEstimators() {
+        List<DeliveryLatencyEstimator> estimators = new ArrayList<>();
+        for (Stream stream : mStreams) {
+            estimators.add(stream.mLatencyEstimator);
+        }
+        return Collections.unmodifiableList(estimators);
+    }
+
+    /**
+     * Sets the sink of a stream, which may be done while open, and returns the previous
+     * one for the caller to close.  With no sink, samples are discarded.
+     */
+    @Nullable
+    ImuSink setSink(@NonNull String stream_name, @Nullable ImuSink sink) {
+        return getStream(stream_name).mSink.swap(sink);
+    }
+
+    /**
+     * Sets the preintegrator fed with the accel and gyro samples, which may be done while
+     * open, and returns the previous one.  Once this returns, the previous one will not be
+     * fed again and may be finished.
+     */
+    @Nullable
+    synchronized GyroPreintegrator setPreintegrator(@Nullable GyroPreintegrator preintegrator) {
+        GyroPreintegrator previous = mPreintegrator;
+        mPreintegrator = preintegrator;
+        return previous;
     }
 
     void open() {
+        mWriterThread = new ImuWriterThread();
+        for (Stream stream : mStreams) {
+            ImuSink sink = stream.mSink;
+            int type = stream.mSensor.getType();
+            if (type == Sensor.TYPE_ACCELEROMETER || type == Sensor.TYPE_GYROSCOPE
+                    || type == Sensor.TYPE_GYROSCOPE_UNCALIBRATED) {
+                sink = new PreintegratorTap(sink, type != Sensor.TYPE_ACCELEROMETER);
+            }
+            stream.mChecker = new ImuSequenceChecker(sink, stream.mPeriodUs * 1000L, GAP_FACTOR);
+            if (mBackend == BACKEND_JAVA) {
+                mWriterThread.addStream(stream.mSpec.getName(), stream.mRing, stream.mChecker);
+            }
+        }
+        if (mBackend == BACKEND_NATIVE) {
+            openNative();
+            return;
+        }
+        mWriterThread.start();
+
         Log.i(TAG, "Setting sensor callbacks");
-        mSensorManager.registerListener(mAccelSensorEventListener, mAccelSensor, ACCEL_200HZ_PERIOD_US);
-        mSensorManager.registerListener(mGyroSensorEventListener, mGyroSensor, GYRO_200HZ_PERIOD_US);
+        mDeliveryThread = new HandlerThread("SensorDeliveryThread");
+        mDeliveryThread.start();
+        mDeliveryHandler = new Handler(mDeliveryThread.getLooper());
+        for (Stream stream : mStreams) {
+            if (ENABLE_SENSOR_BATCHING) {
+                Log.i(TAG, stream.mSpec.getName() + " batching with max report latency "
+                        + MAX_REPORT_LATENCY_US + " us; FIFO size " + stream.mSensor.getFifoMaxEventCount());
+                mSensorManager.registerListener(stream, stream.mSensor, stream.mPeriodUs, MAX_REPORT_LATENCY_US,
+                        mDeliveryHandler);
+            } else {
+                mSensorManager.registerListener(stream, stream.mSensor, stream.mPeriodUs, mDeliveryHandler);
+            }
+        }
+    }
+
+    private void openNative() {
+        int n = mStreams.size();
+        int[] sensor_types = new int[n];
+        int[] periods_us = new int[n];
+        int[] values_per_sample = new int[n];
+        for (int i = 0; i < n; ++i) {
+            Stream stream = mStreams.get(i);
+            sensor_types[i] = stream.mSensor.getType();
+            periods_us[i] = stream.mPeriodUs;
+            values_per_sample[i] = stream.mSpec.getValuesPerSample();
+        }
+        mDirectRing = new DirectImuRing(DirectImuRing.allocate(DIRECT_RING_CAPACITY), NativeImuBackend.CURSORS,
+                values_per_sample);
+        mWriterThread.addDirectRing("native", mDirectRing, mDirectConsumer);
+        Log.i(TAG, "Starting native sensor thread");
+        NativeImuBackend backend = new NativeImuBackend(mDirectRing, sensor_types, periods_us, values_per_sample);
+        backend.start();
+        mNativeBackend = backend;
+        mWriterThread.start();
     }
 
     void close() {
-        mSensorManager.unregisterListener(mAccelSensorEventListener, mAccelSensor);
-        mSensorManager.unregisterListener(mGyroSensorEventListener, mGyroSensor);
+        if (mNativeBackend != null) {
+            mNativeBackend.stop();
+            mDeliveryCpuNs = mNativeBackend.getThreadCpuNs();
+            mNativeBackend = null;
+        }
+        if (mDeliveryThread != null) {
+            if (ENABLE_SENSOR_BATCHING) {
+                flushBatches();
+            }
+            for (Stream stream : mStreams) {
+                mSensorManager.unregisterListener(stream, stream.mSensor);
+            }
+            mDeliveryCpuNs = stopDeliveryThread();
+        }
+        if (mWriterThread != null) {
+            mWriterThread.shutdown();
+            mWriterCpuNs = mWriterThread.getCpuNs();
+            mWriterThread = null;
+            for (Stream stream : mStreams) {
+                Log.i(TAG, stream.mSpec.getName() + " sequence: " + stream.mChecker.formatStats());
+                stream.mGaps.set(stream.mChecker.getGapCount());
+                stream.mReorders.set(stream.mChecker.getReorderCount());
+            }
+        }
+        for (Stream stream : mStreams) {
+            stream.mOverruns.set(stream.getOverruns());
+            stream.mRingHighWater.set(stream.mRing.getHighWaterMark());
+        }
     }
 
-    private final SensorEventListener mAccelSensorEventListener = new SensorEventListener() {
-        String formatAccelEvent(SensorEvent sensorEvent) {
-            long adjusted_timestamp_ns = sensorEvent.timestamp - ACCEL_LPF_TIMESTAMP_OFFSET_NS;
-            return String.format("%d %a %a %a\n", adjusted_timestamp_ns,
-                    sensorEvent.values[0], sensorEvent.values[1], sensorEvent.values[2]);
+    /**
+     * Ends the delivery thread once the events queued on it are handled, and returns its
+     * CPU time.
+     */
+    private long stopDeliveryThread() {
+        final long[] cpu_ns = new long[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        mDeliveryHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                cpu_ns[0] = Debug.threadCpuTimeNanos();
+                done.countDown();
+            }
+        });
+        try {
+            if (!done.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for sensor delivery thread");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        mDeliveryThread.quitSafely();
+        mDeliveryThread = null;
+        mDeliveryHandler = null;
+        return cpu_ns[0];
+    }
 
+    // Runs on the writer thread under BACKEND_NATIVE.
+    private final DirectImuRing.Consumer mDirectConsumer = new DirectImuRing.Consumer() {
         @Override
-        public void onSensorChanged(SensorEvent sensorEvent) {
-            try {
-                mAccelWriter.write(formatAccelEvent(sensorEvent));
-            } catch (IOException e) {
-                e.printStackTrace();
+        public void onSamples(int stream_index, @NonNull long[] timestamps_ns, @NonNull long[] arrivals_ns,
+                              @NonNull float[] values, int values_per_sample, int count) throws IOException {
+            Stream stream = mStreams.get(stream_index);
+            for (int i = 0; i < count; ++i) {
+                int base = values_per_sample * i;
+                stream.recordSample(timestamps_ns[i], arrivals_ns[i],
+                        values[base], values[base + 1], values[base + 2]);
+                timestamps_ns[i] -= stream.mTimestampOffsetNs;
+            }
+            stream.mChecker.write(timestamps_ns, values, values_per_sample, count);
+        }
+    };
+
+    /**
+     * Writes one line per stream with the requested, negotiated and achieved rates and the
+     * jitter of the sensor timestamps.
+     */
+    void writeStreamSummary(@NonNull Writer writer) throws IOException {
+        writer.write("# stream sensor_type sensor_name requested_period_us min_delay_us period_us"
+                + " samples achieved_hz mean_period_us jitter_us gaps reorders overruns\n");
+        for (Stream stream : mStreams) {
+            writer.write(stream.formatSummary());
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Asks the sensor hub to deliver everything it is still holding and waits for it, so
+     * the end of the take is not lost in the FIFO.  Must not be called on the thread that
+     * delivers sensor events.
+     */
+    private void flushBatches() {
+        mFlushLatch = new CountDownLatch(mStreams.size());
+        for (Stream stream : mStreams) {
+            if (!mSensorManager.flush(stream)) {
+                mFlushLatch.countDown();
+            }
+        }
+        try {
+            if (!mFlushLatch.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for sensor FIFO flush");
             }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted waiting for sensor FIFO flush");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Passes a stream's samples on to its sink and then to the preintegrator, if any.
+     * Holds the Sensors lock while feeding it so setPreintegrator() can hand it back.
+     */
+    private class PreintegratorTap implements ImuSink {
+        PreintegratorTap(ImuSink sink, boolean is_gyro) {
+            mSink = sink;
+            mIsGyro = is_gyro;
         }
 
         @Override
-        public void onAccuracyChanged(Sensor sensor, int i) {
-            Log.i(TAG, "Accel accuracy changed to " + i);
+        public void write(long timestamp_ns, float x, float y, float z) throws IOException {
+            mSink.write(timestamp_ns, x, y, z);
+            synchronized (Sensors.this) {
+                if (mPreintegrator == null) {
+                    return;
+                }
+                if (mIsGyro) {
+                    mPreintegrator.addGyro(timestamp_ns, x, y, z);
+                } else {
+                    mPreintegrator.addAccel(timestamp_ns, x, y, z);
+                }
+            }
+        }
+
+        @Override
+        public void write(long[] timestamps_ns, float[] values, int values_per_sample, int count)
+                throws IOException {
+            mSink.write(timestamps_ns, values, values_per_sample, count);
+            synchronized (Sensors.this) {
+                if (mPreintegrator == null) {
+                    return;
+                }
+                if (mIsGyro) {
+                    mPreintegrator.addGyro(timestamps_ns, values, values_per_sample, count);
+                } else {
+                    mPreintegrator.addAccel(timestamps_ns, values, values_per_sample, count);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mSink.flush();
         }
-    };
 
-    private final SensorEventListener mGyroSensorEventListener = new SensorEventListener() {
-        String formatGryoEvent(SensorEvent sensorEvent) {
-            long adjusted_timestamp_ns = sensorEvent.timestamp - GYRO_LPF_TIMESTAMP_OFFSET_NS;
-            return String.format("%d %a %a %a\n", adjusted_timestamp_ns,
-                    sensorEvent.values[0], sensorEvent.values[1], sensorEvent.values[2]);
+        @Override
+        public void close() throws IOException {
+            mSink.close();
+        }
+
+        private final ImuSink mSink;
+        private final boolean mIsGyro;
+    }
+
+    private Stream getStream(String stream_name) {
+        for (Stream stream : mStreams) {
+            if (stream.mSpec.getName().equals(stream_name)) {
+                return stream;
+            }
+        }
+        throw new IllegalArgumentException("No stream " + stream_name);
+    }
+
+    /**
+     * One recorded sensor and everything that belongs to it.  Its listener methods run on
+     * the sensor delivery thread.
+     */
+    private class Stream implements SensorEventListener2 {
+        Stream(ImuStreamSpec spec, Sensor sensor, MetricsRegistry metrics) {
+            mSpec = spec;
+            mSensor = sensor;
+            mPeriodUs = spec.negotiatePeriodUs(sensor.getMinDelay(), sensor.getMaxDelay());
+            String name = spec.getName();
+            mRing = new ImuRingBuffer(IMU_RING_CAPACITY, spec.getValuesPerSample(), IMU_RING_OVERFLOW_POLICY);
+            mLatencyEstimator = new DeliveryLatencyEstimator(name);
+            mInterArrivalNs = metrics.histogram(name + ".interarrival_ns");
+            mOverruns = metrics.counter(name + ".ring_overruns");
+            mRingHighWater = metrics.counter(name + ".ring_high_water");
+            mGaps = metrics.counter(name + ".gaps");
+            mReorders = metrics.counter(name + ".reorders");
         }
 
         @Override
         public void onSensorChanged(SensorEvent sensorEvent) {
-            try {
-                mGyroWriter.write(formatGryoEvent(sensorEvent));
-            } catch (IOException e) {
-                e.printStackTrace();
+            long timestamp_ns = sensorEvent.timestamp;
+            float[] values = sensorEvent.values;
+            recordSample(timestamp_ns, SystemClock.elapsedRealtimeNanos(), values[0], values[1], values[2]);
+            mRing.offer(timestamp_ns - mTimestampOffsetNs, values);
+        }
+
+        /**
+         * Updates the stream statistics with a sample as delivered, before the timestamp
+         * offset.  Called by one thread at a time, whichever receives the samples.
+         */
+        void recordSample(long timestamp_ns, long arrival_ns, float x, float y, float z) {
+            mLatencyEstimator.add(timestamp_ns, arrival_ns);
+            if (mSamples == 0) {
+                mFirstTimestampNs = timestamp_ns;
+            } else {
+                long step_ns = timestamp_ns - mLastTimestampNs;
+                mInterArrivalNs.record(step_ns);
+                // Welford's update of the period mean and variance.
+                ++mSteps;
+                double delta = step_ns - mStepMeanNs;
+                mStepMeanNs += delta / mSteps;
+                mStepM2 += delta * (step_ns - mStepMeanNs);
             }
+            mLastTimestampNs = timestamp_ns;
+            ++mSamples;
+            mLatestMagnitudeSquared = x * x + y * y + z * z;
+        }
+
+        long getOverruns() {
+            DirectImuRing direct_ring = mDirectRing;
+            return direct_ring != null ? direct_ring.getOverruns(mStreams.indexOf(this)) : mRing.getOverruns();
         }
 
         @Override
         public void onAccuracyChanged(Sensor sensor, int i) {
-            Log.i(TAG, "Gryo accuracy changed to " + i);
+            Log.i(TAG, mSpec.getName() + " accuracy changed to " + i);
         }
-    };
 
-    private SensorManager mSensorManager;
-    private Sensor mAccelSensor;
-    private Sensor mGyroSensor;
+        @Override
+        public void onFlushCompleted(Sensor sensor) {
+            CountDownLatch latch = mFlushLatch;
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+
+        String formatSummary() {
+            double span_s = (mLastTimestampNs - mFirstTimestampNs) * 1e-9;
+            double achieved_hz = mSamples > 1 && span_s > 0 ? (mSamples - 1) / span_s : 0.0;
+            double jitter_ns = mSteps > 1 ? Math.sqrt(mStepM2 / (mSteps - 1)) : 0.0;
+            return String.format(Locale.US, "%s %d %s %d %d %d %d %.3f %.3f %.3f %d %d %d",
+                    mSpec.getName(), mSensor.getType(), mSensor.getName().replace(' ', '_'),
+                    mSpec.getRequestedPeriodUs(), mSensor.getMinDelay(), mPeriodUs,
+                    mSamples, achieved_hz, mStepMeanNs / 1000, jitter_ns / 1000,
+                    mChecker != null ? mChecker.getGapCount() : 0,
+                    mChecker != null ? mChecker.getReorderCount() : 0,
+                    getOverruns());
+        }
+
+        private final ImuStreamSpec mSpec;
+        private final Sensor mSensor;
+        private final int mPeriodUs;
+        private final ImuRingBuffer mRing;
+        private final DeliveryLatencyEstimator mLatencyEstimator;
+        private long mTimestampOffsetNs;
+        private final SwitchableImuSink mSink = new SwitchableImuSink();
+        private ImuSequenceChecker mChecker;
+
+        private final MetricsRegistry.Histogram mInterArrivalNs;
+        private final MetricsRegistry.Counter mOverruns;
+        private final MetricsRegistry.Counter mRingHighWater;
+        private final MetricsRegistry.Counter mGaps;
+        private final MetricsRegistry.Counter mReorders;
+
+        // Sensor delivery thread, or writer thread under BACKEND_NATIVE, until closed.
+        private volatile long mSamples;
+        private long mFirstTimestampNs;
+        private long mLastTimestampNs;
+        private long mSteps;
+        private double mStepMeanNs;
+        private double mStepM2;
+
+        private volatile float mLatestMagnitudeSquared;
+    }
+
+    private final int mBackend;
+    private final SensorManager mSensorManager;
+    private final List<Stream> mStreams = new ArrayList<>();
+    private ImuWriterThread mWriterThread;
+    private HandlerThread mDeliveryThread;
+    private Handler mDeliveryHandler;
+    private DirectImuRing mDirectRing;
+    private NativeImuBackend mNativeBackend;
+    private long mDeliveryCpuNs;
+    private long mWriterCpuNs;
+    private GyroPreintegrator mPreintegrator;
 
-    private FileWriter mAccelWriter;
-    private FileWriter mGyroWriter;
+    private volatile CountDownLatch mFlushLatch;
 }
@@ -0,0 +1,51 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import java.nio.ByteOrder;
+
+/**
+ * Layout of a session export, one file holding every stream of a run in timestamp order.
+ *
+ * All fields are little-endian.
+ *
+ *   file header:  magic "CRSX", u16 version, u16 header size, u16 channel count,
+ *                 6 reserved bytes, then per channel:
+ *                 u16 channel id, u16 kind, u16 values per sample, u16 name length, name
+ *   chunk:        magic "CRSC", u16 compression, u16 reserved, i32 message count,
+ *                 i32 uncompressed size, i32 stored size, i64 first timestamp [ns],
+ *                 i64 last timestamp [ns], stored bytes
+ *   message:      i64 timestamp [ns], u16 channel id, u16 reserved, i32 payload length,
+ *                 payload
+ *   index entry:  i64 chunk offset, i64 first timestamp [ns], i64 last timestamp [ns],
+ *                 i32 message count, i32 stored size
+ *   trailer:      i64 index offset, i32 chunk count, magic "CRSI"
+ *
+ * Messages are packed into chunks, which are stored as is or deflated (zlib) as a whole.
+ * Chunks follow each other in timestamp order; the index and trailer come last.
+ *
+ * Payloads by channel kind:
+ *
+ *   KIND_IMU             f32 x values per sample
+ *   KIND_FRAME_METADATA  i64 frame number, i64 exposure [ns], i64 rolling shutter skew [ns]
+ *   KIND_IMAGE           i64 frame number, the image file exactly as Camera wrote it
+ */
+class SessionExportFormat {
+    static final int FILE_MAGIC = 0x58535243;     // "CRSX"
+    static final int CHUNK_MAGIC = 0x43535243;    // "CRSC"
+    static final int TRAILER_MAGIC = 0x49535243;  // "CRSI"
+    static final int VERSION = 1;
+
+    static final int FILE_HEADER_FIXED_SIZE = 16;
+    static final int CHUNK_HEADER_SIZE = 36;
+    static final int MESSAGE_HEADER_SIZE = 16;
+    static final int INDEX_ENTRY_SIZE = 32;
+    static final int TRAILER_SIZE = 16;
+
+    static final int COMPRESSION_NONE = 0;
+    static final int COMPRESSION_DEFLATE = 1;
+
+    static final int KIND_IMU = 1;
+    static final int KIND_FRAME_METADATA = 2;
+    static final int KIND_IMAGE = 3;
+
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+}
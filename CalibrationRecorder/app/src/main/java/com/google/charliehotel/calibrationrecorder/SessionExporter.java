@@ -0,0 +1,674 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Streams a finished run directory into one session export file (see SessionExportFormat).
+ *
+ * Every log is read front to back by its own source and the sources are merged by
+ * timestamp through a priority queue, so only the head message of each source is in
+ * memory.  Messages are packed into fixed size chunks; full chunks are compressed on a
+ * pool of threads and written in order, with at most a few chunks in flight.  Memory use
+ * is therefore bounded by the chunk size and thread count, not by the length of the run.
+ * Each log is assumed to be in timestamp order already, as the recorder writes them.
+ *
+ *   java com.google.charliehotel.calibrationrecorder.SessionExporter [-z] [-j threads] \
+ *       [-c chunk MB] <run dir> <out.crsx>
+ */
+class SessionExporter {
+    private static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int IN_FLIGHT_CHUNKS_PER_THREAD = 2;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    // Images dominate the volume and are mostly JPEG already, so favour speed.
+    private static final int DEFLATE_LEVEL = Deflater.BEST_SPEED;
+
+    // As written by MainActivity and Camera: channel prefix, metadata log, image
+    // directory, frame container.
+    private static final String[][] CAMERAS = {
+            {"left", "left_image_metadata.txt", "left_images", "left_images.frames"},
+            {"right", "right_image_metadata.txt", "right_images", "right_images.frames"},
+    };
+    private static final String[] IMAGE_EXTENSIONS = {"jpg", "yuv", "raw"};
+    private static final String IMU_TEXT_DATA_SUFFIX = ".txt";
+    private static final String IMU_BINARY_DATA_FILENAME = "imu.bin";
+
+    SessionExporter(boolean compress, int threads, int chunk_size) {
+        mCompress = compress;
+        mThreads = threads;
+        mChunkSize = chunk_size;
+    }
+
+    long getInputBytes() {
+        return mInputBytes;
+    }
+
+    long getOutputBytes() {
+        return mOutputBytes;
+    }
+
+    long getMessageCount() {
+        return mMessageCount;
+    }
+
+    int getChunkCount() {
+        return mIndex.size();
+    }
+
+    void export(@NonNull File run_dir, @NonNull File out) throws IOException {
+        List<Source> sources = openSources(run_dir);
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        FileOutputStream stream = new FileOutputStream(out);
+        try {
+            mOut = stream.getChannel();
+            writeHeader(sources);
+
+            PriorityQueue<Source> queue = new PriorityQueue<>(Math.max(1, sources.size()),
+                    new Comparator<Source>() {
+                        @Override
+                        public int compare(Source a, Source b) {
+                            if (a.mTimestampNs != b.mTimestampNs) {
+                                return a.mTimestampNs < b.mTimestampNs ? -1 : 1;
+                            }
+                            return Integer.compare(a.mChannelId, b.mChannelId);
+                        }
+                    });
+            for (Source source : sources) {
+                if (source.advance()) {
+                    queue.add(source);
+                }
+            }
+            mChunk = newChunk(mChunkSize);
+            while (!queue.isEmpty()) {
+                Source source = queue.poll();
+                appendMessage(source, executor);
+                if (source.advance()) {
+                    queue.add(source);
+                }
+            }
+            sealChunk(executor);
+            while (!mPending.isEmpty()) {
+                writeChunk(mPending.removeFirst());
+            }
+            writeIndex();
+        } finally {
+            executor.shutdownNow();
+            stream.close();
+            for (Source source : sources) {
+                source.close();
+            }
+        }
+    }
+
+    private List<Source> openSources(File run_dir) throws IOException {
+        List<Source> sources = new ArrayList<>();
+        for (String name : SessionIndex.listImuStreams(run_dir)) {
+            File log = new File(run_dir, name + IMU_TEXT_DATA_SUFFIX);
+            if (log.isFile()) {
+                sources.add(new ImuTextSource(sources.size(), name, log));
+            }
+        }
+        File binary_log = new File(run_dir, IMU_BINARY_DATA_FILENAME);
+        if (binary_log.isFile()) {
+            for (int sensor_id : listSensorIds(binary_log)) {
+                sources.add(new ImuBinarySource(sources.size(), "imu." + sensor_id, binary_log, sensor_id));
+            }
+        }
+        for (String[] camera : CAMERAS) {
+            File metadata = new File(run_dir, camera[1]);
+            if (!metadata.isFile()) {
+                continue;
+            }
+            sources.add(new FrameMetadataSource(sources.size(), camera[0] + "_metadata", metadata));
+            File container = new File(run_dir, camera[3]);
+            sources.add(new ImageSource(sources.size(), camera[0] + "_images", metadata,
+                    new File(run_dir, camera[2]), container.isFile() ? container : null));
+        }
+        return sources;
+    }
+
+    private static Set<Integer> listSensorIds(File binary_log) throws IOException {
+        Set<Integer> ids = new LinkedHashSet<>();
+        ImuBinaryReader reader = new ImuBinaryReader(new FileInputStream(binary_log).getChannel());
+        try {
+            while (reader.next()) {
+                ids.add(reader.getSensorId());
+            }
+        } finally {
+            reader.close();
+        }
+        return ids;
+    }
+
+    private void writeHeader(List<Source> sources) throws IOException {
+        int size = SessionExportFormat.FILE_HEADER_FIXED_SIZE;
+        List<byte[]> names = new ArrayList<>();
+        for (Source source : sources) {
+            byte[] name = source.mName.getBytes(StandardCharsets.US_ASCII);
+            names.add(name);
+            size += 8 + name.length;
+        }
+        ByteBuffer header = ByteBuffer.allocate(size).order(SessionExportFormat.BYTE_ORDER);
+        header.putInt(SessionExportFormat.FILE_MAGIC);
+        header.putShort((short) SessionExportFormat.VERSION);
+        header.putShort((short) size);
+        header.putShort((short) sources.size());
+        header.putShort((short) 0);
+        header.putInt(0);
+        for (int i = 0; i < sources.size(); ++i) {
+            Source source = sources.get(i);
+            header.putShort((short) source.mChannelId);
+            header.putShort((short) source.mKind);
+            header.putShort((short) source.mValuesPerSample);
+            header.putShort((short) names.get(i).length);
+            header.put(names.get(i));
+        }
+        header.flip();
+        write(header);
+    }
+
+    private void appendMessage(Source source, ExecutorService executor) throws IOException {
+        int length = source.payloadLength();
+        int needed = SessionExportFormat.MESSAGE_HEADER_SIZE + length;
+        if (mChunk.mBuffer.remaining() < needed) {
+            sealChunk(executor);
+            // A message larger than a chunk gets a chunk of its own.
+            mChunk = newChunk(Math.max(mChunkSize, needed));
+        }
+        ByteBuffer buffer = mChunk.mBuffer;
+        buffer.putLong(source.mTimestampNs);
+        buffer.putShort((short) source.mChannelId);
+        buffer.putShort((short) 0);
+        buffer.putInt(length);
+        int start = buffer.position();
+        source.putPayload(buffer);
+        if (buffer.position() - start != length) {
+            throw new IOException(source.mName + " payload changed size");
+        }
+        if (mChunk.mCount == 0) {
+            mChunk.mFirstTimestampNs = source.mTimestampNs;
+        }
+        mChunk.mFirstTimestampNs = Math.min(mChunk.mFirstTimestampNs, source.mTimestampNs);
+        mChunk.mLastTimestampNs = Math.max(mChunk.mLastTimestampNs, source.mTimestampNs);
+        ++mChunk.mCount;
+        ++mMessageCount;
+        mInputBytes += source.consumedBytes();
+    }
+
+    private Chunk newChunk(int size) {
+        Chunk chunk = new Chunk();
+        chunk.mBuffer = ByteBuffer.allocate(size).order(SessionExportFormat.BYTE_ORDER);
+        chunk.mLastTimestampNs = Long.MIN_VALUE;
+        return chunk;
+    }
+
+    /**
+     * Hands the current chunk to the compression pool, first writing out the oldest
+     * chunks if too many are in flight.
+     */
+    private void sealChunk(ExecutorService executor) throws IOException {
+        final Chunk chunk = mChunk;
+        mChunk = null;
+        if (chunk == null || chunk.mCount == 0) {
+            return;
+        }
+        chunk.mBuffer.flip();
+        chunk.mUncompressedSize = chunk.mBuffer.remaining();
+        chunk.mStored = executor.submit(new Callable<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() {
+                return mCompress ? deflate(chunk) : chunk.mBuffer;
+            }
+        });
+        mPending.addLast(chunk);
+        while (mPending.size() > mThreads * IN_FLIGHT_CHUNKS_PER_THREAD) {
+            writeChunk(mPending.removeFirst());
+        }
+    }
+
+    // Runs on the pool; falls back to storing the chunk when deflate does not help.
+    private static ByteBuffer deflate(Chunk chunk) {
+        ByteBuffer in = chunk.mBuffer;
+        Deflater deflater = new Deflater(DEFLATE_LEVEL);
+        try {
+            deflater.setInput(in.array(), in.arrayOffset() + in.position(), in.remaining());
+            deflater.finish();
+            byte[] out = new byte[in.remaining()];
+            int length = 0;
+            while (!deflater.finished() && length < out.length) {
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            if (!deflater.finished()) {
+                return in;
+            }
+            chunk.mCompression = SessionExportFormat.COMPRESSION_DEFLATE;
+            return ByteBuffer.wrap(out, 0, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeChunk(Chunk chunk) throws IOException {
+        ByteBuffer stored;
+        try {
+            stored = chunk.mStored.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted compressing chunk");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress chunk: " + e.getCause());
+        }
+        ByteBuffer header = ByteBuffer.allocate(SessionExportFormat.CHUNK_HEADER_SIZE)
+                .order(SessionExportFormat.BYTE_ORDER);
+        header.putInt(SessionExportFormat.CHUNK_MAGIC);
+        header.putShort((short) chunk.mCompression);
+        header.putShort((short) 0);
+        header.putInt(chunk.mCount);
+        header.putInt(chunk.mUncompressedSize);
+        header.putInt(stored.remaining());
+        header.putLong(chunk.mFirstTimestampNs);
+        header.putLong(chunk.mLastTimestampNs);
+        header.flip();
+        chunk.mOffset = mOutputBytes;
+        chunk.mStoredSize = stored.remaining();
+        write(header);
+        write(stored);
+        // Only the index fields are kept from here on.
+        chunk.mBuffer = null;
+        chunk.mStored = null;
+        mIndex.add(chunk);
+    }
+
+    private void writeIndex() throws IOException {
+        long index_offset = mOutputBytes;
+        ByteBuffer buffer = ByteBuffer.allocate(
+                SessionExportFormat.INDEX_ENTRY_SIZE * mIndex.size() + SessionExportFormat.TRAILER_SIZE)
+                .order(SessionExportFormat.BYTE_ORDER);
+        for (Chunk chunk : mIndex) {
+            buffer.putLong(chunk.mOffset);
+            buffer.putLong(chunk.mFirstTimestampNs);
+            buffer.putLong(chunk.mLastTimestampNs);
+            buffer.putInt(chunk.mCount);
+            buffer.putInt(chunk.mStoredSize);
+        }
+        buffer.putLong(index_offset);
+        buffer.putInt(mIndex.size());
+        buffer.putInt(SessionExportFormat.TRAILER_MAGIC);
+        buffer.flip();
+        write(buffer);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mOutputBytes += mOut.write(buffer);
+        }
+    }
+
+    private static class Chunk {
+        ByteBuffer mBuffer;
+        Future<ByteBuffer> mStored;
+        int mCompression = SessionExportFormat.COMPRESSION_NONE;
+        int mCount;
+        int mUncompressedSize;
+        int mStoredSize;
+        long mFirstTimestampNs;
+        long mLastTimestampNs;
+        long mOffset;
+    }
+
+    /**
+     * One channel of the export, read front to back.  advance() moves to the next message
+     * and sets mTimestampNs; the payload is only produced when it is written.
+     */
+    private abstract static class Source implements Closeable {
+        Source(int channel_id, String name, int kind, int values_per_sample) {
+            mChannelId = channel_id;
+            mName = name;
+            mKind = kind;
+            mValuesPerSample = values_per_sample;
+        }
+
+        abstract boolean advance() throws IOException;
+
+        abstract int payloadLength() throws IOException;
+
+        abstract void putPayload(ByteBuffer buffer) throws IOException;
+
+        /**
+         * Bytes of the source log behind the current message, for throughput accounting.
+         */
+        abstract long consumedBytes();
+
+        final int mChannelId;
+        final String mName;
+        final int mKind;
+        int mValuesPerSample;
+        long mTimestampNs;
+    }
+
+    /**
+     * Reads "<timestamp> <field> ..." text logs a line at a time.  Lines that do not parse,
+     * such as a torn last line, are skipped.
+     */
+    private abstract static class TextSource extends Source {
+        TextSource(int channel_id, String name, int kind, File log) throws IOException {
+            super(channel_id, name, kind, 0);
+            mReader = new BufferedReader(new FileReader(log), READ_BUFFER_SIZE);
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            String line;
+            while ((line = mReader.readLine()) != null) {
+                mLineBytes = line.length() + 1;
+                String[] fields = line.split(" ");
+                try {
+                    mTimestampNs = Long.parseLong(fields[0]);
+                    if (parse(fields)) {
+                        return true;
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    // Skip it.
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Parses the fields after the timestamp; returns false to skip the line.
+         */
+        abstract boolean parse(String[] fields);
+
+        @Override
+        long consumedBytes() {
+            return mLineBytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+
+        private final BufferedReader mReader;
+        private int mLineBytes;
+    }
+
+    private static class ImuTextSource extends TextSource {
+        ImuTextSource(int channel_id, String name, File log) throws IOException {
+            super(channel_id, name, SessionExportFormat.KIND_IMU, log);
+            // The value count is that of the first line.
+            BufferedReader reader = new BufferedReader(new FileReader(log));
+            try {
+                String line = reader.readLine();
+                mValuesPerSample = line == null ? 0
+                        : Math.min(line.split(" ").length - 1, ImuLogFormat.MAX_VALUES);
+            } finally {
+                reader.close();
+            }
+        }
+
+        @Override
+        boolean parse(String[] fields) {
+            if (fields.length - 1 < mValuesPerSample) {
+                return false;
+            }
+            for (int i = 0; i < mValuesPerSample; ++i) {
+                mValues[i] = Float.parseFloat(fields[i + 1]);
+            }
+            return true;
+        }
+
+        @Override
+        int payloadLength() {
+            return 4 * mValuesPerSample;
+        }
+
+        @Override
+        void putPayload(ByteBuffer buffer) {
+            for (int i = 0; i < mValuesPerSample; ++i) {
+                buffer.putFloat(mValues[i]);
+            }
+        }
+
+        private final float[] mValues = new float[ImuLogFormat.MAX_VALUES];
+    }
+
+    private static class FrameMetadataSource extends TextSource {
+        FrameMetadataSource(int channel_id, String name, File log) throws IOException {
+            super(channel_id, name, SessionExportFormat.KIND_FRAME_METADATA, log);
+        }
+
+        @Override
+        boolean parse(String[] fields) {
+            mFrameNumber = Long.parseLong(fields[1]);
+            mExposureNs = Long.parseLong(fields[2]);
+            mRollingShutterSkewNs = Long.parseLong(fields[3]);
+            return true;
+        }
+
+        @Override
+        int payloadLength() {
+            return 24;
+        }
+
+        @Override
+        void putPayload(ByteBuffer buffer) {
+            buffer.putLong(mFrameNumber);
+            buffer.putLong(mExposureNs);
+            buffer.putLong(mRollingShutterSkewNs);
+        }
+
+        private long mFrameNumber;
+        private long mExposureNs;
+        private long mRollingShutterSkewNs;
+    }
+
+    /**
+     * Follows a camera's metadata log and emits the image of every frame that has one,
+     * from the image directory or the frame container.
+     */
+    private static class ImageSource extends TextSource {
+        ImageSource(int channel_id, String name, File metadata, File image_dir, File container)
+                throws IOException {
+            super(channel_id, name, SessionExportFormat.KIND_IMAGE, metadata);
+            mImageDir = image_dir;
+            mContainer = container != null ? new FrameContainerReader(container) : null;
+        }
+
+        @Override
+        boolean parse(String[] fields) {
+            mFrameNumber = Long.parseLong(fields[1]);
+            if (mContainer != null) {
+                mContainerPosition = mContainer.findFrame(mFrameNumber);
+                mImageLength = mContainerPosition < 0 ? -1 : mContainer.getLength(mContainerPosition);
+            } else {
+                mImageFile = findImageFile(mFrameNumber);
+                mImageLength = mImageFile == null ? -1 : mImageFile.length();
+            }
+            // Frames dropped by the writer pool have metadata but no image.
+            return mImageLength >= 0;
+        }
+
+        @Override
+        int payloadLength() throws IOException {
+            if (mImageLength > Integer.MAX_VALUE - 8) {
+                throw new IOException("Frame " + mFrameNumber + " too large");
+            }
+            return 8 + (int) mImageLength;
+        }
+
+        @Override
+        void putPayload(ByteBuffer buffer) throws IOException {
+            buffer.putLong(mFrameNumber);
+            if (mContainer != null) {
+                buffer.put(mContainer.mapFrame(mContainerPosition));
+                return;
+            }
+            RandomAccessFile file = new RandomAccessFile(mImageFile, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                int end = buffer.position() + (int) mImageLength;
+                ByteBuffer target = buffer.duplicate();
+                target.limit(end);
+                while (target.hasRemaining()) {
+                    if (channel.read(target) < 0) {
+                        throw new IOException(mImageFile + " shrank while exporting");
+                    }
+                }
+                buffer.position(end);
+            } finally {
+                file.close();
+            }
+        }
+
+        @Override
+        long consumedBytes() {
+            return mImageLength;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (mContainer != null) {
+                mContainer.close();
+            }
+        }
+
+        private File findImageFile(long frame_number) {
+            String base = String.format(Locale.US, "%05d.", frame_number);
+            for (String extension : IMAGE_EXTENSIONS) {
+                File file = new File(mImageDir, base + extension);
+                if (file.isFile()) {
+                    return file;
+                }
+            }
+            return null;
+        }
+
+        private final File mImageDir;
+        private final FrameContainerReader mContainer;
+        private long mFrameNumber;
+        private File mImageFile;
+        private int mContainerPosition;
+        private long mImageLength;
+    }
+
+    /**
+     * The records of one sensor id in a shared binary IMU log.  Values keep the log's
+     * padded width.
+     */
+    private static class ImuBinarySource extends Source {
+        ImuBinarySource(int channel_id, String name, File log, int sensor_id) throws IOException {
+            super(channel_id, name, SessionExportFormat.KIND_IMU, 0);
+            mReader = new ImuBinaryReader(new FileInputStream(log).getChannel());
+            mSensorId = sensor_id;
+            mValuesPerSample = mReader.getValuesPerRecord();
+            mRecordSize = ImuLogFormat.recordSize(mValuesPerSample);
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            while (mReader.next()) {
+                if (mReader.getSensorId() == mSensorId) {
+                    mTimestampNs = mReader.getTimestampNs();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        int payloadLength() {
+            return 4 * mValuesPerSample;
+        }
+
+        @Override
+        void putPayload(ByteBuffer buffer) {
+            for (int i = 0; i < mValuesPerSample; ++i) {
+                buffer.putFloat(mReader.getValue(i));
+            }
+        }
+
+        @Override
+        long consumedBytes() {
+            return mRecordSize;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+
+        private final ImuBinaryReader mReader;
+        private final int mSensorId;
+        private final int mRecordSize;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean compress = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunk_size = DEFAULT_CHUNK_SIZE;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); ++i) {
+            if (args[i].equals("-z")) {
+                compress = true;
+            } else if (args[i].equals("-j") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-c") && i + 1 < args.length) {
+                chunk_size = Integer.parseInt(args[++i]) * 1024 * 1024;
+            } else {
+                break;
+            }
+        }
+        if (args.length - i != 2 || threads < 1 || chunk_size < 1) {
+            System.err.println("usage: SessionExporter [-z] [-j threads] [-c chunk MB] <run dir> <out.crsx>");
+            System.exit(2);
+        }
+        SessionExporter exporter = new SessionExporter(compress, threads, chunk_size);
+        long start_ns = System.nanoTime();
+        exporter.export(new File(args[i]), new File(args[i + 1]));
+        double seconds = (System.nanoTime() - start_ns) * 1e-9;
+        System.out.println(String.format("%d messages in %d chunks; %.1f MB in, %.1f MB out in %.2f s (%.1f MB/s in)",
+                exporter.getMessageCount(), exporter.getChunkCount(),
+                exporter.getInputBytes() / 1e6, exporter.getOutputBytes() / 1e6, seconds,
+                exporter.getInputBytes() / 1e6 / seconds));
+    }
+
+    private final boolean mCompress;
+    private final int mThreads;
+    private final int mChunkSize;
+
+    private FileChannel mOut;
+    private Chunk mChunk;
+    private final ArrayDeque<Chunk> mPending = new ArrayDeque<>();
+    private final List<Chunk> mIndex = new ArrayList<>();
+
+    private long mInputBytes;
+    private long mOutputBytes;
+    private long mMessageCount;
+}
@@ -0,0 +1,368 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Timestamp indexes over the logs of one run directory.
+ *
+ * Every stream gets a StreamIndex file next to its log, <stream>.idx, built in one pass
+ * over the log and rebuilt whenever the log has changed size since.  Queries such as
+ * "IMU samples in [t0, t1]" or "frame nearest to t" then cost a binary search over the
+ * mapped index instead of a parse of the whole log.  Streams:
+ *
+ *   <name>        <name>.txt for every IMU stream in imu_streams.txt (accel and gyro if
+ *                 that file is missing); keys are line ordinals
+ *   left_frames   left_image_metadata.txt; keys are frame numbers
+ *   right_frames  right_image_metadata.txt; keys are frame numbers
+ *   imu.<id>      the records of sensor type <id> in imu.bin; keys are record ordinals
+ *
+ * Usable off-device:
+ *
+ *   java com.google.charliehotel.calibrationrecorder.SessionIndex build <run dir>
+ *   java ... SessionIndex range <run dir> gyro <t0 ns> <t1 ns>
+ *   java ... SessionIndex nearest <run dir> left_frames <t ns>
+ */
+class SessionIndex implements Closeable {
+    static final String INDEX_SUFFIX = ".idx";
+
+    // As written by MainActivity.
+    private static final String IMU_STREAMS_FILENAME = "imu_streams.txt";
+    private static final String IMU_TEXT_DATA_SUFFIX = ".txt";
+    private static final String IMU_BINARY_DATA_FILENAME = "imu.bin";
+    private static final String IMU_BINARY_STREAM_PREFIX = "imu.";
+    private static final String[] DEFAULT_IMU_STREAMS = {"accel", "gyro"};
+    private static final String[][] FRAME_STREAMS = {
+            {"left_frames", "left_image_metadata.txt"},
+            {"right_frames", "right_image_metadata.txt"},
+    };
+
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    /**
+     * Opens the indexes of run_dir, building any that are missing or stale.
+     */
+    SessionIndex(@NonNull File run_dir) throws IOException {
+        mRunDir = run_dir;
+        for (String name : listImuStreams(run_dir)) {
+            addTextStream(name, new File(run_dir, name + IMU_TEXT_DATA_SUFFIX), false);
+        }
+        for (String[] frame_stream : FRAME_STREAMS) {
+            addTextStream(frame_stream[0], new File(run_dir, frame_stream[1]), true);
+        }
+        File binary_log = new File(run_dir, IMU_BINARY_DATA_FILENAME);
+        if (binary_log.isFile()) {
+            openBinaryStreams(binary_log);
+        }
+    }
+
+    @NonNull
+    Set<String> getStreamNames() {
+        return mStreams.keySet();
+    }
+
+    @NonNull
+    StreamIndex getStream(@NonNull String name) throws IOException {
+        StreamIndex index = mStreams.get(name);
+        if (index == null) {
+            throw new IOException("No stream " + name + " in " + mRunDir);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the log line of entry i of a text stream, without its newline.
+     */
+    @NonNull
+    String readLine(@NonNull String name, int i) throws IOException {
+        File source = mTextSources.get(name);
+        if (source == null) {
+            throw new IOException(name + " is not a text stream");
+        }
+        RandomAccessFile file = new RandomAccessFile(source, "r");
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(MAX_LINE_LENGTH);
+            file.getChannel().read(buffer, getStream(name).getOffset(i));
+            StringBuilder line = new StringBuilder();
+            for (int j = 0; j < buffer.position() && buffer.get(j) != '\n'; ++j) {
+                line.append((char) buffer.get(j));
+            }
+            return line.toString();
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (StreamIndex index : mStreams.values()) {
+            index.close();
+        }
+        mStreams.clear();
+    }
+
+    /**
+     * Builds or refreshes every index of run_dir, e.g. right after recording.
+     */
+    static void build(@NonNull File run_dir) throws IOException {
+        new SessionIndex(run_dir).close();
+    }
+
+    private void addTextStream(String name, File log, boolean key_is_frame_number)
+            throws IOException {
+        if (!log.isFile()) {
+            return;
+        }
+        File index_file = new File(mRunDir, name + INDEX_SUFFIX);
+        StreamIndex index = openIfFresh(index_file, log.length());
+        if (index == null) {
+            indexTextLog(log, key_is_frame_number).write(index_file, log.length());
+            index = new StreamIndex(index_file);
+        }
+        mStreams.put(name, index);
+        mTextSources.put(name, log);
+    }
+
+    private void openBinaryStreams(File log) throws IOException {
+        long length = log.length();
+        // The sensor ids are only known after a pass over the log, so any stale index
+        // means rebuilding all of them.
+        File[] existing = mRunDir.listFiles();
+        List<File> index_files = new ArrayList<>();
+        boolean fresh = false;
+        if (existing != null) {
+            for (File file : existing) {
+                String file_name = file.getName();
+                if (file_name.startsWith(IMU_BINARY_STREAM_PREFIX) && file_name.endsWith(INDEX_SUFFIX)) {
+                    index_files.add(file);
+                }
+            }
+        }
+        if (!index_files.isEmpty()) {
+            fresh = true;
+            for (File file : index_files) {
+                StreamIndex index = openIfFresh(file, length);
+                if (index == null) {
+                    fresh = false;
+                    break;
+                }
+                String file_name = file.getName();
+                mStreams.put(file_name.substring(0, file_name.length() - INDEX_SUFFIX.length()), index);
+            }
+        }
+        if (fresh) {
+            return;
+        }
+        for (File file : index_files) {
+            mStreams.remove(file.getName().substring(0, file.getName().length() - INDEX_SUFFIX.length()));
+            if (!file.delete()) {
+                throw new IOException("Could not delete stale " + file);
+            }
+        }
+        Map<Integer, StreamIndex.Builder> builders = indexBinaryLog(log);
+        for (Map.Entry<Integer, StreamIndex.Builder> entry : builders.entrySet()) {
+            String name = IMU_BINARY_STREAM_PREFIX + entry.getKey();
+            File index_file = new File(mRunDir, name + INDEX_SUFFIX);
+            entry.getValue().write(index_file, length);
+            mStreams.put(name, new StreamIndex(index_file));
+        }
+    }
+
+    private static StreamIndex openIfFresh(File index_file, long source_length) {
+        if (!index_file.isFile()) {
+            return null;
+        }
+        try {
+            StreamIndex index = new StreamIndex(index_file);
+            if (index.getSourceLength() == source_length) {
+                return index;
+            }
+            index.close();
+        } catch (IOException e) {
+            // Unreadable; rebuild it.
+        }
+        return null;
+    }
+
+    /**
+     * Indexes a log of "<timestamp> [<frame number>] ..." lines.  A torn last line with no
+     * newline is left out.
+     */
+    @NonNull
+    static StreamIndex.Builder indexTextLog(@NonNull File log, boolean key_is_frame_number)
+            throws IOException {
+        StreamIndex.Builder builder = new StreamIndex.Builder();
+        FileInputStream in = new FileInputStream(log);
+        try {
+            FileChannel channel = in.getChannel();
+            byte[] bytes = new byte[READ_BUFFER_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long line_offset = 0;
+            long position = 0;
+            long ordinal = 0;
+            // Parser state for the current line: which field, its value and sign.
+            int field = 0;
+            long value = 0;
+            boolean negative = false;
+            boolean in_number = false;
+            long timestamp_ns = 0;
+            long frame_number = 0;
+            int n;
+            while ((n = channel.read(buffer)) > 0) {
+                for (int i = 0; i < n; ++i) {
+                    byte b = bytes[i];
+                    if (b == '\n') {
+                        if (field == 0 && in_number) {
+                            timestamp_ns = negative ? -value : value;
+                        } else if (field == 1 && in_number) {
+                            frame_number = value;
+                        }
+                        if (field > 0 || in_number) {
+                            builder.add(timestamp_ns, key_is_frame_number ? frame_number : ordinal, line_offset);
+                            ++ordinal;
+                        }
+                        line_offset = position + i + 1;
+                        field = 0;
+                        value = 0;
+                        negative = false;
+                        in_number = false;
+                    } else if (field < 2) {
+                        if (b >= '0' && b <= '9') {
+                            value = 10 * value + (b - '0');
+                            in_number = true;
+                        } else if (b == '-' && !in_number) {
+                            negative = true;
+                        } else if (b == ' ') {
+                            if (field == 0) {
+                                timestamp_ns = negative ? -value : value;
+                            } else {
+                                frame_number = value;
+                            }
+                            ++field;
+                            value = 0;
+                            negative = false;
+                            in_number = false;
+                        }
+                    }
+                }
+                position += n;
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+        return builder;
+    }
+
+    /**
+     * Indexes a shared binary IMU log, one builder per sensor id.
+     */
+    @NonNull
+    static Map<Integer, StreamIndex.Builder> indexBinaryLog(@NonNull File log) throws IOException {
+        Map<Integer, StreamIndex.Builder> builders = new LinkedHashMap<>();
+        ImuBinaryReader reader = new ImuBinaryReader(new FileInputStream(log).getChannel());
+        try {
+            while (reader.next()) {
+                StreamIndex.Builder builder = builders.get(reader.getSensorId());
+                if (builder == null) {
+                    builder = new StreamIndex.Builder();
+                    builders.put(reader.getSensorId(), builder);
+                }
+                builder.add(reader.getTimestampNs(), builder.getCount(), reader.getRecordOffset());
+            }
+        } finally {
+            reader.close();
+        }
+        return builders;
+    }
+
+    /**
+     * Returns the names of the IMU streams recorded in run_dir.
+     */
+    static List<String> listImuStreams(@NonNull File run_dir) throws IOException {
+        List<String> names = new ArrayList<>();
+        File streams_file = new File(run_dir, IMU_STREAMS_FILENAME);
+        if (!streams_file.isFile()) {
+            for (String name : DEFAULT_IMU_STREAMS) {
+                names.add(name);
+            }
+            return names;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(streams_file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int space = line.indexOf(' ');
+                names.add(space < 0 ? line : line.substring(0, space));
+            }
+        } finally {
+            reader.close();
+        }
+        return names;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && args[0].equals("build")) {
+            SessionIndex session = new SessionIndex(new File(args[1]));
+            try {
+                for (String name : session.getStreamNames()) {
+                    System.out.println(name + " " + session.getStream(name).getCount());
+                }
+            } finally {
+                session.close();
+            }
+        } else if (args.length == 5 && args[0].equals("range")) {
+            SessionIndex session = new SessionIndex(new File(args[1]));
+            try {
+                StreamIndex index = session.getStream(args[2]);
+                int from = index.lowerBound(Long.parseLong(args[3]));
+                int to = index.upperBound(Long.parseLong(args[4]));
+                for (int i = from; i < to; ++i) {
+                    System.out.println(session.mTextSources.containsKey(args[2])
+                            ? session.readLine(args[2], i)
+                            : index.getTimestampNs(i) + " " + index.getKey(i) + " " + index.getOffset(i));
+                }
+            } finally {
+                session.close();
+            }
+        } else if (args.length == 4 && args[0].equals("nearest")) {
+            SessionIndex session = new SessionIndex(new File(args[1]));
+            try {
+                StreamIndex index = session.getStream(args[2]);
+                int i = index.nearest(Long.parseLong(args[3]));
+                if (i >= 0) {
+                    System.out.println(index.getTimestampNs(i) + " " + index.getKey(i) + " " + index.getOffset(i));
+                }
+            } finally {
+                session.close();
+            }
+        } else {
+            System.err.println("usage: SessionIndex build <run dir>");
+            System.err.println("       SessionIndex range <run dir> <stream> <t0 ns> <t1 ns>");
+            System.err.println("       SessionIndex nearest <run dir> <stream> <t ns>");
+            System.exit(2);
+        }
+    }
+
+    private final File mRunDir;
+    private final Map<String, StreamIndex> mStreams = new LinkedHashMap<>();
+    private final Map<String, File> mTextSources = new LinkedHashMap<>();
+}
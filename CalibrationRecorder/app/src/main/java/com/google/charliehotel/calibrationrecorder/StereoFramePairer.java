@@ -0,0 +1,204 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Pairs LEFT and RIGHT camera frames by sensor timestamp.
+ *
+ * Each stream must deliver frames in increasing timestamp order; the two streams may
+ * interleave arbitrarily.  A frame is paired with the closest not yet paired frame of the
+ * other camera within the tolerance.  Frames that can no longer be paired, because the
+ * other stream has moved past them, are counted as unmatched.  Keep the tolerance below
+ * half the frame period so a frame cannot be within reach of two partners.
+ *
+ * Once finished, the pairer ignores further frames, so a camera callback that still holds
+ * it after the take rotated cannot report pairs into the next take.
+ */
+class StereoFramePairer {
+    interface Listener {
+        void onPair(@NonNull StereoFramePairer pairer, long left_timestamp_ns, long left_frame_number,
+                    long right_timestamp_ns, long right_frame_number);
+    }
+
+    private static final int MAX_PENDING = 64;
+    private static final int SKEW_HISTOGRAM_BUCKETS = 1000;
+
+    StereoFramePairer(long tolerance_ns, @NonNull Listener listener) {
+        if (tolerance_ns <= 0) {
+            throw new IllegalArgumentException("tolerance must be positive");
+        }
+        mToleranceNs = tolerance_ns;
+        mListener = listener;
+        mSkewBucketNs = Math.max(1, (tolerance_ns + SKEW_HISTOGRAM_BUCKETS - 1) / SKEW_HISTOGRAM_BUCKETS);
+    }
+
+    synchronized void addLeft(long timestamp_ns, long frame_number) {
+        if (!mFinished) {
+            add(mLeft, mRight, timestamp_ns, frame_number);
+        }
+    }
+
+    synchronized void addRight(long timestamp_ns, long frame_number) {
+        if (!mFinished) {
+            add(mRight, mLeft, timestamp_ns, frame_number);
+        }
+    }
+
+    /**
+     * Counts every frame still waiting for a partner as unmatched and stops pairing.
+     */
+    synchronized void finish() {
+        mFinished = true;
+        mLeft.unmatched += mLeft.size;
+        mLeft.clear();
+        mRight.unmatched += mRight.size;
+        mRight.clear();
+    }
+
+    synchronized long getPairCount() {
+        return mPairs;
+    }
+
+    synchronized long getUnmatchedLeftCount() {
+        return mLeft.unmatched;
+    }
+
+    synchronized long getUnmatchedRightCount() {
+        return mRight.unmatched;
+    }
+
+    /**
+     * Mean of right minus left timestamp over all pairs.
+     */
+    synchronized double getMeanSkewNs() {
+        return mPairs == 0 ? 0 : (double) mSkewSumNs / mPairs;
+    }
+
+    synchronized long getMaxAbsSkewNs() {
+        return mMaxAbsSkewNs;
+    }
+
+    /**
+     * Upper bound of the given quantile of |right - left|, to the histogram's resolution of
+     * a thousandth of the tolerance.
+     */
+    synchronized long getAbsSkewQuantileNs(double quantile) {
+        long rank = (long) Math.ceil(quantile * mPairs);
+        long seen = 0;
+        for (int i = 0; i < mSkewHistogram.length; ++i) {
+            seen += mSkewHistogram[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min((i + 1) * mSkewBucketNs, mMaxAbsSkewNs);
+            }
+        }
+        return mMaxAbsSkewNs;
+    }
+
+    synchronized String formatStats() {
+        return String.format("pairs=%d unmatched_left=%d unmatched_right=%d "
+                        + "mean_skew_us=%.1f p99_abs_skew_us=%.1f max_abs_skew_us=%.1f",
+                mPairs, mLeft.unmatched, mRight.unmatched, getMeanSkewNs() / 1000,
+                getAbsSkewQuantileNs(0.99) / 1000.0, mMaxAbsSkewNs / 1000.0);
+    }
+
+    private void add(Pending self, Pending other, long timestamp_ns, long frame_number) {
+        // The other stream's frames that are too old for this one are too old for every
+        // later one too.
+        while (other.size > 0 && other.timestamp(0) < timestamp_ns - mToleranceNs) {
+            other.removeFirst();
+            other.unmatched++;
+        }
+        int best = -1;
+        long best_distance = Long.MAX_VALUE;
+        for (int i = 0; i < other.size; ++i) {
+            long distance = Math.abs(other.timestamp(i) - timestamp_ns);
+            if (distance > mToleranceNs) {
+                break;
+            }
+            if (distance < best_distance) {
+                best = i;
+                best_distance = distance;
+            }
+        }
+        if (best < 0) {
+            if (self.size == MAX_PENDING) {
+                self.removeFirst();
+                self.unmatched++;
+            }
+            self.addLast(timestamp_ns, frame_number);
+            return;
+        }
+        for (int i = 0; i < best; ++i) {
+            other.removeFirst();
+            other.unmatched++;
+        }
+        long other_timestamp_ns = other.timestamp(0);
+        long other_frame_number = other.frameNumber(0);
+        other.removeFirst();
+        if (self == mLeft) {
+            recordPair(timestamp_ns, frame_number, other_timestamp_ns, other_frame_number);
+        } else {
+            recordPair(other_timestamp_ns, other_frame_number, timestamp_ns, frame_number);
+        }
+    }
+
+    private void recordPair(long left_timestamp_ns, long left_frame_number,
+                            long right_timestamp_ns, long right_frame_number) {
+        long skew_ns = right_timestamp_ns - left_timestamp_ns;
+        long abs_skew_ns = Math.abs(skew_ns);
+        ++mPairs;
+        mSkewSumNs += skew_ns;
+        mMaxAbsSkewNs = Math.max(mMaxAbsSkewNs, abs_skew_ns);
+        mSkewHistogram[(int) Math.min(abs_skew_ns / mSkewBucketNs, SKEW_HISTOGRAM_BUCKETS - 1)]++;
+        mListener.onPair(this, left_timestamp_ns, left_frame_number, right_timestamp_ns, right_frame_number);
+    }
+
+    /**
+     * Fixed-capacity FIFO of frames waiting for a partner.
+     */
+    private static class Pending {
+        long timestamp(int i) {
+            return timestamps[(first + i) % MAX_PENDING];
+        }
+
+        long frameNumber(int i) {
+            return frameNumbers[(first + i) % MAX_PENDING];
+        }
+
+        void addLast(long timestamp_ns, long frame_number) {
+            int slot = (first + size) % MAX_PENDING;
+            timestamps[slot] = timestamp_ns;
+            frameNumbers[slot] = frame_number;
+            ++size;
+        }
+
+        void removeFirst() {
+            first = (first + 1) % MAX_PENDING;
+            --size;
+        }
+
+        void clear() {
+            first = 0;
+            size = 0;
+        }
+
+        final long[] timestamps = new long[MAX_PENDING];
+        final long[] frameNumbers = new long[MAX_PENDING];
+        int first;
+        int size;
+        long unmatched;
+    }
+
+    private final long mToleranceNs;
+    private final Listener mListener;
+
+    private final Pending mLeft = new Pending();
+    private final Pending mRight = new Pending();
+
+    private boolean mFinished;
+    private long mPairs;
+    private long mSkewSumNs;
+    private long mMaxAbsSkewNs;
+    private final long mSkewBucketNs;
+    private final long[] mSkewHistogram = new long[SKEW_HISTOGRAM_BUCKETS];
+}
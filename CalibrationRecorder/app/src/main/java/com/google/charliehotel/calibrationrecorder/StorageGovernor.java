@@ -0,0 +1,348 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a camera's image stream within what storage can absorb, and stops recording
+ * before the disk fills.
+ *
+ * The camera asks admit() about every image before handing it to its writers, and
+ * reports every write and drop back.  Once per tick() the governor estimates:
+ *
+ *   capacity     bytes the writers can store per second, from bytes over busy time
+ *   demand       bytes per second the camera would offer without decimation
+ *   consumption  bytes per second the free space shrinks by, all writers included
+ *
+ * and keeps every Nth frame, with N just large enough that demand / N stays below
+ * capacity with some headroom.  Drops raise N right away; N is lowered one step at a
+ * time, and only after several quiet ticks.  Which frame of each group of N is kept
+ * depends on the policy:
+ *
+ *   POLICY_EVERY_NTH  the first one
+ *   POLICY_MOTION     the first one while the MotionProbe reads at least the motion
+ *                     threshold, else the last one; fast motion is what calibration
+ *                     needs the most frames of
+ *
+ * setMinKeepEveryN() puts a floor under N for reasons other than storage, such as the
+ * device heating up; it is applied at the next tick and lifted the same gradual way.
+ *
+ * When free space falls to the reserve, or would at the current consumption within
+ * the minimum remaining time, the listener is told to stop.  Every change of N and
+ * every stop or resume is written to the decision log, one line each.
+ *
+ * Time and free space are passed in by the caller, so the control loop runs anywhere.
+ */
+class StorageGovernor {
+    static final int POLICY_EVERY_NTH = 0;
+    static final int POLICY_MOTION = 1;
+
+    static final String DECISION_LOG_HEADER = "# timestamp_ns name decision keep_every_n offered_fps"
+            + " capacity_Bps demand_Bps consumption_Bps free_bytes remaining_s dropped decimated";
+
+    // Smoothing of the per-tick estimates.
+    private static final double EWMA_WEIGHT = 0.3;
+
+    // Fraction of the capacity kept free for bursts and for everything else on the disk.
+    private static final double HEADROOM = 0.2;
+
+    // Quiet ticks before N is lowered.
+    private static final int RECOVERY_TICKS = 5;
+
+    private static final int MAX_KEEP_EVERY_N = 30;
+
+    interface Listener {
+        /**
+         * Called from tick() when storage is about to run out.  Called again only after
+         * storage has recovered in between.
+         */
+        void onStorageExhausted(@NonNull StorageGovernor governor, long free_bytes, double remaining_s);
+    }
+
+    interface MotionProbe {
+        /** Current motion, in the units of the motion threshold. */
+        float getMotion();
+    }
+
+    StorageGovernor(@NonNull String name, @NonNull Listener listener, int writer_threads,
+                    long reserve_bytes, double min_remaining_s) {
+        mName = name;
+        mListener = listener;
+        mWriterThreads = writer_threads;
+        mReserveBytes = reserve_bytes;
+        mMinRemainingS = min_remaining_s;
+    }
+
+    /**
+     * Keeps frames near motion of at least the threshold; see POLICY_MOTION.
+     */
+    void setMotionPolicy(@NonNull MotionProbe probe, float threshold) {
+        mMotionProbe = probe;
+        mMotionThreshold = threshold;
+        mPolicy = POLICY_MOTION;
+    }
+
+    /**
+     * Where decisions are written, or null.  The governor does not close it.
+     */
+    void setDecisionLog(@Nullable Writer writer) {
+        mDecisionLog = writer;
+    }
+
+    @NonNull
+    String getName() {
+        return mName;
+    }
+
+    /**
+     * Keeps at least every Nth frame from the next tick on, whatever storage allows.
+     * 1 lifts the floor.  May be called from any thread.
+     */
+    void setMinKeepEveryN(int n) {
+        mMinKeepEveryN = Math.max(1, Math.min(n, MAX_KEEP_EVERY_N));
+    }
+
+    int getKeepEveryN() {
+        return mKeepEveryN;
+    }
+
+    boolean isExhausted() {
+        return mExhausted;
+    }
+
+    long getDecimatedCount() {
+        return mDecimated.get();
+    }
+
+    /**
+     * Seconds until free space reaches the reserve at the current consumption, or
+     * infinity while nothing is being consumed.
+     */
+    double getRemainingS() {
+        return mRemainingS;
+    }
+
+    /**
+     * Decides whether to write a frame.  Must be called for every frame, from one thread.
+     */
+    boolean admit(long timestamp_ns) {
+        mOffered.incrementAndGet();
+        int n = mKeepEveryN;
+        if (n <= 1) {
+            mSlot = 0;
+            return true;
+        }
+        int slot = mSlot;
+        boolean keep;
+        if (mPolicy == POLICY_MOTION) {
+            boolean last = slot >= n - 1;
+            keep = !mKeptInGroup && (last || mMotionProbe.getMotion() >= mMotionThreshold);
+        } else {
+            keep = slot == 0;
+        }
+        if (keep) {
+            mKeptInGroup = true;
+        }
+        if (++slot >= n) {
+            slot = 0;
+            mKeptInGroup = false;
+        }
+        mSlot = slot;
+        if (!keep) {
+            mDecimated.incrementAndGet();
+        }
+        return keep;
+    }
+
+    /** Called by the writers for every frame they stored. */
+    void onFrameWritten(long bytes, long write_ns) {
+        mWrittenFrames.incrementAndGet();
+        mWrittenBytes.addAndGet(bytes);
+        mWriteNs.addAndGet(write_ns);
+    }
+
+    /** Called for every admitted frame the writers had no room for. */
+    void onFrameDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    /**
+     * Updates the estimates and decisions.  Call periodically, e.g. once a second.
+     */
+    void tick(long now_ns, long free_bytes) {
+        long offered = mOffered.get();
+        long written_frames = mWrittenFrames.get();
+        long written_bytes = mWrittenBytes.get();
+        long write_ns = mWriteNs.get();
+        long dropped = mDropped.get();
+        if (mLastTickNs == 0) {
+            mLastTickNs = now_ns;
+            mLastOffered = offered;
+            mLastWrittenFrames = written_frames;
+            mLastWrittenBytes = written_bytes;
+            mLastWriteNs = write_ns;
+            mLastDropped = dropped;
+            mLastFreeBytes = free_bytes;
+            log(now_ns, "start", free_bytes);
+            return;
+        }
+        double dt_s = (now_ns - mLastTickNs) * 1e-9;
+        if (dt_s <= 0) {
+            return;
+        }
+
+        long frames_delta = written_frames - mLastWrittenFrames;
+        long bytes_delta = written_bytes - mLastWrittenBytes;
+        long write_ns_delta = write_ns - mLastWriteNs;
+        long dropped_delta = dropped - mLastDropped;
+        mOfferedFps = (offered - mLastOffered) / dt_s;
+        if (frames_delta > 0) {
+            mBytesPerFrame = smooth(mBytesPerFrame, (double) bytes_delta / frames_delta);
+        }
+        if (write_ns_delta > 0) {
+            // Busy time of the pool: the writers' summed write time over their number.
+            double busy_s = write_ns_delta * 1e-9 / mWriterThreads;
+            mCapacityBps = smooth(mCapacityBps, bytes_delta / busy_s);
+        }
+        mDemandBps = mOfferedFps * mBytesPerFrame;
+        mConsumptionBps = smooth(mConsumptionBps, Math.max(0, mLastFreeBytes - free_bytes) / dt_s);
+
+        mLastTickNs = now_ns;
+        mLastOffered = offered;
+        mLastWrittenFrames = written_frames;
+        mLastWrittenBytes = written_bytes;
+        mLastWriteNs = write_ns;
+        mLastDropped = dropped;
+        mLastFreeBytes = free_bytes;
+
+        updateDecimation(now_ns, free_bytes, dropped_delta);
+        updateExhaustion(now_ns, free_bytes);
+    }
+
+    private void updateDecimation(long now_ns, long free_bytes, long dropped_delta) {
+        int required = 1;
+        if (mCapacityBps > 0) {
+            required = (int) Math.ceil(mDemandBps / (mCapacityBps * (1 - HEADROOM)));
+        }
+        required = Math.max(1, Math.min(required, MAX_KEEP_EVERY_N));
+        int floor = mMinKeepEveryN;
+
+        int n = mKeepEveryN;
+        if (dropped_delta > 0) {
+            mQuietTicks = 0;
+            int raised = Math.min(Math.max(required, n + 1), MAX_KEEP_EVERY_N);
+            if (raised != n) {
+                mKeepEveryN = raised;
+                log(now_ns, "drops", free_bytes);
+            }
+        } else if (required > n) {
+            mQuietTicks = 0;
+            mKeepEveryN = required;
+            log(now_ns, "behind", free_bytes);
+        } else if (floor > n) {
+            mQuietTicks = 0;
+            mKeepEveryN = floor;
+            log(now_ns, "floor", free_bytes);
+        } else if (Math.max(required, floor) < n) {
+            if (++mQuietTicks >= RECOVERY_TICKS) {
+                mQuietTicks = 0;
+                mKeepEveryN = n - 1;
+                log(now_ns, "recovered", free_bytes);
+            }
+        } else {
+            mQuietTicks = 0;
+        }
+    }
+
+    private void updateExhaustion(long now_ns, long free_bytes) {
+        long usable_bytes = free_bytes - mReserveBytes;
+        mRemainingS = mConsumptionBps > 0 ? Math.max(0, usable_bytes) / mConsumptionBps
+                : Double.POSITIVE_INFINITY;
+        boolean exhausted = usable_bytes <= 0 || mRemainingS < mMinRemainingS;
+        if (exhausted == mExhausted) {
+            return;
+        }
+        mExhausted = exhausted;
+        log(now_ns, exhausted ? "stop" : "resume", free_bytes);
+        if (exhausted) {
+            mListener.onStorageExhausted(this, free_bytes, mRemainingS);
+        }
+    }
+
+    private static double smooth(double average, double sample) {
+        return average == 0 ? sample : average + EWMA_WEIGHT * (sample - average);
+    }
+
+    private void log(long now_ns, String decision, long free_bytes) {
+        Writer writer = mDecisionLog;
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(String.format(Locale.US, "%d %s %s %d %.2f %.0f %.0f %.0f %d %.0f %d %d\n",
+                    now_ns, mName, decision, mKeepEveryN, mOfferedFps, mCapacityBps, mDemandBps,
+                    mConsumptionBps, free_bytes,
+                    Double.isInfinite(mRemainingS) ? -1 : mRemainingS,
+                    mDropped.get(), mDecimated.get()));
+            writer.flush();
+        } catch (IOException e) {
+            mDecisionLog = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s keep_every_n=%d capacity_MBps=%.1f demand_MBps=%.1f"
+                        + " consumption_MBps=%.1f remaining_s=%.0f",
+                mName, mKeepEveryN, mCapacityBps / 1e6, mDemandBps / 1e6, mConsumptionBps / 1e6,
+                Double.isInfinite(mRemainingS) ? -1 : mRemainingS);
+    }
+
+    private final String mName;
+    private final Listener mListener;
+    private final int mWriterThreads;
+    private final long mReserveBytes;
+    private final double mMinRemainingS;
+
+    private int mPolicy = POLICY_EVERY_NTH;
+    private MotionProbe mMotionProbe;
+    private float mMotionThreshold;
+    private Writer mDecisionLog;
+
+    private volatile int mKeepEveryN = 1;
+    private volatile int mMinKeepEveryN = 1;
+    private volatile boolean mExhausted;
+    private volatile double mRemainingS = Double.POSITIVE_INFINITY;
+
+    // Counted by the camera and writer threads.
+    private final AtomicLong mOffered = new AtomicLong();
+    private final AtomicLong mWrittenFrames = new AtomicLong();
+    private final AtomicLong mWrittenBytes = new AtomicLong();
+    private final AtomicLong mWriteNs = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mDecimated = new AtomicLong();
+
+    // admit() thread only.
+    private int mSlot;
+    private boolean mKeptInGroup;
+
+    // tick() thread only.
+    private long mLastTickNs;
+    private long mLastOffered;
+    private long mLastWrittenFrames;
+    private long mLastWrittenBytes;
+    private long mLastWriteNs;
+    private long mLastDropped;
+    private long mLastFreeBytes;
+    private double mOfferedFps;
+    private double mBytesPerFrame;
+    private double mCapacityBps;
+    private double mDemandBps;
+    private double mConsumptionBps;
+    private int mQuietTicks;
+}
@@ -0,0 +1,587 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.graphics.ImageFormat;
+import android.support.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Picks the stream configuration, AE frame rate range and exposure for a CaptureProfile.
+ *
+ * Works from a Capabilities table rather than from CameraCharacteristics, so the choice
+ * can be replayed off-device from the table a run recorded:
+ *
+ *   java StreamConfigSelector [--high-speed] <capabilities> <jpg|yuv|raw> <width> <height>
+ *                             <min fps> <max fps>
+ *                             [<auto|fixed|rolling_shutter> [<exposure ns> [<sensitivity>]]]
+ *
+ * A stream's fastest frame duration is its minimum frame duration plus its stall
+ * duration, since a repeating request puts a stalling stream (JPEG, RAW) in every frame.
+ * Among the sizes that reach the profile's minimum fps, the one closest to the target in
+ * area, then in aspect ratio, wins; if none does, the fastest one does.
+ *
+ * selectHighSpeed() picks from the constrained high-speed video configurations instead,
+ * for a session built with createConstrainedHighSpeedCaptureSession().
+ */
+class StreamConfigSelector {
+    private static final long NS_PER_S = 1000000000L;
+
+    // Tolerates frame durations rounded to the nanosecond, e.g. 33333333 ns for 30 fps.
+    private static final double FPS_TOLERANCE = 0.01;
+
+    // Aspect ratio mismatch crops the field of view, which matters more for calibration
+    // than a few percent of area.
+    private static final double ASPECT_RATIO_WEIGHT = 4.0;
+
+    // Typical JPEG size at the default quality; actual sizes vary with the scene.
+    private static final double JPEG_BYTES_PER_PIXEL = 0.4;
+
+    // Used when the device does not report a sensitivity range.
+    private static final long DEFAULT_SENSITIVITY = 100;
+
+    /**
+     * One output size of one format with its frame timing.
+     */
+    static class StreamConfig {
+        StreamConfig(int format, int width, int height, long min_frame_duration_ns,
+                     long stall_duration_ns) {
+            mFormat = format;
+            mWidth = width;
+            mHeight = height;
+            mMinFrameDurationNs = min_frame_duration_ns;
+            mStallDurationNs = stall_duration_ns;
+        }
+
+        int getFormat() {
+            return mFormat;
+        }
+
+        int getWidth() {
+            return mWidth;
+        }
+
+        int getHeight() {
+            return mHeight;
+        }
+
+        long getMinFrameDurationNs() {
+            return mMinFrameDurationNs;
+        }
+
+        long getStallDurationNs() {
+            return mStallDurationNs;
+        }
+
+        /**
+         * Shortest frame duration when this stream is part of every request.
+         */
+        long getEffectiveFrameDurationNs() {
+            return mMinFrameDurationNs + mStallDurationNs;
+        }
+
+        double getMaxFps() {
+            long duration_ns = getEffectiveFrameDurationNs();
+            return duration_ns > 0 ? (double) NS_PER_S / duration_ns : Double.MAX_VALUE;
+        }
+
+        private final int mFormat;
+        private final int mWidth;
+        private final int mHeight;
+        private final long mMinFrameDurationNs;
+        private final long mStallDurationNs;
+    }
+
+    /**
+     * What a camera supports, as far as the selection is concerned.  Ranges the device
+     * does not report stay zero.
+     */
+    static class Capabilities {
+        void addStream(@NonNull StreamConfig config) {
+            mStreams.add(config);
+        }
+
+        void addFpsRange(int lower, int upper) {
+            mFpsRanges.add(new int[]{lower, upper});
+        }
+
+        void setExposureRange(long min_ns, long max_ns) {
+            mMinExposureNs = min_ns;
+            mMaxExposureNs = max_ns;
+        }
+
+        void setSensitivityRange(long min, long max) {
+            mMinSensitivity = min;
+            mMaxSensitivity = max;
+        }
+
+        void setMaxFrameDurationNs(long max_frame_duration_ns) {
+            mMaxFrameDurationNs = max_frame_duration_ns;
+        }
+
+        /**
+         * A size and fps range a constrained high-speed session supports.
+         */
+        void addHighSpeedConfig(int width, int height, int fps_lower, int fps_upper) {
+            mHighSpeedConfigs.add(new int[]{width, height, fps_lower, fps_upper});
+        }
+
+        @NonNull
+        List<StreamConfig> getStreams() {
+            return Collections.unmodifiableList(mStreams);
+        }
+
+        /**
+         * Writes the table in the format read() reads.
+         */
+        void write(@NonNull Writer writer) throws IOException {
+            writer.write("# stream format width height min_frame_duration_ns stall_duration_ns\n");
+            for (StreamConfig config : mStreams) {
+                writer.write(String.format(Locale.US, "stream %d %d %d %d %d\n", config.mFormat,
+                        config.mWidth, config.mHeight, config.mMinFrameDurationNs, config.mStallDurationNs));
+            }
+            for (int[] range : mFpsRanges) {
+                writer.write(String.format(Locale.US, "fps_range %d %d\n", range[0], range[1]));
+            }
+            writer.write(String.format(Locale.US, "exposure_range %d %d\n", mMinExposureNs, mMaxExposureNs));
+            writer.write(String.format(Locale.US, "sensitivity_range %d %d\n", mMinSensitivity, mMaxSensitivity));
+            writer.write(String.format(Locale.US, "max_frame_duration %d\n", mMaxFrameDurationNs));
+            for (int[] config : mHighSpeedConfigs) {
+                writer.write(String.format(Locale.US, "high_speed %d %d %d %d\n",
+                        config[0], config[1], config[2], config[3]));
+            }
+        }
+
+        @NonNull
+        static Capabilities read(@NonNull Reader reader) throws IOException {
+            Capabilities capabilities = new Capabilities();
+            BufferedReader lines = new BufferedReader(reader);
+            String line;
+            int line_number = 0;
+            while ((line = lines.readLine()) != null) {
+                ++line_number;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                try {
+                    if (fields[0].equals("stream") && fields.length == 6) {
+                        capabilities.addStream(new StreamConfig(Integer.parseInt(fields[1]),
+                                Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                                Long.parseLong(fields[4]), Long.parseLong(fields[5])));
+                    } else if (fields[0].equals("fps_range") && fields.length == 3) {
+                        capabilities.addFpsRange(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+                    } else if (fields[0].equals("exposure_range") && fields.length == 3) {
+                        capabilities.setExposureRange(Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+                    } else if (fields[0].equals("sensitivity_range") && fields.length == 3) {
+                        capabilities.setSensitivityRange(Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+                    } else if (fields[0].equals("max_frame_duration") && fields.length == 2) {
+                        capabilities.setMaxFrameDurationNs(Long.parseLong(fields[1]));
+                    } else if (fields[0].equals("high_speed") && fields.length == 5) {
+                        capabilities.addHighSpeedConfig(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                                Integer.parseInt(fields[3]), Integer.parseInt(fields[4]));
+                    } else {
+                        throw new IOException("Bad capabilities line " + line_number + ": " + line);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad capabilities line " + line_number + ": " + line);
+                }
+            }
+            return capabilities;
+        }
+
+        private final List<StreamConfig> mStreams = new ArrayList<>();
+        private final List<int[]> mFpsRanges = new ArrayList<>();
+        private long mMinExposureNs;
+        private long mMaxExposureNs;
+        private long mMinSensitivity;
+        private long mMaxSensitivity;
+        private long mMaxFrameDurationNs;
+        // width, height, fps_lower, fps_upper
+        private final List<int[]> mHighSpeedConfigs = new ArrayList<>();
+    }
+
+    /**
+     * The outcome of select(): what to configure, and what it is expected to deliver.
+     */
+    static class Selection {
+        static final String HEADER = "# format width height exposure_mode fps_lower fps_upper"
+                + " frame_duration_ns exposure_ns sensitivity predicted_fps predicted_bytes_per_s"
+                + " meets_min_fps high_speed";
+
+        @NonNull
+        StreamConfig getStreamConfig() {
+            return mConfig;
+        }
+
+        int getExposureMode() {
+            return mExposureMode;
+        }
+
+        /** The CONTROL_AE_TARGET_FPS_RANGE to request with EXPOSURE_AUTO. */
+        int getFpsRangeLower() {
+            return mFpsLower;
+        }
+
+        int getFpsRangeUpper() {
+            return mFpsUpper;
+        }
+
+        /** SENSOR_FRAME_DURATION for manual exposure; the nominal frame duration with AE. */
+        long getFrameDurationNs() {
+            return mFrameDurationNs;
+        }
+
+        /** SENSOR_EXPOSURE_TIME for manual exposure, else zero. */
+        long getExposureNs() {
+            return mExposureNs;
+        }
+
+        /** SENSOR_SENSITIVITY for manual exposure, else zero. */
+        long getSensitivity() {
+            return mSensitivity;
+        }
+
+        double getPredictedFps() {
+            return (double) NS_PER_S / mFrameDurationNs;
+        }
+
+        long getPredictedBytesPerFrame() {
+            return mBytesPerFrame;
+        }
+
+        /**
+         * Bytes per second the image writers have to sustain at the predicted rate.
+         */
+        long getPredictedBytesPerSecond() {
+            return Math.round(mBytesPerFrame * getPredictedFps());
+        }
+
+        /** Whether the profile's minimum fps is reached. */
+        boolean meetsMinFps() {
+            return mMeetsMinFps;
+        }
+
+        /** Whether this is for a constrained high-speed session; see selectHighSpeed(). */
+        boolean isHighSpeed() {
+            return mHighSpeed;
+        }
+
+        String formatSummary() {
+            return String.format(Locale.US, "%d %d %d %s %d %d %d %d %d %.3f %d %b %b",
+                    mConfig.mFormat, mConfig.mWidth, mConfig.mHeight,
+                    CaptureProfile.exposureModeName(mExposureMode), mFpsLower, mFpsUpper,
+                    mFrameDurationNs, mExposureNs, mSensitivity, getPredictedFps(),
+                    getPredictedBytesPerSecond(), mMeetsMinFps, mHighSpeed);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%dx%d format=%d %s fps=[%d, %d] frame_duration_ns=%d"
+                            + " exposure_ns=%d sensitivity=%d predicted_fps=%.2f predicted_MBps=%.1f%s%s",
+                    mConfig.mWidth, mConfig.mHeight, mConfig.mFormat,
+                    CaptureProfile.exposureModeName(mExposureMode), mFpsLower, mFpsUpper,
+                    mFrameDurationNs, mExposureNs, mSensitivity, getPredictedFps(),
+                    getPredictedBytesPerSecond() / 1e6, mHighSpeed ? " high_speed" : "",
+                    mMeetsMinFps ? "" : " (below min fps)");
+        }
+
+        private StreamConfig mConfig;
+        private int mExposureMode;
+        private int mFpsLower;
+        private int mFpsUpper;
+        private long mFrameDurationNs;
+        private long mExposureNs;
+        private long mSensitivity;
+        private long mBytesPerFrame;
+        private boolean mMeetsMinFps;
+        private boolean mHighSpeed;
+    }
+
+    /**
+     * Throws IllegalArgumentException if the profile's format has no output sizes.
+     */
+    @NonNull
+    static Selection select(@NonNull Capabilities capabilities, @NonNull CaptureProfile profile) {
+        StreamConfig config = selectStreamConfig(capabilities, profile);
+        if (config == null) {
+            throw new IllegalArgumentException("No output sizes for format " + profile.getFormat());
+        }
+
+        Selection selection = new Selection();
+        selection.mConfig = config;
+        selection.mExposureMode = profile.getExposureMode();
+        selection.mBytesPerFrame = estimateBytesPerFrame(config);
+        selectFpsRange(capabilities, profile, config, selection);
+
+        long min_duration_ns = config.getEffectiveFrameDurationNs();
+        long target_duration_ns = NS_PER_S / profile.getMaxFps();
+        if (profile.getExposureMode() == CaptureProfile.EXPOSURE_AUTO) {
+            selection.mFrameDurationNs = Math.max(min_duration_ns, NS_PER_S / selection.mFpsUpper);
+        } else {
+            selectManualExposure(capabilities, profile, config,
+                    Math.max(min_duration_ns, target_duration_ns), selection);
+        }
+        selection.mMeetsMinFps = selection.getPredictedFps() >= profile.getMinFps() - FPS_TOLERANCE;
+        return selection;
+    }
+
+    @NonNull
+    static Selection select(@NonNull Capabilities capabilities, @NonNull CaptureProfile profile,
+                            @NonNull CaptureProfile fallback) {
+        try {
+            return select(capabilities, profile);
+        } catch (IllegalArgumentException e) {
+            return select(capabilities, fallback);
+        }
+    }
+
+    /**
+     * Picks a constrained high-speed size and fps range.  Sizes are ranked as in select(),
+     * by whether a range reaches the profile's minimum fps and then by closeness to the
+     * target.  Fixed ranges come first, as high-speed recording needs one (variable ones
+     * are for preview), then the range whose upper end is closest to the profile's maximum.
+     *
+     * The stream is a PRIVATE format encoder or preview surface, and exposure is auto:
+     * high-speed requests ignore manual sensor controls.  Throws IllegalArgumentException
+     * if the device has no high-speed configurations.
+     */
+    @NonNull
+    static Selection selectHighSpeed(@NonNull Capabilities capabilities, @NonNull CaptureProfile profile) {
+        int[] best = null;
+        boolean best_feasible = false;
+        double best_cost = 0;
+        for (int[] config : capabilities.mHighSpeedConfigs) {
+            boolean feasible = config[3] >= profile.getMinFps() - FPS_TOLERANCE;
+            double cost = sizeCost(config[0], config[1], profile);
+            boolean fixed = config[2] == config[3];
+            boolean better;
+            if (best == null) {
+                better = true;
+            } else if (feasible != best_feasible) {
+                better = feasible;
+            } else if (!feasible && config[3] != best[3]) {
+                better = config[3] > best[3];
+            } else if (cost != best_cost) {
+                better = cost < best_cost;
+            } else if (fixed != (best[2] == best[3])) {
+                better = fixed;
+            } else if (Math.abs(config[3] - profile.getMaxFps()) != Math.abs(best[3] - profile.getMaxFps())) {
+                better = Math.abs(config[3] - profile.getMaxFps()) < Math.abs(best[3] - profile.getMaxFps());
+            } else {
+                better = config[3] > best[3];
+            }
+            if (better) {
+                best = config;
+                best_feasible = feasible;
+                best_cost = cost;
+            }
+        }
+        if (best == null) {
+            throw new IllegalArgumentException("No constrained high-speed configurations");
+        }
+
+        Selection selection = new Selection();
+        long frame_duration_ns = NS_PER_S / best[3];
+        selection.mConfig = new StreamConfig(ImageFormat.PRIVATE, best[0], best[1], frame_duration_ns, 0);
+        selection.mExposureMode = CaptureProfile.EXPOSURE_AUTO;
+        selection.mFpsLower = best[2];
+        selection.mFpsUpper = best[3];
+        selection.mFrameDurationNs = frame_duration_ns;
+        // Frames go to an encoder, not to the image writers.
+        selection.mBytesPerFrame = 0;
+        selection.mMeetsMinFps = selection.getPredictedFps() >= profile.getMinFps() - FPS_TOLERANCE;
+        selection.mHighSpeed = true;
+        return selection;
+    }
+
+    /**
+     * How far a size is from the profile's, in area and, weighted, in aspect ratio.
+     */
+    private static double sizeCost(int width, int height, CaptureProfile profile) {
+        double target_area = (double) profile.getWidth() * profile.getHeight();
+        double target_aspect = (double) profile.getWidth() / profile.getHeight();
+        double area = (double) width * height;
+        double aspect = (double) width / height;
+        return Math.abs(Math.log(area / target_area))
+                + ASPECT_RATIO_WEIGHT * Math.abs(Math.log(aspect / target_aspect));
+    }
+
+    private static StreamConfig selectStreamConfig(Capabilities capabilities, CaptureProfile profile) {
+        StreamConfig best = null;
+        boolean best_feasible = false;
+        double best_cost = 0;
+        for (StreamConfig config : capabilities.mStreams) {
+            if (config.mFormat != profile.getFormat()) {
+                continue;
+            }
+            boolean feasible = config.getMaxFps() >= profile.getMinFps() - FPS_TOLERANCE;
+            double cost = sizeCost(config.mWidth, config.mHeight, profile);
+            boolean better;
+            if (best == null) {
+                better = true;
+            } else if (feasible != best_feasible) {
+                better = feasible;
+            } else if (!feasible && config.getMaxFps() != best.getMaxFps()) {
+                better = config.getMaxFps() > best.getMaxFps();
+            } else if (cost != best_cost) {
+                better = cost < best_cost;
+            } else {
+                better = config.getMaxFps() > best.getMaxFps();
+            }
+            if (better) {
+                best = config;
+                best_feasible = feasible;
+                best_cost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Picks the AE target range that overlaps the profile's range the most without
+     * exceeding what the stream can do; ties go to the narrower, steadier range.
+     */
+    private static void selectFpsRange(Capabilities capabilities, CaptureProfile profile,
+                                       StreamConfig config, Selection selection) {
+        double max_fps = config.getMaxFps() + FPS_TOLERANCE;
+        int[] best = null;
+        int best_overlap = 0;
+        for (int[] range : capabilities.mFpsRanges) {
+            if (range[1] > max_fps) {
+                continue;
+            }
+            int overlap = Math.min(range[1], profile.getMaxFps()) - Math.max(range[0], profile.getMinFps());
+            boolean better;
+            if (best == null) {
+                better = true;
+            } else if (overlap != best_overlap) {
+                better = overlap > best_overlap;
+            } else if (range[1] - range[0] != best[1] - best[0]) {
+                better = range[1] - range[0] < best[1] - best[0];
+            } else {
+                better = range[1] > best[1];
+            }
+            if (better) {
+                best = range;
+                best_overlap = overlap;
+            }
+        }
+        if (best == null) {
+            // Nothing the stream can keep up with; let AE run at the stream's own rate.
+            int fps = Math.max(1, (int) Math.floor(max_fps));
+            selection.mFpsLower = Math.min(profile.getMinFps(), fps);
+            selection.mFpsUpper = fps;
+            return;
+        }
+        selection.mFpsLower = best[0];
+        selection.mFpsUpper = best[1];
+    }
+
+    private static void selectManualExposure(Capabilities capabilities, CaptureProfile profile,
+                                             StreamConfig config, long frame_duration_ns,
+                                             Selection selection) {
+        long exposure_ns;
+        if (profile.getExposureMode() == CaptureProfile.EXPOSURE_ROLLING_SHUTTER) {
+            // Readout takes at most the stream's minimum frame duration.  Exposure gets what
+            // is left of the frame; if that is too short, the frame is stretched instead.
+            long readout_ns = config.mMinFrameDurationNs;
+            long budget_ns = frame_duration_ns - readout_ns;
+            exposure_ns = profile.getExposureNs() != CaptureProfile.UNSPECIFIED
+                    ? Math.min(profile.getExposureNs(), budget_ns) : budget_ns;
+            exposure_ns = clampExposure(capabilities, exposure_ns);
+            frame_duration_ns = Math.max(frame_duration_ns, readout_ns + exposure_ns);
+        } else {
+            exposure_ns = clampExposure(capabilities, Math.min(profile.getExposureNs(), frame_duration_ns));
+            frame_duration_ns = Math.max(frame_duration_ns, exposure_ns);
+        }
+        if (capabilities.mMaxFrameDurationNs > 0) {
+            frame_duration_ns = Math.min(frame_duration_ns, capabilities.mMaxFrameDurationNs);
+        }
+
+        long sensitivity = profile.getSensitivity() != CaptureProfile.UNSPECIFIED
+                ? profile.getSensitivity()
+                : capabilities.mMinSensitivity > 0 ? capabilities.mMinSensitivity : DEFAULT_SENSITIVITY;
+        if (capabilities.mMaxSensitivity > 0) {
+            sensitivity = Math.max(capabilities.mMinSensitivity, Math.min(sensitivity, capabilities.mMaxSensitivity));
+        }
+
+        selection.mFrameDurationNs = frame_duration_ns;
+        selection.mExposureNs = exposure_ns;
+        selection.mSensitivity = sensitivity;
+    }
+
+    private static long clampExposure(Capabilities capabilities, long exposure_ns) {
+        if (capabilities.mMaxExposureNs > 0) {
+            exposure_ns = Math.min(exposure_ns, capabilities.mMaxExposureNs);
+        }
+        return Math.max(exposure_ns, Math.max(1, capabilities.mMinExposureNs));
+    }
+
+    static long estimateBytesPerFrame(@NonNull StreamConfig config) {
+        long pixels = (long) config.mWidth * config.mHeight;
+        switch (config.mFormat) {
+            case ImageFormat.JPEG:
+                return Math.round(pixels * JPEG_BYTES_PER_PIXEL);
+            case ImageFormat.YUV_420_888:
+                return pixels * 3 / 2;
+            case ImageFormat.RAW_SENSOR:
+                return pixels * 2;
+            default:
+                throw new IllegalArgumentException("Unsupported image format " + config.mFormat);
+        }
+    }
+
+    /**
+     * Inverse of CameraUtils.fileExtension().
+     */
+    static int parseFormat(@NonNull String name) {
+        for (int format : new int[]{ImageFormat.JPEG, ImageFormat.YUV_420_888, ImageFormat.RAW_SENSOR}) {
+            if (CameraUtils.fileExtension(format).equals(name)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unknown format " + name);
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean high_speed = args.length > 0 && args[0].equals("--high-speed");
+        if (high_speed) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length < 6 || args.length > 9) {
+            System.err.println("Usage: StreamConfigSelector [--high-speed] <capabilities> <jpg|yuv|raw>"
+                    + " <width> <height> <min fps> <max fps>"
+                    + " [<auto|fixed|rolling_shutter> [<exposure ns> [<sensitivity>]]]");
+            System.exit(1);
+        }
+        Capabilities capabilities;
+        Reader reader = new FileReader(args[0]);
+        try {
+            capabilities = Capabilities.read(reader);
+        } finally {
+            reader.close();
+        }
+        CaptureProfile profile = new CaptureProfile(parseFormat(args[1]),
+                Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                Integer.parseInt(args[4]), Integer.parseInt(args[5]),
+                args.length > 6 ? CaptureProfile.parseExposureMode(args[6]) : CaptureProfile.EXPOSURE_AUTO,
+                args.length > 7 ? Long.parseLong(args[7]) : CaptureProfile.UNSPECIFIED,
+                args.length > 8 ? Long.parseLong(args[8]) : CaptureProfile.UNSPECIFIED);
+        Selection selection = high_speed ? selectHighSpeed(capabilities, profile) : select(capabilities, profile);
+        Writer writer = new OutputStreamWriter(System.out);
+        writer.write(Selection.HEADER + "\n");
+        writer.write(selection.formatSummary() + "\n");
+        writer.flush();
+    }
+}
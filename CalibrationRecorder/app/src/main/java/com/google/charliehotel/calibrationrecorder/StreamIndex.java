@@ -0,0 +1,274 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Sorted timestamp index of one recorded stream, memory-mapped for O(log n) lookups.
+ *
+ * Each entry maps a timestamp to a key (the frame number for camera streams, the sample
+ * ordinal for IMU streams) and the byte offset of its line or record in the source log.
+ * All fields are little-endian:
+ *
+ *   header:  magic "CRIX", u16 version, u16 header size, i32 entry count,
+ *            i64 source length, 20 reserved bytes
+ *   columns: i64 timestamps [ns] x count, i64 keys x count, i64 offsets x count
+ *
+ * The source length is the size of the log when the index was built, so a stale index
+ * can be told apart from a fresh one.
+ */
+class StreamIndex implements Closeable {
+    static final int MAGIC = 0x58495243;  // "CRIX"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 40;  // Keeps the columns 8-byte aligned.
+
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    StreamIndex(@NonNull File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(file + " is not a stream index");
+            }
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // The mapping stays valid after the file is closed.
+            raf.close();
+        }
+        mBuffer.order(BYTE_ORDER);
+        if (mBuffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a stream index");
+        }
+        int version = mBuffer.getShort(4) & 0xffff;
+        if (version != VERSION) {
+            throw new IOException("Unsupported stream index version " + version);
+        }
+        int header_size = mBuffer.getShort(6) & 0xffff;
+        mCount = mBuffer.getInt(8);
+        mSourceLength = mBuffer.getLong(12);
+        if (header_size < HEADER_SIZE || mCount < 0
+                || mBuffer.capacity() < header_size + 24L * mCount) {
+            throw new IOException("Corrupt stream index " + file);
+        }
+        mTimestamps = column(header_size, 0);
+        mKeys = column(header_size, 1);
+        mOffsets = column(header_size, 2);
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    long getSourceLength() {
+        return mSourceLength;
+    }
+
+    long getTimestampNs(int i) {
+        return mTimestamps.get(i);
+    }
+
+    long getKey(int i) {
+        return mKeys.get(i);
+    }
+
+    long getOffset(int i) {
+        return mOffsets.get(i);
+    }
+
+    /**
+     * Returns the first entry at or after timestamp_ns, or getCount() if there is none.
+     */
+    int lowerBound(long timestamp_ns) {
+        int lo = 0;
+        int hi = mCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mTimestamps.get(mid) < timestamp_ns) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the first entry after timestamp_ns, or getCount() if there is none.
+     */
+    int upperBound(long timestamp_ns) {
+        int lo = 0;
+        int hi = mCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mTimestamps.get(mid) <= timestamp_ns) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the entry closest to timestamp_ns, the earlier one on a tie, or -1 if the
+     * index is empty.
+     */
+    int nearest(long timestamp_ns) {
+        if (mCount == 0) {
+            return -1;
+        }
+        int i = lowerBound(timestamp_ns);
+        if (i == mCount) {
+            return mCount - 1;
+        }
+        if (i > 0 && timestamp_ns - mTimestamps.get(i - 1) <= mTimestamps.get(i) - timestamp_ns) {
+            return i - 1;
+        }
+        return i;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release; the mapping goes away with the last reference.
+    }
+
+    private LongBuffer column(int header_size, int column) {
+        ByteBuffer slice = mBuffer.duplicate();
+        slice.position(header_size + 8 * mCount * column);
+        slice.limit(header_size + 8 * mCount * (column + 1));
+        return slice.slice().order(BYTE_ORDER).asLongBuffer();
+    }
+
+    /**
+     * Collects entries in log order and writes them out sorted by timestamp.
+     */
+    static class Builder {
+        private static final int INITIAL_CAPACITY = 1024;
+        private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+        void add(long timestamp_ns, long key, long offset) {
+            if (mCount == mTimestamps.length) {
+                int capacity = 2 * mTimestamps.length;
+                mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+                mKeys = Arrays.copyOf(mKeys, capacity);
+                mOffsets = Arrays.copyOf(mOffsets, capacity);
+            }
+            if (mCount > 0 && timestamp_ns < mTimestamps[mCount - 1]) {
+                mSorted = false;
+            }
+            mTimestamps[mCount] = timestamp_ns;
+            mKeys[mCount] = key;
+            mOffsets[mCount] = offset;
+            ++mCount;
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        /** Entry i in the order added, until written. */
+        long getTimestampNs(int i) {
+            return mTimestamps[i];
+        }
+
+        /** Entry i in the order added, until written. */
+        long getKey(int i) {
+            return mKeys[i];
+        }
+
+        void write(@NonNull File file, long source_length) throws IOException {
+            if (!mSorted) {
+                sort();
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.setLength(0);
+                FileChannel channel = raf.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+                buffer.order(BYTE_ORDER);
+                buffer.putInt(MAGIC);
+                buffer.putShort((short) VERSION);
+                buffer.putShort((short) HEADER_SIZE);
+                buffer.putInt(mCount);
+                buffer.putLong(source_length);
+                buffer.putLong(0);
+                buffer.putLong(0);
+                buffer.putInt(0);
+                putColumn(channel, buffer, mTimestamps);
+                putColumn(channel, buffer, mKeys);
+                putColumn(channel, buffer, mOffsets);
+                drain(channel, buffer);
+                channel.force(true);
+            } finally {
+                raf.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp + " to " + file);
+            }
+        }
+
+        private void putColumn(FileChannel channel, ByteBuffer buffer, long[] column)
+                throws IOException {
+            for (int i = 0; i < mCount; ++i) {
+                if (buffer.remaining() < 8) {
+                    drain(channel, buffer);
+                }
+                buffer.putLong(column[i]);
+            }
+        }
+
+        private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        // Logs are written in arrival order, which is timestamp order but for the odd
+        // straggler, so an insertion sort is close to linear here.
+        private void sort() {
+            for (int i = 1; i < mCount; ++i) {
+                long timestamp_ns = mTimestamps[i];
+                long key = mKeys[i];
+                long offset = mOffsets[i];
+                int j = i - 1;
+                while (j >= 0 && mTimestamps[j] > timestamp_ns) {
+                    mTimestamps[j + 1] = mTimestamps[j];
+                    mKeys[j + 1] = mKeys[j];
+                    mOffsets[j + 1] = mOffsets[j];
+                    --j;
+                }
+                mTimestamps[j + 1] = timestamp_ns;
+                mKeys[j + 1] = key;
+                mOffsets[j + 1] = offset;
+            }
+            mSorted = true;
+        }
+
+        private int mCount;
+        private boolean mSorted = true;
+        private long[] mTimestamps = new long[INITIAL_CAPACITY];
+        private long[] mKeys = new long[INITIAL_CAPACITY];
+        private long[] mOffsets = new long[INITIAL_CAPACITY];
+    }
+
+    private final MappedByteBuffer mBuffer;
+    private final int mCount;
+    private final long mSourceLength;
+    private final LongBuffer mTimestamps;
+    private final LongBuffer mKeys;
+    private final LongBuffer mOffsets;
+}
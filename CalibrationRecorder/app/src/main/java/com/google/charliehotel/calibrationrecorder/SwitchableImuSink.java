@@ -0,0 +1,58 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Forwards IMU samples to a sink that can be replaced while samples are flowing.
+ *
+ * With no sink set, samples are discarded, which keeps sensors warm between takes.  Once
+ * swap() returns, the previous sink will not be written again and may be closed.
+ */
+class SwitchableImuSink implements ImuSink {
+    /**
+     * Replaces the sink and returns the previous one, or null.
+     */
+    @Nullable
+    synchronized ImuSink swap(@Nullable ImuSink sink) {
+        ImuSink previous = mSink;
+        mSink = sink;
+        return previous;
+    }
+
+    @Override
+    public synchronized void write(long timestamp_ns, float x, float y, float z) throws IOException {
+        if (mSink != null) {
+            mSink.write(timestamp_ns, x, y, z);
+        }
+    }
+
+    @Override
+    public synchronized void write(long[] timestamps_ns, float[] values, int values_per_sample, int count)
+            throws IOException {
+        if (mSink != null) {
+            mSink.write(timestamps_ns, values, values_per_sample, count);
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (mSink != null) {
+            mSink.flush();
+        }
+    }
+
+    /**
+     * Closes the current sink, if any.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mSink != null) {
+            mSink.close();
+            mSink = null;
+        }
+    }
+
+    private ImuSink mSink;
+}
@@ -0,0 +1,223 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Splits a continuously running capture into takes.
+ *
+ * A take is a segment of the recording with its own output files.  Starting or stopping
+ * one only swaps outputs; the camera session and sensor listeners stay up in between.
+ * A take can also be rotated into a new one once it reaches a duration or frame limit.
+ *
+ * Listener calls are made without the lock held, so the listener may wait on the thread
+ * that delivers onFrame().  Frames that arrive while a take is being opened or closed
+ * are not counted.  Times are passed in by the caller (elapsedRealtimeNanos on device),
+ * which keeps this free of Android types.
+ */
+class TakeController {
+    /** No limit on segment duration or frames. */
+    static final long UNLIMITED = 0;
+
+    static final String SUMMARY_HEADER =
+            "# take start_request_ns time_to_first_frame_ns first_frame_ns last_frame_ns frames stop_ns";
+
+    interface Listener {
+        /**
+         * Opens the outputs of the take.  If this throws, the take is abandoned and its index
+         * is not reused.
+         */
+        void onTakeStarted(@NonNull Take take) throws IOException;
+
+        /**
+         * Closes the outputs of the take.
+         */
+        void onTakeStopped(@NonNull Take take);
+    }
+
+    static class Take {
+        Take(int index, long start_request_ns) {
+            mIndex = index;
+            mStartRequestNs = start_request_ns;
+        }
+
+        int getIndex() {
+            return mIndex;
+        }
+
+        @NonNull
+        String getName() {
+            return String.format(Locale.US, "take_%03d", mIndex);
+        }
+
+        long getStartRequestNs() {
+            return mStartRequestNs;
+        }
+
+        /**
+         * Time from the start request to the arrival of the take's first frame, or -1 if no
+         * frame has arrived.
+         */
+        long getTimeToFirstFrameNs() {
+            return mFrames > 0 ? mFirstFrameArrivalNs - mStartRequestNs : -1;
+        }
+
+        long getFirstFrameTimestampNs() {
+            return mFirstFrameTimestampNs;
+        }
+
+        long getLastFrameTimestampNs() {
+            return mLastFrameTimestampNs;
+        }
+
+        long getFrameCount() {
+            return mFrames;
+        }
+
+        long getStopNs() {
+            return mStopNs;
+        }
+
+        String formatSummary() {
+            return String.format(Locale.US, "%s %d %d %d %d %d %d", getName(), mStartRequestNs,
+                    getTimeToFirstFrameNs(), mFirstFrameTimestampNs, mLastFrameTimestampNs,
+                    mFrames, mStopNs);
+        }
+
+        private final int mIndex;
+        private final long mStartRequestNs;
+        private long mFirstFrameArrivalNs;
+        private long mFirstFrameTimestampNs;
+        private long mLastFrameTimestampNs;
+        private long mFrames;
+        private long mStopNs;
+    }
+
+    private enum State {
+        IDLE,
+        STARTING,
+        RECORDING,
+        STOPPING,
+    }
+
+    TakeController(@NonNull Listener listener, long max_segment_duration_ns, long max_segment_frames) {
+        mListener = listener;
+        mMaxSegmentDurationNs = max_segment_duration_ns;
+        mMaxSegmentFrames = max_segment_frames;
+    }
+
+    synchronized boolean isRecording() {
+        return mState == State.RECORDING;
+    }
+
+    /**
+     * Returns the take being recorded, or null.
+     */
+    synchronized Take getCurrentTake() {
+        return mState == State.RECORDING ? mCurrent : null;
+    }
+
+    /**
+     * Returns every take that was started, oldest first.
+     */
+    @NonNull
+    synchronized List<Take> getTakes() {
+        return Collections.unmodifiableList(new ArrayList<>(mTakes));
+    }
+
+    /**
+     * Starts a new take.  Throws IllegalStateException if one is already running.
+     */
+    @NonNull
+    Take start(long now_ns) throws IOException {
+        Take take;
+        synchronized (this) {
+            if (mState != State.IDLE) {
+                throw new IllegalStateException("Take already running: " + mState);
+            }
+            take = new Take(mNextIndex++, now_ns);
+            mCurrent = take;
+            mState = State.STARTING;
+        }
+        try {
+            mListener.onTakeStarted(take);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                mCurrent = null;
+                mState = State.IDLE;
+            }
+            throw e;
+        }
+        synchronized (this) {
+            mTakes.add(take);
+            mState = State.RECORDING;
+        }
+        return take;
+    }
+
+    /**
+     * Stops the current take and returns it, or returns null if none is running.
+     */
+    Take stop(long now_ns) {
+        Take take;
+        synchronized (this) {
+            if (mState != State.RECORDING) {
+                return null;
+            }
+            take = mCurrent;
+            take.mStopNs = now_ns;
+            mState = State.STOPPING;
+        }
+        mListener.onTakeStopped(take);
+        synchronized (this) {
+            mCurrent = null;
+            mState = State.IDLE;
+        }
+        return take;
+    }
+
+    /**
+     * Stops the current take and starts the next one.
+     */
+    @NonNull
+    Take rotate(long now_ns) throws IOException {
+        stop(now_ns);
+        return start(now_ns);
+    }
+
+    /**
+     * Counts a frame toward the current take.  Returns true once the take has reached its
+     * limits; the caller should then rotate() it, from a thread that may block.
+     */
+    synchronized boolean onFrame(long timestamp_ns, long arrival_ns) {
+        if (mState != State.RECORDING) {
+            return false;
+        }
+        Take take = mCurrent;
+        if (take.mFrames == 0) {
+            take.mFirstFrameArrivalNs = arrival_ns;
+            take.mFirstFrameTimestampNs = timestamp_ns;
+        }
+        take.mLastFrameTimestampNs = timestamp_ns;
+        ++take.mFrames;
+        if (mMaxSegmentFrames != UNLIMITED && take.mFrames >= mMaxSegmentFrames) {
+            return true;
+        }
+        return mMaxSegmentDurationNs != UNLIMITED
+                && timestamp_ns - take.mFirstFrameTimestampNs >= mMaxSegmentDurationNs;
+    }
+
+    private final Listener mListener;
+    private final long mMaxSegmentDurationNs;
+    private final long mMaxSegmentFrames;
+
+    private State mState = State.IDLE;
+    private Take mCurrent;
+    private int mNextIndex;
+    private final List<Take> mTakes = new ArrayList<>();
+}
@@ -0,0 +1,394 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the X-corners of a checkerboard or AprilGrid in a luma image and sums up where
+ * the target is and how sharp it is.  Pure Java on byte[] luma, so it runs and is
+ * benchmarked off-device as well (see TargetDetectorTest).
+ *
+ * Corners are found with the ChESS response (Bennett and Lasenby, 2014): of RING_SIZE
+ * samples on a circle of radius RING_RADIUS around a pixel, opposite samples agree and
+ * samples a quarter turn apart differ at an X-corner, but not on an edge or in a blob.
+ * The response image is computed in row bands on a fork/join pool, then thresholded and
+ * reduced to 3x3 local maxima.  An AprilGrid's black corner squares make the same
+ * X-corners as a checkerboard; the tags' insides add a few more, which do no harm.
+ *
+ * The target counts as found with at least min_corners corners.  The corners' centroid,
+ * spread and elongation describe the pose coarsely (see Detection); sharpness is the
+ * median, over corners, of the steepest pixel step near the corner over the corner's
+ * contrast, which is close to 1 for a sharp image and drops with defocus and motion
+ * blur regardless of lighting.
+ *
+ * Buffers are allocated up front; detect() only allocates its row band tasks.  Not thread-safe: one frame at a time per detector.
+ */
+class TargetDetector {
+    static final int RING_RADIUS = 5;
+    static final int RING_SIZE = 16;
+
+    static final int DEFAULT_RESPONSE_THRESHOLD = 256;
+    static final int DEFAULT_MIN_CORNERS = 12;
+    static final int DEFAULT_MAX_CORNERS = 2048;
+
+    // Rows per band of response computation.
+    private static final int ROWS_PER_TASK = 32;
+
+    // Half size of the window searched for the steepest step around a corner.
+    private static final int SHARPNESS_RADIUS = 2;
+
+    // (dx, dy) of the ring samples, a roughly even circle of radius RING_RADIUS.
+    private static final int[] RING_DX = {0, 2, 3, 5, 5, 5, 3, 2, 0, -2, -3, -5, -5, -5, -3, -2};
+    private static final int[] RING_DY = {-5, -5, -3, -2, 0, 2, 3, 5, 5, 5, 3, 2, 0, -2, -3, -5};
+
+    /**
+     * What detect() found.  Positions and spread are in fractions of the image width and
+     * height, so detections from streams of different sizes compare.
+     */
+    static class Detection {
+        boolean isTargetFound() {
+            return mTargetFound;
+        }
+
+        int getCornerCount() {
+            return mCornerCount;
+        }
+
+        double getCenterX() {
+            return mCenterX;
+        }
+
+        double getCenterY() {
+            return mCenterY;
+        }
+
+        /** Root mean square distance of the corners from their centroid; grows as the target nears. */
+        double getSpread() {
+            return mSpread;
+        }
+
+        /** 1 - minor / major axis of the corners' spread; grows as the target tilts. */
+        double getElongation() {
+            return mElongation;
+        }
+
+        /** Direction of the major axis, in radians in (-pi/2, pi/2]. */
+        double getAngle() {
+            return mAngle;
+        }
+
+        /** Median corner sharpness in [0, 1]; see TargetDetector. */
+        double getSharpness() {
+            return mSharpness;
+        }
+
+        /** Corner i's position in pixels. */
+        int getCornerX(int i) {
+            return mCornerX[i];
+        }
+
+        int getCornerY(int i) {
+            return mCornerY[i];
+        }
+
+        private Detection(int max_corners) {
+            mCornerX = new int[max_corners];
+            mCornerY = new int[max_corners];
+            mCornerSharpness = new double[max_corners];
+        }
+
+        private boolean mTargetFound;
+        private int mCornerCount;
+        private double mCenterX;
+        private double mCenterY;
+        private double mSpread;
+        private double mElongation;
+        private double mAngle;
+        private double mSharpness;
+        private final int[] mCornerX;
+        private final int[] mCornerY;
+        private final double[] mCornerSharpness;
+    }
+
+    TargetDetector(int width, int height, @NonNull ForkJoinPool pool) {
+        this(width, height, pool, DEFAULT_RESPONSE_THRESHOLD, DEFAULT_MIN_CORNERS, DEFAULT_MAX_CORNERS);
+    }
+
+    TargetDetector(int width, int height, @NonNull ForkJoinPool pool, int response_threshold,
+                   int min_corners, int max_corners) {
+        if (width <= 2 * RING_RADIUS + 2 || height <= 2 * RING_RADIUS + 2) {
+            throw new IllegalArgumentException("Image too small: " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+        mPool = pool;
+        mResponseThreshold = response_threshold;
+        mMinCorners = min_corners;
+        mResponse = new int[width * height];
+        mDetection = new Detection(max_corners);
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Detects in the width x height luma image at offset 0 of luma, row_stride bytes per
+     * row.  The returned Detection is reused by the next call.
+     */
+    @NonNull
+    Detection detect(@NonNull byte[] luma, int row_stride) {
+        if (row_stride < mWidth || luma.length < (mHeight - 1) * row_stride + mWidth) {
+            throw new IllegalArgumentException("Luma buffer too small for " + mWidth + "x" + mHeight
+                    + " with row stride " + row_stride);
+        }
+        mPool.invoke(new ResponseTask(luma, row_stride, RING_RADIUS, mHeight - RING_RADIUS));
+        findCorners();
+        summarize(luma, row_stride);
+        return mDetection;
+    }
+
+    private class ResponseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        ResponseTask(byte[] luma, int row_stride, int first_row, int end_row) {
+            mLuma = luma;
+            mRowStride = row_stride;
+            mFirstRow = first_row;
+            mEndRow = end_row;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEndRow - mFirstRow > ROWS_PER_TASK) {
+                int middle = (mFirstRow + mEndRow) >>> 1;
+                invokeAll(new ResponseTask(mLuma, mRowStride, mFirstRow, middle),
+                        new ResponseTask(mLuma, mRowStride, middle, mEndRow));
+                return;
+            }
+            computeResponse(mLuma, mRowStride, mFirstRow, mEndRow);
+        }
+
+        private final byte[] mLuma;
+        private final int mRowStride;
+        private final int mFirstRow;
+        private final int mEndRow;
+    }
+
+    // ChESS response of rows [first_row, end_row), away from the left and right borders.
+    // The ring is unrolled; this loop is nearly all of detect()'s time.
+    private void computeResponse(byte[] luma, int row_stride, int first_row, int end_row) {
+        int o0 = RING_DY[0] * row_stride + RING_DX[0];
+        int o1 = RING_DY[1] * row_stride + RING_DX[1];
+        int o2 = RING_DY[2] * row_stride + RING_DX[2];
+        int o3 = RING_DY[3] * row_stride + RING_DX[3];
+        int o4 = RING_DY[4] * row_stride + RING_DX[4];
+        int o5 = RING_DY[5] * row_stride + RING_DX[5];
+        int o6 = RING_DY[6] * row_stride + RING_DX[6];
+        int o7 = RING_DY[7] * row_stride + RING_DX[7];
+        int o8 = RING_DY[8] * row_stride + RING_DX[8];
+        int o9 = RING_DY[9] * row_stride + RING_DX[9];
+        int o10 = RING_DY[10] * row_stride + RING_DX[10];
+        int o11 = RING_DY[11] * row_stride + RING_DX[11];
+        int o12 = RING_DY[12] * row_stride + RING_DX[12];
+        int o13 = RING_DY[13] * row_stride + RING_DX[13];
+        int o14 = RING_DY[14] * row_stride + RING_DX[14];
+        int o15 = RING_DY[15] * row_stride + RING_DX[15];
+        int[] response = mResponse;
+        for (int y = first_row; y < end_row; ++y) {
+            int row = y * row_stride;
+            int out = y * mWidth;
+            for (int x = RING_RADIUS; x < mWidth - RING_RADIUS; ++x) {
+                int p = row + x;
+                int i0 = luma[p + o0] & 0xff;
+                int i1 = luma[p + o1] & 0xff;
+                int i2 = luma[p + o2] & 0xff;
+                int i3 = luma[p + o3] & 0xff;
+                int i4 = luma[p + o4] & 0xff;
+                int i5 = luma[p + o5] & 0xff;
+                int i6 = luma[p + o6] & 0xff;
+                int i7 = luma[p + o7] & 0xff;
+                int i8 = luma[p + o8] & 0xff;
+                int i9 = luma[p + o9] & 0xff;
+                int i10 = luma[p + o10] & 0xff;
+                int i11 = luma[p + o11] & 0xff;
+                int i12 = luma[p + o12] & 0xff;
+                int i13 = luma[p + o13] & 0xff;
+                int i14 = luma[p + o14] & 0xff;
+                int i15 = luma[p + o15] & 0xff;
+                int sum_response = Math.abs(i0 + i8 - i4 - i12) + Math.abs(i1 + i9 - i5 - i13)
+                        + Math.abs(i2 + i10 - i6 - i14) + Math.abs(i3 + i11 - i7 - i15);
+                if (sum_response < mResponseThreshold) {
+                    // The response is at most this, so the pixel is no corner; the bound,
+                    // being below every corner's response, suppresses none either.
+                    response[out + x] = sum_response;
+                    continue;
+                }
+                int diff_response = Math.abs(i0 - i8) + Math.abs(i1 - i9) + Math.abs(i2 - i10)
+                        + Math.abs(i3 - i11) + Math.abs(i4 - i12) + Math.abs(i5 - i13)
+                        + Math.abs(i6 - i14) + Math.abs(i7 - i15);
+                int ring_sum = i0 + i1 + i2 + i3 + i4 + i5 + i6 + i7
+                        + i8 + i9 + i10 + i11 + i12 + i13 + i14 + i15;
+                // Ring mean against the mean of the centre cross, both times 80.
+                int local_sum = (luma[p] & 0xff) + (luma[p - 1] & 0xff) + (luma[p + 1] & 0xff)
+                        + (luma[p - row_stride] & 0xff) + (luma[p + row_stride] & 0xff);
+                int mean_response = Math.abs(5 * ring_sum - 16 * local_sum) / 5;
+                response[out + x] = sum_response - diff_response - mean_response;
+            }
+        }
+    }
+
+    // Thresholded 3x3 local maxima of the response; ties go to the first in scan order.
+    private void findCorners() {
+        Detection detection = mDetection;
+        int[] response = mResponse;
+        int count = 0;
+        int max_corners = detection.mCornerX.length;
+        int margin = RING_RADIUS + 1;
+        for (int y = margin; y < mHeight - margin && count < max_corners; ++y) {
+            int row = y * mWidth;
+            for (int x = margin; x < mWidth - margin; ++x) {
+                int i = row + x;
+                int r = response[i];
+                if (r < mResponseThreshold) {
+                    continue;
+                }
+                if (r <= response[i - mWidth - 1] || r <= response[i - mWidth] || r <= response[i - mWidth + 1]
+                        || r <= response[i - 1] || r < response[i + 1]
+                        || r < response[i + mWidth - 1] || r < response[i + mWidth] || r < response[i + mWidth + 1]) {
+                    continue;
+                }
+                detection.mCornerX[count] = x;
+                detection.mCornerY[count] = y;
+                if (++count == max_corners) {
+                    break;
+                }
+            }
+        }
+        detection.mCornerCount = count;
+    }
+
+    private void summarize(byte[] luma, int row_stride) {
+        Detection detection = mDetection;
+        int count = detection.mCornerCount;
+        detection.mTargetFound = count >= mMinCorners;
+        if (count == 0) {
+            detection.mCenterX = 0;
+            detection.mCenterY = 0;
+            detection.mSpread = 0;
+            detection.mElongation = 0;
+            detection.mAngle = 0;
+            detection.mSharpness = 0;
+            return;
+        }
+        double sum_x = 0;
+        double sum_y = 0;
+        for (int i = 0; i < count; ++i) {
+            sum_x += (double) detection.mCornerX[i] / mWidth;
+            sum_y += (double) detection.mCornerY[i] / mHeight;
+        }
+        double cx = sum_x / count;
+        double cy = sum_y / count;
+        double sxx = 0;
+        double syy = 0;
+        double sxy = 0;
+        for (int i = 0; i < count; ++i) {
+            double dx = (double) detection.mCornerX[i] / mWidth - cx;
+            double dy = (double) detection.mCornerY[i] / mHeight - cy;
+            sxx += dx * dx;
+            syy += dy * dy;
+            sxy += dx * dy;
+            detection.mCornerSharpness[i] = cornerSharpness(luma, row_stride,
+                    detection.mCornerX[i], detection.mCornerY[i]);
+        }
+        sxx /= count;
+        syy /= count;
+        sxy /= count;
+        // Eigenvalues of the 2x2 covariance.
+        double half_trace = (sxx + syy) / 2;
+        double root = Math.sqrt(Math.max(0, (sxx - syy) * (sxx - syy) / 4 + sxy * sxy));
+        double major = half_trace + root;
+        double minor = Math.max(0, half_trace - root);
+        detection.mCenterX = cx;
+        detection.mCenterY = cy;
+        detection.mSpread = Math.sqrt(sxx + syy);
+        detection.mElongation = major > 0 ? 1 - Math.sqrt(minor / major) : 0;
+        detection.mAngle = 0.5 * Math.atan2(2 * sxy, sxx - syy);
+        detection.mSharpness = median(detection.mCornerSharpness, count);
+    }
+
+    // Steepest horizontal or vertical step within SHARPNESS_RADIUS of the corner, over the
+    // contrast seen on the ring.
+    private static double cornerSharpness(byte[] luma, int row_stride, int x, int y) {
+        int min = 255;
+        int max = 0;
+        int p = y * row_stride + x;
+        for (int n = 0; n < RING_SIZE; ++n) {
+            int v = luma[p + RING_DY[n] * row_stride + RING_DX[n]] & 0xff;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        if (max <= min) {
+            return 0;
+        }
+        int step = 0;
+        for (int dy = -SHARPNESS_RADIUS; dy <= SHARPNESS_RADIUS; ++dy) {
+            int q = p + dy * row_stride;
+            for (int dx = -SHARPNESS_RADIUS; dx <= SHARPNESS_RADIUS; ++dx) {
+                int v = luma[q + dx] & 0xff;
+                step = Math.max(step, Math.abs(v - (luma[q + dx + 1] & 0xff)));
+                step = Math.max(step, Math.abs(v - (luma[q + dx + row_stride] & 0xff)));
+            }
+        }
+        return Math.min(1.0, (double) step / (max - min));
+    }
+
+    // Median of values[0, count), partially reordering them.
+    private static double median(double[] values, int count) {
+        int k = count / 2;
+        int lo = 0;
+        int hi = count - 1;
+        while (lo < hi) {
+            double pivot = values[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    ++i;
+                }
+                while (values[j] > pivot) {
+                    --j;
+                }
+                if (i <= j) {
+                    double t = values[i];
+                    values[i] = values[j];
+                    values[j] = t;
+                    ++i;
+                    --j;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                break;
+            }
+        }
+        return values[k];
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final ForkJoinPool mPool;
+    private final int mResponseThreshold;
+    private final int mMinCorners;
+    private final int[] mResponse;
+    private final Detection mDetection;
+}
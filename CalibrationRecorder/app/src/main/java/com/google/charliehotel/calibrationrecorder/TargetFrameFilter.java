@@ -0,0 +1,206 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Decides which of a camera's frames are worth writing, from a low-resolution YUV stream
+ * captured alongside the full-resolution one.
+ *
+ * Every low-res frame's luma is copied out and run through TargetDetector, on a fork/join
+ * pool, and FrameSelector, on the filter's own thread.  The decision and what it was
+ * based on are remembered by SENSOR_TIMESTAMP, which the full-resolution image of the
+ * same capture shares, for the camera to look up with getDecision().  If detection falls
+ * behind, frames waiting in the reader are decided REJECT_BUSY unseen and only the
+ * newest is detected, so the low-res stream never stalls the session.
+ */
+class TargetFrameFilter {
+    private static final String TAG = "CalibrationRecorder";
+
+    /** getDecision() of a frame not decided yet, or never seen. */
+    static final int UNDECIDED = -1;
+
+    /**
+     * One line per full-resolution image, whether it was written or not; see
+     * encodeSelectionLine().
+     */
+    static final String SELECTION_LOG_HEADER =
+            "# timestamp_ns keep reason corners sharpness_permille novelty_permille";
+
+    // Decisions remembered; the full-resolution image arrives within a few frames.
+    private static final int DECISIONS_TRACKED = 64;
+
+    // One image being copied, one arriving.
+    private static final int MAX_READER_IMAGES = 2;
+
+    interface Listener {
+        /**
+         * Called on the filter's thread after a frame has been decided.
+         */
+        void onFrameDecided(long timestamp_ns);
+    }
+
+    TargetFrameFilter(@NonNull String name, int width, int height, int detector_threads,
+                      @NonNull MetricsRegistry.Histogram detection_ns, @NonNull Listener listener) {
+        mName = name;
+        mListener = listener;
+        mDetectionNs = detection_ns;
+        mPool = new ForkJoinPool(detector_threads);
+        mDetector = new TargetDetector(width, height, mPool);
+        mSelector = new FrameSelector();
+        mThread = new HandlerThread(name);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, MAX_READER_IMAGES);
+        mReader.setOnImageAvailableListener(mOnImageAvailableListener, mHandler);
+    }
+
+    /**
+     * The low-res surface; add it to the session and to every request the full-resolution
+     * images come from.
+     */
+    @NonNull
+    Surface getSurface() {
+        return mReader.getSurface();
+    }
+
+    int getWidth() {
+        return mDetector.getWidth();
+    }
+
+    int getHeight() {
+        return mDetector.getHeight();
+    }
+
+    /**
+     * Returns a FrameSelector decision for the frame with the given SENSOR_TIMESTAMP, or
+     * UNDECIDED.
+     */
+    synchronized int getDecision(long timestamp_ns) {
+        int i = find(timestamp_ns);
+        return i < 0 ? UNDECIDED : mDecisions[i];
+    }
+
+    /**
+     * Encodes the SELECTION_LOG_HEADER line of a full-resolution image, whose timestamp has
+     * the camera's offset applied like the metadata log's.
+     */
+    @NonNull
+    TextRecordEncoder encodeSelectionLine(@NonNull TextRecordEncoder encoder, long raw_timestamp_ns,
+                                          long adjusted_timestamp_ns, int decision) {
+        encoder.putLong(adjusted_timestamp_ns).putSpace()
+                .putLong(FrameSelector.isKeep(decision) ? 1 : 0).putSpace()
+                .putAscii(FrameSelector.reason(decision)).putSpace();
+        synchronized (this) {
+            int i = find(raw_timestamp_ns);
+            encoder.putLong(i < 0 ? 0 : mCorners[i]).putSpace()
+                    .putLong(i < 0 ? 0 : mSharpnessPermille[i]).putSpace()
+                    .putLong(i < 0 ? 0 : mNoveltyPermille[i]);
+        }
+        return encoder.putNewline();
+    }
+
+    void close() {
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mReader.close();
+        mPool.shutdown();
+        Log.i(TAG, mName + " kept " + mSelector.getKeptCount() + " frames");
+    }
+
+    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (image == null) {
+                return;
+            }
+            // Anything that queued up behind is newer; skip to the newest.
+            Image next;
+            while ((next = reader.acquireNextImage()) != null) {
+                long skipped_ns = image.getTimestamp();
+                image.close();
+                record(skipped_ns, FrameSelector.REJECT_BUSY, 0, 0, 0);
+                mListener.onFrameDecided(skipped_ns);
+                image = next;
+            }
+            long timestamp_ns = image.getTimestamp();
+            Image.Plane luma_plane = image.getPlanes()[0];
+            int row_stride = luma_plane.getRowStride();
+            ByteBuffer buffer = luma_plane.getBuffer();
+            if (mLuma == null || mLuma.length < buffer.remaining()) {
+                mLuma = new byte[buffer.remaining()];
+            }
+            buffer.get(mLuma, 0, buffer.remaining());
+            image.close();
+
+            long start_ns = System.nanoTime();
+            TargetDetector.Detection detection = mDetector.detect(mLuma, row_stride);
+            int decision = mSelector.decide(detection);
+            mDetectionNs.record(System.nanoTime() - start_ns);
+            record(timestamp_ns, decision, detection.getCornerCount(),
+                    (int) Math.round(1000 * detection.getSharpness()),
+                    (int) Math.min(Integer.MAX_VALUE, Math.round(1000 * mSelector.getLastNovelty())));
+            mListener.onFrameDecided(timestamp_ns);
+        }
+    };
+
+    private synchronized void record(long timestamp_ns, int decision, int corners,
+                                     int sharpness_permille, int novelty_permille) {
+        int i = mNextDecision;
+        mNextDecision = (mNextDecision + 1) % DECISIONS_TRACKED;
+        mTimestampsNs[i] = timestamp_ns;
+        mDecisions[i] = decision;
+        mCorners[i] = corners;
+        mSharpnessPermille[i] = sharpness_permille;
+        mNoveltyPermille[i] = novelty_permille;
+        if (mRecorded < DECISIONS_TRACKED) {
+            ++mRecorded;
+        }
+    }
+
+    // Called with the lock held.
+    private int find(long timestamp_ns) {
+        for (int i = 0; i < mRecorded; ++i) {
+            if (mTimestampsNs[i] == timestamp_ns) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private final String mName;
+    private final Listener mListener;
+    private final MetricsRegistry.Histogram mDetectionNs;
+    private final ForkJoinPool mPool;
+    private final TargetDetector mDetector;
+    private final FrameSelector mSelector;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final ImageReader mReader;
+
+    // Used on mThread only.
+    private byte[] mLuma;
+
+    private final long[] mTimestampsNs = new long[DECISIONS_TRACKED];
+    private final int[] mDecisions = new int[DECISIONS_TRACKED];
+    private final int[] mCorners = new int[DECISIONS_TRACKED];
+    private final int[] mSharpnessPermille = new int[DECISIONS_TRACKED];
+    private final int[] mNoveltyPermille = new int[DECISIONS_TRACKED];
+    private int mNextDecision;
+    private int mRecorded;
+}
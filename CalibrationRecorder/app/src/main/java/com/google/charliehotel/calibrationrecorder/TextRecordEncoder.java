@@ -0,0 +1,181 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Builds text log records in a reused char buffer without boxing, format-string parsing or
+ * allocation.
+ *
+ * Output is identical to the String.format conversions it replaces: putLong() is "%d",
+ * putZeroPadded(v, 5) is "%05d" and putHexFloat() is "%a" of a float.  A record is
+ * assembled with the put methods and handed to a Writer in one write() call:
+ *
+ *   encoder.clear().putLong(t).putSpace().putHexFloat(x).putNewline().writeTo(writer);
+ *
+ * New fields cost nothing more than the characters they add.  Not thread-safe; keep one
+ * encoder per writing thread.
+ */
+class TextRecordEncoder {
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    TextRecordEncoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    TextRecordEncoder(int capacity) {
+        mChars = new char[capacity];
+    }
+
+    @NonNull
+    TextRecordEncoder clear() {
+        mLength = 0;
+        return this;
+    }
+
+    int length() {
+        return mLength;
+    }
+
+    @NonNull
+    TextRecordEncoder putChar(char c) {
+        ensureCapacity(1);
+        mChars[mLength++] = c;
+        return this;
+    }
+
+    @NonNull
+    TextRecordEncoder putSpace() {
+        return putChar(' ');
+    }
+
+    @NonNull
+    TextRecordEncoder putNewline() {
+        return putChar('\n');
+    }
+
+    @NonNull
+    TextRecordEncoder putAscii(@NonNull String s) {
+        ensureCapacity(s.length());
+        s.getChars(0, s.length(), mChars, mLength);
+        mLength += s.length();
+        return this;
+    }
+
+    /**
+     * Equivalent to "%d".
+     */
+    @NonNull
+    TextRecordEncoder putLong(long value) {
+        return putZeroPadded(value, 0);
+    }
+
+    /**
+     * Equivalent to "%0<width>d": at least width characters, sign included.
+     */
+    @NonNull
+    TextRecordEncoder putZeroPadded(long value, int width) {
+        ensureCapacity(Math.max(width, 20));
+        boolean negative = value < 0;
+        int digits = 0;
+        // Count digits on the negative side so Long.MIN_VALUE needs no special case.
+        long v = negative ? value : -value;
+        do {
+            ++digits;
+            v /= 10;
+        } while (v != 0);
+        int length = Math.max(width, digits + (negative ? 1 : 0));
+        int end = mLength + length;
+        v = negative ? value : -value;
+        for (int i = end - 1; i >= end - digits; --i) {
+            mChars[i] = (char) ('0' - (v % 10));
+            v /= 10;
+        }
+        for (int i = mLength; i < end - digits; ++i) {
+            mChars[i] = '0';
+        }
+        if (negative) {
+            mChars[mLength] = '-';
+        }
+        mLength = end;
+        return this;
+    }
+
+    /**
+     * Equivalent to "%a" of a float, which formats the value widened to double.
+     */
+    @NonNull
+    TextRecordEncoder putHexFloat(float value) {
+        return putHexDouble(value);
+    }
+
+    @NonNull
+    TextRecordEncoder putHexFloats(@NonNull float[] values) {
+        for (int i = 0; i < values.length; ++i) {
+            if (i > 0) {
+                putSpace();
+            }
+            putHexFloat(values[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Equivalent to "%a" of a double, i.e. Double.toHexString().
+     */
+    @NonNull
+    TextRecordEncoder putHexDouble(double value) {
+        if (Double.isNaN(value)) {
+            return putAscii("NaN");
+        }
+        ensureCapacity(24);
+        long bits = Double.doubleToRawLongBits(value);
+        if (bits < 0) {
+            mChars[mLength++] = '-';
+        }
+        if (Double.isInfinite(value)) {
+            return putAscii("Infinity");
+        }
+        int biased_exponent = (int) ((bits >>> 52) & 0x7ff);
+        long significand = bits & 0xfffffffffffffL;
+        mChars[mLength++] = '0';
+        mChars[mLength++] = 'x';
+        if (biased_exponent == 0 && significand == 0) {
+            return putAscii("0.0p0");
+        }
+        mChars[mLength++] = biased_exponent == 0 ? '0' : '1';
+        mChars[mLength++] = '.';
+        int nibbles = 13;
+        while (nibbles > 1 && (significand & 0xf) == 0) {
+            significand >>>= 4;
+            --nibbles;
+        }
+        for (int i = nibbles - 1; i >= 0; --i) {
+            mChars[mLength++] = HEX_DIGITS[(int) ((significand >>> (4 * i)) & 0xf)];
+        }
+        mChars[mLength++] = 'p';
+        return putLong(biased_exponent == 0 ? -1022 : biased_exponent - 1023);
+    }
+
+    void writeTo(@NonNull Writer writer) throws IOException {
+        writer.write(mChars, 0, mLength);
+    }
+
+    @Override
+    public String toString() {
+        return new String(mChars, 0, mLength);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mChars.length) {
+            mChars = Arrays.copyOf(mChars, Math.max(2 * mChars.length, mLength + extra));
+        }
+    }
+
+    private char[] mChars;
+    private int mLength;
+}
@@ -0,0 +1,318 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Samples the kernel's thermal zones, like thermal_logger, and turns the hottest one into
+ * a throttle level the recorder can act on before the OS throttles for it.
+ *
+ * open() finds the thermal_zone* directories under the thermal directory, normally
+ * /sys/class/thermal, and opens each zone's temp file once.  sample() rereads them all
+ * from offset 0 into one reused buffer and parses the millidegrees in place, so sampling
+ * allocates nothing.  Every sample is written as one line:
+ *
+ *   timestamp_ns throttle_level <zone>_mC ...
+ *
+ * with a zone that could not be read written as "nan".  The caller passes the time in, so
+ * with SystemClock.elapsedRealtimeNanos() samples share the clock of the IMU streams.
+ *
+ * The throttle level goes up as soon as the hottest zone reaches a level's threshold and
+ * comes down only once it has cooled hysteresis below it, so a temperature hovering at a
+ * threshold does not flap.
+ *
+ * Nothing here depends on Android; run main() against a fake sysfs tree to try it.
+ */
+class ThermalSampler {
+    static final int THROTTLE_NONE = 0;
+    static final int THROTTLE_MODERATE = 1;
+    static final int THROTTLE_SEVERE = 2;
+
+    /** Temperature of a zone that could not be read. */
+    static final long UNAVAILABLE = Long.MIN_VALUE;
+
+    private static final String ZONE_PREFIX = "thermal_zone";
+
+    // Zone temp files hold one decimal number and a newline.
+    private static final int READ_BUFFER_SIZE = 32;
+
+    interface Listener {
+        /**
+         * Called from sample() when the throttle level changes.
+         */
+        void onThrottleLevelChanged(@NonNull ThermalSampler sampler, int level, long max_milli_c);
+    }
+
+    /**
+     * Thresholds are the hottest zone's temperature, in millidegrees Celsius, at which
+     * THROTTLE_MODERATE and THROTTLE_SEVERE start.
+     */
+    ThermalSampler(@NonNull File thermal_dir, long moderate_milli_c, long severe_milli_c,
+                   long hysteresis_milli_c) {
+        if (severe_milli_c < moderate_milli_c || hysteresis_milli_c < 0) {
+            throw new IllegalArgumentException("Bad thresholds " + moderate_milli_c + " "
+                    + severe_milli_c + " " + hysteresis_milli_c);
+        }
+        mThermalDir = thermal_dir;
+        mThresholdsMilliC = new long[]{moderate_milli_c, severe_milli_c};
+        mHysteresisMilliC = hysteresis_milli_c;
+    }
+
+    void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Where samples are written, or null.  The sampler does not close it.
+     */
+    void setLog(@Nullable Writer writer) {
+        mLog = writer;
+    }
+
+    /**
+     * Opens the zones whose type is one of zone_types, or all of them if it is null.
+     * Zones whose temp file cannot be opened are left out.  Throws if none is left.
+     */
+    void open(@Nullable String[] zone_types) throws IOException {
+        File[] dirs = mThermalDir.listFiles();
+        if (dirs == null) {
+            throw new IOException("Cannot list " + mThermalDir);
+        }
+        Arrays.sort(dirs, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Integer.compare(zoneNumber(lhs), zoneNumber(rhs));
+            }
+        });
+        List<String> types = zone_types != null ? Arrays.asList(zone_types) : null;
+        List<String> names = new ArrayList<>();
+        List<FileChannel> channels = new ArrayList<>();
+        for (File dir : dirs) {
+            if (zoneNumber(dir) < 0) {
+                continue;
+            }
+            String type = readType(dir);
+            if (types != null && !types.contains(type)) {
+                continue;
+            }
+            try {
+                channels.add(new RandomAccessFile(new File(dir, "temp"), "r").getChannel());
+                names.add(type.isEmpty() ? dir.getName() : type.replaceAll("\\s+", "_"));
+            } catch (IOException e) {
+                // Some zones exist but cannot be read without privileges.
+            }
+        }
+        if (channels.isEmpty()) {
+            throw new IOException("No readable thermal zones under " + mThermalDir);
+        }
+        mZoneNames = names.toArray(new String[names.size()]);
+        mChannels = channels.toArray(new FileChannel[channels.size()]);
+        mTempsMilliC = new long[mChannels.length];
+        Arrays.fill(mTempsMilliC, UNAVAILABLE);
+    }
+
+    void close() {
+        if (mChannels == null) {
+            return;
+        }
+        for (FileChannel channel : mChannels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+        }
+        mChannels = null;
+    }
+
+    /** Names of the open zones, as in the header. */
+    @NonNull
+    String[] getZoneNames() {
+        return mZoneNames;
+    }
+
+    @NonNull
+    String getHeader() {
+        StringBuilder header = new StringBuilder("# timestamp_ns throttle_level");
+        for (String name : mZoneNames) {
+            header.append(' ').append(name).append("_mC");
+        }
+        return header.toString();
+    }
+
+    /**
+     * Reads every zone, updates the throttle level and writes one line.  Returns the
+     * hottest temperature, or UNAVAILABLE if no zone could be read.
+     */
+    long sample(long timestamp_ns) throws IOException {
+        long max_milli_c = UNAVAILABLE;
+        for (int i = 0; i < mChannels.length; ++i) {
+            long milli_c = readMilliC(mChannels[i]);
+            mTempsMilliC[i] = milli_c;
+            if (milli_c != UNAVAILABLE && milli_c > max_milli_c) {
+                max_milli_c = milli_c;
+            }
+        }
+        ++mSamples;
+        mMaxMilliC = max_milli_c;
+        if (max_milli_c != UNAVAILABLE) {
+            updateThrottleLevel(max_milli_c);
+        }
+        Writer log = mLog;
+        if (log != null) {
+            mEncoder.clear().putLong(timestamp_ns).putSpace().putLong(mThrottleLevel);
+            for (long milli_c : mTempsMilliC) {
+                mEncoder.putSpace();
+                if (milli_c == UNAVAILABLE) {
+                    mEncoder.putAscii("nan");
+                } else {
+                    mEncoder.putLong(milli_c);
+                }
+            }
+            mEncoder.putNewline().writeTo(log);
+        }
+        return max_milli_c;
+    }
+
+    int getThrottleLevel() {
+        return mThrottleLevel;
+    }
+
+    /** The hottest zone at the last sample, or UNAVAILABLE. */
+    long getMaxMilliC() {
+        return mMaxMilliC;
+    }
+
+    /** The zone's temperature at the last sample, or UNAVAILABLE. */
+    long getTempMilliC(int zone) {
+        return mTempsMilliC[zone];
+    }
+
+    long getSampleCount() {
+        return mSamples;
+    }
+
+    private void updateThrottleLevel(long max_milli_c) {
+        int level = mThrottleLevel;
+        while (level < mThresholdsMilliC.length && max_milli_c >= mThresholdsMilliC[level]) {
+            ++level;
+        }
+        while (level > THROTTLE_NONE && max_milli_c < mThresholdsMilliC[level - 1] - mHysteresisMilliC) {
+            --level;
+        }
+        if (level == mThrottleLevel) {
+            return;
+        }
+        mThrottleLevel = level;
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onThrottleLevelChanged(this, level, max_milli_c);
+        }
+    }
+
+    private long readMilliC(FileChannel channel) {
+        ByteBuffer buffer = mReadBuffer;
+        buffer.clear();
+        int n;
+        try {
+            n = channel.read(buffer, 0);
+        } catch (IOException e) {
+            // Zones of powered down devices fail reads until they come back.
+            return UNAVAILABLE;
+        }
+        byte[] bytes = buffer.array();
+        int i = 0;
+        boolean negative = n > 0 && bytes[0] == '-';
+        if (negative) {
+            ++i;
+        }
+        int digits_start = i;
+        long value = 0;
+        while (i < n && bytes[i] >= '0' && bytes[i] <= '9') {
+            value = value * 10 + (bytes[i] - '0');
+            ++i;
+        }
+        if (i == digits_start) {
+            return UNAVAILABLE;
+        }
+        return negative ? -value : value;
+    }
+
+    private static int zoneNumber(File dir) {
+        String name = dir.getName();
+        if (!name.startsWith(ZONE_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(ZONE_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String readType(File dir) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(new File(dir, "type")));
+            try {
+                String type = reader.readLine();
+                return type != null ? type.trim() : "";
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: ThermalSampler <thermal dir> [samples [interval_ms]]");
+            System.exit(1);
+        }
+        int samples = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        long interval_ms = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+        ThermalSampler sampler = new ThermalSampler(new File(args[0]), 70000, 85000, 5000);
+        sampler.open(null);
+        Writer out = new OutputStreamWriter(System.out);
+        out.write(sampler.getHeader() + "\n");
+        sampler.setLog(out);
+        for (int i = 0; i < samples; ++i) {
+            if (i > 0) {
+                Thread.sleep(interval_ms);
+            }
+            sampler.sample(System.nanoTime());
+            out.flush();
+        }
+        sampler.close();
+    }
+
+    private final File mThermalDir;
+    private final long[] mThresholdsMilliC;
+    private final long mHysteresisMilliC;
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final TextRecordEncoder mEncoder = new TextRecordEncoder();
+
+    private Listener mListener;
+    private Writer mLog;
+    private String[] mZoneNames;
+    private FileChannel[] mChannels;
+    private long[] mTempsMilliC;
+
+    private volatile int mThrottleLevel = THROTTLE_NONE;
+    private volatile long mMaxMilliC = UNAVAILABLE;
+    private volatile long mSamples;
+}
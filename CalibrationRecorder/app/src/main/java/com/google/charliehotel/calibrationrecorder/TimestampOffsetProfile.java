@@ -0,0 +1,87 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Per-device timestamp corrections, subtracted from each stream's timestamps.
+ *
+ * Profiles live in a properties file keyed by device model, for example
+ *
+ *   Pixel\ XL.accel_offset_ns=1370833
+ *   Pixel\ XL.gyro_offset_ns=1370833
+ *   Pixel\ XL.camera_offset_ns=0
+ *
+ * (1370833 ns is the BMI160's low-pass filter group delay at 200 Hz.)  Missing keys
+ * default to zero.
+ */
+class TimestampOffsetProfile {
+    static final TimestampOffsetProfile NONE = new TimestampOffsetProfile(0, 0, 0);
+
+    TimestampOffsetProfile(long accel_offset_ns, long gyro_offset_ns, long camera_offset_ns) {
+        mAccelOffsetNs = accel_offset_ns;
+        mGyroOffsetNs = gyro_offset_ns;
+        mCameraOffsetNs = camera_offset_ns;
+    }
+
+    long getAccelOffsetNs() {
+        return mAccelOffsetNs;
+    }
+
+    long getGyroOffsetNs() {
+        return mGyroOffsetNs;
+    }
+
+    long getCameraOffsetNs() {
+        return mCameraOffsetNs;
+    }
+
+    /**
+     * Loads the device's profile, or NONE if the file does not exist.
+     */
+    @NonNull
+    static TimestampOffsetProfile load(@NonNull File file, @NonNull String device)
+            throws IOException {
+        if (!file.exists()) {
+            return NONE;
+        }
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return new TimestampOffsetProfile(
+                getLong(properties, device + ".accel_offset_ns"),
+                getLong(properties, device + ".gyro_offset_ns"),
+                getLong(properties, device + ".camera_offset_ns"));
+    }
+
+    private static long getLong(Properties properties, String key) throws IOException {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad value for " + key + ": " + value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "accel_offset_ns=" + mAccelOffsetNs + " gyro_offset_ns=" + mGyroOffsetNs
+                + " camera_offset_ns=" + mCameraOffsetNs;
+    }
+
+    private final long mAccelOffsetNs;
+    private final long mGyroOffsetNs;
+    private final long mCameraOffsetNs;
+}
@@ -0,0 +1,280 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes camera frames to an MP4 file, one file per take.
+ *
+ * The input surface is a persistent one, so it can stay in the capture session while
+ * encoders come and go: a codec is configured on it up front, started by start(), and
+ * replaced by a fresh one after stop().  Encoded frames are muxed as they come out and
+ * reported to the take's VideoTimestampMap.
+ */
+class VideoEncoder {
+    private static final String TAG = "CalibrationRecorder";
+
+    // How long stop() waits for the encoder to drain.
+    private static final long DRAIN_TIMEOUT_MS = 2000;
+
+    static class Config {
+        /**
+         * mime_type is MediaFormat.MIMETYPE_VIDEO_AVC or MIMETYPE_VIDEO_HEVC.
+         */
+        Config(@NonNull String mime_type, int bit_rate, int i_frame_interval_s) {
+            mMimeType = mime_type;
+            mBitRate = bit_rate;
+            mIFrameIntervalS = i_frame_interval_s;
+        }
+
+        @Override
+        public String toString() {
+            return mMimeType + " bit_rate=" + mBitRate + " i_frame_interval_s=" + mIFrameIntervalS;
+        }
+
+        private final String mMimeType;
+        private final int mBitRate;
+        private final int mIFrameIntervalS;
+    }
+
+    VideoEncoder(@NonNull String name, @NonNull Config config, int width, int height, int frame_rate)
+            throws IOException {
+        mName = name;
+        mConfig = config;
+        mWidth = width;
+        mHeight = height;
+        mFrameRate = frame_rate;
+        mSurface = MediaCodec.createPersistentInputSurface();
+        mThread = new HandlerThread(name);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        prepare();
+    }
+
+    /**
+     * The surface to add to the capture session.  Frames sent to it while no take is
+     * being encoded are discarded.
+     */
+    @NonNull
+    Surface getInputSurface() {
+        return mSurface;
+    }
+
+    boolean isRecording() {
+        return mMap != null;
+    }
+
+    /**
+     * Starts encoding to a new file.  Every capture sent to the input surface from now on
+     * must be reported with addCapture().
+     */
+    void start(@NonNull File file, @NonNull VideoTimestampMap map) throws IOException {
+        if (mCodec == null) {
+            prepare();
+        }
+        mMuxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mEndOfStream = new CountDownLatch(1);
+        mMap = map;
+        map.writeHeader();
+        mCodec.start();
+        Log.i(TAG, mName + " encoding " + mWidth + "x" + mHeight + " " + mConfig + " to " + file);
+    }
+
+    /**
+     * Called on the camera's background thread with every capture sent to the encoder.
+     */
+    void addCapture(long sensor_timestamp_ns, long timestamp_ns, long frame_number) {
+        VideoTimestampMap map = mMap;
+        if (map == null) {
+            return;
+        }
+        try {
+            map.addCapture(sensor_timestamp_ns, timestamp_ns, frame_number);
+        } catch (IOException e) {
+            Log.e(TAG, mName + " could not write video timestamps: " + e);
+        }
+    }
+
+    /**
+     * Ends the file: drains the encoder, finishes the muxer and timestamp map, and readies
+     * a new codec for the next start().
+     */
+    void stop() {
+        VideoTimestampMap map = mMap;
+        if (map == null) {
+            return;
+        }
+        try {
+            mCodec.signalEndOfInputStream();
+            if (!mEndOfStream.await(DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, mName + " did not drain");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, mName + " could not end stream: " + e);
+        }
+        releaseCodecOnThread();
+        if (mMuxerStarted) {
+            mMuxer.stop();
+            mMuxerStarted = false;
+        }
+        mMuxer.release();
+        mMuxer = null;
+        mMap = null;
+        try {
+            map.finish();
+        } catch (IOException e) {
+            Log.e(TAG, mName + " could not write video timestamps: " + e);
+        }
+        Log.i(TAG, mName + " encoded " + map.getEncodedFrameCount() + " frames, "
+                + map.getUnmatchedFrameCount() + " without capture result, "
+                + map.getSkippedCaptureCount() + " captures skipped");
+        try {
+            prepare();
+        } catch (IOException e) {
+            Log.e(TAG, mName + " could not prepare encoder: " + e);
+        }
+    }
+
+    void release() {
+        stop();
+        releaseCodecOnThread();
+        mSurface.release();
+        mThread.quitSafely();
+    }
+
+    private void prepare() throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(mConfig.mMimeType, mWidth, mHeight);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mConfig.mBitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mConfig.mIFrameIntervalS);
+        MediaCodec codec = MediaCodec.createEncoderByType(mConfig.mMimeType);
+        codec.setCallback(mCallback, mHandler);
+        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        codec.setInputSurface(mSurface);
+        mCodec = codec;
+    }
+
+    /**
+     * Releases the codec on the callback thread, so no callback is using it meanwhile;
+     * callbacks dispatched before and run after see that it is gone.
+     */
+    private void releaseCodecOnThread() {
+        final CountDownLatch released = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseCodec();
+                released.countDown();
+            }
+        });
+        try {
+            if (!released.await(DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, mName + " codec release timed out");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void releaseCodec() {
+        MediaCodec codec = mCodec;
+        if (codec == null) {
+            return;
+        }
+        mCodec = null;
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            // Never started.
+        }
+        codec.release();
+    }
+
+    // Runs on mThread.
+    private final MediaCodec.Callback mCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            // Input comes from the surface.
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            if (codec != mCodec) {
+                return;
+            }
+            Log.i(TAG, mName + " output format " + format);
+            mTrack = mMuxer.addTrack(format);
+            mMuxer.start();
+            mMuxerStarted = true;
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                                            @NonNull MediaCodec.BufferInfo info) {
+            if (codec != mCodec) {
+                // Released after this was dispatched.
+                return;
+            }
+            boolean end_of_stream = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            // Codec config goes into the track format, not the samples.
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0 && mMuxerStarted) {
+                ByteBuffer buffer = codec.getOutputBuffer(index);
+                mMuxer.writeSampleData(mTrack, buffer, info);
+                VideoTimestampMap map = mMap;
+                if (map != null) {
+                    try {
+                        map.onEncodedFrame(info.presentationTimeUs,
+                                (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                    } catch (IOException e) {
+                        Log.e(TAG, mName + " could not write video timestamps: " + e);
+                    }
+                }
+            }
+            codec.releaseOutputBuffer(index, false);
+            if (end_of_stream) {
+                mEndOfStream.countDown();
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, mName + " encoder error: " + e);
+            CountDownLatch end_of_stream = mEndOfStream;
+            if (end_of_stream != null) {
+                end_of_stream.countDown();
+            }
+        }
+    };
+
+    private final String mName;
+    private final Config mConfig;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameRate;
+    private final Surface mSurface;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private volatile MediaCodec mCodec;
+    private volatile MediaMuxer mMuxer;
+    private volatile boolean mMuxerStarted;
+    private int mTrack;
+    private volatile CountDownLatch mEndOfStream;
+    private volatile VideoTimestampMap mMap;
+}
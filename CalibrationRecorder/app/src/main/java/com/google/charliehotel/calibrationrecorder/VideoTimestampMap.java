@@ -0,0 +1,309 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Maps encoded video frames back to the captures they came from.
+ *
+ * The camera stamps every buffer it sends to the encoder's input surface with its
+ * SENSOR_TIMESTAMP, which the encoder turns into a presentation time in microseconds.
+ * addCapture() is called with every capture result, onEncodedFrame() with every frame
+ * the encoder puts out; they are matched by presentation time, in whatever order they
+ * arrive, and each encoded frame gets one sidecar line:
+ *
+ *   index pts_us track_time_us timestamp_ns frame_number key_frame
+ *
+ * index counts encoded frames in output order.  track_time_us is pts_us less the first
+ * frame's, which is what a demuxer like AMediaExtractor reports for the MP4 track.
+ * timestamp_ns and frame_number are the capture's, exactly as in the image metadata
+ * file, or -1 for a frame whose capture result never arrived.  Captures the encoder
+ * skipped get no line.
+ *
+ * Table reads the sidecar back; main() maps decoder output times read from stdin:
+ *
+ *   h264_decode video.mp4 | java VideoTimestampMap video_frames.txt
+ */
+class VideoTimestampMap {
+    static final String HEADER = "# index pts_us track_time_us timestamp_ns frame_number key_frame";
+
+    /** timestamp_ns and frame_number of a frame without capture result. */
+    static final long UNMATCHED = -1;
+
+    // Nanosecond timestamps are truncated to microseconds on the way through the encoder.
+    private static final long PTS_TOLERANCE_US = 1;
+
+    // Captures and encoded frames waiting for their counterpart.  Encoder latency is a few
+    // frames; anything older than this never gets matched.
+    private static final int PENDING_CAPACITY = 64;
+
+    VideoTimestampMap(@NonNull Writer writer) {
+        mWriter = writer;
+    }
+
+    void writeHeader() throws IOException {
+        mWriter.write(HEADER + "\n");
+    }
+
+    /**
+     * Records a capture that was sent to the encoder.  sensor_timestamp_ns is the raw
+     * SENSOR_TIMESTAMP; timestamp_ns is the one written to the metadata file.
+     */
+    synchronized void addCapture(long sensor_timestamp_ns, long timestamp_ns, long frame_number)
+            throws IOException {
+        long pts_us = sensor_timestamp_ns / 1000;
+        for (int i = 0; i < mPendingFrameCount; ++i) {
+            if (Math.abs(mPendingFramePtsUs[i] - pts_us) <= PTS_TOLERANCE_US) {
+                write(mPendingFrameIndex[i], mPendingFramePtsUs[i], timestamp_ns, frame_number,
+                        mPendingFrameKey[i]);
+                removePendingFrame(i);
+                return;
+            }
+        }
+        if (mCaptureCount == PENDING_CAPACITY) {
+            removeCapture(0);
+            ++mSkippedCaptures;
+        }
+        mCapturePtsUs[mCaptureCount] = pts_us;
+        mCaptureTimestampNs[mCaptureCount] = timestamp_ns;
+        mCaptureFrameNumber[mCaptureCount] = frame_number;
+        ++mCaptureCount;
+    }
+
+    /**
+     * Records a frame the encoder put out, in output order.  Codec config buffers are not
+     * frames and must not be passed in.
+     */
+    synchronized void onEncodedFrame(long pts_us, boolean key_frame) throws IOException {
+        long index = mEncodedFrames++;
+        if (index == 0) {
+            mFirstPtsUs = pts_us;
+        }
+        for (int i = 0; i < mCaptureCount; ++i) {
+            if (Math.abs(mCapturePtsUs[i] - pts_us) <= PTS_TOLERANCE_US) {
+                write(index, pts_us, mCaptureTimestampNs[i], mCaptureFrameNumber[i], key_frame);
+                // Earlier captures may still come out of an encoder that reorders frames;
+                // those that do not are counted as skipped when they age out.
+                removeCapture(i);
+                return;
+            }
+        }
+        if (mPendingFrameCount == PENDING_CAPACITY) {
+            writeUnmatched(0);
+        }
+        mPendingFrameIndex[mPendingFrameCount] = index;
+        mPendingFramePtsUs[mPendingFrameCount] = pts_us;
+        mPendingFrameKey[mPendingFrameCount] = key_frame;
+        ++mPendingFrameCount;
+    }
+
+    /**
+     * Writes the frames still waiting for a capture result as unmatched.
+     */
+    synchronized void finish() throws IOException {
+        while (mPendingFrameCount > 0) {
+            writeUnmatched(0);
+        }
+        mSkippedCaptures += mCaptureCount;
+        mCaptureCount = 0;
+        mWriter.flush();
+    }
+
+    synchronized long getEncodedFrameCount() {
+        return mEncodedFrames;
+    }
+
+    /** Encoded frames without capture result. */
+    synchronized long getUnmatchedFrameCount() {
+        return mUnmatchedFrames;
+    }
+
+    /** Captures sent to the encoder that it did not put out. */
+    synchronized long getSkippedCaptureCount() {
+        return mSkippedCaptures;
+    }
+
+    private void writeUnmatched(int pending) throws IOException {
+        write(mPendingFrameIndex[pending], mPendingFramePtsUs[pending], UNMATCHED, UNMATCHED,
+                mPendingFrameKey[pending]);
+        removePendingFrame(pending);
+        ++mUnmatchedFrames;
+    }
+
+    private void write(long index, long pts_us, long timestamp_ns, long frame_number,
+                       boolean key_frame) throws IOException {
+        mEncoder.clear()
+                .putLong(index).putSpace()
+                .putLong(pts_us).putSpace()
+                .putLong(pts_us - mFirstPtsUs).putSpace()
+                .putLong(timestamp_ns).putSpace()
+                .putLong(frame_number).putSpace()
+                .putChar(key_frame ? '1' : '0')
+                .putNewline()
+                .writeTo(mWriter);
+    }
+
+    private void removeCapture(int i) {
+        int tail = mCaptureCount - i - 1;
+        System.arraycopy(mCapturePtsUs, i + 1, mCapturePtsUs, i, tail);
+        System.arraycopy(mCaptureTimestampNs, i + 1, mCaptureTimestampNs, i, tail);
+        System.arraycopy(mCaptureFrameNumber, i + 1, mCaptureFrameNumber, i, tail);
+        --mCaptureCount;
+    }
+
+    private void removePendingFrame(int i) {
+        int tail = mPendingFrameCount - i - 1;
+        System.arraycopy(mPendingFrameIndex, i + 1, mPendingFrameIndex, i, tail);
+        System.arraycopy(mPendingFramePtsUs, i + 1, mPendingFramePtsUs, i, tail);
+        System.arraycopy(mPendingFrameKey, i + 1, mPendingFrameKey, i, tail);
+        --mPendingFrameCount;
+    }
+
+    /**
+     * A sidecar read back, for looking up decoded frames.
+     */
+    static class Table {
+        @NonNull
+        static Table read(@NonNull Reader reader) throws IOException {
+            List<long[]> rows = new ArrayList<>();
+            BufferedReader lines = new BufferedReader(reader);
+            String line;
+            while ((line = lines.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length != 6) {
+                    throw new IOException("Bad video frame line: " + line);
+                }
+                try {
+                    rows.add(new long[]{Long.parseLong(fields[1]), Long.parseLong(fields[3]),
+                            Long.parseLong(fields[4])});
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad video frame line: " + line);
+                }
+            }
+            long[][] sorted = rows.toArray(new long[rows.size()][]);
+            Arrays.sort(sorted, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] lhs, long[] rhs) {
+                    return Long.compare(lhs[0], rhs[0]);
+                }
+            });
+            Table table = new Table(sorted.length);
+            for (int i = 0; i < sorted.length; ++i) {
+                table.mPtsUs[i] = sorted[i][0];
+                table.mTimestampNs[i] = sorted[i][1];
+                table.mFrameNumber[i] = sorted[i][2];
+            }
+            return table;
+        }
+
+        private Table(int size) {
+            mPtsUs = new long[size];
+            mTimestampNs = new long[size];
+            mFrameNumber = new long[size];
+        }
+
+        int size() {
+            return mPtsUs.length;
+        }
+
+        /**
+         * Returns the row of the frame with the given presentation time, which may be the
+         * encoder's pts_us or a demuxer's track time, or -1 if there is none.
+         */
+        int find(long time_us) {
+            if (mPtsUs.length == 0) {
+                return -1;
+            }
+            long first_pts_us = mPtsUs[0];
+            long pts_us = time_us >= first_pts_us - PTS_TOLERANCE_US ? time_us : first_pts_us + time_us;
+            int i = Arrays.binarySearch(mPtsUs, pts_us);
+            if (i >= 0) {
+                return i;
+            }
+            int insertion = -i - 1;
+            for (int j = insertion - 1; j <= insertion; ++j) {
+                if (j >= 0 && j < mPtsUs.length && Math.abs(mPtsUs[j] - pts_us) <= PTS_TOLERANCE_US) {
+                    return j;
+                }
+            }
+            return -1;
+        }
+
+        long getPtsUs(int row) {
+            return mPtsUs[row];
+        }
+
+        long getTimestampNs(int row) {
+            return mTimestampNs[row];
+        }
+
+        long getFrameNumber(int row) {
+            return mFrameNumber[row];
+        }
+
+        private final long[] mPtsUs;
+        private final long[] mTimestampNs;
+        private final long[] mFrameNumber;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: VideoTimestampMap <video frames file> < decoder times");
+            System.exit(1);
+        }
+        Table table;
+        Reader reader = new FileReader(args[0]);
+        try {
+            table = Table.read(reader);
+        } finally {
+            reader.close();
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        Writer out = new OutputStreamWriter(System.out);
+        out.write("# time_us timestamp_ns frame_number\n");
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            long time_us = Long.parseLong(line.split("\\s+")[0]);
+            int row = table.find(time_us);
+            out.write(time_us + " " + (row < 0 ? UNMATCHED : table.getTimestampNs(row))
+                    + " " + (row < 0 ? UNMATCHED : table.getFrameNumber(row)) + "\n");
+        }
+        out.flush();
+    }
+
+    private final Writer mWriter;
+    private final TextRecordEncoder mEncoder = new TextRecordEncoder();
+
+    private final long[] mCapturePtsUs = new long[PENDING_CAPACITY];
+    private final long[] mCaptureTimestampNs = new long[PENDING_CAPACITY];
+    private final long[] mCaptureFrameNumber = new long[PENDING_CAPACITY];
+    private int mCaptureCount;
+
+    private final long[] mPendingFrameIndex = new long[PENDING_CAPACITY];
+    private final long[] mPendingFramePtsUs = new long[PENDING_CAPACITY];
+    private final boolean[] mPendingFrameKey = new boolean[PENDING_CAPACITY];
+    private int mPendingFrameCount;
+
+    private long mEncodedFrames;
+    private long mFirstPtsUs;
+    private long mUnmatchedFrames;
+    private long mSkippedCaptures;
+}
@@ -0,0 +1,162 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the per-frame metadata path keeps up with a high-speed session.
+ *
+ * Drives what Camera does on its background thread for every capture result of a
+ * high-speed session: one CaptureMetadataFormat line to a MappedLogWriter, and the
+ * capture and (a few frames later) its encoded frame to a VideoTimestampMap writing its
+ * own MappedLogWriter.  Results come in bursts of fps / 30, as the HAL delivers them.
+ * Two phases:
+ *
+ *   flat_out  as fast as possible, for the throughput the thread has to spare
+ *   paced     at the target rate in real time, for latency and late bursts
+ *
+ * A burst is late if it is not written before the next one arrives, i.e. the callback
+ * thread falls behind.  After each phase the logs are read back with
+ * SessionIndex.indexTextLog(); lost counts frame numbers missing from the metadata log
+ * plus video frames without their capture.  Nothing may be lost or late, and flat out
+ * must reach the target rate.
+ */
+public class CaptureMetadataBenchmarkTest {
+    // High-speed requests come in bursts of fps / BURST_BASE_FPS.
+    private static final int BURST_BASE_FPS = 30;
+
+    // Encoded frames trail their capture results by this many frames.
+    private static final int ENCODER_LAG_FRAMES = 4;
+
+    private static final long NS_PER_S = 1000000000L;
+    private static final long FIRST_TIMESTAMP_NS = 1000L * NS_PER_S;
+    private static final long EXPOSURE_NS = 2000000;
+    private static final long SKEW_NS = 3000000;
+    private static final double SECONDS = 2;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static class Result {
+        double getFramesPerSecond() {
+            return mElapsedNs > 0 ? mFrames * (double) NS_PER_S / mElapsedNs : 0;
+        }
+
+        String format(String phase, int fps) {
+            return String.format(Locale.US, "%s %d fps: %d frames in %.3f s, %.1f frames/s, p50 %d ns,"
+                            + " p99 %d ns, max %d ns, %d late bursts, %d lost", phase, fps, mFrames,
+                    mElapsedNs / 1e9, getFramesPerSecond(), mLatencyNs.getQuantile(0.5),
+                    mLatencyNs.getQuantile(0.99), mLatencyNs.getMax(), mLateBursts, mLost);
+        }
+
+        long mFrames;
+        long mElapsedNs;
+        // From a burst's arrival to each of its frames being written.
+        final MetricsRegistry.Histogram mLatencyNs = new MetricsRegistry.Histogram();
+        long mLateBursts;
+        long mLost;
+    }
+
+    private Result runPhase(int fps, long frames, boolean paced) throws IOException {
+        int burst = Math.max(1, fps / BURST_BASE_FPS);
+        long frame_duration_ns = NS_PER_S / fps;
+        long burst_duration_ns = frame_duration_ns * burst;
+        File metadata_file = mFolder.newFile();
+        File video_frames_file = mFolder.newFile();
+        MappedLogWriter metadata_writer = new MappedLogWriter(metadata_file);
+        MappedLogWriter video_frames_writer = new MappedLogWriter(video_frames_file);
+        VideoTimestampMap map = new VideoTimestampMap(video_frames_writer);
+        map.writeHeader();
+        TextRecordEncoder encoder = new TextRecordEncoder();
+
+        Result result = new Result();
+        long start_ns = System.nanoTime();
+        long frame = 0;
+        try {
+            for (long burst_start = 0; frame < frames; burst_start += burst_duration_ns) {
+                long arrival_ns = start_ns + burst_start;
+                if (paced) {
+                    long wait_ns;
+                    while ((wait_ns = arrival_ns - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait_ns);
+                    }
+                } else {
+                    arrival_ns = System.nanoTime();
+                }
+                for (int i = 0; i < burst && frame < frames; ++i, ++frame) {
+                    long timestamp_ns = FIRST_TIMESTAMP_NS + frame * frame_duration_ns;
+                    CaptureMetadataFormat.encodeTextLine(encoder.clear(), timestamp_ns, frame,
+                            EXPOSURE_NS, SKEW_NS);
+                    encoder.writeTo(metadata_writer);
+                    map.addCapture(timestamp_ns, timestamp_ns, frame);
+                    if (frame >= ENCODER_LAG_FRAMES) {
+                        map.onEncodedFrame((timestamp_ns - ENCODER_LAG_FRAMES * frame_duration_ns) / 1000, false);
+                    }
+                    result.mLatencyNs.record(System.nanoTime() - arrival_ns);
+                }
+                if (paced && System.nanoTime() > start_ns + burst_start + burst_duration_ns) {
+                    ++result.mLateBursts;
+                }
+            }
+            for (long lagging = Math.max(0, frames - ENCODER_LAG_FRAMES); lagging < frames; ++lagging) {
+                map.onEncodedFrame((FIRST_TIMESTAMP_NS + lagging * frame_duration_ns) / 1000, false);
+            }
+            map.finish();
+            result.mElapsedNs = System.nanoTime() - start_ns;
+        } finally {
+            metadata_writer.close();
+            video_frames_writer.close();
+        }
+        result.mFrames = frames;
+        result.mLost = countLostFrames(metadata_file, frames) + map.getUnmatchedFrameCount()
+                + (frames - map.getEncodedFrameCount());
+        return result;
+    }
+
+    // Frames missing from the metadata log, plus lines out of frame number order.
+    private static long countLostFrames(File metadata_file, long frames) throws IOException {
+        StreamIndex.Builder index = SessionIndex.indexTextLog(metadata_file, true);
+        long lost = frames - index.getCount();
+        for (int i = 1; i < index.getCount(); ++i) {
+            if (index.getKey(i) <= index.getKey(i - 1)) {
+                ++lost;
+            }
+        }
+        return lost;
+    }
+
+    private void checkKeepsUp(int fps) throws IOException {
+        long frames = Math.round(fps * SECONDS);
+        Result flat_out = runPhase(fps, frames, false);
+        String stats = flat_out.format("flat_out", fps);
+        assertEquals(stats, 0, flat_out.mLost);
+        assertTrue(stats, flat_out.getFramesPerSecond() >= fps);
+
+        Result paced = runPhase(fps, frames, true);
+        stats = paced.format("paced", fps);
+        assertEquals(stats, 0, paced.mLost);
+        assertEquals(stats, 0, paced.mLateBursts);
+        // Real time: the phase cannot end before its last burst is due.
+        assertFalse(stats, paced.mElapsedNs < (frames - fps / BURST_BASE_FPS) * (NS_PER_S / fps));
+    }
+
+    @Test
+    public void keepsUpAt240Fps() throws IOException {
+        checkKeepsUp(240);
+    }
+
+    @Test
+    public void keepsUpAt960Fps() throws IOException {
+        checkKeepsUp(960);
+    }
+}
@@ -0,0 +1,111 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds DeliveryLatencyEstimator latencies with a known floor and distribution and checks
+ * its moments, envelope and quantiles against exact values.
+ */
+public class DeliveryLatencyEstimatorTest {
+    private static final long BUCKET_WIDTH_NS = 100 * 1000;
+
+    /**
+     * Latencies are a fixed offset plus exponential queueing delay, as for a sensor whose
+     * filter delays every sample and whose delivery thread is sometimes busy.
+     */
+    private static long[] latencies(int count, long offset_ns, double mean_delay_ns, long seed) {
+        Random random = new Random(seed);
+        long[] latencies = new long[count];
+        for (int i = 0; i < count; ++i) {
+            latencies[i] = offset_ns + (long) (-mean_delay_ns * Math.log(1 - random.nextDouble()));
+        }
+        return latencies;
+    }
+
+    private static DeliveryLatencyEstimator estimate(long[] latencies) {
+        DeliveryLatencyEstimator estimator = new DeliveryLatencyEstimator("accel");
+        long event_ns = 123456789L;
+        for (long latency_ns : latencies) {
+            estimator.add(event_ns, event_ns + latency_ns);
+            event_ns += 5000000;
+        }
+        return estimator;
+    }
+
+    @Test
+    public void matchesExactStatistics() {
+        long[] latencies = latencies(100000, 3000000, 500000, 1);
+        DeliveryLatencyEstimator estimator = estimate(latencies);
+
+        double sum = 0;
+        for (long latency_ns : latencies) {
+            sum += latency_ns;
+        }
+        double mean = sum / latencies.length;
+        double squares = 0;
+        for (long latency_ns : latencies) {
+            squares += (latency_ns - mean) * (latency_ns - mean);
+        }
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+
+        assertEquals(latencies.length, estimator.getCount());
+        assertEquals(sorted[0], estimator.getMinNs());
+        assertEquals(sorted[sorted.length - 1], estimator.getMaxNs());
+        assertEquals(mean, estimator.getMeanNs(), 1.0);
+        assertEquals(Math.sqrt(squares / (latencies.length - 1)), estimator.getStdDevNs(), 1.0);
+        // The floor is the filter offset; queueing only ever adds to it.
+        assertTrue(estimator.getMinNs() >= 3000000);
+        assertTrue(estimator.getMinNs() < 3000000 + 1000);
+        for (double quantile : new double[]{0.01, 0.5, 0.9, 0.99, 0.999}) {
+            long exact = sorted[(int) Math.ceil(quantile * sorted.length) - 1];
+            long estimate = estimator.getQuantileNs(quantile);
+            assertTrue(quantile + ": " + estimate + " vs " + exact,
+                    estimate >= exact && estimate < exact + BUCKET_WIDTH_NS);
+        }
+    }
+
+    @Test
+    public void keepsOutliersOutsideTheHistogram() {
+        DeliveryLatencyEstimator estimator = new DeliveryLatencyEstimator("camera");
+        // The first sample anchors the histogram; later ones fall below and far above it.
+        estimator.add(0, 10000000);
+        estimator.add(0, 1000000);
+        estimator.add(0, 10000000);
+        estimator.add(0, 1000000000);
+        assertEquals(4, estimator.getCount());
+        assertEquals(1000000, estimator.getMinNs());
+        assertEquals(1000000000, estimator.getMaxNs());
+        assertEquals(1000000, estimator.getQuantileNs(0.25));
+        assertTrue(estimator.getQuantileNs(0.5) <= 10000000 + BUCKET_WIDTH_NS);
+        assertEquals(1000000000, estimator.getQuantileNs(1.0));
+
+        String[] fields = estimator.formatHistogram().split(" ");
+        assertEquals("camera", fields[0]);
+        assertEquals(Long.toString(BUCKET_WIDTH_NS), fields[2]);
+        assertEquals("1", fields[3]);
+        assertEquals("1", fields[fields.length - 1]);
+        long total = 0;
+        for (int i = 3; i < fields.length; ++i) {
+            total += Long.parseLong(fields[i]);
+        }
+        assertEquals(4, total);
+        assertEquals(10000000 - 32 * BUCKET_WIDTH_NS, Long.parseLong(fields[1]));
+    }
+
+    @Test
+    public void emptyEstimatorReportsZeros() {
+        DeliveryLatencyEstimator estimator = new DeliveryLatencyEstimator("gyro");
+        assertEquals(0, estimator.getCount());
+        assertEquals(0, estimator.getQuantileNs(0.5));
+        assertEquals(0.0, estimator.getMeanNs(), 0.0);
+        assertEquals(0.0, estimator.getStdDevNs(), 0.0);
+        assertTrue(estimator.formatSummary().startsWith("gyro count=0 "));
+    }
+}
@@ -0,0 +1,215 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the ring protocol with a Java producer standing in for native_imu.cpp: paced
+ * streams at 1-4 kHz drained by an ImuWriterThread arrive complete, and a producer going
+ * flat out loses only what it counted as overruns.
+ */
+public class DirectImuRingTest {
+    private static final int[] WIDTHS = {3, 6, 4};
+    private static final long RUN_NS = 1000L * 1000 * 1000;
+
+    /**
+     * Checks that every stream's samples arrive in the order the producer numbered them,
+     * with every value intact.  Sample i of the run belongs to stream i % WIDTHS.length,
+     * has timestamp i, arrival -i and values i + 0.25 v.
+     */
+    private static class CheckingConsumer implements DirectImuRing.Consumer {
+        @Override
+        public void onSamples(int stream, @NonNull long[] timestamps_ns, @NonNull long[] arrivals_ns,
+                              @NonNull float[] values, int values_per_sample, int count) {
+            assertEquals(WIDTHS[stream], values_per_sample);
+            for (int i = 0; i < count; ++i) {
+                long t = timestamps_ns[i];
+                if (t <= mLast[stream] || t % WIDTHS.length != stream || arrivals_ns[i] != -t) {
+                    ++mErrors;
+                }
+                for (int v = 0; v < values_per_sample; ++v) {
+                    if (values[values_per_sample * i + v] != t + 0.25f * v) {
+                        ++mErrors;
+                    }
+                }
+                mLast[stream] = t;
+            }
+            mReceived[stream] += count;
+        }
+
+        private final long[] mLast = {-1, -1, -1};
+        private final long[] mReceived = new long[WIDTHS.length];
+        private long mErrors;
+    }
+
+    private static boolean offer(DirectImuRing ring, long i, float[] values) {
+        int stream = (int) (i % WIDTHS.length);
+        for (int v = 0; v < WIDTHS[stream]; ++v) {
+            values[v] = i + 0.25f * v;
+        }
+        return ring.offer(stream, i, -i, values, WIDTHS[stream]);
+    }
+
+    @Test
+    public void pacedStreamsArriveLossless() {
+        for (int rate_hz = 1000; rate_hz <= 4000; rate_hz *= 2) {
+            DirectImuRing producer = new DirectImuRing(DirectImuRing.allocate(Sensors.DIRECT_RING_CAPACITY),
+                    new DirectImuRing.LockedCursors(), WIDTHS);
+            DirectImuRing consumer = new DirectImuRing(producer.getBuffer(), new DirectImuRing.LockedCursors(),
+                    WIDTHS);
+            CheckingConsumer check = new CheckingConsumer();
+            ImuWriterThread writer = new ImuWriterThread();
+            writer.addDirectRing("test", consumer, check);
+            writer.start();
+
+            // Every stream at rate_hz, interleaved, on an absolute schedule.
+            long period_ns = 1000L * 1000 * 1000 / (rate_hz * WIDTHS.length);
+            long samples = RUN_NS / period_ns;
+            float[] values = new float[ImuLogFormat.MAX_VALUES];
+            long start_ns = System.nanoTime();
+            for (long i = 0; i < samples; ++i) {
+                long due_ns = start_ns + i * period_ns;
+                long wait_ns;
+                while ((wait_ns = due_ns - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait_ns);
+                }
+                assertTrue(offer(producer, i, values));
+            }
+            long elapsed_ns = System.nanoTime() - start_ns;
+            writer.shutdown();
+
+            String stats = rate_hz + " Hz x " + WIDTHS.length + ": " + consumer.formatStats();
+            assertEquals(stats, 0, consumer.getOverruns());
+            assertEquals(stats, 0, consumer.getUnknownRecords());
+            assertEquals(stats, 0, check.mErrors);
+            for (int stream = 0; stream < WIDTHS.length; ++stream) {
+                assertEquals(stats, samples / WIDTHS.length, check.mReceived[stream]);
+            }
+            // The producer kept the requested rate, so the ring was tested at it.
+            assertTrue(stats + " took " + elapsed_ns + " ns", elapsed_ns < RUN_NS + RUN_NS / 10);
+        }
+    }
+
+    @Test
+    public void flatOutLosesOnlyCountedOverruns() throws Exception {
+        final int samples = 300000;
+        final DirectImuRing producer = new DirectImuRing(DirectImuRing.allocate(1024),
+                new DirectImuRing.LockedCursors(), WIDTHS);
+        DirectImuRing consumer = new DirectImuRing(producer.getBuffer(), new DirectImuRing.LockedCursors(), WIDTHS);
+        final long[] offered = new long[WIDTHS.length];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                float[] values = new float[ImuLogFormat.MAX_VALUES];
+                for (int i = 0; i < samples; ++i) {
+                    if (offer(producer, i, values)) {
+                        ++offered[i % WIDTHS.length];
+                    }
+                }
+            }
+        });
+        CheckingConsumer check = new CheckingConsumer();
+        thread.start();
+        while (thread.isAlive()) {
+            if (consumer.drainTo(check, ImuWriterThread.MAX_BATCH_SAMPLES) == 0) {
+                Thread.yield();
+            }
+        }
+        thread.join();
+        while (consumer.drainTo(check, ImuWriterThread.MAX_BATCH_SAMPLES) > 0) {
+            // Keep going until the ring is empty.
+        }
+        assertEquals(0, check.mErrors);
+        for (int stream = 0; stream < WIDTHS.length; ++stream) {
+            assertEquals(offered[stream], check.mReceived[stream]);
+            assertEquals(samples / WIDTHS.length, check.mReceived[stream] + consumer.getOverruns(stream));
+        }
+    }
+
+    @Test
+    public void fullRingDropsNewest() throws Exception {
+        DirectImuRing ring = new DirectImuRing(DirectImuRing.allocate(4), new DirectImuRing.LockedCursors(), WIDTHS);
+        float[] values = new float[ImuLogFormat.MAX_VALUES];
+        for (long i = 0; i < 4; ++i) {
+            assertTrue(offer(ring, i * WIDTHS.length, values));
+        }
+        assertFalse(offer(ring, 4 * WIDTHS.length, values));
+        assertFalse(offer(ring, 1, values));
+        assertEquals(1, ring.getOverruns(0));
+        assertEquals(1, ring.getOverruns(1));
+        assertEquals(2, ring.getOverruns());
+
+        CheckingConsumer check = new CheckingConsumer();
+        assertEquals(3, ring.drainTo(check, 3));
+        assertEquals(1, ring.drainTo(check, 3));
+        assertEquals(0, ring.drainTo(check, 3));
+        assertEquals(4, check.mReceived[0]);
+        assertEquals(3 * WIDTHS.length, check.mLast[0]);
+        assertEquals(0, check.mErrors);
+        assertTrue(offer(ring, 4 * WIDTHS.length, values));
+    }
+
+    @Test
+    public void shortRecordsArePaddedAndUnknownStreamsSkipped() throws Exception {
+        DirectImuRing producer = new DirectImuRing(DirectImuRing.allocate(8), new DirectImuRing.LockedCursors(),
+                new int[]{6, 3});
+        DirectImuRing consumer = new DirectImuRing(producer.getBuffer(), new DirectImuRing.LockedCursors(),
+                new int[]{6});
+        assertTrue(producer.offer(0, 10, 11, new float[]{1, 2, 3}, 3));
+        assertTrue(producer.offer(1, 20, 21, new float[]{4, 5, 6}, 3));
+        final float[] received = new float[6];
+        final int[] calls = new int[1];
+        assertEquals(2, consumer.drainTo(new DirectImuRing.Consumer() {
+            @Override
+            public void onSamples(int stream, @NonNull long[] timestamps_ns, @NonNull long[] arrivals_ns,
+                                  @NonNull float[] values, int values_per_sample, int count) {
+                assertEquals(0, stream);
+                assertEquals(1, count);
+                assertEquals(10, timestamps_ns[0]);
+                assertEquals(11, arrivals_ns[0]);
+                System.arraycopy(values, 0, received, 0, values_per_sample);
+                ++calls[0];
+            }
+        }, 8));
+        assertEquals(1, calls[0]);
+        assertEquals(1, consumer.getUnknownRecords());
+        assertEquals(1.0f, received[0], 0.0f);
+        assertEquals(3.0f, received[2], 0.0f);
+        assertEquals(0.0f, received[3], 0.0f);
+        assertEquals(0.0f, received[5], 0.0f);
+    }
+
+    @Test
+    public void rejectsBadRings() {
+        try {
+            DirectImuRing.allocate(1000);
+            fail("capacity not a power of two");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        ByteBuffer ring = DirectImuRing.allocate(4);
+        ring.putInt(DirectImuRing.VERSION_OFFSET, DirectImuRing.VERSION + 1);
+        try {
+            new DirectImuRing(ring, new DirectImuRing.LockedCursors(), WIDTHS);
+            fail("wrong version");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            new DirectImuRing(DirectImuRing.allocate(4), new DirectImuRing.LockedCursors(),
+                    new int[]{ImuLogFormat.MAX_VALUES + 1});
+            fail("stream too wide");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
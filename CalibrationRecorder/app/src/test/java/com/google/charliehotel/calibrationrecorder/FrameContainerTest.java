@@ -0,0 +1,196 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes frame containers from several threads and reads them back, both after a clean
+ * close and after the recording was cut off, when the index has to be rebuilt.
+ */
+public class FrameContainerTest {
+    private static final int FRAMES = 200;
+    private static final int THREADS = 4;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static long timestampNs(long frame_number) {
+        return 5000000000L + frame_number * 33333333L;
+    }
+
+    private static byte[] payload(long frame_number) {
+        byte[] bytes = new byte[100 + (int) (frame_number * 7919 % 5000)];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) (frame_number * 31 + i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Appends FRAMES frames from THREADS threads, each frame split over two buffers.
+     */
+    private static void appendAll(final FrameContainerWriter writer) throws Exception {
+        final List<Exception> errors = new ArrayList<>();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; ++t) {
+            final int first = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = first; i < FRAMES; i += THREADS) {
+                            byte[] bytes = payload(i);
+                            int split = bytes.length / 3;
+                            writer.append(i, timestampNs(i), new ByteBuffer[]{
+                                    ByteBuffer.wrap(bytes, 0, split),
+                                    ByteBuffer.wrap(bytes, split, bytes.length - split)});
+                        }
+                    } catch (IOException e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+        assertEquals(FRAMES, writer.getFrameCount());
+    }
+
+    private static void checkFrames(FrameContainerReader reader, int count) throws IOException {
+        assertEquals(count, reader.getFrameCount());
+        boolean[] seen = new boolean[FRAMES];
+        long previous_offset = -1;
+        for (int i = 0; i < count; ++i) {
+            long frame_number = reader.getFrameNumber(i);
+            assertFalse(seen[(int) frame_number]);
+            seen[(int) frame_number] = true;
+            assertTrue(reader.getOffset(i) > previous_offset);
+            previous_offset = reader.getOffset(i);
+            assertEquals(timestampNs(frame_number), reader.getTimestampNs(i));
+            assertEquals(i, reader.findFrame(frame_number));
+            byte[] expected = payload(frame_number);
+            ByteBuffer mapped = reader.mapFrame(i);
+            assertEquals(expected.length, mapped.remaining());
+            for (byte b : expected) {
+                assertEquals(b, mapped.get());
+            }
+        }
+        assertEquals(-1, reader.findFrame(FRAMES + 1));
+    }
+
+    /**
+     * Copies the first length bytes of a container still being written, as if the device
+     * had lost power at that point.
+     */
+    private File cutOff(File file, long length) throws IOException {
+        File copy = mFolder.newFile();
+        try (FileChannel in = new FileInputStream(file).getChannel();
+             FileChannel out = new FileOutputStream(copy).getChannel()) {
+            long position = 0;
+            while (position < length) {
+                position += in.transferTo(position, length - position, out);
+            }
+        }
+        return copy;
+    }
+
+    private static long recordedLength(int frames) {
+        long length = FrameContainerFormat.FILE_HEADER_SIZE;
+        for (int i = 0; i < frames; ++i) {
+            length += FrameContainerFormat.RECORD_HEADER_SIZE + payload(i).length;
+        }
+        return length;
+    }
+
+    @Test
+    public void readsCleanlyClosedContainer() throws Exception {
+        File file = mFolder.newFile();
+        FrameContainerWriter writer = new FrameContainerWriter(file);
+        appendAll(writer);
+        writer.close();
+
+        long expected_length = recordedLength(FRAMES)
+                + FRAMES * FrameContainerFormat.INDEX_ENTRY_SIZE + FrameContainerFormat.TRAILER_SIZE;
+        assertEquals(expected_length, file.length());
+        try (FrameContainerReader reader = new FrameContainerReader(file)) {
+            assertFalse(reader.wasRecovered());
+            checkFrames(reader, FRAMES);
+        }
+    }
+
+    @Test
+    public void rebuildsIndexOfCutOffContainer() throws Exception {
+        File file = mFolder.newFile();
+        FrameContainerWriter writer = new FrameContainerWriter(file);
+        appendAll(writer);
+        // The preallocated tail is zeros, which the scan must stop at.
+        File cut = cutOff(file, recordedLength(FRAMES) + 4096);
+        writer.close();
+
+        try (FrameContainerReader reader = new FrameContainerReader(cut)) {
+            assertTrue(reader.wasRecovered());
+            checkFrames(reader, FRAMES);
+        }
+
+        FrameContainerReader.repair(cut);
+        assertEquals(file.length(), cut.length());
+        try (FrameContainerReader reader = new FrameContainerReader(cut)) {
+            assertFalse(reader.wasRecovered());
+            checkFrames(reader, FRAMES);
+        }
+    }
+
+    @Test
+    public void dropsTornLastRecord() throws Exception {
+        File file = mFolder.newFile();
+        FrameContainerWriter writer = new FrameContainerWriter(file);
+        for (int i = 0; i < 10; ++i) {
+            writer.append(i, timestampNs(i), new ByteBuffer[]{ByteBuffer.wrap(payload(i))});
+        }
+        File cut = cutOff(file, recordedLength(10) - 1);
+        writer.close();
+
+        try (FrameContainerReader reader = new FrameContainerReader(cut)) {
+            assertTrue(reader.wasRecovered());
+            checkFrames(reader, 9);
+        }
+    }
+
+    @Test
+    public void ignoresCorruptTrailer() throws Exception {
+        File file = mFolder.newFile();
+        FrameContainerWriter writer = new FrameContainerWriter(file);
+        appendAll(writer);
+        writer.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 1);
+            raf.write(0);
+        }
+        try (FrameContainerReader reader = new FrameContainerReader(file)) {
+            assertTrue(reader.wasRecovered());
+            checkFrames(reader, FRAMES);
+        }
+    }
+}
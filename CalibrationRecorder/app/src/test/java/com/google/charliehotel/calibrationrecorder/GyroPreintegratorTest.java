@@ -0,0 +1,387 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks GyroPreintegrator against an offline integrator working from the whole recording.
+ *
+ * Generates a gyro stream at 400 Hz and an accel stream at 200 Hz, both with jittered
+ * timestamps, turning at up to several rad/s, and a camera at 30 fps with varying
+ * exposure and rolling shutter skew.  The preintegrator is fed as on a device: samples
+ * in batches every DELIVERY_INTERVAL_NS, IMU_LATENCY_NS after they were taken, and frames
+ * CAMERA_LATENCY_NS after theirs, interleaved by arrival.  Its log is then read back and
+ * every line compared with what the reference computes from the full streams, the way
+ * calibration did before: rotation matrices instead of quaternions and binary search
+ * instead of a ring.  With constant rates the rotation must be exactly exp(w dt) per
+ * frame.  The cost is measured by feeding the live streams as fast as possible to a
+ * discarding writer, which has to run far ahead of real time.
+ */
+public class GyroPreintegratorTest {
+    private static final long NS_PER_S = 1000000000L;
+    private static final long FIRST_TIMESTAMP_NS = 1000L * NS_PER_S;
+    private static final long GYRO_PERIOD_NS = NS_PER_S / 400;
+    private static final long ACCEL_PERIOD_NS = NS_PER_S / 200;
+    private static final long FRAME_PERIOD_NS = NS_PER_S / 30;
+    private static final long SKEW_NS = 15 * 1000 * 1000;
+
+    private static final long DELIVERY_INTERVAL_NS = 2 * 1000 * 1000;
+    private static final long IMU_LATENCY_NS = 15 * 1000 * 1000;
+    private static final long CAMERA_LATENCY_NS = 40 * 1000 * 1000;
+
+    private static final double ROTATION_TOLERANCE_RAD = 1e-9;
+    private static final double VELOCITY_TOLERANCE = 1e-9;
+    private static final double VALUE_TOLERANCE = 1e-5;
+
+    private static final double CONSTANT_SECONDS = 10;
+    private static final double LIVE_SECONDS = 60;
+    private static final double FLAT_OUT_SECONDS = 600;
+    // How much faster than real time the preintegrator has to run on the JVM.
+    private static final double MIN_REALTIME_FACTOR = 100;
+
+    // One generated stream: timestamps and three values per sample.
+    private static class Samples {
+        Samples(int count) {
+            timestamps_ns = new long[count];
+            values = new float[3 * count];
+        }
+
+        final long[] timestamps_ns;
+        final float[] values;
+    }
+
+    private static Samples generate(long period_ns, double seconds, long phase_ns, boolean constant,
+                                    boolean is_gyro, Random random) {
+        int count = (int) (seconds * NS_PER_S / period_ns);
+        Samples samples = new Samples(count);
+        long t_ns = FIRST_TIMESTAMP_NS + phase_ns;
+        for (int i = 0; i < count; ++i) {
+            samples.timestamps_ns[i] = t_ns;
+            double t = (t_ns - FIRST_TIMESTAMP_NS) * 1e-9;
+            if (constant) {
+                samples.values[3 * i] = is_gyro ? 1.5f : 0.1f;
+                samples.values[3 * i + 1] = is_gyro ? -0.75f : 9.8f;
+                samples.values[3 * i + 2] = is_gyro ? 0.25f : -0.3f;
+            } else if (is_gyro) {
+                samples.values[3 * i] = (float) (3 * Math.sin(2.1 * t));
+                samples.values[3 * i + 1] = (float) (2 * Math.cos(3.7 * t) + 0.5);
+                samples.values[3 * i + 2] = (float) (4 * Math.sin(1.3 * t + 1));
+            } else {
+                samples.values[3 * i] = (float) (Math.sin(1.7 * t));
+                samples.values[3 * i + 1] = (float) (9.81 + 2 * Math.cos(2.9 * t));
+                samples.values[3 * i + 2] = (float) (3 * Math.sin(0.9 * t));
+            }
+            t_ns += period_ns + (long) ((random.nextDouble() - 0.5) * 0.1 * period_ns);
+        }
+        return samples;
+    }
+
+    // Timestamp, exposure and skew of each frame.
+    private static List<long[]> generateFrames(double seconds, Random random) {
+        List<long[]> frames = new ArrayList<>();
+        long t_ns = FIRST_TIMESTAMP_NS + FRAME_PERIOD_NS / 3;
+        long end_ns = FIRST_TIMESTAMP_NS + (long) (seconds * NS_PER_S);
+        while (t_ns < end_ns) {
+            long exposure_ns = (1 + random.nextInt(20)) * 1000 * 1000;
+            long skew_ns = SKEW_NS;
+            if (random.nextInt(50) == 0) {
+                exposure_ns = CaptureMetadataFormat.MISSING;
+                skew_ns = CaptureMetadataFormat.MISSING;
+            }
+            frames.add(new long[]{t_ns, exposure_ns, skew_ns});
+            t_ns += FRAME_PERIOD_NS + (long) ((random.nextDouble() - 0.5) * 0.02 * FRAME_PERIOD_NS);
+        }
+        return frames;
+    }
+
+    /**
+     * Feeds everything in the order it would arrive on a device: gyro in batches, accel
+     * one sample at a time, and frames.
+     */
+    private static void feed(GyroPreintegrator preintegrator, Samples gyro, Samples accel, List<long[]> frames)
+            throws IOException {
+        long[] batch_timestamps_ns = new long[ImuWriterThread.MAX_BATCH_SAMPLES];
+        float[] batch_values = new float[3 * ImuWriterThread.MAX_BATCH_SAMPLES];
+        int next_gyro = 0;
+        int next_accel = 0;
+        int next_frame = 0;
+        long now_ns = FIRST_TIMESTAMP_NS;
+        while (next_gyro < gyro.timestamps_ns.length || next_accel < accel.timestamps_ns.length
+                || next_frame < frames.size()) {
+            now_ns += DELIVERY_INTERVAL_NS;
+            while (next_frame < frames.size()
+                    && frames.get(next_frame)[0] + CAMERA_LATENCY_NS <= now_ns) {
+                long[] frame = frames.get(next_frame++);
+                preintegrator.addFrame(frame[0], frame[1], frame[2]);
+            }
+            int count = 0;
+            while (next_gyro < gyro.timestamps_ns.length && count < batch_timestamps_ns.length
+                    && gyro.timestamps_ns[next_gyro] + IMU_LATENCY_NS <= now_ns) {
+                batch_timestamps_ns[count] = gyro.timestamps_ns[next_gyro];
+                System.arraycopy(gyro.values, 3 * next_gyro, batch_values, 3 * count, 3);
+                ++next_gyro;
+                ++count;
+            }
+            preintegrator.addGyro(batch_timestamps_ns, batch_values, 3, count);
+            while (next_accel < accel.timestamps_ns.length
+                    && accel.timestamps_ns[next_accel] + IMU_LATENCY_NS <= now_ns) {
+                preintegrator.addAccel(accel.timestamps_ns[next_accel], accel.values[3 * next_accel],
+                        accel.values[3 * next_accel + 1], accel.values[3 * next_accel + 2]);
+                ++next_accel;
+            }
+        }
+        preintegrator.finish();
+    }
+
+    // Linear between samples, held beyond the ends.
+    private static void interpolate(Samples samples, long t_ns, double[] out) {
+        long[] ts = samples.timestamps_ns;
+        int i = Arrays.binarySearch(ts, t_ns);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        if (i < 0 || i >= ts.length - 1) {
+            i = Math.max(0, Math.min(i, ts.length - 1));
+            for (int axis = 0; axis < 3; ++axis) {
+                out[axis] = samples.values[3 * i + axis];
+            }
+            return;
+        }
+        double f = (double) (t_ns - ts[i]) / (ts[i + 1] - ts[i]);
+        for (int axis = 0; axis < 3; ++axis) {
+            double a = samples.values[3 * i + axis];
+            out[axis] = a + f * (samples.values[3 * (i + 1) + axis] - a);
+        }
+    }
+
+    // Rotation matrix of a rotation vector, by Rodrigues' formula.
+    private static double[][] exp(double rx, double ry, double rz) {
+        double angle = Math.sqrt(rx * rx + ry * ry + rz * rz);
+        double[][] r = {{1, 0, 0}, {0, 1, 0}, {0, 0, 1}};
+        if (angle == 0) {
+            return r;
+        }
+        double x = rx / angle;
+        double y = ry / angle;
+        double z = rz / angle;
+        double[][] k = {{0, -z, y}, {z, 0, -x}, {-y, x, 0}};
+        double[][] k2 = multiply(k, k);
+        for (int i = 0; i < 3; ++i) {
+            for (int j = 0; j < 3; ++j) {
+                r[i][j] += Math.sin(angle) * k[i][j] + (1 - Math.cos(angle)) * k2[i][j];
+            }
+        }
+        return r;
+    }
+
+    private static double[][] multiply(double[][] a, double[][] b) {
+        double[][] c = new double[3][3];
+        for (int i = 0; i < 3; ++i) {
+            for (int j = 0; j < 3; ++j) {
+                for (int k = 0; k < 3; ++k) {
+                    c[i][j] += a[i][k] * b[k][j];
+                }
+            }
+        }
+        return c;
+    }
+
+    private static double[] apply(double[][] r, double[] v) {
+        double[] out = new double[3];
+        for (int i = 0; i < 3; ++i) {
+            out[i] = r[i][0] * v[0] + r[i][1] * v[1] + r[i][2] * v[2];
+        }
+        return out;
+    }
+
+    private static double[][] fromQuaternion(double w, double x, double y, double z) {
+        return new double[][]{
+                {1 - 2 * (y * y + z * z), 2 * (x * y - w * z), 2 * (x * z + w * y)},
+                {2 * (x * y + w * z), 1 - 2 * (x * x + z * z), 2 * (y * z - w * x)},
+                {2 * (x * z - w * y), 2 * (y * z + w * x), 1 - 2 * (x * x + y * y)},
+        };
+    }
+
+    // Angle of a^T b.  acos of the trace alone loses precision near zero.
+    private static double angleBetween(double[][] a, double[][] b) {
+        double[][] d = new double[3][3];
+        for (int i = 0; i < 3; ++i) {
+            for (int j = 0; j < 3; ++j) {
+                for (int k = 0; k < 3; ++k) {
+                    d[i][j] += a[k][i] * b[k][j];
+                }
+            }
+        }
+        double sx = d[2][1] - d[1][2];
+        double sy = d[0][2] - d[2][0];
+        double sz = d[1][0] - d[0][1];
+        double trace = d[0][0] + d[1][1] + d[2][2];
+        return Math.atan2(0.5 * Math.sqrt(sx * sx + sy * sy + sz * sz), 0.5 * (trace - 1));
+    }
+
+    /**
+     * Reads the log back and checks every line against the reference.  Returns the
+     * number of lines.
+     */
+    private static int compare(String log, Samples gyro, Samples accel, List<long[]> frames, boolean constant) {
+        Map<Long, long[]> frames_by_timestamp = new HashMap<>();
+        for (long[] frame : frames) {
+            frames_by_timestamp.put(frame[0], frame);
+        }
+        int lines = 0;
+        long previous_written_ns = 0;
+        for (String line : log.split("\n")) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            String[] f = line.split(" ");
+            long timestamp_ns = Long.parseLong(f[0]);
+            long previous_ns = Long.parseLong(f[1]);
+            long samples = Long.parseLong(f[2]);
+            double[][] rotation = fromQuaternion(Double.parseDouble(f[3]), Double.parseDouble(f[4]),
+                    Double.parseDouble(f[5]), Double.parseDouble(f[6]));
+            double[] dv = {Double.parseDouble(f[7]), Double.parseDouble(f[8]), Double.parseDouble(f[9])};
+            long mid_exposure_ns = Long.parseLong(f[10]);
+            long[] frame = frames_by_timestamp.get(timestamp_ns);
+            assertNotNull("Unexpected timestamp in " + line, frame);
+            assertEquals("Unexpected previous timestamp in " + line, previous_written_ns, previous_ns);
+            long expected_mid_exposure_ns = frame[1] == CaptureMetadataFormat.MISSING ? timestamp_ns
+                    : timestamp_ns + (frame[1] + frame[2]) / 2;
+            assertEquals("Mid-exposure in " + line, expected_mid_exposure_ns, mid_exposure_ns);
+            previous_written_ns = timestamp_ns;
+
+            double[][] expected_rotation = {{1, 0, 0}, {0, 1, 0}, {0, 0, 1}};
+            double[] expected_dv = new double[3];
+            long expected_samples = 0;
+            if (previous_ns != 0) {
+                List<Long> times = new ArrayList<>();
+                times.add(previous_ns);
+                for (long t : gyro.timestamps_ns) {
+                    if (t > previous_ns && t <= timestamp_ns) {
+                        ++expected_samples;
+                        if (t < timestamp_ns) {
+                            times.add(t);
+                        }
+                    }
+                }
+                times.add(timestamp_ns);
+                double[] w0 = new double[3];
+                double[] w1 = new double[3];
+                double[] a0 = new double[3];
+                double[] a1 = new double[3];
+                interpolate(gyro, previous_ns, w0);
+                interpolate(accel, previous_ns, a0);
+                double[] ra0 = apply(expected_rotation, a0);
+                for (int i = 1; i < times.size(); ++i) {
+                    double dt = (times.get(i) - times.get(i - 1)) * 1e-9;
+                    interpolate(gyro, times.get(i), w1);
+                    interpolate(accel, times.get(i), a1);
+                    expected_rotation = multiply(expected_rotation, exp(0.5 * (w0[0] + w1[0]) * dt,
+                            0.5 * (w0[1] + w1[1]) * dt, 0.5 * (w0[2] + w1[2]) * dt));
+                    double[] ra1 = apply(expected_rotation, a1);
+                    for (int axis = 0; axis < 3; ++axis) {
+                        expected_dv[axis] += 0.5 * (ra0[axis] + ra1[axis]) * dt;
+                    }
+                    System.arraycopy(w1, 0, w0, 0, 3);
+                    ra0 = ra1;
+                }
+                if (constant) {
+                    // Exactly the one rotation at the constant rate.
+                    double dt = (timestamp_ns - previous_ns) * 1e-9;
+                    expected_rotation = exp(gyro.values[0] * dt, gyro.values[1] * dt, gyro.values[2] * dt);
+                }
+            }
+            assertEquals("Gyro samples in " + line, expected_samples, samples);
+            assertEquals("Rotation error in " + line, 0, angleBetween(expected_rotation, rotation),
+                    ROTATION_TOLERANCE_RAD);
+            for (int axis = 0; axis < 3; ++axis) {
+                assertEquals("Expected dv " + Arrays.toString(expected_dv) + " in " + line, expected_dv[axis],
+                        dv[axis], VELOCITY_TOLERANCE);
+            }
+            double[] expected_values = new double[6];
+            double[] values = new double[3];
+            interpolate(gyro, mid_exposure_ns, values);
+            System.arraycopy(values, 0, expected_values, 0, 3);
+            interpolate(accel, mid_exposure_ns, values);
+            System.arraycopy(values, 0, expected_values, 3, 3);
+            for (int i = 0; i < 6; ++i) {
+                assertEquals("Expected mid-exposure values " + Arrays.toString(expected_values) + " in " + line,
+                        expected_values[i], Float.parseFloat(f[11 + i]), VALUE_TOLERANCE);
+            }
+            ++lines;
+        }
+        return lines;
+    }
+
+    private static void check(double seconds, boolean constant) throws IOException {
+        Random random = new Random(1);
+        Samples gyro = generate(GYRO_PERIOD_NS, seconds, 0, constant, true, random);
+        Samples accel = generate(ACCEL_PERIOD_NS, seconds, ACCEL_PERIOD_NS / 3, constant, false, random);
+        List<long[]> frames = generateFrames(seconds, random);
+        StringWriter log = new StringWriter();
+        log.write(GyroPreintegrator.LOG_HEADER + "\n");
+        GyroPreintegrator preintegrator = new GyroPreintegrator(log);
+        feed(preintegrator, gyro, accel, frames);
+        int lines = compare(log.toString(), gyro, accel, frames, constant);
+        // Only frames at the very end, past the last samples, may go unwritten.
+        String stats = lines + " of " + frames.size() + " frames: " + preintegrator.formatStats();
+        assertEquals(stats, preintegrator.getWrittenFrameCount(), lines);
+        assertEquals(stats, frames.size(), lines + preintegrator.getDroppedFrameCount());
+        assertTrue(stats, preintegrator.getDroppedFrameCount() <= 2);
+    }
+
+    @Test
+    public void constantRatesIntegrateExactly() throws IOException {
+        check(CONSTANT_SECONDS, true);
+    }
+
+    @Test
+    public void matchesOfflineReference() throws IOException {
+        check(LIVE_SECONDS, false);
+    }
+
+    @Test
+    public void runsFarAheadOfRealTime() throws IOException {
+        double seconds = FLAT_OUT_SECONDS;
+        Random random = new Random(2);
+        Samples gyro = generate(GYRO_PERIOD_NS, seconds, 0, false, true, random);
+        Samples accel = generate(ACCEL_PERIOD_NS, seconds, ACCEL_PERIOD_NS / 3, false, false, random);
+        List<long[]> frames = generateFrames(seconds, random);
+        Writer discard = new Writer() {
+            @Override
+            public void write(char[] chars, int offset, int length) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        GyroPreintegrator preintegrator = new GyroPreintegrator(discard);
+        long start_ns = System.nanoTime();
+        feed(preintegrator, gyro, accel, frames);
+        long elapsed_ns = System.nanoTime() - start_ns;
+        long samples = gyro.timestamps_ns.length + accel.timestamps_ns.length;
+        double realtime_factor = seconds * NS_PER_S / elapsed_ns;
+        assertTrue(String.format(Locale.US, "%d samples %d frames in %.3f s, %.1f ns per sample,"
+                        + " %.0fx real time", samples, preintegrator.getWrittenFrameCount(), elapsed_ns * 1e-9,
+                (double) elapsed_ns / samples, realtime_factor), realtime_factor >= MIN_REALTIME_FACTOR);
+    }
+}
@@ -0,0 +1,158 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks ImageWriterPool's drop and release accounting, and that write throughput scales
+ * with the number of writer threads when writes are latency bound, as they are on
+ * device storage.
+ */
+public class ImageWriterPoolTest {
+    private static final long WRITE_MS = 10;
+    private static final int FRAMES = 48;
+
+    private static class CountingListener implements ImageWriterPool.Listener {
+        @Override
+        public void onFrameDropped(long frame_number, int queue_depth) {
+            mDropped.incrementAndGet();
+        }
+
+        @Override
+        public void onFrameWritten(long frame_number, long queue_wait_ns, long write_ns, long bytes) {
+            mWritten.incrementAndGet();
+            mBytes.addAndGet((int) bytes);
+        }
+
+        @Override
+        public void onFrameFailed(long frame_number, @NonNull IOException e) {
+            mFailed.incrementAndGet();
+        }
+
+        final AtomicInteger mDropped = new AtomicInteger();
+        final AtomicInteger mWritten = new AtomicInteger();
+        final AtomicInteger mFailed = new AtomicInteger();
+        final AtomicInteger mBytes = new AtomicInteger();
+    }
+
+    private static class SleepingJob implements ImageWriterPool.Job {
+        SleepingJob(AtomicInteger releases) {
+            mReleases = releases;
+        }
+
+        @Override
+        public long write() throws IOException {
+            try {
+                Thread.sleep(WRITE_MS);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return 100;
+        }
+
+        @Override
+        public void release() {
+            mReleases.incrementAndGet();
+        }
+
+        private final AtomicInteger mReleases;
+    }
+
+    private static long writeAll(int threads) throws InterruptedException {
+        CountingListener listener = new CountingListener();
+        AtomicInteger releases = new AtomicInteger();
+        ImageWriterPool pool = new ImageWriterPool("test", threads, FRAMES, listener);
+        long start_ns = System.nanoTime();
+        for (int i = 0; i < FRAMES; ++i) {
+            assertTrue(pool.submit(i, new SleepingJob(releases)));
+        }
+        pool.awaitIdle();
+        long elapsed_ns = System.nanoTime() - start_ns;
+        pool.shutdown();
+        assertEquals(FRAMES, listener.mWritten.get());
+        assertEquals(FRAMES, releases.get());
+        assertEquals(FRAMES * 100, listener.mBytes.get());
+        assertEquals(FRAMES, pool.getWrittenCount());
+        return elapsed_ns;
+    }
+
+    @Test
+    public void throughputScalesWithThreads() throws InterruptedException {
+        long one_ns = writeAll(1);
+        long two_ns = writeAll(2);
+        long four_ns = writeAll(4);
+        String times = "1: " + one_ns / 1000000 + " ms, 2: " + two_ns / 1000000
+                + " ms, 4: " + four_ns / 1000000 + " ms";
+        assertTrue(times, one_ns >= FRAMES * WRITE_MS * 1000 * 1000);
+        assertTrue(times, two_ns < one_ns * 0.7);
+        assertTrue(times, four_ns < one_ns * 0.4);
+    }
+
+    @Test
+    public void dropsWhenQueueIsFullAndReleasesEveryJob() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicInteger releases = new AtomicInteger();
+        CountingListener listener = new CountingListener();
+        ImageWriterPool pool = new ImageWriterPool("test", 1, 2, listener);
+        ImageWriterPool.Job blocking = new SleepingJob(releases) {
+            @Override
+            public long write() throws IOException {
+                started.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return 100;
+            }
+        };
+        assertTrue(pool.submit(0, blocking));
+        started.await();
+        assertTrue(pool.submit(1, new SleepingJob(releases)));
+        assertTrue(pool.submit(2, new SleepingJob(releases)));
+        assertEquals(2, pool.getQueueDepth());
+        assertFalse(pool.submit(3, new SleepingJob(releases)));
+        assertFalse(pool.submit(4, new SleepingJob(releases)));
+        assertEquals(2, releases.get());
+        proceed.countDown();
+        pool.awaitIdle();
+
+        assertEquals(5, pool.getSubmittedCount());
+        assertEquals(3, pool.getWrittenCount());
+        assertEquals(2, pool.getDroppedCount());
+        assertEquals(2, listener.mDropped.get());
+        assertEquals(5, releases.get());
+
+        pool.shutdown();
+        assertFalse(pool.submit(5, new SleepingJob(releases)));
+        assertEquals(6, releases.get());
+    }
+
+    @Test
+    public void failedWritesAreReleased() throws InterruptedException {
+        AtomicInteger releases = new AtomicInteger();
+        CountingListener listener = new CountingListener();
+        ImageWriterPool pool = new ImageWriterPool("test", 2, 4, listener);
+        pool.submit(0, new SleepingJob(releases) {
+            @Override
+            public long write() throws IOException {
+                throw new IOException("disk full");
+            }
+        });
+        pool.awaitIdle();
+        pool.shutdown();
+        assertEquals(1, listener.mFailed.get());
+        assertEquals(0, pool.getWrittenCount());
+        assertEquals(1, releases.get());
+    }
+}
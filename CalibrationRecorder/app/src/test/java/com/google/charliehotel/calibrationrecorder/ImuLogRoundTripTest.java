@@ -0,0 +1,199 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The text and binary IMU logs must hold exactly the same samples: a binary log converted
+ * by ImuBinaryReader has to be byte for byte the text log, and both have to give back the
+ * float bits that were written.
+ */
+public class ImuLogRoundTripTest {
+    private static final int SAMPLES = 20000;
+    private static final float[] SPECIAL_VALUES = {
+            0.0f, -0.0f, 1.0f, -1.0f, Float.MIN_VALUE, -Float.MIN_VALUE, Float.MIN_NORMAL,
+            Float.MAX_VALUE, -Float.MAX_VALUE, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+            Float.NaN, 9.80665f, 1e-30f, 0x1.fffffep-127f,
+    };
+
+    // Timestamps and three values per sample: the special values, then random bit patterns.
+    private static long[] sTimestampsNs = new long[SAMPLES];
+    private static float[] sValues = new float[3 * SAMPLES];
+
+    static {
+        Random random = new Random(1);
+        long t_ns = 1000L * 1000 * 1000 * 1000;
+        for (int i = 0; i < SAMPLES; ++i) {
+            sTimestampsNs[i] = t_ns;
+            t_ns += 1 + random.nextInt(10 * 1000 * 1000);
+            for (int j = 0; j < 3; ++j) {
+                int k = 3 * i + j;
+                sValues[k] = k < SPECIAL_VALUES.length ? SPECIAL_VALUES[k]
+                        : Float.intBitsToFloat(random.nextInt());
+            }
+        }
+    }
+
+    private static String writeText(boolean batched) throws IOException {
+        StringWriter text = new StringWriter();
+        ImuTextWriter writer = new ImuTextWriter(text);
+        write(writer, batched);
+        writer.close();
+        return text.toString();
+    }
+
+    private static byte[] writeBinary(boolean batched) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImuBinaryWriter writer = new ImuBinaryWriter(Channels.newChannel(bytes), 1);
+        write(writer, batched);
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    private static void write(ImuSink sink, boolean batched) throws IOException {
+        if (!batched) {
+            for (int i = 0; i < SAMPLES; ++i) {
+                sink.write(sTimestampsNs[i], sValues[3 * i], sValues[3 * i + 1], sValues[3 * i + 2]);
+            }
+            return;
+        }
+        // Uneven batches, as ImuWriterThread drains them.
+        int batch = 1;
+        for (int i = 0; i < SAMPLES; i += batch, batch = batch % 700 + 37) {
+            int count = Math.min(batch, SAMPLES - i);
+            sink.write(Arrays.copyOfRange(sTimestampsNs, i, i + count),
+                    Arrays.copyOfRange(sValues, 3 * i, 3 * (i + count)), 3, count);
+        }
+    }
+
+    private static ImuBinaryReader reader(byte[] log) throws IOException {
+        return new ImuBinaryReader(Channels.newChannel(new ByteArrayInputStream(log)));
+    }
+
+    @Test
+    public void textMatchesStringFormat() throws IOException {
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < SAMPLES; ++i) {
+            expected.append(String.format(Locale.US, "%d %a %a %a\n", sTimestampsNs[i],
+                    sValues[3 * i], sValues[3 * i + 1], sValues[3 * i + 2]));
+        }
+        assertEquals(expected.toString(), writeText(false));
+        assertEquals(expected.toString(), writeText(true));
+    }
+
+    @Test
+    public void binaryConvertsToIdenticalText() throws IOException {
+        String text = writeText(false);
+        for (boolean batched : new boolean[]{false, true}) {
+            StringWriter converted = new StringWriter();
+            ImuBinaryReader.convertToText(reader(writeBinary(batched)), converted);
+            assertEquals(text, converted.toString());
+        }
+    }
+
+    @Test
+    public void binaryKeepsFloatBits() throws IOException {
+        ImuBinaryReader reader = reader(writeBinary(true));
+        for (int i = 0; i < SAMPLES; ++i) {
+            assertTrue(reader.next());
+            assertEquals(sTimestampsNs[i], reader.getTimestampNs());
+            assertEquals(1, reader.getSensorId());
+            for (int j = 0; j < 3; ++j) {
+                assertEquals(Float.floatToRawIntBits(sValues[3 * i + j]),
+                        Float.floatToRawIntBits(reader.getValue(j)));
+            }
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void textKeepsFloatBits() throws IOException {
+        String[] lines = writeText(true).split("\n");
+        assertEquals(SAMPLES, lines.length);
+        for (int i = 0; i < SAMPLES; ++i) {
+            String[] fields = lines[i].split(" ");
+            assertEquals(sTimestampsNs[i], Long.parseLong(fields[0]));
+            for (int j = 0; j < 3; ++j) {
+                // "%a" has one NaN, so compare canonical bits.
+                assertEquals(Float.floatToIntBits(sValues[3 * i + j]),
+                        Float.floatToIntBits(Float.parseFloat(fields[1 + j])));
+            }
+        }
+    }
+
+    @Test
+    public void sharedLogSplitsBySensor() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImuBinaryWriter shared = new ImuBinaryWriter(Channels.newChannel(bytes), 0, ImuLogFormat.MAX_VALUES);
+        ImuSink accel = shared.forSensor(1);
+        ImuSink uncal = shared.forSensor(35);
+        float[] six = new float[6];
+        StringWriter expected_accel = new StringWriter();
+        StringWriter expected_uncal = new StringWriter();
+        ImuTextWriter accel_text = new ImuTextWriter(expected_accel);
+        ImuTextWriter uncal_text = new ImuTextWriter(expected_uncal);
+        for (int i = 0; i < 1000; ++i) {
+            accel.write(sTimestampsNs[i], sValues[3 * i], sValues[3 * i + 1], sValues[3 * i + 2]);
+            accel_text.write(sTimestampsNs[i], sValues[3 * i], sValues[3 * i + 1], sValues[3 * i + 2]);
+            for (int j = 0; j < 6; ++j) {
+                six[j] = sValues[(6 * i + j) % sValues.length];
+            }
+            uncal.write(new long[]{sTimestampsNs[i]}, six, 6, 1);
+            uncal_text.write(new long[]{sTimestampsNs[i]}, six, 6, 1);
+        }
+        accel.close();
+        uncal.close();
+        shared.close();
+
+        StringWriter converted = new StringWriter();
+        ImuBinaryReader.convertToText(reader(bytes.toByteArray()), converted, 1, 3);
+        assertEquals(expected_accel.toString(), converted.toString());
+        converted = new StringWriter();
+        ImuBinaryReader.convertToText(reader(bytes.toByteArray()), converted, 35, 6);
+        assertEquals(expected_uncal.toString(), converted.toString());
+    }
+
+    @Test
+    public void tornTrailingRecordIsIgnored() throws IOException {
+        byte[] log = writeBinary(false);
+        ImuBinaryReader reader = reader(Arrays.copyOf(log, log.length - 5));
+        int records = 0;
+        while (reader.next()) {
+            ++records;
+        }
+        assertEquals(SAMPLES - 1, records);
+    }
+
+    @Test
+    public void rejectsOtherFiles() {
+        byte[] log = writeBinaryQuietly();
+        log[0] ^= 1;
+        try {
+            reader(log);
+            fail("Accepted a log with a bad magic number");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+
+    private static byte[] writeBinaryQuietly() {
+        try {
+            return writeBinary(false);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives ImuRingBuffer from a paced producer thread at 1-4 kHz while an ImuWriterThread
+ * drains it into a sink that stalls, and checks that every sample arrives once and in
+ * order.
+ */
+public class ImuRingBufferTest {
+    private static final int CAPACITY = 4096;
+    private static final long RUN_NS = 500L * 1000 * 1000;
+    private static final long STALL_MS = 250;
+
+    /**
+     * Checks that samples arrive as the producer numbered them: timestamp, x, y and z all
+     * carry the sequence number.
+     */
+    private static class CheckingSink implements ImuSink {
+        CheckingSink(long stall_after) {
+            mStallAfter = stall_after;
+        }
+
+        @Override
+        public void write(long timestamp_ns, float x, float y, float z) throws IOException {
+            write(new long[]{timestamp_ns}, new float[]{x, y, z}, 3, 1);
+        }
+
+        @Override
+        public void write(long[] timestamps_ns, float[] values, int values_per_sample, int count)
+                throws IOException {
+            for (int i = 0; i < count; ++i) {
+                long expected = mNext++;
+                if (timestamps_ns[i] != expected
+                        || values[values_per_sample * i] != (float) expected
+                        || values[values_per_sample * i + 1] != -(float) expected
+                        || values[values_per_sample * i + 2] != 0.5f * expected) {
+                    mErrors++;
+                }
+            }
+            if (mNext > mStallAfter && !mStalled) {
+                mStalled = true;
+                try {
+                    Thread.sleep(STALL_MS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+            mFlushed = true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private final long mStallAfter;
+        private long mNext;
+        private long mErrors;
+        private boolean mStalled;
+        private volatile boolean mFlushed;
+    }
+
+    private static long produce(ImuRingBuffer ring, int rate_hz, long run_ns) {
+        long period_ns = 1000L * 1000 * 1000 / rate_hz;
+        long samples = run_ns / period_ns;
+        long start_ns = System.nanoTime();
+        for (long i = 0; i < samples; ++i) {
+            long due_ns = start_ns + i * period_ns;
+            long wait_ns;
+            while ((wait_ns = due_ns - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait_ns);
+            }
+            ring.offer(i, (float) i, -(float) i, 0.5f * i);
+        }
+        return samples;
+    }
+
+    private static void runPaced(int rate_hz, ImuRingBuffer.OverflowPolicy policy) {
+        ImuRingBuffer ring = new ImuRingBuffer(CAPACITY, policy);
+        CheckingSink sink = new CheckingSink(rate_hz / 10);
+        ImuWriterThread writer = new ImuWriterThread();
+        writer.addStream("test", ring, sink);
+        writer.start();
+        long samples = produce(ring, rate_hz, RUN_NS);
+        writer.shutdown();
+
+        String stats = rate_hz + " Hz " + policy + ": " + ring.formatStats();
+        assertTrue(stats, sink.mStalled);
+        assertTrue(stats, sink.mFlushed);
+        assertEquals(stats, 0, ring.getOverruns());
+        assertEquals(stats, 0, ring.getBlockedOffers());
+        assertEquals(stats, samples, ring.getDrainedSamples());
+        assertEquals(stats, samples, sink.mNext);
+        assertEquals(stats, 0, sink.mErrors);
+        assertTrue(stats, ring.getHighWaterMark() < CAPACITY);
+        assertTrue(stats, ring.getMaxBatchSize() <= ImuWriterThread.MAX_BATCH_SAMPLES);
+    }
+
+    @Test
+    public void pacedProducersRideOutSinkStall() {
+        for (int rate_hz = 1000; rate_hz <= 4000; rate_hz += 1000) {
+            runPaced(rate_hz, ImuRingBuffer.OverflowPolicy.DROP_OLDEST);
+            runPaced(rate_hz, ImuRingBuffer.OverflowPolicy.DROP_NEWEST);
+        }
+    }
+
+    @Test
+    public void blockPolicyIsLosslessFlatOut() {
+        ImuRingBuffer ring = new ImuRingBuffer(64, ImuRingBuffer.OverflowPolicy.BLOCK);
+        CheckingSink sink = new CheckingSink(Long.MAX_VALUE);
+        ImuWriterThread writer = new ImuWriterThread();
+        writer.addStream("test", ring, sink);
+        writer.start();
+        int samples = 200 * 1000;
+        for (int i = 0; i < samples; ++i) {
+            assertTrue(ring.offer(i, (float) i, -(float) i, 0.5f * i));
+        }
+        writer.shutdown();
+        assertEquals(ring.formatStats(), samples, sink.mNext);
+        assertEquals(0, sink.mErrors);
+        assertEquals(0, ring.getOverruns());
+    }
+
+    @Test
+    public void dropNewestKeepsOldest() throws IOException {
+        ImuRingBuffer ring = new ImuRingBuffer(8, ImuRingBuffer.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 8; ++i) {
+            assertTrue(ring.offer(i, (float) i, -(float) i, 0.5f * i));
+        }
+        assertFalse(ring.offer(8, 8.0f, -8.0f, 4.0f));
+        assertEquals(1, ring.getOverruns());
+        CheckingSink sink = new CheckingSink(Long.MAX_VALUE);
+        assertEquals(8, ring.drainTo(sink, 100));
+        assertEquals(0, sink.mErrors);
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void dropOldestKeepsNewest() throws IOException {
+        ImuRingBuffer ring = new ImuRingBuffer(8, ImuRingBuffer.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 11; ++i) {
+            assertTrue(ring.offer(i, (float) i, -(float) i, 0.5f * i));
+        }
+        assertEquals(3, ring.getOverruns());
+        CheckingSink sink = new CheckingSink(Long.MAX_VALUE);
+        sink.mNext = 3;
+        assertEquals(5, ring.drainTo(sink, 5));
+        assertEquals(3, ring.drainTo(sink, 100));
+        assertEquals(11, sink.mNext);
+        assertEquals(0, sink.mErrors);
+    }
+
+    @Test
+    public void wideSamplesArePadded() throws IOException {
+        ImuRingBuffer ring = new ImuRingBuffer(4, 6, ImuRingBuffer.OverflowPolicy.DROP_NEWEST);
+        ring.offer(7, new float[]{1, 2, 3, 4});
+        final float[] seen = new float[6];
+        ring.drainTo(new CheckingSink(Long.MAX_VALUE) {
+            @Override
+            public void write(long[] timestamps_ns, float[] values, int values_per_sample,
+                              int count) {
+                assertEquals(6, values_per_sample);
+                System.arraycopy(values, 0, seen, 0, 6);
+            }
+        }, 4);
+        assertEquals(1.0f, seen[0], 0.0f);
+        assertEquals(4.0f, seen[3], 0.0f);
+        assertEquals(0.0f, seen[4], 0.0f);
+        assertEquals(0.0f, seen[5], 0.0f);
+    }
+
+    @Test
+    public void rejectsBadCapacity() {
+        try {
+            new ImuRingBuffer(1000, ImuRingBuffer.OverflowPolicy.BLOCK);
+            fail("Accepted a capacity that is not a power of two");
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+    }
+}
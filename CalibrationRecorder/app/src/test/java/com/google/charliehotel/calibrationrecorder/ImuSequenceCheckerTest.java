@@ -0,0 +1,90 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays FIFO-batched IMU streams with known gaps, duplicates and stragglers through
+ * ImuSequenceChecker and checks its counts and that the samples pass through untouched.
+ */
+public class ImuSequenceCheckerTest {
+    private static final long PERIOD_NS = 2500000;  // 400 Hz
+    private static final double GAP_FACTOR = 1.5;
+
+    @Test
+    public void countsGapsInBatchedStream() throws IOException {
+        Random random = new Random(1);
+        int samples = 40000;
+        long[] timestamps = new long[samples];
+        float[] values = new float[3 * samples];
+        long t_ns = 1000000000L;
+        int expected_gaps = 0;
+        long longest_gap_ns = 0;
+        for (int i = 0; i < samples; ++i) {
+            timestamps[i] = t_ns;
+            values[3 * i] = i;
+            long step_ns = PERIOD_NS + random.nextInt(200000) - 100000;
+            if (i > 0 && i % 997 == 0) {
+                // Lost samples: between two and twenty periods.
+                step_ns = PERIOD_NS * (2 + random.nextInt(19));
+                ++expected_gaps;
+                longest_gap_ns = Math.max(longest_gap_ns, step_ns);
+            }
+            t_ns += step_ns;
+        }
+        StringWriter direct = new StringWriter();
+        ImuTextWriter direct_writer = new ImuTextWriter(direct);
+        StringWriter checked = new StringWriter();
+        ImuSequenceChecker checker = new ImuSequenceChecker(new ImuTextWriter(checked), PERIOD_NS, GAP_FACTOR);
+        // Deliver in FIFO-sized bursts, as a batched sensor does.
+        for (int i = 0; i < samples; ) {
+            int count = Math.min(1 + random.nextInt(300), samples - i);
+            long[] batch_timestamps = Arrays.copyOfRange(timestamps, i, i + count);
+            float[] batch_values = Arrays.copyOfRange(values, 3 * i, 3 * (i + count));
+            checker.write(batch_timestamps, batch_values, 3, count);
+            direct_writer.write(batch_timestamps, batch_values, 3, count);
+            i += count;
+        }
+        checker.flush();
+        direct_writer.flush();
+
+        assertEquals(samples, checker.getSampleCount());
+        assertEquals(expected_gaps, checker.getGapCount());
+        assertEquals(longest_gap_ns, checker.getLongestGapNs());
+        assertEquals(0, checker.getReorderCount());
+        assertEquals(direct.toString(), checked.toString());
+    }
+
+    @Test
+    public void countsDuplicatesAndStragglersOnce() throws IOException {
+        ImuSequenceChecker checker = new ImuSequenceChecker(new ImuTextWriter(new StringWriter()),
+                PERIOD_NS, GAP_FACTOR);
+        long p = PERIOD_NS;
+        long[] timestamps = {0, p, 2 * p, 2 * p, 3 * p, p + 1, 4 * p, 10 * p, 11 * p};
+        checker.write(timestamps, new float[3 * timestamps.length], 3, timestamps.length);
+        // A duplicate, a straggler from the past (not also a gap for the next sample), and
+        // one gap of six periods.
+        assertEquals(2, checker.getReorderCount());
+        assertEquals(1, checker.getGapCount());
+        assertEquals(6 * p, checker.getLongestGapNs());
+        checker.write(12 * p, 0, 0, 0);
+        assertEquals(10, checker.getSampleCount());
+        assertEquals(1, checker.getGapCount());
+    }
+
+    @Test
+    public void unratedStreamsHaveNoGaps() throws IOException {
+        ImuSequenceChecker checker = new ImuSequenceChecker(new ImuTextWriter(new StringWriter()),
+                0, GAP_FACTOR);
+        checker.write(0, 0, 0, 0);
+        checker.write(1000L * 1000 * 1000 * 60, 0, 0, 0);
+        assertEquals(0, checker.getGapCount());
+        assertEquals(0, checker.getReorderCount());
+    }
+}
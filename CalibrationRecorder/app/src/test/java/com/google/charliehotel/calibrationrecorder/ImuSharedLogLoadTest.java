@@ -0,0 +1,101 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records four streams at 1 kHz each, laid out as Sensors does it with BACKEND_JAVA (one
+ * delivery thread, a ring per stream, one writer thread, all sinks views of one binary log
+ * on a MappedLogWriter), and checks that the log holds every sample of every stream in
+ * order with no overruns.
+ */
+public class ImuSharedLogLoadTest {
+    private static final int RATE_HZ = 1000;
+    private static final long RUN_NS = 2L * 1000 * 1000 * 1000;
+    private static final int[] SENSOR_IDS = {1, 16, 35, 2};
+    private static final int[] WIDTHS = {3, 3, 6, 3};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static float value(int stream, long sample, int i) {
+        return stream * 1000000 + sample + i / 8.0f;
+    }
+
+    @Test
+    public void fourStreamsAtOneKilohertz() throws IOException {
+        File file = new File(mFolder.getRoot(), "imu.bin");
+        ImuBinaryWriter shared = new ImuBinaryWriter(new MappedLogWriter(file), 0, ImuLogFormat.MAX_VALUES);
+        ImuWriterThread writer = new ImuWriterThread();
+        ImuRingBuffer[] rings = new ImuRingBuffer[SENSOR_IDS.length];
+        ImuSequenceChecker[] checkers = new ImuSequenceChecker[SENSOR_IDS.length];
+        for (int s = 0; s < SENSOR_IDS.length; ++s) {
+            rings[s] = new ImuRingBuffer(4096, WIDTHS[s], ImuRingBuffer.OverflowPolicy.DROP_NEWEST);
+            checkers[s] = new ImuSequenceChecker(shared.forSensor(SENSOR_IDS[s]),
+                    1000000000L / RATE_HZ, Sensors.GAP_FACTOR);
+            writer.addStream("stream" + s, rings[s], checkers[s]);
+        }
+        writer.start();
+
+        long period_ns = 1000000000L / RATE_HZ;
+        long samples = RUN_NS / period_ns;
+        float[] values = new float[ImuLogFormat.MAX_VALUES];
+        long start_ns = System.nanoTime();
+        for (long i = 0; i < samples; ++i) {
+            long due_ns = start_ns + i * period_ns;
+            long wait_ns;
+            while ((wait_ns = due_ns - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait_ns);
+            }
+            for (int s = 0; s < SENSOR_IDS.length; ++s) {
+                for (int v = 0; v < WIDTHS[s]; ++v) {
+                    values[v] = value(s, i, v);
+                }
+                assertTrue(rings[s].offer(i * period_ns + s, values));
+            }
+        }
+        writer.shutdown();
+        for (ImuSequenceChecker checker : checkers) {
+            checker.close();
+        }
+        shared.close();
+
+        for (int s = 0; s < SENSOR_IDS.length; ++s) {
+            String stats = rings[s].formatStats();
+            assertEquals(stats, 0, rings[s].getOverruns());
+            assertEquals(stats, samples, rings[s].getDrainedSamples());
+            assertEquals(0, checkers[s].getGapCount());
+            assertEquals(0, checkers[s].getReorderCount());
+        }
+
+        long[] next = new long[SENSOR_IDS.length];
+        try (ImuBinaryReader reader = new ImuBinaryReader(new FileInputStream(file).getChannel())) {
+            assertEquals(ImuLogFormat.MAX_VALUES, reader.getValuesPerRecord());
+            while (reader.next()) {
+                int s = 0;
+                while (SENSOR_IDS[s] != reader.getSensorId()) {
+                    ++s;
+                }
+                long i = next[s]++;
+                assertEquals(i * period_ns + s, reader.getTimestampNs());
+                for (int v = 0; v < ImuLogFormat.MAX_VALUES; ++v) {
+                    assertEquals(v < WIDTHS[s] ? value(s, i, v) : 0.0f, reader.getValue(v), 0.0f);
+                }
+            }
+        }
+        for (int s = 0; s < SENSOR_IDS.length; ++s) {
+            assertEquals(samples, next[s]);
+        }
+        assertEquals(ImuLogFormat.HEADER_SIZE
+                + 4 * samples * ImuLogFormat.recordSize(ImuLogFormat.MAX_VALUES), file.length());
+    }
+}
@@ -0,0 +1,159 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that MappedLogWriter produces what a plain UTF-8 writer would on a clean close, and that
+ * a log whose writer process was killed recovers to a prefix of whole records holding at
+ * least everything committed before the kill.
+ */
+public class MappedLogWriterTest {
+    private static final int LINES_PER_REPORT = 5000;
+    private static final int REPORTS_BEFORE_KILL = 4;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static String line(long i) {
+        return "line " + i + " " + Long.toHexString(i * 0x9e3779b97f4a7c15L) + "\n";
+    }
+
+    /**
+     * Child process: writes numbered lines to the log in args[0] until killed.  After every
+     * LINES_PER_REPORT lines it checkpoints and prints how many bytes are committed.
+     */
+    public static class Child {
+        public static void main(String[] args) throws IOException {
+            MappedLogWriter writer = new MappedLogWriter(new File(args[0]));
+            long bytes = 0;
+            for (long i = 0; ; ++i) {
+                String line = line(i);
+                writer.write(line);
+                bytes += line.length();
+                if ((i + 1) % LINES_PER_REPORT == 0) {
+                    writer.flush();
+                    System.out.println(bytes);
+                    System.out.flush();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void recoversAfterWriterProcessIsKilled() throws Exception {
+        File log = new File(mFolder.getRoot(), "accel.txt");
+        File commit = new File(log.getPath() + MappedLogWriter.COMMIT_SUFFIX);
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Child.class.getName(), log.getPath()).redirectErrorStream(true).start();
+        long committed = 0;
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(child.getInputStream(), StandardCharsets.US_ASCII));
+            for (int i = 0; i < REPORTS_BEFORE_KILL; ++i) {
+                String report = reader.readLine();
+                assertTrue("Child exited early", report != null);
+                committed = Long.parseLong(report.trim());
+            }
+        } finally {
+            child.destroy();
+            child.waitFor();
+        }
+        assertTrue(commit.exists());
+        // The preallocated segment is still there.
+        assertTrue(log.length() > committed);
+
+        long recovered = MappedLogWriter.recover(log);
+        assertTrue(recovered >= committed);
+        assertEquals(recovered, log.length());
+        assertFalse(commit.exists());
+        assertEquals(-1, MappedLogWriter.recover(log));
+
+        String text = new String(Files.readAllBytes(log.toPath()), StandardCharsets.US_ASCII);
+        int offset = 0;
+        long lines = 0;
+        while (offset < text.length()) {
+            String expected = line(lines++);
+            assertTrue("Bad record at byte " + offset, text.startsWith(expected, offset));
+            offset += expected.length();
+        }
+        assertTrue(lines >= REPORTS_BEFORE_KILL * LINES_PER_REPORT);
+    }
+
+    @Test
+    public void cleanCloseMatchesPlainWriter() throws IOException {
+        File mapped = mFolder.newFile();
+        File plain = mFolder.newFile();
+        MappedLogWriter writer = new MappedLogWriter(mapped);
+        Writer expected = new OutputStreamWriter(new FileOutputStream(plain), StandardCharsets.UTF_8);
+        // Enough to cross several segments, with some non-ASCII and char[] writes.
+        for (int i = 0; i < 300000; ++i) {
+            String line = line(i);
+            if (i % 1000 == 0) {
+                line = "\u00b5" + line;
+            }
+            if (i % 2 == 0) {
+                writer.write(line);
+            } else {
+                writer.write(line.toCharArray());
+            }
+            expected.write(line);
+            if (i % 50000 == 0) {
+                writer.checkpoint();
+            }
+        }
+        writer.close();
+        expected.close();
+        assertFalse(new File(mapped.getPath() + MappedLogWriter.COMMIT_SUFFIX).exists());
+        assertArrayEquals(Files.readAllBytes(plain.toPath()), Files.readAllBytes(mapped.toPath()));
+        assertEquals(-1, MappedLogWriter.recover(mapped));
+    }
+
+    @Test
+    public void carriesBinaryRecords() throws IOException {
+        File file = mFolder.newFile();
+        MappedLogWriter writer = new MappedLogWriter(file);
+        byte[] big = new byte[5 * 1024 * 1024];
+        for (int i = 0; i < big.length; ++i) {
+            big[i] = (byte) (i * 13);
+        }
+        assertEquals(3, writer.write(ByteBuffer.wrap(new byte[]{1, 2, 3})));
+        assertEquals(big.length, writer.write(ByteBuffer.wrap(big)));
+        writer.close();
+        assertFalse(writer.isOpen());
+        byte[] written = Files.readAllBytes(file.toPath());
+        assertEquals(3 + big.length, written.length);
+        assertEquals(3, written[2]);
+        assertEquals(big[big.length - 1], written[written.length - 1]);
+    }
+
+    @Test
+    public void uncommittedTailIsDropped() throws IOException {
+        File file = mFolder.newFile();
+        MappedLogWriter writer = new MappedLogWriter(file);
+        writer.write("committed\n");
+        writer.checkpoint();
+        writer.write("torn");
+        // Abandon the writer without closing it, as a crash would.
+        assertEquals("committed\n".length(), MappedLogWriter.recover(file));
+        assertEquals("committed\n", new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII));
+    }
+}
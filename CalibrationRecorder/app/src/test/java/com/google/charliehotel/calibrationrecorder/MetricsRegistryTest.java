@@ -0,0 +1,124 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the histogram bucket layout and quantiles, that counters and histograms lose
+ * nothing to concurrent updates, and the summary and JSON output.
+ */
+public class MetricsRegistryTest {
+    private static final int THREADS = 4;
+    private static final int UPDATES_PER_THREAD = 250 * 1000;
+
+    // One sub-bucket of 16 per power of two.
+    private static final double RELATIVE_RESOLUTION = 1.0 / 16;
+
+    @Test
+    public void bucketsCoverEveryValueInOrder() {
+        Random random = new Random(1);
+        long[] values = new long[100 * 1000];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = i < 1000 ? i : (random.nextLong() >>> 1) >>> random.nextInt(63);
+        }
+        for (long value : values) {
+            int index = MetricsRegistry.Histogram.bucketIndex(value);
+            String bucket = value + " in bucket " + index;
+            assertTrue(bucket, value <= MetricsRegistry.Histogram.bucketUpperBound(index));
+            assertTrue(bucket, index == 0 || value > MetricsRegistry.Histogram.bucketUpperBound(index - 1));
+            assertTrue(bucket, value < 32 ? MetricsRegistry.Histogram.bucketUpperBound(index) == value
+                    : MetricsRegistry.Histogram.bucketUpperBound(index) <= value * (1 + RELATIVE_RESOLUTION));
+        }
+        assertEquals(32 + 58 * 16 - 1, MetricsRegistry.Histogram.bucketIndex(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, MetricsRegistry.Histogram.bucketUpperBound(
+                MetricsRegistry.Histogram.bucketIndex(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void quantilesAreWithinResolution() {
+        MetricsRegistry.Histogram histogram = new MetricsRegistry.Histogram();
+        assertEquals(0, histogram.getQuantile(0.5));
+        for (long value = 1; value <= 100000; ++value) {
+            histogram.record(value);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertEquals(50000.5, histogram.getMean(), 1e-9);
+        assertEquals(50000, histogram.getQuantile(0.5), 50000 * RELATIVE_RESOLUTION);
+        assertTrue(histogram.getQuantile(0.5) >= 50000);
+        assertEquals(99000, histogram.getQuantile(0.99), 99000 * RELATIVE_RESOLUTION);
+        assertEquals(100000, histogram.getQuantile(1.0));
+
+        histogram.record(-5);
+        assertEquals(0, histogram.getQuantile(0.0));
+    }
+
+    @Test
+    public void concurrentUpdatesAreNotLost() throws InterruptedException {
+        final MetricsRegistry registry = new MetricsRegistry();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; ++t) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    MetricsRegistry.Counter counter = registry.counter("frames");
+                    MetricsRegistry.Histogram histogram = registry.histogram("latency_ns");
+                    for (int i = 0; i < UPDATES_PER_THREAD; ++i) {
+                        counter.increment();
+                        histogram.record(thread * UPDATES_PER_THREAD + i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertSame(registry.counter("frames"), registry.counter("frames"));
+        assertEquals(THREADS * UPDATES_PER_THREAD, registry.counter("frames").get());
+        MetricsRegistry.Histogram histogram = registry.histogram("latency_ns");
+        assertEquals(THREADS * UPDATES_PER_THREAD, histogram.getCount());
+        assertEquals(THREADS * UPDATES_PER_THREAD - 1, histogram.getMax());
+        assertEquals((THREADS * UPDATES_PER_THREAD - 1) / 2.0, histogram.getMean(), 1e-6);
+    }
+
+    @Test
+    public void summaryAndJson() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("written").add(7);
+        registry.counter("dropped").set(2);
+        for (int value = 1; value <= 3; ++value) {
+            registry.histogram("wait_ns").record(value);
+        }
+        assertEquals("dropped=2 written=7 wait_ns=[n=3 p50=2 p99=3 max=3]", registry.formatSummary());
+
+        // JSON numbers take a point whatever the device's locale.
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(Locale.GERMANY);
+        StringWriter json = new StringWriter();
+        try {
+            registry.writeJson(json);
+        } finally {
+            Locale.setDefault(locale);
+        }
+        assertEquals("{\n"
+                + "  \"counters\": {\n"
+                + "    \"dropped\": 2,\n"
+                + "    \"written\": 7\n"
+                + "  },\n"
+                + "  \"histograms\": {\n"
+                + "    \"wait_ns\": {\"count\": 3, \"mean\": 2.0, \"p50\": 2, \"p90\": 3, \"p99\": 3,"
+                + " \"p999\": 3, \"max\": 3}\n"
+                + "  }\n"
+                + "}\n", json.toString());
+    }
+}
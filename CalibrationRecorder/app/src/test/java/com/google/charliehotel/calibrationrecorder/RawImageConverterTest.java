@@ -0,0 +1,155 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.graphics.ImageFormat;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Converts synthetic raw images laid out the way the camera delivers them, row padding
+ * included, and checks the samples and the PGM and PNG encodings.
+ */
+public class RawImageConverterTest {
+    private static final int WIDTH = 13;
+    private static final int HEIGHT = 7;
+
+    private static int sample(int x, int y, int bit_depth) {
+        return (x * 37 + y * 101 + (x ^ y) * 7919) & ((1 << bit_depth) - 1);
+    }
+
+    /**
+     * Builds a raw image whose first plane has the given strides.  The last row is left
+     * unpadded, as some HALs do.
+     */
+    private static ByteBuffer rawImage(int format, int row_stride, int pixel_stride,
+                                       int bytes_per_sample, int trim) {
+        int length = (HEIGHT - 1) * row_stride + (WIDTH - 1) * pixel_stride + bytes_per_sample
+                - trim;
+        RawImageHeader header = new RawImageHeader(format, WIDTH, HEIGHT, 1234L, 1);
+        header.setPlane(0, row_stride, pixel_stride, length);
+        ByteBuffer encoded = header.encode();
+        ByteBuffer buffer = ByteBuffer.allocate(encoded.remaining() + length + trim)
+                .order(RawImageHeader.BYTE_ORDER);
+        buffer.put(encoded);
+        int plane = buffer.position();
+        for (int i = plane; i < buffer.capacity(); ++i) {
+            buffer.put(i, (byte) 0xa5);  // padding, never to be read
+        }
+        for (int y = 0; y < HEIGHT; ++y) {
+            for (int x = 0; x < WIDTH; ++x) {
+                int offset = plane + y * row_stride + x * pixel_stride;
+                if (offset + bytes_per_sample > buffer.capacity()) {
+                    continue;
+                }
+                if (bytes_per_sample == 1) {
+                    buffer.put(offset, (byte) sample(x, y, 8));
+                } else {
+                    buffer.putShort(offset, (short) sample(x, y, 16));
+                }
+            }
+        }
+        buffer.position(0);
+        return buffer;
+    }
+
+    private static void checkSamples(RawImageConverter.GrayImage image, int bit_depth) {
+        assertEquals(WIDTH, image.width);
+        assertEquals(HEIGHT, image.height);
+        assertEquals(bit_depth, image.bitDepth);
+        for (int y = 0; y < HEIGHT; ++y) {
+            for (int x = 0; x < WIDTH; ++x) {
+                assertEquals("(" + x + ", " + y + ")", sample(x, y, bit_depth),
+                        image.samples[y * WIDTH + x]);
+            }
+        }
+    }
+
+    @Test
+    public void decodesPaddedLumaPlane() throws IOException {
+        checkSamples(RawImageConverter.decode(rawImage(ImageFormat.YUV_420_888, 16, 1, 1, 0)), 8);
+        // A pixel stride above one never happens for luma in practice, but is allowed.
+        checkSamples(RawImageConverter.decode(rawImage(ImageFormat.YUV_420_888, 32, 2, 1, 0)), 8);
+    }
+
+    @Test
+    public void decodesRawSensorPlane() throws IOException {
+        checkSamples(RawImageConverter.decode(rawImage(ImageFormat.RAW_SENSOR, 2 * WIDTH, 2, 2, 0)), 16);
+        checkSamples(RawImageConverter.decode(rawImage(ImageFormat.RAW_SENSOR, 64, 2, 2, 0)), 16);
+    }
+
+    @Test
+    public void rejectsShortPlane() {
+        try {
+            RawImageConverter.decode(rawImage(ImageFormat.YUV_420_888, 16, 1, 1, 1));
+            fail("Accepted a plane one byte short");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void rejectsUnknownFormat() {
+        try {
+            RawImageConverter.decode(rawImage(ImageFormat.JPEG, 16, 1, 1, 0));
+            fail("Accepted a JPEG header");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void writesPgm() throws IOException {
+        RawImageConverter.GrayImage image =
+                RawImageConverter.decode(rawImage(ImageFormat.RAW_SENSOR, 64, 2, 2, 0));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RawImageConverter.writePgm(image, out);
+        byte[] header = ("P5\n" + WIDTH + " " + HEIGHT + "\n65535\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] pgm = out.toByteArray();
+        assertEquals(header.length + 2 * WIDTH * HEIGHT, pgm.length);
+        byte[] actual_header = new byte[header.length];
+        System.arraycopy(pgm, 0, actual_header, 0, header.length);
+        assertArrayEquals(header, actual_header);
+        for (int i = 0; i < WIDTH * HEIGHT; ++i) {
+            int value = (pgm[header.length + 2 * i] & 0xff) << 8 | (pgm[header.length + 2 * i + 1] & 0xff);
+            assertEquals(sample(i % WIDTH, i / WIDTH, 16), value);
+        }
+    }
+
+    @Test
+    public void writesPngReadableByImageIo() throws IOException {
+        for (int format : new int[]{ImageFormat.YUV_420_888, ImageFormat.RAW_SENSOR}) {
+            boolean raw = format == ImageFormat.RAW_SENSOR;
+            int bit_depth = raw ? 16 : 8;
+            RawImageConverter.GrayImage image = RawImageConverter.decode(
+                    rawImage(format, 64, raw ? 2 : 1, raw ? 2 : 1, 0));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            RawImageConverter.writePng(image, out);
+            BufferedImage png = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+            assertTrue(png != null);
+            assertEquals(WIDTH, png.getWidth());
+            assertEquals(HEIGHT, png.getHeight());
+            assertEquals(bit_depth, png.getColorModel().getComponentSize(0));
+            Raster raster = png.getRaster();
+            for (int y = 0; y < HEIGHT; ++y) {
+                for (int x = 0; x < WIDTH; ++x) {
+                    assertEquals(sample(x, y, bit_depth), raster.getSample(x, y, 0));
+                }
+            }
+        }
+    }
+}
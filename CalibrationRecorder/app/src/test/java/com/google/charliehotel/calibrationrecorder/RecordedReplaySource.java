@@ -0,0 +1,477 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plays back a recorded take: every capture result in the metadata logs, and every sample
+ * of the IMU logs, binary or text.
+ *
+ * Frames follow the metadata log, one per line, so the replay has the capture cadence of
+ * the take, drops included.  Their images are the take's own, from its frame container
+ * or image directory, loaded up front (at most MAX_PAYLOADS per camera, reused in turn
+ * when the take has more) so reading them is not part of what is measured.  A camera
+ * without images replays capture results only.  Streams are merged by timestamp; the
+ * logs are read as the replay goes, so takes of any length fit.
+ */
+class RecordedReplaySource implements ReplaySource {
+    static final int MAX_PAYLOADS = 64;
+
+    // name, image directory, frame container and metadata file of each camera.
+    private static final String[][] CAMERAS = {
+            {"left", "left_images", "left_images.frames", "left_image_metadata.txt"},
+            {"right", "right_images", "right_images.frames", "right_image_metadata.txt"},
+    };
+    private static final String IMU_BINARY_DATA_FILENAME = "imu.bin";
+    private static final String IMU_TEXT_DATA_SUFFIX = ".txt";
+    private static final String IMU_STREAMS_FILENAME = "imu_streams.txt";
+
+    // Text log lines read up front for a stream's width and period.
+    private static final int PROBE_LINES = 256;
+
+    RecordedReplaySource(@NonNull File take_dir) throws IOException {
+        try {
+            for (String[] camera : CAMERAS) {
+                File metadata = new File(take_dir, camera[3]);
+                if (metadata.isFile()) {
+                    mCameraNames.add(camera[0]);
+                    mLanes.add(new FrameLane(mCameraNames.size() - 1, metadata,
+                            loadPayloads(new File(take_dir, camera[1]), new File(take_dir, camera[2]))));
+                }
+            }
+            File binary_log = new File(take_dir, IMU_BINARY_DATA_FILENAME);
+            if (binary_log.isFile()) {
+                probeBinaryLog(take_dir, binary_log);
+                mLanes.add(new BinaryImuLane(binary_log));
+            } else {
+                for (String name : SessionIndex.listImuStreams(take_dir)) {
+                    File log = new File(take_dir, name + IMU_TEXT_DATA_SUFFIX);
+                    if (log.isFile()) {
+                        probeTextLog(name, log);
+                        mLanes.add(new TextImuLane(mImuNames.size() - 1, log));
+                    }
+                }
+            }
+            for (Lane lane : mLanes) {
+                lane.advance();
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        if (mLanes.isEmpty()) {
+            throw new IOException("Nothing to replay in " + take_dir);
+        }
+    }
+
+    private static List<ByteBuffer> loadPayloads(File image_dir, File container) throws IOException {
+        List<ByteBuffer> payloads = new ArrayList<>();
+        if (container.isFile()) {
+            FrameContainerReader reader = new FrameContainerReader(container);
+            try {
+                for (int i = 0; i < reader.getFrameCount() && i < MAX_PAYLOADS; ++i) {
+                    ByteBuffer mapped = reader.mapFrame(i);
+                    ByteBuffer payload = ByteBuffer.allocateDirect(mapped.remaining());
+                    payload.put(mapped).flip();
+                    payloads.add(payload.asReadOnlyBuffer());
+                }
+            } finally {
+                reader.close();
+            }
+            return payloads;
+        }
+        File[] files = image_dir.listFiles();
+        if (files == null) {
+            return payloads;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (payloads.size() == MAX_PAYLOADS) {
+                break;
+            }
+            FileChannel channel = new FileInputStream(file).getChannel();
+            try {
+                ByteBuffer payload = ByteBuffer.allocateDirect((int) channel.size());
+                while (payload.hasRemaining() && channel.read(payload) >= 0) {
+                    // Keep reading.
+                }
+                payload.flip();
+                payloads.add(payload.asReadOnlyBuffer());
+            } finally {
+                channel.close();
+            }
+        }
+        return payloads;
+    }
+
+    // One stream per sensor id, in order of appearance, named as in the take's stream
+    // summary (see Sensors.writeStreamSummary()) if it has one.
+    private void probeBinaryLog(File take_dir, File log) throws IOException {
+        Map<Integer, String> names = readStreamNames(new File(take_dir, IMU_STREAMS_FILENAME));
+        ImuBinaryReader reader = new ImuBinaryReader(new FileInputStream(log).getChannel());
+        List<long[]> spans = new ArrayList<>();
+        try {
+            while (reader.next()) {
+                int stream = mImuSensorIds.indexOf(reader.getSensorId());
+                if (stream < 0) {
+                    stream = mImuSensorIds.size();
+                    mImuSensorIds.add(reader.getSensorId());
+                    String name = names.get(reader.getSensorId());
+                    mImuNames.add(name != null ? name : "sensor" + reader.getSensorId());
+                    mImuWidths.add(reader.getValuesPerRecord());
+                    spans.add(new long[]{reader.getTimestampNs(), 0, 0});
+                }
+                long[] span = spans.get(stream);
+                span[1] = reader.getTimestampNs();
+                ++span[2];
+            }
+        } finally {
+            reader.close();
+        }
+        for (long[] span : spans) {
+            mImuPeriodsNs.add(span[2] > 1 ? (span[1] - span[0]) / (span[2] - 1) : 0);
+        }
+    }
+
+    // Sensor type to stream name.
+    private static Map<Integer, String> readStreamNames(File streams_file) throws IOException {
+        Map<Integer, String> names = new HashMap<>();
+        if (!streams_file.isFile()) {
+            return names;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(streams_file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (line.startsWith("#") || fields.length < 2) {
+                    continue;
+                }
+                names.put(Integer.parseInt(fields[1]), fields[0]);
+            }
+        } finally {
+            reader.close();
+        }
+        return names;
+    }
+
+    private void probeTextLog(String name, File log) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(log));
+        int width = ImuLogFormat.THREE_AXIS_VALUES;
+        long first_ns = 0;
+        long last_ns = 0;
+        int lines = 0;
+        try {
+            String line;
+            while (lines < PROBE_LINES && (line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                width = fields.length - 1;
+                last_ns = Long.parseLong(fields[0]);
+                if (lines++ == 0) {
+                    first_ns = last_ns;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        mImuNames.add(name);
+        mImuSensorIds.add(mImuNames.size() - 1);
+        mImuWidths.add(Math.max(1, Math.min(ImuLogFormat.MAX_VALUES, width)));
+        mImuPeriodsNs.add(lines > 1 ? (last_ns - first_ns) / (lines - 1) : 0);
+    }
+
+    @Override
+    public int getCameraCount() {
+        return mCameraNames.size();
+    }
+
+    @NonNull
+    @Override
+    public String getCameraName(int camera) {
+        return mCameraNames.get(camera);
+    }
+
+    @Override
+    public int getImuStreamCount() {
+        return mImuNames.size();
+    }
+
+    @NonNull
+    @Override
+    public String getImuStreamName(int stream) {
+        return mImuNames.get(stream);
+    }
+
+    @Override
+    public int getImuSensorId(int stream) {
+        return mImuSensorIds.get(stream);
+    }
+
+    @Override
+    public int getImuValuesPerSample(int stream) {
+        return mImuWidths.get(stream);
+    }
+
+    @Override
+    public long getImuPeriodNs(int stream) {
+        return mImuPeriodsNs.get(stream);
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        Lane earliest = null;
+        for (Lane lane : mLanes) {
+            if (lane.mHasHead && (earliest == null || lane.mHeadNs < earliest.mHeadNs)) {
+                earliest = lane;
+            }
+        }
+        if (earliest == null) {
+            return false;
+        }
+        earliest.emit();
+        earliest.advance();
+        return true;
+    }
+
+    @Override
+    public int getEventType() {
+        return mEventType;
+    }
+
+    @Override
+    public int getStream() {
+        return mStream;
+    }
+
+    @Override
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    @Override
+    public long getFrameNumber() {
+        return mFrameNumber;
+    }
+
+    @Override
+    public long getExposureNs() {
+        return mExposureNs;
+    }
+
+    @Override
+    public long getSkewNs() {
+        return mSkewNs;
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer getFramePayload() {
+        return mPayload != null ? mPayload.duplicate() : null;
+    }
+
+    @NonNull
+    @Override
+    public float[] getValues() {
+        return mValues;
+    }
+
+    @Override
+    public int getValueCount() {
+        return mValueCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException first = null;
+        for (Lane lane : mLanes) {
+            try {
+                lane.close();
+            } catch (IOException e) {
+                if (first == null) {
+                    first = e;
+                }
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    /**
+     * One log, read one event ahead.
+     */
+    private abstract static class Lane {
+        // Reads the next event into the head; clears mHasHead at the end of the log.
+        abstract void advance() throws IOException;
+
+        // Makes the head the source's current event.
+        abstract void emit();
+
+        abstract void close() throws IOException;
+
+        boolean mHasHead;
+        long mHeadNs;
+    }
+
+    private class FrameLane extends Lane {
+        FrameLane(int camera, File metadata, List<ByteBuffer> payloads) throws IOException {
+            mCamera = camera;
+            mReader = new BufferedReader(new FileReader(metadata));
+            mPayloads = payloads;
+        }
+
+        @Override
+        void advance() throws IOException {
+            String line;
+            while ((line = mReader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                mHeadNs = Long.parseLong(fields[0]);
+                mHeadFrameNumber = fields.length > 1 ? Long.parseLong(fields[1]) : mFrames;
+                mHeadExposureNs = fields.length > 2 ? Long.parseLong(fields[2]) : CaptureMetadataFormat.MISSING;
+                mHeadSkewNs = fields.length > 3 ? Long.parseLong(fields[3]) : CaptureMetadataFormat.MISSING;
+                mHasHead = true;
+                return;
+            }
+            mHasHead = false;
+        }
+
+        @Override
+        void emit() {
+            mEventType = EVENT_FRAME;
+            mStream = mCamera;
+            mTimestampNs = mHeadNs;
+            mFrameNumber = mHeadFrameNumber;
+            mExposureNs = mHeadExposureNs;
+            mSkewNs = mHeadSkewNs;
+            mPayload = mPayloads.isEmpty() ? null : mPayloads.get((int) (mFrames % mPayloads.size()));
+            ++mFrames;
+        }
+
+        @Override
+        void close() throws IOException {
+            mReader.close();
+        }
+
+        private final int mCamera;
+        private final BufferedReader mReader;
+        private final List<ByteBuffer> mPayloads;
+        private long mFrames;
+        private long mHeadFrameNumber;
+        private long mHeadExposureNs;
+        private long mHeadSkewNs;
+    }
+
+    private class TextImuLane extends Lane {
+        TextImuLane(int stream, File log) throws IOException {
+            mImuStream = stream;
+            mReader = new BufferedReader(new FileReader(log));
+        }
+
+        @Override
+        void advance() throws IOException {
+            String line;
+            while ((line = mReader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                mHeadNs = Long.parseLong(fields[0]);
+                mHeadCount = Math.min(fields.length - 1, ImuLogFormat.MAX_VALUES);
+                for (int i = 0; i < mHeadCount; ++i) {
+                    // The logs are in %a, which parseFloat reads back exactly.
+                    mHeadValues[i] = Float.parseFloat(fields[i + 1]);
+                }
+                mHasHead = true;
+                return;
+            }
+            mHasHead = false;
+        }
+
+        @Override
+        void emit() {
+            mEventType = EVENT_IMU;
+            mStream = mImuStream;
+            mTimestampNs = mHeadNs;
+            mValueCount = mHeadCount;
+            System.arraycopy(mHeadValues, 0, mValues, 0, mHeadCount);
+        }
+
+        @Override
+        void close() throws IOException {
+            mReader.close();
+        }
+
+        private final int mImuStream;
+        private final BufferedReader mReader;
+        private final float[] mHeadValues = new float[ImuLogFormat.MAX_VALUES];
+        private int mHeadCount;
+    }
+
+    private class BinaryImuLane extends Lane {
+        BinaryImuLane(File log) throws IOException {
+            mReader = new ImuBinaryReader(new FileInputStream(log).getChannel());
+        }
+
+        @Override
+        void advance() throws IOException {
+            mHasHead = mReader.next();
+            if (mHasHead) {
+                mHeadNs = mReader.getTimestampNs();
+            }
+        }
+
+        @Override
+        void emit() {
+            mEventType = EVENT_IMU;
+            mStream = mImuSensorIds.indexOf(mReader.getSensorId());
+            mTimestampNs = mHeadNs;
+            mValueCount = mReader.getValuesPerRecord();
+            for (int i = 0; i < mValueCount; ++i) {
+                mValues[i] = mReader.getValue(i);
+            }
+        }
+
+        @Override
+        void close() throws IOException {
+            mReader.close();
+        }
+
+        private final ImuBinaryReader mReader;
+    }
+
+    private final List<String> mCameraNames = new ArrayList<>();
+    private final List<String> mImuNames = new ArrayList<>();
+    private final List<Integer> mImuSensorIds = new ArrayList<>();
+    private final List<Integer> mImuWidths = new ArrayList<>();
+    private final List<Long> mImuPeriodsNs = new ArrayList<>();
+    private final List<Lane> mLanes = new ArrayList<>();
+
+    private int mEventType;
+    private int mStream;
+    private long mTimestampNs;
+    private long mFrameNumber;
+    private long mExposureNs;
+    private long mSkewNs;
+    private ByteBuffer mPayload;
+    private final float[] mValues = new float[ImuLogFormat.MAX_VALUES];
+    private int mValueCount;
+}
@@ -0,0 +1,152 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stands in for camera2 and the SensorManager: plays a ReplaySource on a thread of its
+ * own, in real time (or a multiple of it) or as fast as possible.
+ *
+ * Frames go to the listener, which does what a camera's background thread does with a
+ * capture result and its image.  IMU samples go into a DirectImuRing, as NativeImuBackend
+ * writes them, for a consumer to drain.  Arrival times are System.nanoTime() when the
+ * event was delivered; timestamps are the source's own, so logs written from a replay
+ * line up with the recording.  A paced event is late if it is delivered more than
+ * LATE_NS after it was due, i.e. the listener fell behind the recording.
+ */
+class ReplayBackend {
+    /** Speed for delivering every event as soon as the previous one is handled. */
+    static final double AS_FAST_AS_POSSIBLE = 0;
+
+    private static final long LATE_NS = 2 * 1000 * 1000;
+
+    interface FrameListener {
+        /**
+         * Called on the replay thread for every frame; payload is null for a capture
+         * without an image.
+         */
+        void onFrame(int camera, long timestamp_ns, long frame_number, long exposure_ns, long skew_ns,
+                     @Nullable ByteBuffer payload, long arrival_ns);
+
+        /**
+         * Called on the replay thread after the last event, or when stopped.
+         */
+        void onEnd();
+    }
+
+    /**
+     * speed 1 plays the recording in real time, 2 twice as fast, AS_FAST_AS_POSSIBLE
+     * without waiting.  IMU stream i of the source goes to stream i of the ring.
+     */
+    ReplayBackend(@NonNull ReplaySource source, double speed, @NonNull DirectImuRing imu_ring,
+                  @NonNull FrameListener listener) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Bad replay speed " + speed);
+        }
+        mSource = source;
+        mSpeed = speed;
+        mImuRing = imu_ring;
+        mListener = listener;
+    }
+
+    void start() {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                play();
+            }
+        }, "ReplayBackend");
+        mThread.start();
+    }
+
+    /**
+     * Waits for the replay to end by itself.
+     */
+    void join() throws InterruptedException {
+        mThread.join();
+    }
+
+    /**
+     * Ends the replay early and waits for the thread.
+     */
+    void stop() throws InterruptedException {
+        mStopped = true;
+        LockSupport.unpark(mThread);
+        mThread.join();
+    }
+
+    /** Set if the source could not be read; the replay ended there. */
+    @Nullable
+    IOException getError() {
+        return mError;
+    }
+
+    long getEventCount() {
+        return mEvents;
+    }
+
+    /** Paced events delivered more than LATE_NS after they were due. */
+    long getLateCount() {
+        return mLate;
+    }
+
+    /** From the first event to the end of the last one's delivery. */
+    long getElapsedNs() {
+        return mElapsedNs;
+    }
+
+    private void play() {
+        long start_ns = System.nanoTime();
+        long first_timestamp_ns = 0;
+        try {
+            while (!mStopped && mSource.next()) {
+                long timestamp_ns = mSource.getTimestampNs();
+                if (mEvents == 0) {
+                    first_timestamp_ns = timestamp_ns;
+                }
+                long now_ns = System.nanoTime();
+                if (mSpeed != AS_FAST_AS_POSSIBLE) {
+                    long due_ns = start_ns + Math.round((timestamp_ns - first_timestamp_ns) / mSpeed);
+                    long wait_ns;
+                    while ((wait_ns = due_ns - now_ns) > 0 && !mStopped) {
+                        LockSupport.parkNanos(wait_ns);
+                        now_ns = System.nanoTime();
+                    }
+                    if (now_ns - due_ns > LATE_NS) {
+                        ++mLate;
+                    }
+                }
+                if (mSource.getEventType() == ReplaySource.EVENT_FRAME) {
+                    mListener.onFrame(mSource.getStream(), timestamp_ns, mSource.getFrameNumber(),
+                            mSource.getExposureNs(), mSource.getSkewNs(), mSource.getFramePayload(), now_ns);
+                } else {
+                    mImuRing.offer(mSource.getStream(), timestamp_ns, now_ns, mSource.getValues(),
+                            mSource.getValueCount());
+                }
+                ++mEvents;
+            }
+        } catch (IOException e) {
+            mError = e;
+        } finally {
+            mElapsedNs = System.nanoTime() - start_ns;
+            mListener.onEnd();
+        }
+    }
+
+    private final ReplaySource mSource;
+    private final double mSpeed;
+    private final DirectImuRing mImuRing;
+    private final FrameListener mListener;
+    private Thread mThread;
+    private volatile boolean mStopped;
+
+    // Replay thread; read after join().
+    private volatile IOException mError;
+    private volatile long mEvents;
+    private volatile long mLate;
+    private volatile long mElapsedNs;
+}
@@ -0,0 +1,430 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the recording pipeline off-device: a ReplayBackend plays a recorded take or a
+ * synthetic one through the writer path a device recording takes, and the harness
+ * reports what came out the other end.
+ *
+ * Per camera, what Camera does on its background thread: a CaptureMetadataFormat line per
+ * capture to a MappedLogWriter, and the image to an ImageWriterPool of the same size and
+ * depth, which writes it to a FrameContainerWriter or a file per image.  A paced replay
+ * has as many images in flight as the ImageReader has buffers and drops an image when
+ * they are all taken, as the camera would.  A flat-out one waits instead, with no more
+ * in flight than the writer queue holds, so it measures what the writers sustain.  The IMU
+ * samples go through a DirectImuRing, as under Sensors.BACKEND_NATIVE, and are drained
+ * every ImuWriterThread.DRAIN_INTERVAL_NS into an ImuSequenceChecker and the shared
+ * binary log or a text log per stream.  ImuWriterThread itself logs through
+ * android.util.Log, so the drain loop is this class's own.
+ *
+ * One line per camera and IMU stream, then a result line:
+ *
+ *   stream events seconds events_per_s p50_ns p99_ns max_ns dropped
+ *
+ * Latency is from delivery to the image being on storage, or to the sample reaching its
+ * sink.  dropped counts images the writers or the reader had no room for, and samples
+ * the ring had no room for.  It passes if nothing was dropped and no write failed.  Late
+ * paced events (see ReplayBackend) are reported but do not fail it: they mean the one
+ * replay thread fell behind, where a device has a thread per camera and for the sensors.
+ * Runs on any JVM; ReplayHarnessTest runs it as the performance regression suite.
+ */
+class ReplayHarness {
+    static final String HEADER = "# stream events seconds events_per_s p50_ns p99_ns max_ns dropped";
+
+    private static final String IMU_BINARY_DATA_FILENAME = "imu.bin";
+    private static final String IMU_TEXT_DATA_SUFFIX = ".txt";
+    private static final String IMU_STREAMS_FILENAME = "imu_streams.txt";
+    private static final String METADATA_SUFFIX = "_image_metadata.txt";
+    private static final String CONTAINER_SUFFIX = "_images.frames";
+    private static final String IMAGE_DIR_SUFFIX = "_images";
+
+    /**
+     * Replays the source into out_dir and writes the report to out.  Returns whether it
+     * passed.
+     */
+    static boolean run(@NonNull ReplaySource source, double speed, boolean use_container,
+                       boolean binary_imu, @NonNull File out_dir, @NonNull Writer out)
+            throws IOException, InterruptedException {
+        ReplayHarness harness = new ReplayHarness(source, speed, use_container, binary_imu, out_dir);
+        try {
+            harness.replay();
+        } finally {
+            harness.close();
+        }
+        return harness.report(out);
+    }
+
+    private ReplayHarness(ReplaySource source, double speed, boolean use_container, boolean binary_imu,
+                          File out_dir) throws IOException {
+        mSource = source;
+        mSpeed = speed;
+        try {
+            for (int i = 0; i < source.getCameraCount(); ++i) {
+                mCameras.add(new CameraPath(source.getCameraName(i), use_container,
+                        speed == ReplayBackend.AS_FAST_AS_POSSIBLE, out_dir));
+            }
+            int streams = source.getImuStreamCount();
+            int[] widths = new int[streams];
+            if (binary_imu && streams > 0) {
+                mSharedImuWriter = new ImuBinaryWriter(new MappedLogWriter(new File(out_dir, IMU_BINARY_DATA_FILENAME)),
+                        0, ImuLogFormat.MAX_VALUES);
+            }
+            for (int i = 0; i < streams; ++i) {
+                widths[i] = source.getImuValuesPerSample(i);
+                ImuSink sink = mSharedImuWriter != null ? mSharedImuWriter.forSensor(source.getImuSensorId(i))
+                        : new ImuTextWriter(new MappedLogWriter(
+                                new File(out_dir, source.getImuStreamName(i) + IMU_TEXT_DATA_SUFFIX)));
+                mImuStreams.add(new ImuPath(source.getImuStreamName(i),
+                        new ImuSequenceChecker(sink, source.getImuPeriodNs(i), Sensors.GAP_FACTOR)));
+            }
+            if (streams > 0) {
+                writeImuStreams(source, new File(out_dir, IMU_STREAMS_FILENAME));
+            }
+            mImuRing = new DirectImuRing(DirectImuRing.allocate(Sensors.DIRECT_RING_CAPACITY),
+                    new DirectImuRing.LockedCursors(), widths);
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // The leading columns of Sensors.writeStreamSummary(), so out_dir replays as a take.
+    private static void writeImuStreams(ReplaySource source, File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write("# stream sensor_type\n");
+            for (int i = 0; i < source.getImuStreamCount(); ++i) {
+                writer.write(source.getImuStreamName(i) + " " + source.getImuSensorId(i) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void replay() throws InterruptedException {
+        mBackend = new ReplayBackend(mSource, mSpeed, mImuRing, mFrameListener);
+        Thread drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainImu();
+            }
+        }, "ImuDrain");
+        drain.start();
+        mStartNs = System.nanoTime();
+        mBackend.start();
+        mBackend.join();
+        for (CameraPath camera : mCameras) {
+            camera.mPool.shutdown();
+        }
+        mEndNs = System.nanoTime();
+        mImuRunning = false;
+        LockSupport.unpark(drain);
+        drain.join();
+    }
+
+    private final ReplayBackend.FrameListener mFrameListener = new ReplayBackend.FrameListener() {
+        @Override
+        public void onFrame(int camera, long timestamp_ns, long frame_number, long exposure_ns, long skew_ns,
+                            @Nullable ByteBuffer payload, long arrival_ns) {
+            mCameras.get(camera).onFrame(timestamp_ns, frame_number, exposure_ns, skew_ns, payload, arrival_ns);
+        }
+
+        @Override
+        public void onEnd() {
+        }
+    };
+
+    // The ImuDrain thread.
+    private void drainImu() {
+        while (mImuRunning) {
+            if (drainImuOnce() == 0) {
+                LockSupport.parkNanos(ImuWriterThread.DRAIN_INTERVAL_NS);
+            }
+        }
+        while (drainImuOnce() > 0) {
+            // Keep going until the ring is empty.
+        }
+        for (ImuPath stream : mImuStreams) {
+            try {
+                stream.mChecker.flush();
+            } catch (IOException e) {
+                ++stream.mFailures;
+            }
+        }
+    }
+
+    private int drainImuOnce() {
+        try {
+            return mImuRing.drainTo(mImuConsumer, ImuWriterThread.MAX_BATCH_SAMPLES);
+        } catch (IOException e) {
+            ++mImuFailures;
+            return 0;
+        }
+    }
+
+    private final DirectImuRing.Consumer mImuConsumer = new DirectImuRing.Consumer() {
+        @Override
+        public void onSamples(int stream_index, @NonNull long[] timestamps_ns, @NonNull long[] arrivals_ns,
+                              @NonNull float[] values, int values_per_sample, int count) throws IOException {
+            ImuPath stream = mImuStreams.get(stream_index);
+            stream.mChecker.write(timestamps_ns, values, values_per_sample, count);
+            long now_ns = System.nanoTime();
+            for (int i = 0; i < count; ++i) {
+                stream.mLatencyNs.record(now_ns - arrivals_ns[i]);
+            }
+            stream.mEvents += count;
+        }
+    };
+
+    /**
+     * What a camera's background thread and image writers do with each frame.
+     */
+    private static class CameraPath {
+        CameraPath(String name, boolean use_container, boolean wait_for_buffers, File out_dir)
+                throws IOException {
+            mName = name;
+            mMetadataWriter = new MappedLogWriter(new File(out_dir, name + METADATA_SUFFIX));
+            if (use_container) {
+                mContainer = new FrameContainerWriter(new File(out_dir, name + CONTAINER_SUFFIX));
+                mImageDir = null;
+            } else {
+                mContainer = null;
+                mImageDir = new File(out_dir, name + IMAGE_DIR_SUFFIX);
+                if (!mImageDir.isDirectory() && !mImageDir.mkdirs()) {
+                    throw new IOException("Could not create " + mImageDir);
+                }
+            }
+            mPool = new ImageWriterPool("ReplayWriter-" + name, Camera.IMAGE_WRITER_THREADS,
+                    Camera.IMAGE_WRITER_QUEUE_DEPTH, mWriterListener);
+            // A full queue rejects even when a writer is about to take the next job.
+            mReaderBuffers = new Semaphore(wait_for_buffers ? Camera.IMAGE_WRITER_QUEUE_DEPTH
+                    : Camera.MAX_IMAGE_READER_IMAGES);
+            mWaitForBuffers = wait_for_buffers;
+        }
+
+        // The replay thread.
+        void onFrame(long timestamp_ns, long frame_number, long exposure_ns, long skew_ns,
+                     @Nullable ByteBuffer payload, long arrival_ns) {
+            ++mEvents;
+            try {
+                CaptureMetadataFormat.encodeTextLine(mEncoder.clear(), timestamp_ns, frame_number,
+                        exposure_ns, skew_ns);
+                mEncoder.writeTo(mMetadataWriter);
+            } catch (IOException e) {
+                mFailures.incrementAndGet();
+            }
+            if (payload == null) {
+                mLatencyNs.record(System.nanoTime() - arrival_ns);
+                return;
+            }
+            if (mWaitForBuffers) {
+                mReaderBuffers.acquireUninterruptibly();
+            } else if (!mReaderBuffers.tryAcquire()) {
+                mDropped.incrementAndGet();
+                return;
+            }
+            int image_index = mImageIndex++;
+            mPool.submit(image_index, new PayloadSaver(image_index, timestamp_ns, payload, arrival_ns));
+        }
+
+        void close() throws IOException {
+            try {
+                mMetadataWriter.close();
+            } finally {
+                if (mContainer != null) {
+                    mContainer.close();
+                }
+            }
+        }
+
+        /**
+         * Writes an image as CameraUtils' savers do, from a reader buffer it gives back.
+         */
+        private class PayloadSaver implements ImageWriterPool.Job {
+            PayloadSaver(int image_index, long timestamp_ns, ByteBuffer payload, long arrival_ns) {
+                mImageIndex = image_index;
+                mTimestampNs = timestamp_ns;
+                mPayload = payload;
+                mArrivalNs = arrival_ns;
+            }
+
+            @Override
+            public long write() throws IOException {
+                ByteBuffer[] buffers = new ByteBuffer[]{mPayload};
+                long bytes = mPayload.remaining();
+                if (mContainer != null) {
+                    mContainer.append(mImageIndex, mTimestampNs, buffers);
+                } else {
+                    File file = new File(mImageDir, String.format(Locale.US, "%05d.%s", mImageIndex,
+                            fileExtension(mPayload)));
+                    FileChannel channel = new FileOutputStream(file).getChannel();
+                    try {
+                        CameraUtils.writeFully(channel, buffers);
+                    } finally {
+                        channel.close();
+                    }
+                }
+                mLatencyNs.record(System.nanoTime() - mArrivalNs);
+                return bytes;
+            }
+
+            @Override
+            public void release() {
+                mReaderBuffers.release();
+            }
+
+            private final int mImageIndex;
+            private final long mTimestampNs;
+            private final ByteBuffer mPayload;
+            private final long mArrivalNs;
+        }
+
+        private final ImageWriterPool.Listener mWriterListener = new ImageWriterPool.Listener() {
+            @Override
+            public void onFrameDropped(long frame_number, int queue_depth) {
+                mDropped.incrementAndGet();
+            }
+
+            @Override
+            public void onFrameWritten(long frame_number, long queue_wait_ns, long write_ns, long bytes) {
+            }
+
+            @Override
+            public void onFrameFailed(long frame_number, @NonNull IOException e) {
+                mFailures.incrementAndGet();
+            }
+        };
+
+        private final String mName;
+        private final MappedLogWriter mMetadataWriter;
+        private final FrameContainerWriter mContainer;
+        private final File mImageDir;
+        private final ImageWriterPool mPool;
+        private final Semaphore mReaderBuffers;
+        private final boolean mWaitForBuffers;
+        private final TextRecordEncoder mEncoder = new TextRecordEncoder();
+        private final MetricsRegistry.Histogram mLatencyNs = new MetricsRegistry.Histogram();
+        private final AtomicLong mDropped = new AtomicLong();
+        private final AtomicLong mFailures = new AtomicLong();
+        // Replay thread.
+        private long mEvents;
+        private int mImageIndex;
+    }
+
+    // The extension CameraUtils.fileExtension() gives the image's format.
+    private static String fileExtension(ByteBuffer payload) throws IOException {
+        ByteBuffer header = payload.duplicate().order(RawImageHeader.BYTE_ORDER);
+        if (header.remaining() < 4 || header.getInt(header.position()) != RawImageHeader.MAGIC) {
+            return "jpg";
+        }
+        return CameraUtils.fileExtension(RawImageHeader.decode(header).getFormat());
+    }
+
+    private static class ImuPath {
+        ImuPath(String name, ImuSequenceChecker checker) {
+            mName = name;
+            mChecker = checker;
+        }
+
+        private final String mName;
+        private final ImuSequenceChecker mChecker;
+        private final MetricsRegistry.Histogram mLatencyNs = new MetricsRegistry.Histogram();
+        // ImuDrain thread; read after it ends.
+        private long mEvents;
+        private long mFailures;
+    }
+
+    private void close() throws IOException {
+        IOException first = null;
+        for (CameraPath camera : mCameras) {
+            try {
+                camera.close();
+            } catch (IOException e) {
+                first = first != null ? first : e;
+            }
+        }
+        for (ImuPath stream : mImuStreams) {
+            try {
+                stream.mChecker.close();
+            } catch (IOException e) {
+                first = first != null ? first : e;
+            }
+        }
+        if (mSharedImuWriter != null) {
+            try {
+                mSharedImuWriter.close();
+            } catch (IOException e) {
+                first = first != null ? first : e;
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    private boolean report(Writer out) throws IOException {
+        // Until the last image is written, not just delivered.
+        double seconds = (mEndNs - mStartNs) / 1e9;
+        boolean passed = true;
+        out.write(HEADER + "\n");
+        for (CameraPath camera : mCameras) {
+            long dropped = camera.mDropped.get();
+            out.write(formatLine(camera.mName, camera.mEvents, seconds, camera.mLatencyNs, dropped) + "\n");
+            passed &= dropped == 0 && camera.mFailures.get() == 0;
+        }
+        for (int i = 0; i < mImuStreams.size(); ++i) {
+            ImuPath stream = mImuStreams.get(i);
+            long dropped = mImuRing.getOverruns(i);
+            out.write(formatLine(stream.mName, stream.mEvents, seconds, stream.mLatencyNs, dropped) + "\n");
+            passed &= dropped == 0 && stream.mFailures == 0;
+        }
+        passed &= mImuFailures == 0;
+        IOException error = mBackend != null ? mBackend.getError() : null;
+        if (error != null) {
+            out.write("# source failed: " + error + "\n");
+            passed = false;
+        }
+        long late = mBackend != null ? mBackend.getLateCount() : 0;
+        out.write(String.format(Locale.US, "# events %d late %d speed %s\n",
+                mBackend != null ? mBackend.getEventCount() : 0, late,
+                mSpeed == ReplayBackend.AS_FAST_AS_POSSIBLE ? "fast" : Double.toString(mSpeed)));
+        out.write("# " + (passed ? "ok" : "FAIL") + "\n");
+        out.flush();
+        return passed;
+    }
+
+    private static String formatLine(String name, long events, double seconds,
+                                     MetricsRegistry.Histogram latency_ns, long dropped) {
+        return String.format(Locale.US, "%s %d %.3f %.1f %d %d %d %d", name, events, seconds,
+                seconds > 0 ? events / seconds : 0.0, latency_ns.getQuantile(0.5),
+                latency_ns.getQuantile(0.99), latency_ns.getMax(), dropped);
+    }
+
+    private final ReplaySource mSource;
+    private final double mSpeed;
+    private final List<CameraPath> mCameras = new ArrayList<>();
+    private final List<ImuPath> mImuStreams = new ArrayList<>();
+    private ImuBinaryWriter mSharedImuWriter;
+    private DirectImuRing mImuRing;
+    private ReplayBackend mBackend;
+    private volatile boolean mImuRunning = true;
+    private long mImuFailures;
+    private long mStartNs;
+    private long mEndNs;
+}
@@ -0,0 +1,121 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The recording pipeline's performance regression suite: replays synthetic takes through
+ * ReplayHarness, paced and flat out, into each output layout, and replays a take the
+ * harness wrote back through RecordedReplaySource.  Every run has to drop nothing and
+ * deliver every event the source generated.
+ */
+public class ReplayHarnessTest {
+    private static final int CAMERAS = 2;
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final double FPS = 30;
+    private static final int IMU_HZ = 400;
+    private static final double SECONDS = 2;
+
+    // Columns of a stream line in the report.
+    private static final int EVENTS_COLUMN = 1;
+    private static final int DROPPED_COLUMN = 7;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static SyntheticReplaySource synthetic() {
+        return new SyntheticReplaySource(CAMERAS, WIDTH, HEIGHT, FPS, IMU_HZ, SECONDS);
+    }
+
+    // Runs the replay and returns the report's stream lines by stream name.
+    private static Map<String, long[]> replay(ReplaySource source, double speed, boolean use_container,
+                                              boolean binary_imu, File out_dir)
+            throws IOException, InterruptedException {
+        StringWriter report = new StringWriter();
+        boolean passed;
+        try {
+            passed = ReplayHarness.run(source, speed, use_container, binary_imu, out_dir, report);
+        } finally {
+            source.close();
+        }
+        assertTrue(report.toString(), passed);
+        String[] lines = report.toString().split("\n");
+        assertEquals(ReplayHarness.HEADER, lines[0]);
+        Map<String, long[]> streams = new HashMap<>();
+        for (String line : lines) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(" ");
+            assertEquals(line, 8, fields.length);
+            streams.put(fields[0], new long[]{Long.parseLong(fields[EVENTS_COLUMN]),
+                    Long.parseLong(fields[DROPPED_COLUMN])});
+        }
+        return streams;
+    }
+
+    private static void assertComplete(Map<String, long[]> streams) {
+        assertEquals(streams.keySet().toString(), 4, streams.size());
+        for (String camera : new String[]{"left", "right"}) {
+            long[] stream = streams.get(camera);
+            assertNotNull(camera, stream);
+            assertEquals(camera, FPS * SECONDS, stream[0], 1);
+            assertEquals(camera, 0, stream[1]);
+        }
+        for (String imu : new String[]{"accel", "gyro"}) {
+            long[] stream = streams.get(imu);
+            assertNotNull(imu, stream);
+            assertEquals(imu, IMU_HZ * SECONDS, stream[0], 1);
+            assertEquals(imu, 0, stream[1]);
+        }
+    }
+
+    @Test
+    public void pacedReplayKeepsUp() throws Exception {
+        assertComplete(replay(synthetic(), 1, true, true, mFolder.newFolder()));
+    }
+
+    @Test
+    public void flatOutReplayToImageFilesAndTextLogs() throws Exception {
+        File out_dir = mFolder.newFolder();
+        Map<String, long[]> streams = replay(synthetic(), ReplayBackend.AS_FAST_AS_POSSIBLE, false, false,
+                out_dir);
+        assertComplete(streams);
+        for (String camera : new String[]{"left", "right"}) {
+            String[] images = new File(out_dir, camera + "_images").list();
+            assertNotNull(camera, images);
+            assertEquals(camera, streams.get(camera)[0], images.length);
+        }
+        assertTrue(new File(out_dir, "accel.txt").isFile());
+        assertTrue(new File(out_dir, "gyro.txt").isFile());
+    }
+
+    @Test
+    public void recordedTakeReplaysAsWritten() throws Exception {
+        File take_dir = mFolder.newFolder();
+        Map<String, long[]> written = replay(synthetic(), ReplayBackend.AS_FAST_AS_POSSIBLE, true, true,
+                take_dir);
+        assertComplete(written);
+        Map<String, long[]> replayed = replay(new RecordedReplaySource(take_dir),
+                ReplayBackend.AS_FAST_AS_POSSIBLE, true, true, mFolder.newFolder());
+        assertEquals(written.keySet(), replayed.keySet());
+        for (String camera : new String[]{"left", "right"}) {
+            assertEquals(camera, written.get(camera)[0], replayed.get(camera)[0]);
+        }
+        for (String imu : new String[]{"accel", "gyro"}) {
+            assertEquals(imu, written.get(imu)[0], replayed.get(imu)[0]);
+        }
+    }
+}
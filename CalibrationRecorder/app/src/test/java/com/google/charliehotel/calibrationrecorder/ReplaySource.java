@@ -0,0 +1,70 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Frames and IMU samples for ReplayBackend to play, in timestamp order over all streams.
+ *
+ * A frame event stands for a capture result and the image that comes with it; an IMU
+ * event for one sensor event.  Cameras and IMU streams are numbered from zero.  The
+ * getters describe the current event, the one the last next() moved to.
+ */
+interface ReplaySource extends Closeable {
+    int EVENT_FRAME = 0;
+    int EVENT_IMU = 1;
+
+    int getCameraCount();
+
+    @NonNull
+    String getCameraName(int camera);
+
+    int getImuStreamCount();
+
+    @NonNull
+    String getImuStreamName(int stream);
+
+    /** The id the stream's samples carry in a shared binary log (see ImuBinaryWriter). */
+    int getImuSensorId(int stream);
+
+    int getImuValuesPerSample(int stream);
+
+    /** Nominal sample period, or zero if the stream has no fixed rate. */
+    long getImuPeriodNs(int stream);
+
+    /**
+     * Moves to the next event.  Returns false after the last one.
+     */
+    boolean next() throws IOException;
+
+    /** EVENT_FRAME or EVENT_IMU. */
+    int getEventType();
+
+    /** The camera or IMU stream of the event. */
+    int getStream();
+
+    long getTimestampNs();
+
+    long getFrameNumber();
+
+    long getExposureNs();
+
+    long getSkewNs();
+
+    /**
+     * The frame's image as written to storage, or null for a capture without one.  The
+     * buffer is the caller's to keep; its contents must not be changed.
+     */
+    @Nullable
+    ByteBuffer getFramePayload();
+
+    /** The IMU sample's values; the array is reused by next(). */
+    @NonNull
+    float[] getValues();
+
+    int getValueCount();
+}
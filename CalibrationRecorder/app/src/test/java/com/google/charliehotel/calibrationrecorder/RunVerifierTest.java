@@ -0,0 +1,293 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Verifies synthetic takes: a clean one must pass, and every fault planted in a broken
+ * one must be reported, with gaps the camera logged as skipped not counted as missing.
+ */
+public class RunVerifierTest {
+    private static final long START_NS = 10000000000L;
+    private static final int FRAMES = 200;
+    private static final long FRAME_PERIOD_NS = 33333333;
+    private static final long IMU_PERIOD_NS = 5000000;
+    private static final long IMU_MARGIN_NS = 50000000;
+    private static final int[] SKIPPED = {50, 51, 52};
+
+    // Faults of the broken take.
+    private static final int MISSING_IMAGE = 100;
+    private static final int NO_EOI_IMAGE = 120;
+    private static final int NO_SOI_IMAGE = 121;
+    private static final int MISSING_RESULT = 150;
+    private static final int SWAPPED_GYRO_LINE = 300;
+    private static final long ACCEL_GAP_START_NS = START_NS + 1000000000L;
+    private static final long ACCEL_GAP_END_NS = START_NS + 1500000000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private ForkJoinPool mPool;
+    private final Random mRandom = new Random(3);
+
+    @Before
+    public void startPool() {
+        mPool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void stopPool() {
+        mPool.shutdown();
+    }
+
+    // A JPEG as far as the verifier looks: SOI, anything, EOI, maybe zero padding.
+    private byte[] jpeg(int frame, boolean with_eoi) {
+        int length = frame % 4 == 0 ? 12000 : 100 + mRandom.nextInt(3000);
+        int padding = frame % 3 == 0 ? 16 : 0;
+        byte[] bytes = new byte[length + padding];
+        mRandom.nextBytes(bytes);
+        bytes[0] = (byte) 0xff;
+        bytes[1] = (byte) 0xd8;
+        bytes[length - 2] = (byte) 0xff;
+        bytes[length - 1] = (byte) (with_eoi ? 0xd9 : 0x00);
+        Arrays.fill(bytes, length, bytes.length, (byte) 0);
+        return bytes;
+    }
+
+    private static long frameNs(int frame) {
+        return START_NS + frame * FRAME_PERIOD_NS;
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+    }
+
+    private static void writeSkipped(File dir, int... frames) throws IOException {
+        try (Writer writer = new FileWriter(new File(dir, "left_skipped_images.txt"))) {
+            writer.write(Camera.SKIPPED_IMAGES_LOG_HEADER + "\n");
+            for (int frame : frames) {
+                writer.write(String.format("%05d %d %s\n", frame, frameNs(frame), Camera.SKIP_DECIMATED));
+            }
+            // Torn by a crash.
+            writer.write("0");
+        }
+    }
+
+    private static List<Long> imuTimestamps(boolean with_gap) {
+        List<Long> timestamps = new ArrayList<>();
+        for (long t = START_NS - IMU_MARGIN_NS; t <= frameNs(FRAMES - 1) + IMU_MARGIN_NS; t += IMU_PERIOD_NS) {
+            if (!with_gap || t < ACCEL_GAP_START_NS || t >= ACCEL_GAP_END_NS) {
+                timestamps.add(t);
+            }
+        }
+        return timestamps;
+    }
+
+    private static void writeImu(File file, List<Long> timestamps) throws IOException {
+        ImuTextWriter writer = new ImuTextWriter(new FileWriter(file));
+        for (long t : timestamps) {
+            writer.write(t, 0.1f, 0.2f, 9.8f);
+        }
+        writer.close();
+    }
+
+    /**
+     * Writes a take of one camera with images in a directory; broken plants the faults.
+     */
+    private File writeTake(String name, boolean broken) throws IOException {
+        File dir = mFolder.newFolder("run", name);
+        File images = new File(dir, "left_images");
+        assertTrue(images.mkdir());
+        try (Writer metadata = new FileWriter(new File(dir, "left_image_metadata.txt"))) {
+            for (int i = 0; i < FRAMES; ++i) {
+                if (!(broken && i == MISSING_RESULT)) {
+                    metadata.write(frameNs(i) + " " + String.format("%05d", i) + " 10000000 20000000\n");
+                }
+                if (Arrays.binarySearch(SKIPPED, i) >= 0 || (broken && i == MISSING_IMAGE)) {
+                    continue;
+                }
+                byte[] bytes = jpeg(i, !(broken && i == NO_EOI_IMAGE));
+                if (broken && i == NO_SOI_IMAGE) {
+                    bytes[0] = 0;
+                }
+                write(new File(images, String.format("%05d.jpg", i)), bytes);
+            }
+        }
+        writeSkipped(dir, SKIPPED);
+        try (Writer writer = new FileWriter(new File(dir, "imu_streams.txt"))) {
+            writer.write("accel 1 5000\ngyro 16 5000\n");
+        }
+        writeImu(new File(dir, "accel.txt"), imuTimestamps(broken));
+        List<Long> gyro = imuTimestamps(false);
+        if (broken) {
+            gyro.set(SWAPPED_GYRO_LINE, gyro.set(SWAPPED_GYRO_LINE + 1, gyro.get(SWAPPED_GYRO_LINE)));
+        }
+        writeImu(new File(dir, "gyro.txt"), gyro);
+        return dir;
+    }
+
+    private static String text(RunVerifier.Report report) throws IOException {
+        StringWriter writer = new StringWriter();
+        report.writeTo(writer);
+        return writer.toString();
+    }
+
+    // The report line of one check.
+    private static String line(String text, String subject, String check) {
+        for (String line : text.split("\n")) {
+            if (line.startsWith(subject + " " + check + " ")) {
+                return line;
+            }
+        }
+        throw new AssertionError("No " + subject + " " + check + " in\n" + text);
+    }
+
+    @Test
+    public void cleanTakePasses() throws IOException {
+        File take = writeTake("take_0000", false);
+        RunVerifier.Report report = new RunVerifier(mPool, RunVerifier.DEFAULT_GAP_FACTOR).verifyAndWrite(take);
+        String text = text(report);
+        assertTrue(text, report.passed());
+        assertEquals(text, new String(Files.readAllBytes(new File(take, RunVerifier.REPORT_FILENAME).toPath()),
+                "UTF-8"));
+        assertEquals("left_images sequence ok images=" + (FRAMES - SKIPPED.length) + " first=0 last=" + (FRAMES - 1)
+                + " missing=0 skipped=" + SKIPPED.length + " duplicates=0", line(text, "left_images", "sequence"));
+        assertTrue(line(text, "left_images", "integrity").startsWith("left_images integrity ok"));
+        assertEquals("left_metadata frame_numbers ok lines=" + FRAMES + " missing=0 out_of_order=0",
+                line(text, "left_metadata", "frame_numbers"));
+        for (String stream : new String[]{"accel", "gyro"}) {
+            assertTrue(line(text, stream, "order").startsWith(stream + " order ok"));
+            assertTrue(line(text, stream, "gaps").endsWith("median_period_ns=" + IMU_PERIOD_NS));
+            assertTrue(line(text, "left_" + stream, "coverage").startsWith("left_" + stream + " coverage ok"));
+        }
+        assertTrue(text.endsWith("result ok problems=0\n"));
+    }
+
+    @Test
+    public void brokenTakeReportsEveryFault() throws IOException {
+        writeTake("take_0000", false);
+        File run = writeTake("take_0001", true).getParentFile();
+        RunVerifier.Report report = new RunVerifier(mPool, RunVerifier.DEFAULT_GAP_FACTOR).verify(run);
+        String text = text(report);
+        assertTrue(line(text, "take_0000/left_images", "sequence").contains(" ok "));
+
+        String prefix = "take_0001/";
+        assertEquals(prefix + "left_images sequence FAIL images=" + (FRAMES - SKIPPED.length - 1)
+                        + " first=0 last=" + (FRAMES - 1) + " missing=1 skipped=" + SKIPPED.length + " duplicates=0",
+                line(text, prefix + "left_images", "sequence"));
+        assertTrue(text, text.contains("\n  00100..00100 missing\n"));
+        assertTrue(line(text, prefix + "left_images", "integrity").contains(" corrupt=2"));
+        assertTrue(text, text.contains("\n  00120.jpg no_eoi\n"));
+        assertTrue(text, text.contains("\n  00121.jpg no_soi\n"));
+        assertTrue(line(text, prefix + "left_metadata", "frame_numbers").contains(" missing=1 "));
+        assertTrue(text, text.contains("\n  frames 150..150 missing\n"));
+        assertTrue(line(text, prefix + "left_metadata", "gaps").contains("FAIL gaps=1 "));
+        assertTrue(line(text, prefix + "left_metadata", "order").contains(" ok "));
+        // A swapped pair: one step back, and the steps around it twice the period.
+        assertTrue(line(text, prefix + "gyro", "order").contains("FAIL lines="));
+        assertTrue(line(text, prefix + "gyro", "order").endsWith(" backwards=1 duplicates=0"));
+        assertTrue(line(text, prefix + "gyro", "gaps").contains("FAIL gaps=2 "));
+        assertTrue(line(text, prefix + "accel", "gaps").contains("FAIL gaps=1 max_gap_ns="
+                + (ACCEL_GAP_END_NS - ACCEL_GAP_START_NS + IMU_PERIOD_NS)));
+        assertTrue(line(text, prefix + "left_gyro", "coverage").contains(" ok "));
+
+        // Frames without an accel sample within the gap factor on both sides, by brute force.
+        List<Long> accel = imuTimestamps(true);
+        long max_distance_ns = (long) (IMU_PERIOD_NS * RunVerifier.DEFAULT_GAP_FACTOR);
+        int uncovered = 0;
+        for (int i = 0; i < FRAMES; ++i) {
+            if (i == MISSING_RESULT) {
+                continue;
+            }
+            boolean before = false;
+            boolean after = false;
+            for (long t : accel) {
+                before |= t <= frameNs(i) && frameNs(i) - t <= max_distance_ns;
+                after |= t >= frameNs(i) && t - frameNs(i) <= max_distance_ns;
+            }
+            if (!before || !after) {
+                ++uncovered;
+            }
+        }
+        assertTrue(uncovered > 10);
+        assertTrue(line(text, prefix + "left_accel", "coverage").contains(" uncovered=" + uncovered));
+
+        assertFalse(report.passed());
+        assertEquals(text, 1 + 2 + 1 + 1 + 1 + 2 + 1 + uncovered, report.getProblemCount());
+        assertTrue(text.endsWith("result FAIL problems=" + report.getProblemCount() + "\n"));
+    }
+
+    @Test
+    public void containerGapsAreSkippedOnlyWhereLogged() throws IOException {
+        File dir = mFolder.newFolder("container");
+        FrameContainerWriter container = new FrameContainerWriter(new File(dir, "left_images.frames"));
+        for (int i = 0; i < 50; ++i) {
+            if (i != 10 && i != 20) {
+                container.append(i, frameNs(i), new ByteBuffer[]{ByteBuffer.wrap(jpeg(i, i != 30))});
+            }
+        }
+        container.close();
+        RunVerifier verifier = new RunVerifier(mPool, RunVerifier.DEFAULT_GAP_FACTOR);
+        String text = text(verifier.verify(dir));
+        assertTrue(line(text, "left_images.frames", "sequence").contains(" missing=2 skipped=0 "));
+        assertTrue(line(text, "left_images.frames", "integrity").contains(" corrupt=1"));
+        assertTrue(text, text.contains("\n  frame 00030 no_eoi\n"));
+
+        writeSkipped(dir, 10, 11);
+        RunVerifier.Report report = verifier.verify(dir);
+        text = text(report);
+        assertTrue(line(text, "left_images.frames", "sequence").contains(" missing=1 skipped=1 "));
+        assertTrue(text, text.contains("\n  00020..00020 missing\n"));
+        assertEquals(2, report.getProblemCount());
+    }
+
+    @Test
+    public void checksRawImageLengths() {
+        RawImageHeader header = new RawImageHeader(0x23, 4, 2, 1, 2);
+        header.setPlane(0, 4, 1, 8);
+        header.setPlane(1, 4, 2, 4);
+        ByteBuffer encoded = header.encode();
+        long length = RawImageHeader.size(2) + 12;
+        assertNull(RunVerifier.checkImage(encoded.duplicate(), encoded.duplicate(), length));
+        assertEquals("bad_length length=" + (length - 1) + " expected=" + length,
+                RunVerifier.checkImage(encoded.duplicate(), encoded.duplicate(), length - 1));
+        ByteBuffer tiny = ByteBuffer.wrap(new byte[]{(byte) 0xff, (byte) 0xd8});
+        assertEquals("too_short length=2", RunVerifier.checkImage(tiny, tiny.duplicate(), 2));
+    }
+
+    @Test
+    public void rejectsMissingDirectory() {
+        try {
+            new RunVerifier(mPool, RunVerifier.DEFAULT_GAP_FACTOR).verify(new File(mFolder.getRoot(), "none"));
+            fail("verified a missing directory");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exports a synthetic run directory and decodes the export independently of the exporter,
+ * checking that every message is there, in timestamp order, with its payload intact.
+ */
+public class SessionExporterTest {
+    private static final long START_NS = 1000000000L;
+    private static final int IMU_SAMPLES = 5000;
+    private static final long IMU_PERIOD_NS = 5000000;
+    private static final int FRAMES = 100;
+    private static final long FRAME_PERIOD_NS = 250000000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mRunDir;
+    private final Map<Long, byte[]> mLeftImages = new HashMap<>();
+    private final Map<Long, byte[]> mRightImages = new HashMap<>();
+
+    private static class Message {
+        Message(long timestamp_ns, String channel, byte[] payload) {
+            this.timestampNs = timestamp_ns;
+            this.channel = channel;
+            this.payload = payload;
+        }
+
+        final long timestampNs;
+        final String channel;
+        final byte[] payload;
+    }
+
+    private static byte[] image(Random random, boolean large) {
+        byte[] bytes = new byte[large ? 20000 : 100 + random.nextInt(3000)];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Before
+    public void writeRun() throws IOException {
+        mRunDir = mFolder.getRoot();
+        Random random = new Random(1);
+        for (String name : new String[]{"accel", "gyro"}) {
+            ImuTextWriter writer = new ImuTextWriter(new FileWriter(new File(mRunDir, name + ".txt")));
+            for (int i = 0; i < IMU_SAMPLES; ++i) {
+                float base = name.equals("accel") ? 0 : 1000;
+                writer.write(START_NS + i * IMU_PERIOD_NS + (name.equals("accel") ? 0 : 1),
+                        base + i, base - i, i / 3.0f);
+            }
+            writer.close();
+        }
+        try (Writer writer = new FileWriter(new File(mRunDir, "imu_streams.txt"))) {
+            writer.write("accel 1 5000\ngyro 16 5000\n");
+        }
+
+        File left_dir = new File(mRunDir, "left_images");
+        assertTrue(left_dir.mkdir());
+        FrameContainerWriter right_container = new FrameContainerWriter(new File(mRunDir, "right_images.frames"));
+        try (Writer left = new FileWriter(new File(mRunDir, "left_image_metadata.txt"));
+             Writer right = new FileWriter(new File(mRunDir, "right_image_metadata.txt"))) {
+            for (long i = 0; i < FRAMES; ++i) {
+                long t_ns = START_NS + i * FRAME_PERIOD_NS;
+                left.write(t_ns + " " + String.format("%05d", i) + " 10000000 20000000\n");
+                right.write((t_ns + 7) + " " + String.format("%05d", i) + " 10000000 20000000\n");
+                // Every tenth left frame was dropped by the writer pool; one image is
+                // larger than the export's chunks.
+                if (i % 10 != 3) {
+                    byte[] bytes = image(random, i == 50);
+                    mLeftImages.put(i, bytes);
+                    try (OutputStream out = new FileOutputStream(new File(left_dir, String.format("%05d.jpg", i)))) {
+                        out.write(bytes);
+                    }
+                }
+                byte[] bytes = image(random, false);
+                mRightImages.put(i, bytes);
+                right_container.append(i, t_ns + 7, new ByteBuffer[]{ByteBuffer.wrap(bytes)});
+            }
+            // A torn last line is skipped.
+            left.write(Long.toString(START_NS + FRAMES * FRAME_PERIOD_NS));
+        }
+        right_container.close();
+    }
+
+    /**
+     * Decodes an export into its messages, in file order.
+     */
+    private static List<Message> decode(File file) throws IOException, DataFormatException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(SessionExportFormat.BYTE_ORDER);
+        assertEquals(SessionExportFormat.FILE_MAGIC, buffer.getInt());
+        assertEquals(SessionExportFormat.VERSION, buffer.getShort());
+        int header_size = buffer.getShort();
+        int channel_count = buffer.getShort();
+        buffer.position(SessionExportFormat.FILE_HEADER_FIXED_SIZE);
+        Map<Integer, String> channels = new HashMap<>();
+        for (int i = 0; i < channel_count; ++i) {
+            int id = buffer.getShort();
+            buffer.getShort();
+            buffer.getShort();
+            byte[] name = new byte[buffer.getShort()];
+            buffer.get(name);
+            channels.put(id, new String(name, StandardCharsets.US_ASCII));
+        }
+        assertEquals(header_size, buffer.position());
+
+        buffer.position(buffer.capacity() - SessionExportFormat.TRAILER_SIZE);
+        long index_offset = buffer.getLong();
+        int chunk_count = buffer.getInt();
+        assertEquals(SessionExportFormat.TRAILER_MAGIC, buffer.getInt());
+
+        List<Message> messages = new ArrayList<>();
+        long expected_offset = header_size;
+        for (int c = 0; c < chunk_count; ++c) {
+            buffer.position((int) (index_offset + c * SessionExportFormat.INDEX_ENTRY_SIZE));
+            long offset = buffer.getLong();
+            long first_ns = buffer.getLong();
+            long last_ns = buffer.getLong();
+            int count = buffer.getInt();
+            int stored_size = buffer.getInt();
+            assertEquals(expected_offset, offset);
+            expected_offset += SessionExportFormat.CHUNK_HEADER_SIZE + stored_size;
+
+            buffer.position((int) offset);
+            assertEquals(SessionExportFormat.CHUNK_MAGIC, buffer.getInt());
+            int compression = buffer.getShort();
+            buffer.getShort();
+            assertEquals(count, buffer.getInt());
+            int uncompressed_size = buffer.getInt();
+            assertEquals(stored_size, buffer.getInt());
+            assertEquals(first_ns, buffer.getLong());
+            assertEquals(last_ns, buffer.getLong());
+            byte[] stored = new byte[stored_size];
+            buffer.get(stored);
+            byte[] data = stored;
+            if (compression == SessionExportFormat.COMPRESSION_DEFLATE) {
+                Inflater inflater = new Inflater();
+                inflater.setInput(stored);
+                data = new byte[uncompressed_size];
+                assertEquals(uncompressed_size, inflater.inflate(data));
+                assertTrue(inflater.finished());
+                inflater.end();
+            } else {
+                assertEquals(SessionExportFormat.COMPRESSION_NONE, compression);
+                assertEquals(uncompressed_size, stored_size);
+            }
+            ByteBuffer chunk = ByteBuffer.wrap(data).order(SessionExportFormat.BYTE_ORDER);
+            for (int m = 0; m < count; ++m) {
+                long timestamp_ns = chunk.getLong();
+                String channel = channels.get((int) chunk.getShort());
+                chunk.getShort();
+                byte[] payload = new byte[chunk.getInt()];
+                chunk.get(payload);
+                assertTrue(timestamp_ns >= first_ns && timestamp_ns <= last_ns);
+                messages.add(new Message(timestamp_ns, channel, payload));
+            }
+            assertEquals(data.length, chunk.position());
+        }
+        assertEquals(index_offset, expected_offset);
+        return messages;
+    }
+
+    private void checkExport(List<Message> messages) {
+        Map<String, Integer> counts = new HashMap<>();
+        long previous_ns = Long.MIN_VALUE;
+        for (Message message : messages) {
+            assertTrue(message.timestampNs >= previous_ns);
+            previous_ns = message.timestampNs;
+            Integer count = counts.get(message.channel);
+            int i = count == null ? 0 : count;
+            counts.put(message.channel, i + 1);
+            ByteBuffer payload = ByteBuffer.wrap(message.payload).order(SessionExportFormat.BYTE_ORDER);
+            switch (message.channel) {
+                case "accel":
+                case "gyro": {
+                    float base = message.channel.equals("accel") ? 0 : 1000;
+                    assertEquals(12, message.payload.length);
+                    assertEquals(base + i, payload.getFloat(), 0.0f);
+                    assertEquals(base - i, payload.getFloat(), 0.0f);
+                    assertEquals(i / 3.0f, payload.getFloat(), 0.0f);
+                    break;
+                }
+                case "left_metadata":
+                case "right_metadata":
+                    assertEquals(i, payload.getLong());
+                    assertEquals(10000000, payload.getLong());
+                    assertEquals(20000000, payload.getLong());
+                    break;
+                case "left_images":
+                case "right_images": {
+                    long frame_number = payload.getLong();
+                    byte[] expected = (message.channel.equals("left_images") ? mLeftImages : mRightImages)
+                            .get(frame_number);
+                    assertArrayEquals(expected, Arrays.copyOfRange(message.payload, 8, message.payload.length));
+                    break;
+                }
+                default:
+                    throw new AssertionError("Unexpected channel " + message.channel);
+            }
+        }
+        assertEquals(IMU_SAMPLES, (int) counts.get("accel"));
+        assertEquals(IMU_SAMPLES, (int) counts.get("gyro"));
+        assertEquals(FRAMES, (int) counts.get("left_metadata"));
+        assertEquals(FRAMES, (int) counts.get("right_metadata"));
+        assertEquals(mLeftImages.size(), (int) counts.get("left_images"));
+        assertEquals(FRAMES, (int) counts.get("right_images"));
+    }
+
+    @Test
+    public void exportsEveryMessageInOrder() throws Exception {
+        for (boolean compress : new boolean[]{false, true}) {
+            File out = new File(mFolder.getRoot(), "run" + compress + ".crsx");
+            // Small chunks, so the export has many and one image needs a chunk of its own.
+            SessionExporter exporter = new SessionExporter(compress, 3, 16 * 1024);
+            exporter.export(mRunDir, out);
+            List<Message> messages = decode(out);
+            assertEquals(messages.size(), exporter.getMessageCount());
+            assertEquals(out.length(), exporter.getOutputBytes());
+            assertTrue(exporter.getChunkCount() > 10);
+            checkExport(messages);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Builds the indexes of a synthetic ten-minute run, checks queries against brute force
+ * over the generated data, and checks that a fresh index is reused and a stale one
+ * rebuilt.  Also bounds what a build and a nearest-frame plus IMU-range query cost.
+ */
+public class SessionIndexTest {
+    private static final long GYRO_PERIOD_NS = 1000 * 1000;
+    private static final int GYRO_SAMPLES = 600 * 1000;
+    private static final long FRAME_PERIOD_NS = 33333333;
+    private static final int FRAMES = 18000;
+    private static final long START_NS = 7000000000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mRunDir;
+    // Gyro timestamps in log order, with a straggler every so often.
+    private long[] mGyroTimestamps;
+    private long[] mFrameTimestamps;
+    private long mBuildNs;
+
+    @Before
+    public void writeRun() throws IOException {
+        mRunDir = mFolder.getRoot();
+        Random random = new Random(1);
+        mGyroTimestamps = new long[GYRO_SAMPLES];
+        for (int i = 0; i < GYRO_SAMPLES; ++i) {
+            mGyroTimestamps[i] = START_NS + i * GYRO_PERIOD_NS + random.nextInt(100000);
+        }
+        for (int i = 500; i < GYRO_SAMPLES; i += 10007) {
+            long straggler = mGyroTimestamps[i];
+            mGyroTimestamps[i] = mGyroTimestamps[i + 1];
+            mGyroTimestamps[i + 1] = straggler;
+        }
+        TextRecordEncoder encoder = new TextRecordEncoder();
+        try (Writer writer = new BufferedWriter(new FileWriter(new File(mRunDir, "gyro.txt")))) {
+            for (long t_ns : mGyroTimestamps) {
+                ImuLogFormat.encodeTextLine(encoder.clear(), t_ns, 0.25f, -1.5f, 1e-3f);
+                encoder.writeTo(writer);
+            }
+        }
+        mFrameTimestamps = new long[FRAMES];
+        try (Writer writer = new BufferedWriter(new FileWriter(new File(mRunDir, "left_image_metadata.txt")))) {
+            for (int i = 0; i < FRAMES; ++i) {
+                mFrameTimestamps[i] = START_NS + i * FRAME_PERIOD_NS;
+                encoder.clear().putLong(mFrameTimestamps[i]).putSpace().putZeroPadded(i, 5)
+                        .putSpace().putLong(10000000).putNewline().writeTo(writer);
+            }
+        }
+        try (Writer writer = new FileWriter(new File(mRunDir, "imu_streams.txt"))) {
+            writer.write("# name type requested_period_us\ngyro 16 1000\n");
+        }
+        long start_ns = System.nanoTime();
+        SessionIndex.build(mRunDir);
+        mBuildNs = System.nanoTime() - start_ns;
+    }
+
+    @Test
+    public void answersQueriesLikeBruteForce() throws IOException {
+        long[] sorted_gyro = mGyroTimestamps.clone();
+        Arrays.sort(sorted_gyro);
+        Random random = new Random(2);
+        try (SessionIndex session = new SessionIndex(mRunDir)) {
+            assertEquals(Arrays.asList("gyro", "left_frames"),
+                    Arrays.asList(session.getStreamNames().toArray()));
+            StreamIndex gyro = session.getStream("gyro");
+            StreamIndex frames = session.getStream("left_frames");
+            assertEquals(GYRO_SAMPLES, gyro.getCount());
+            assertEquals(FRAMES, frames.getCount());
+            for (int q = 0; q < 2000; ++q) {
+                long t_ns = START_NS - 1000000 + (long) (random.nextDouble() * GYRO_SAMPLES * GYRO_PERIOD_NS);
+                long t1_ns = t_ns + random.nextInt(50000000);
+                int from = gyro.lowerBound(t_ns);
+                int to = gyro.upperBound(t1_ns);
+                assertEquals(lowerBound(sorted_gyro, t_ns), from);
+                assertEquals(lowerBound(sorted_gyro, t1_ns + 1), to);
+                for (int i = from; i < to; i += 7) {
+                    assertEquals(sorted_gyro[i], gyro.getTimestampNs(i));
+                    // The key is the line ordinal, which must lead back to the same line.
+                    long ordinal = gyro.getKey(i);
+                    assertEquals(mGyroTimestamps[(int) ordinal], gyro.getTimestampNs(i));
+                    assertTrue(session.readLine("gyro", i).startsWith(gyro.getTimestampNs(i) + " "));
+                }
+
+                int nearest = frames.nearest(t_ns);
+                long best = Long.MAX_VALUE;
+                for (long frame_ns : mFrameTimestamps) {
+                    best = Math.min(best, Math.abs(frame_ns - t_ns));
+                }
+                assertEquals(best, Math.abs(frames.getTimestampNs(nearest) - t_ns));
+                assertEquals(mFrameTimestamps[(int) frames.getKey(nearest)], frames.getTimestampNs(nearest));
+            }
+            assertEquals(0, frames.nearest(0));
+            assertEquals(FRAMES - 1, frames.nearest(Long.MAX_VALUE));
+        }
+    }
+
+    private static int lowerBound(long[] sorted, long t_ns) {
+        int i = Arrays.binarySearch(sorted, t_ns);
+        if (i < 0) {
+            return -i - 1;
+        }
+        while (i > 0 && sorted[i - 1] == t_ns) {
+            --i;
+        }
+        return i;
+    }
+
+    @Test
+    public void reusesFreshIndexAndRebuildsStaleOne() throws IOException {
+        File gyro_index = new File(mRunDir, "gyro" + SessionIndex.INDEX_SUFFIX);
+        File frame_index = new File(mRunDir, "left_frames" + SessionIndex.INDEX_SUFFIX);
+        assertTrue(gyro_index.setLastModified(1000));
+        assertTrue(frame_index.setLastModified(1000));
+        long start_ns = System.nanoTime();
+        new SessionIndex(mRunDir).close();
+        long reopen_ns = System.nanoTime() - start_ns;
+        assertEquals(1000, gyro_index.lastModified());
+        assertEquals(1000, frame_index.lastModified());
+        assertTrue("build " + mBuildNs / 1000000 + " ms, reopen " + reopen_ns / 1000000 + " ms",
+                reopen_ns * 10 < mBuildNs);
+
+        try (Writer writer = new FileWriter(new File(mRunDir, "gyro.txt"), true)) {
+            writer.write("99999999999 0x1.0p0 0x1.0p0 0x1.0p0\n");
+            // A torn line at the end is not indexed.
+            writer.write("100000000000 0x1.0p0");
+        }
+        try (SessionIndex session = new SessionIndex(mRunDir)) {
+            assertEquals(GYRO_SAMPLES + 1, session.getStream("gyro").getCount());
+            assertEquals(1000, frame_index.lastModified());
+        }
+    }
+
+    @Test
+    public void indexesBinaryLogPerSensor() throws IOException {
+        File log = new File(mRunDir, "imu.bin");
+        try (FileOutputStream out = new FileOutputStream(log)) {
+            ImuBinaryWriter shared = new ImuBinaryWriter(out.getChannel(), 0, ImuLogFormat.MAX_VALUES);
+            ImuSink accel = shared.forSensor(1);
+            ImuSink gyro = shared.forSensor(16);
+            for (int i = 0; i < 1000; ++i) {
+                gyro.write(START_NS + i * 1000000L, 0, 0, 0);
+                if (i % 5 == 0) {
+                    accel.write(START_NS + i * 1000000L + 1, 0, 0, 0);
+                }
+            }
+            shared.close();
+        }
+        try (SessionIndex session = new SessionIndex(mRunDir)) {
+            StreamIndex accel = session.getStream("imu.1");
+            StreamIndex gyro = session.getStream("imu.16");
+            assertEquals(200, accel.getCount());
+            assertEquals(1000, gyro.getCount());
+            int i = accel.nearest(START_NS + 500 * 1000000L);
+            assertEquals(100, accel.getKey(i));
+            assertEquals(START_NS + 500 * 1000000L + 1, accel.getTimestampNs(i));
+            assertEquals(ImuLogFormat.HEADER_SIZE
+                            + (6 * 100 + 1) * ImuLogFormat.recordSize(ImuLogFormat.MAX_VALUES),
+                    accel.getOffset(i));
+        }
+    }
+
+    @Test
+    public void queriesAreFast() throws IOException {
+        Random random = new Random(3);
+        int queries = 100000;
+        long checksum = 0;
+        try (SessionIndex session = new SessionIndex(mRunDir)) {
+            StreamIndex gyro = session.getStream("gyro");
+            StreamIndex frames = session.getStream("left_frames");
+            long start_ns = System.nanoTime();
+            for (int q = 0; q < queries; ++q) {
+                long t_ns = START_NS + (long) (random.nextDouble() * FRAMES * FRAME_PERIOD_NS);
+                int frame = frames.nearest(t_ns);
+                long frame_ns = frames.getTimestampNs(frame);
+                checksum += gyro.upperBound(frame_ns + 5000000) - gyro.lowerBound(frame_ns - 5000000);
+            }
+            long per_query_ns = (System.nanoTime() - start_ns) / queries;
+            assertTrue(checksum > 0);
+            // About a microsecond on a desktop; leave plenty of room for slow CI machines.
+            assertTrue(per_query_ns + " ns per query", per_query_ns < 50 * 1000);
+        }
+    }
+}
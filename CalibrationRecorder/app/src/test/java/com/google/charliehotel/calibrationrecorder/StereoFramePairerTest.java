@@ -0,0 +1,178 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds StereoFramePairer synthetic left and right streams whose clocks drift against each
+ * other, with jitter, dropped frames and uneven delivery, and checks every pair against
+ * the ground truth.
+ */
+public class StereoFramePairerTest {
+    private static final long PERIOD_NS = 33333333;
+    private static final long TOLERANCE_NS = 2 * 1000 * 1000;
+    private static final int FRAMES = 20000;
+    private static final long LEFT_BASE = 1000000;
+    private static final long RIGHT_BASE = 2000000;
+
+    private static class Event {
+        Event(boolean is_left, long timestamp_ns, long frame_number, long arrival_ns) {
+            this.isLeft = is_left;
+            this.timestampNs = timestamp_ns;
+            this.frameNumber = frame_number;
+            this.arrivalNs = arrival_ns;
+        }
+
+        final boolean isLeft;
+        final long timestampNs;
+        final long frameNumber;
+        final long arrivalNs;
+    }
+
+    private static class Checker implements StereoFramePairer.Listener {
+        @Override
+        public void onPair(@NonNull StereoFramePairer pairer, long left_timestamp_ns,
+                           long left_frame_number, long right_timestamp_ns, long right_frame_number) {
+            ++mPairs;
+            if (left_frame_number - LEFT_BASE != right_frame_number - RIGHT_BASE) {
+                ++mWrongPairs;
+            }
+            assertEquals(mPairs, pairer.getPairCount());
+        }
+
+        long mPairs;
+        long mWrongPairs;
+    }
+
+    /**
+     * Right timestamps are left plus a skew that drifts linearly from start_skew_ns to
+     * end_skew_ns, plus jitter.  Each stream drops drop_rate of its frames and is
+     * delivered late by up to two frame periods, in order.
+     */
+    private static List<Event> streams(long start_skew_ns, long end_skew_ns, long jitter_ns,
+                                       double drop_rate, boolean[] left_kept, boolean[] right_kept,
+                                       long seed) {
+        Random random = new Random(seed);
+        List<Event> events = new ArrayList<>();
+        long left_arrival_ns = 0;
+        long right_arrival_ns = 0;
+        for (int i = 0; i < FRAMES; ++i) {
+            long left_ns = 10 * PERIOD_NS + i * PERIOD_NS;
+            long skew_ns = start_skew_ns + (end_skew_ns - start_skew_ns) * i / FRAMES;
+            long right_ns = left_ns + skew_ns + (long) ((2 * random.nextDouble() - 1) * jitter_ns);
+            left_kept[i] = random.nextDouble() >= drop_rate;
+            right_kept[i] = random.nextDouble() >= drop_rate;
+            left_arrival_ns = Math.max(left_arrival_ns, left_ns + (long) (random.nextDouble() * 2 * PERIOD_NS));
+            right_arrival_ns = Math.max(right_arrival_ns, right_ns + (long) (random.nextDouble() * 2 * PERIOD_NS));
+            if (left_kept[i]) {
+                events.add(new Event(true, left_ns, LEFT_BASE + i, left_arrival_ns));
+            }
+            if (right_kept[i]) {
+                events.add(new Event(false, right_ns, RIGHT_BASE + i, right_arrival_ns));
+            }
+        }
+        // A stable sort keeps each stream in order when arrival times tie.
+        Collections.sort(events, new Comparator<Event>() {
+            @Override
+            public int compare(Event a, Event b) {
+                return Long.compare(a.arrivalNs, b.arrivalNs);
+            }
+        });
+        return events;
+    }
+
+    private static void feed(StereoFramePairer pairer, List<Event> events) {
+        for (Event event : events) {
+            if (event.isLeft) {
+                pairer.addLeft(event.timestampNs, event.frameNumber);
+            } else {
+                pairer.addRight(event.timestampNs, event.frameNumber);
+            }
+        }
+        pairer.finish();
+    }
+
+    @Test
+    public void pairsDriftingStreamsWithDrops() {
+        boolean[] left_kept = new boolean[FRAMES];
+        boolean[] right_kept = new boolean[FRAMES];
+        List<Event> events = streams(-1500 * 1000, 1500 * 1000, 200 * 1000, 0.05,
+                left_kept, right_kept, 1);
+        Checker checker = new Checker();
+        StereoFramePairer pairer = new StereoFramePairer(TOLERANCE_NS, checker);
+        feed(pairer, events);
+
+        long both = 0;
+        long left_only = 0;
+        long right_only = 0;
+        for (int i = 0; i < FRAMES; ++i) {
+            if (left_kept[i] && right_kept[i]) {
+                ++both;
+            } else if (left_kept[i]) {
+                ++left_only;
+            } else if (right_kept[i]) {
+                ++right_only;
+            }
+        }
+        String stats = pairer.formatStats();
+        assertEquals(stats, 0, checker.mWrongPairs);
+        assertEquals(stats, both, pairer.getPairCount());
+        assertEquals(stats, left_only, pairer.getUnmatchedLeftCount());
+        assertEquals(stats, right_only, pairer.getUnmatchedRightCount());
+        assertTrue(stats, Math.abs(pairer.getMeanSkewNs()) < 50 * 1000);
+        assertTrue(stats, pairer.getMaxAbsSkewNs() <= 1700 * 1000);
+        assertTrue(stats, pairer.getMaxAbsSkewNs() >= 1500 * 1000);
+        long p99 = pairer.getAbsSkewQuantileNs(0.99);
+        assertTrue(stats, p99 <= pairer.getMaxAbsSkewNs());
+        assertTrue(stats, p99 >= 1400 * 1000);
+        assertTrue(stats, pairer.getAbsSkewQuantileNs(0.5) < p99);
+    }
+
+    @Test
+    public void neverPairsAcrossTheTolerance() {
+        boolean[] left_kept = new boolean[FRAMES];
+        boolean[] right_kept = new boolean[FRAMES];
+        // The skew drifts out of tolerance and past half a frame period.
+        List<Event> events = streams(0, PERIOD_NS / 2 + TOLERANCE_NS, 100 * 1000, 0.02,
+                left_kept, right_kept, 2);
+        Checker checker = new Checker();
+        StereoFramePairer pairer = new StereoFramePairer(TOLERANCE_NS, checker);
+        feed(pairer, events);
+
+        String stats = pairer.formatStats();
+        assertEquals(stats, 0, checker.mWrongPairs);
+        assertTrue(stats, pairer.getMaxAbsSkewNs() <= TOLERANCE_NS);
+        assertTrue(stats, pairer.getPairCount() > 0);
+        assertTrue(stats, pairer.getUnmatchedLeftCount() > FRAMES / 2);
+        long left = 0;
+        long right = 0;
+        for (int i = 0; i < FRAMES; ++i) {
+            left += left_kept[i] ? 1 : 0;
+            right += right_kept[i] ? 1 : 0;
+        }
+        assertEquals(stats, left, pairer.getPairCount() + pairer.getUnmatchedLeftCount());
+        assertEquals(stats, right, pairer.getPairCount() + pairer.getUnmatchedRightCount());
+    }
+
+    @Test
+    public void ignoresFramesAfterFinish() {
+        Checker checker = new Checker();
+        StereoFramePairer pairer = new StereoFramePairer(TOLERANCE_NS, checker);
+        pairer.addLeft(1000, LEFT_BASE);
+        pairer.finish();
+        pairer.addRight(1000, RIGHT_BASE);
+        assertEquals(0, checker.mPairs);
+        assertEquals(1, pairer.getUnmatchedLeftCount());
+        assertEquals(0, pairer.getUnmatchedRightCount());
+    }
+}
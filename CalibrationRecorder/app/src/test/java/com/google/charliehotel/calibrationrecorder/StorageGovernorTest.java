@@ -0,0 +1,180 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the governor with a simulated camera and a simulated pool of slow writers, on
+ * a simulated clock, and checks that decimation settles where the writers keep up,
+ * recovers when they speed up, and that storage running out stops the take once.
+ */
+public class StorageGovernorTest {
+    private static final long MS = 1000000;
+    private static final int FRAME_PERIOD_MS = 33;
+    private static final long FRAME_BYTES = 2000000;
+    private static final int WRITER_THREADS = 2;
+    private static final int QUEUE_DEPTH = 4;
+
+    /**
+     * A camera feeding a writer pool that stores bytes_per_ms per writer, advanced 1 ms
+     * a step, with the governor ticked once a second like RecordingService does.
+     */
+    private static class Simulation {
+        Simulation(@NonNull StorageGovernor governor, long free_bytes) {
+            mGovernor = governor;
+            mFreeBytes = free_bytes;
+        }
+
+        void run(int duration_ms, long bytes_per_ms) {
+            for (int i = 0; i < duration_ms; ++i, ++mNowMs) {
+                for (int w = 0; w < WRITER_THREADS; ++w) {
+                    if (mBusyUntilMs[w] != 0 && mBusyUntilMs[w] <= mNowMs) {
+                        mGovernor.onFrameWritten(FRAME_BYTES, mWriteMs[w] * MS);
+                        mFreeBytes -= FRAME_BYTES;
+                        ++mWritten;
+                        mBusyUntilMs[w] = 0;
+                    }
+                }
+                if (mNowMs % FRAME_PERIOD_MS == 0) {
+                    ++mOffered;
+                    if (mGovernor.admit(mNowMs * MS)) {
+                        if (mQueue.size() < QUEUE_DEPTH) {
+                            mQueue.add(mNowMs);
+                        } else {
+                            mGovernor.onFrameDropped();
+                            ++mDropped;
+                        }
+                    }
+                }
+                for (int w = 0; w < WRITER_THREADS; ++w) {
+                    if (mBusyUntilMs[w] == 0 && !mQueue.isEmpty()) {
+                        mQueue.poll();
+                        mWriteMs[w] = Math.max(1, FRAME_BYTES / bytes_per_ms);
+                        mBusyUntilMs[w] = mNowMs + mWriteMs[w];
+                    }
+                }
+                if (mNowMs % 1000 == 0) {
+                    mGovernor.tick(mNowMs * MS, mFreeBytes);
+                }
+            }
+        }
+
+        private final StorageGovernor mGovernor;
+        // Starts past zero: the governor takes a tick at 0 ns as its first.
+        private long mNowMs = 1000;
+        private long mFreeBytes;
+        private final long[] mBusyUntilMs = new long[WRITER_THREADS];
+        private final long[] mWriteMs = new long[WRITER_THREADS];
+        private final ArrayDeque<Long> mQueue = new ArrayDeque<>();
+        private long mOffered;
+        private long mWritten;
+        private long mDropped;
+    }
+
+    private static class CountingListener implements StorageGovernor.Listener {
+        @Override
+        public void onStorageExhausted(@NonNull StorageGovernor governor, long free_bytes, double remaining_s) {
+            ++mCalls;
+            mFreeBytes = free_bytes;
+        }
+
+        int mCalls;
+        long mFreeBytes;
+    }
+
+    @Test
+    public void decimatesToWhatASlowSinkAbsorbsAndRecovers() {
+        CountingListener listener = new CountingListener();
+        StorageGovernor governor = new StorageGovernor("left", listener, WRITER_THREADS, 0, 0);
+        StringWriter log = new StringWriter();
+        governor.setDecisionLog(log);
+        Simulation simulation = new Simulation(governor, Long.MAX_VALUE / 2);
+
+        // 60 MB/s offered, 20 MB/s stored: with the headroom every 4th frame fits.
+        simulation.run(30000, 10000);
+        assertEquals(4, governor.getKeepEveryN());
+        long dropped = simulation.mDropped;
+        long written = simulation.mWritten;
+        long offered = simulation.mOffered;
+        assertTrue(dropped > 0);
+        simulation.run(30000, 10000);
+        assertEquals(4, governor.getKeepEveryN());
+        assertEquals("drops once settled", dropped, simulation.mDropped);
+        long kept = simulation.mWritten - written;
+        assertEquals((simulation.mOffered - offered) / 4.0, kept, 2);
+        assertEquals(simulation.mOffered - simulation.mWritten - simulation.mDropped
+                        - simulation.mQueue.size() - busyWriters(simulation),
+                governor.getDecimatedCount());
+
+        // Ten times faster writers: N comes down one step every few quiet ticks.
+        simulation.run(5000, 100000);
+        assertTrue(governor.getKeepEveryN() > 1);
+        simulation.run(25000, 100000);
+        assertEquals(1, governor.getKeepEveryN());
+        assertEquals("drops after speeding up", dropped, simulation.mDropped);
+        assertEquals(0, listener.mCalls);
+
+        String text = log.toString();
+        assertTrue(text, text.contains(" left drops "));
+        assertTrue(text, text.contains(" left recovered 1 "));
+        for (String line : text.split("\n")) {
+            assertEquals(line, 12, line.split(" ").length);
+        }
+    }
+
+    @Test
+    public void floorHoldsEvenWhenStorageKeepsUp() {
+        StorageGovernor governor = new StorageGovernor("right", new CountingListener(), WRITER_THREADS, 0, 0);
+        Simulation simulation = new Simulation(governor, Long.MAX_VALUE / 2);
+        simulation.run(5000, 100000);
+        assertEquals(1, governor.getKeepEveryN());
+        governor.setMinKeepEveryN(3);
+        simulation.run(1000, 100000);
+        assertEquals(3, governor.getKeepEveryN());
+        simulation.run(10000, 100000);
+        assertEquals(3, governor.getKeepEveryN());
+        governor.setMinKeepEveryN(1);
+        simulation.run(15000, 100000);
+        assertEquals(1, governor.getKeepEveryN());
+        assertEquals(0, simulation.mDropped);
+    }
+
+    @Test
+    public void stopsOnceBeforeTheReserve() {
+        CountingListener listener = new CountingListener();
+        long reserve_bytes = 100000000;
+        StorageGovernor governor = new StorageGovernor("left", listener, WRITER_THREADS, reserve_bytes, 10);
+        StringWriter log = new StringWriter();
+        governor.setDecisionLog(log);
+        Simulation simulation = new Simulation(governor, 1000000000);
+
+        simulation.run(20000, 10000);
+        assertFalse(governor.isExhausted());
+        assertEquals(0, listener.mCalls);
+        // About 15 MB/s once decimated; less than ten seconds of that is left at ~250 MB.
+        simulation.run(60000, 10000);
+        assertTrue(governor.isExhausted());
+        assertEquals(1, listener.mCalls);
+        assertTrue(listener.mFreeBytes > reserve_bytes);
+        assertTrue(governor.getRemainingS() < 10);
+        assertTrue(log.toString().contains(" left stop "));
+    }
+
+    private static int busyWriters(Simulation simulation) {
+        int busy = 0;
+        for (long until : simulation.mBusyUntilMs) {
+            if (until != 0) {
+                ++busy;
+            }
+        }
+        return busy;
+    }
+}
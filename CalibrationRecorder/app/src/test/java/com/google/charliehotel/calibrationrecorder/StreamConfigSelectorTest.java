@@ -0,0 +1,201 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.graphics.ImageFormat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs StreamConfigSelector against capability tables in the format runs record, and
+ * checks the chosen size, AE range, exposure and predicted rate for typical profiles.
+ */
+public class StreamConfigSelectorTest {
+    // A phone whose full-resolution JPEG stalls, with 60 fps YUV at 1080p, RAW, and
+    // constrained high-speed modes.
+    private static final String PHONE =
+            "# stream format width height min_frame_duration_ns stall_duration_ns\n"
+            + "stream 256 4032 3024 33333333 33333333\n"
+            + "stream 256 1920 1080 33333333 0\n"
+            + "stream 256 1280 720 33333333 0\n"
+            + "stream 35 4032 3024 50000000 0\n"
+            + "stream 35 1920 1080 16666666 0\n"
+            + "stream 35 640 480 8333333 0\n"
+            + "stream 32 4032 3024 33333333 0\n"
+            + "fps_range 15 30\n"
+            + "fps_range 30 30\n"
+            + "fps_range 7 30\n"
+            + "fps_range 60 60\n"
+            + "exposure_range 10000 200000000\n"
+            + "sensitivity_range 50 3200\n"
+            + "max_frame_duration 400000000\n"
+            + "high_speed 1280 720 30 120\n"
+            + "high_speed 1280 720 120 120\n"
+            + "high_speed 1280 720 240 240\n"
+            + "high_speed 1920 1080 120 120\n";
+
+    // A LEGACY-level camera: JPEG and YUV only, nothing reported but sizes and AE ranges.
+    private static final String LEGACY =
+            "stream 256 1600 1200 33333333 0\n"
+            + "stream 35 1600 1200 33333333 0\n"
+            + "fps_range 15 30\n";
+
+    private static StreamConfigSelector.Capabilities read(String table) throws IOException {
+        return StreamConfigSelector.Capabilities.read(new StringReader(table));
+    }
+
+    private static CaptureProfile profile(int format, int width, int height, int min_fps, int max_fps) {
+        return new CaptureProfile(format, width, height, min_fps, max_fps,
+                CaptureProfile.EXPOSURE_AUTO, CaptureProfile.UNSPECIFIED, CaptureProfile.UNSPECIFIED);
+    }
+
+    private static void assertSize(StreamConfigSelector.Selection selection, int format, int width, int height) {
+        assertEquals(selection.toString(), format, selection.getStreamConfig().getFormat());
+        assertEquals(selection.toString(), width, selection.getStreamConfig().getWidth());
+        assertEquals(selection.toString(), height, selection.getStreamConfig().getHeight());
+    }
+
+    @Test
+    public void defaultProfileGetsFixed30FpsJpeg() throws IOException {
+        StreamConfigSelector.Selection selection =
+                StreamConfigSelector.select(read(PHONE), CaptureProfile.DEFAULT);
+        assertSize(selection, ImageFormat.JPEG, 1920, 1080);
+        assertEquals(30, selection.getFpsRangeLower());
+        assertEquals(30, selection.getFpsRangeUpper());
+        assertEquals(30.0, selection.getPredictedFps(), 0.01);
+        assertTrue(selection.meetsMinFps());
+        assertFalse(selection.isHighSpeed());
+    }
+
+    @Test
+    public void stallingSizeLosesToOneThatKeepsUp() throws IOException {
+        // Full-resolution JPEG only reaches 15 fps once its stall is counted.
+        StreamConfigSelector.Selection selection = StreamConfigSelector.select(read(PHONE),
+                profile(ImageFormat.JPEG, 4032, 3024, 30, 30));
+        assertSize(selection, ImageFormat.JPEG, 1920, 1080);
+        assertTrue(selection.meetsMinFps());
+
+        selection = StreamConfigSelector.select(read(PHONE), profile(ImageFormat.JPEG, 4032, 3024, 10, 30));
+        assertSize(selection, ImageFormat.JPEG, 4032, 3024);
+        // No AE range fits under 15 fps, so AE runs at the stream's own rate.
+        assertEquals(10, selection.getFpsRangeLower());
+        assertEquals(15, selection.getFpsRangeUpper());
+        assertEquals(15.0, selection.getPredictedFps(), 0.01);
+        assertTrue(selection.meetsMinFps());
+    }
+
+    @Test
+    public void yuvAt60FpsPredictsItsBandwidth() throws IOException {
+        StreamConfigSelector.Selection selection = StreamConfigSelector.select(read(PHONE),
+                profile(ImageFormat.YUV_420_888, 1920, 1080, 60, 60));
+        assertSize(selection, ImageFormat.YUV_420_888, 1920, 1080);
+        assertEquals(60, selection.getFpsRangeLower());
+        assertEquals(60, selection.getFpsRangeUpper());
+        assertEquals(1920 * 1080 * 3 / 2, selection.getPredictedBytesPerFrame());
+        assertEquals(1920 * 1080 * 3 / 2 * 60, selection.getPredictedBytesPerSecond(), 1920 * 1080);
+    }
+
+    @Test
+    public void rollingShutterExposureLeavesRoomForReadout() throws IOException {
+        CaptureProfile profile = new CaptureProfile(ImageFormat.YUV_420_888, 1920, 1080, 30, 30,
+                CaptureProfile.EXPOSURE_ROLLING_SHUTTER, CaptureProfile.UNSPECIFIED, CaptureProfile.UNSPECIFIED);
+        StreamConfigSelector.Selection selection = StreamConfigSelector.select(read(PHONE), profile);
+        assertEquals(33333333, selection.getFrameDurationNs());
+        assertEquals(33333333 - 16666666, selection.getExposureNs());
+        assertEquals(50, selection.getSensitivity());
+
+        // A requested exposure that fits is kept as is.
+        profile = new CaptureProfile(ImageFormat.YUV_420_888, 1920, 1080, 30, 30,
+                CaptureProfile.EXPOSURE_ROLLING_SHUTTER, 2000000, 400);
+        selection = StreamConfigSelector.select(read(PHONE), profile);
+        assertEquals(2000000, selection.getExposureNs());
+        assertEquals(400, selection.getSensitivity());
+        assertEquals(33333333, selection.getFrameDurationNs());
+    }
+
+    @Test
+    public void fixedExposureIsCappedByTheFrameRate() throws IOException {
+        CaptureProfile profile = new CaptureProfile(ImageFormat.YUV_420_888, 1920, 1080, 30, 30,
+                CaptureProfile.EXPOSURE_FIXED, 50000000, 100000);
+        StreamConfigSelector.Selection selection = StreamConfigSelector.select(read(PHONE), profile);
+        assertEquals(33333333, selection.getExposureNs());
+        assertEquals(33333333, selection.getFrameDurationNs());
+        assertEquals(3200, selection.getSensitivity());
+        assertTrue(selection.meetsMinFps());
+
+        // At 2 fps the exposure is clamped to the device's range, and the frame duration
+        // to the longest the device supports.
+        profile = new CaptureProfile(ImageFormat.YUV_420_888, 1920, 1080, 1, 2,
+                CaptureProfile.EXPOSURE_FIXED, 1000000000, CaptureProfile.UNSPECIFIED);
+        selection = StreamConfigSelector.select(read(PHONE), profile);
+        assertEquals(200000000, selection.getExposureNs());
+        assertEquals(400000000, selection.getFrameDurationNs());
+        assertEquals(2.5, selection.getPredictedFps(), 0.01);
+    }
+
+    @Test
+    public void missingFormatFallsBack() throws IOException {
+        CaptureProfile raw = profile(ImageFormat.RAW_SENSOR, 4032, 3024, 30, 30);
+        try {
+            StreamConfigSelector.select(read(LEGACY), raw);
+            fail("Selected RAW on a device without it");
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+        StreamConfigSelector.Selection selection =
+                StreamConfigSelector.select(read(LEGACY), raw, CaptureProfile.DEFAULT);
+        assertSize(selection, ImageFormat.JPEG, 1600, 1200);
+        assertEquals(15, selection.getFpsRangeLower());
+        assertEquals(30, selection.getFpsRangeUpper());
+        // Devices that report no sensitivity range get the default.
+        CaptureProfile fixed = new CaptureProfile(ImageFormat.YUV_420_888, 1600, 1200, 30, 30,
+                CaptureProfile.EXPOSURE_FIXED, 10000000, CaptureProfile.UNSPECIFIED);
+        assertEquals(100, StreamConfigSelector.select(read(LEGACY), fixed).getSensitivity());
+    }
+
+    @Test
+    public void highSpeedPrefersFixedFeasibleRanges() throws IOException {
+        StreamConfigSelector.Selection selection = StreamConfigSelector.selectHighSpeed(read(PHONE),
+                profile(ImageFormat.JPEG, 1280, 720, 120, 120));
+        assertTrue(selection.isHighSpeed());
+        assertSize(selection, ImageFormat.PRIVATE, 1280, 720);
+        assertEquals(120, selection.getFpsRangeLower());
+        assertEquals(120, selection.getFpsRangeUpper());
+        assertEquals(0, selection.getPredictedBytesPerSecond());
+
+        // Only 720p reaches 240 fps, so it beats the closer 1080p.
+        selection = StreamConfigSelector.selectHighSpeed(read(PHONE),
+                profile(ImageFormat.JPEG, 1920, 1080, 240, 240));
+        assertSize(selection, ImageFormat.PRIVATE, 1280, 720);
+        assertEquals(240, selection.getFpsRangeUpper());
+        assertTrue(selection.meetsMinFps());
+
+        try {
+            StreamConfigSelector.selectHighSpeed(read(LEGACY), CaptureProfile.DEFAULT);
+            fail("Selected high speed on a device without it");
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void tableRoundTrips() throws IOException {
+        StreamConfigSelector.Capabilities capabilities = read(PHONE);
+        StringWriter written = new StringWriter();
+        capabilities.write(written);
+        assertEquals(PHONE, written.toString());
+        try {
+            read("stream 256 1920 1080\n");
+            fail("Accepted a short stream line");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+}
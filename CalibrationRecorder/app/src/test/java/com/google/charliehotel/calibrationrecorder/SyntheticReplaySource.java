@@ -0,0 +1,218 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.graphics.ImageFormat;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Generates a recording: cameras at a fixed rate with YUV_420_888 sized images, and an
+ * accel and a gyro stream at a fixed rate, for as many seconds as asked.
+ *
+ * Images are a RawImageHeader and three planes of a fixed pattern; every frame shares
+ * one read-only buffer, so generating costs nothing per frame and the writers see the
+ * same bytes per image as from a real camera.  Timestamps have a little jitter, as sensor
+ * timestamps do, but never go backwards.  The same arguments generate the same events.
+ */
+class SyntheticReplaySource implements ReplaySource {
+    static final int DEFAULT_IMU_HZ = 400;
+
+    private static final String[] CAMERA_NAMES = {"left", "right"};
+    private static final String[] IMU_STREAM_NAMES = {"accel", "gyro"};
+    // Sensor.TYPE_ACCELEROMETER and Sensor.TYPE_GYROSCOPE_UNCALIBRATED.
+    private static final int[] IMU_SENSOR_IDS = {1, 16};
+
+    private static final long FIRST_TIMESTAMP_NS = 1000L * 1000 * 1000 * 1000;
+    private static final long EXPOSURE_NS = 5 * 1000 * 1000;
+    private static final long SKEW_NS = 10 * 1000 * 1000;
+
+    // Timestamp jitter, as a fraction of the period.
+    private static final double JITTER = 0.02;
+
+    SyntheticReplaySource(int cameras, int width, int height, double fps, int imu_hz, double seconds) {
+        if (cameras < 0 || cameras > CAMERA_NAMES.length) {
+            throw new IllegalArgumentException("Bad camera count " + cameras);
+        }
+        mCameras = cameras;
+        mFramePeriodNs = Math.round(1e9 / fps);
+        mImuPeriodNs = imu_hz > 0 ? Math.round(1e9 / imu_hz) : 0;
+        mEndNs = FIRST_TIMESTAMP_NS + Math.round(seconds * 1e9);
+        mPayload = renderPayload(width, height);
+        mNextFrameNs = new long[cameras];
+        mFrameNumbers = new long[cameras];
+        mNextImuNs = new long[mImuPeriodNs > 0 ? IMU_STREAM_NAMES.length : 0];
+        for (int i = 0; i < cameras; ++i) {
+            mNextFrameNs[i] = FIRST_TIMESTAMP_NS + i * mFramePeriodNs / 100;
+        }
+        for (int i = 0; i < mNextImuNs.length; ++i) {
+            mNextImuNs[i] = FIRST_TIMESTAMP_NS;
+        }
+    }
+
+    private static ByteBuffer renderPayload(int width, int height) {
+        int luma_size = width * height;
+        int chroma_size = width * height / 2 - 1;
+        RawImageHeader header = new RawImageHeader(ImageFormat.YUV_420_888, width, height,
+                FIRST_TIMESTAMP_NS, 3);
+        header.setPlane(0, width, 1, luma_size);
+        header.setPlane(1, width, 2, chroma_size);
+        header.setPlane(2, width, 2, chroma_size);
+        ByteBuffer encoded = header.encode();
+        ByteBuffer payload = ByteBuffer.allocateDirect(encoded.remaining() + luma_size + 2 * chroma_size);
+        payload.put(encoded);
+        while (payload.hasRemaining()) {
+            payload.put((byte) (payload.position() * 31));
+        }
+        payload.flip();
+        return payload.asReadOnlyBuffer();
+    }
+
+    @Override
+    public int getCameraCount() {
+        return mCameras;
+    }
+
+    @NonNull
+    @Override
+    public String getCameraName(int camera) {
+        return CAMERA_NAMES[camera];
+    }
+
+    @Override
+    public int getImuStreamCount() {
+        return mNextImuNs.length;
+    }
+
+    @NonNull
+    @Override
+    public String getImuStreamName(int stream) {
+        return IMU_STREAM_NAMES[stream];
+    }
+
+    @Override
+    public int getImuSensorId(int stream) {
+        return IMU_SENSOR_IDS[stream];
+    }
+
+    @Override
+    public int getImuValuesPerSample(int stream) {
+        return ImuLogFormat.THREE_AXIS_VALUES;
+    }
+
+    @Override
+    public long getImuPeriodNs(int stream) {
+        return mImuPeriodNs;
+    }
+
+    @Override
+    public boolean next() {
+        int type = -1;
+        int stream = 0;
+        long best_ns = Long.MAX_VALUE;
+        for (int i = 0; i < mNextImuNs.length; ++i) {
+            if (mNextImuNs[i] < best_ns) {
+                type = EVENT_IMU;
+                stream = i;
+                best_ns = mNextImuNs[i];
+            }
+        }
+        for (int i = 0; i < mCameras; ++i) {
+            if (mNextFrameNs[i] < best_ns) {
+                type = EVENT_FRAME;
+                stream = i;
+                best_ns = mNextFrameNs[i];
+            }
+        }
+        if (type < 0 || best_ns >= mEndNs) {
+            return false;
+        }
+        mEventType = type;
+        mStream = stream;
+        mTimestampNs = best_ns;
+        if (type == EVENT_FRAME) {
+            mFrameNumber = mFrameNumbers[stream]++;
+            mNextFrameNs[stream] = nextTimestamp(best_ns, mFramePeriodNs);
+        } else {
+            double t = (best_ns - FIRST_TIMESTAMP_NS) * 1e-9;
+            float scale = stream == 0 ? 9.81f : 1.0f;
+            mValues[0] = scale * (float) Math.sin(t);
+            mValues[1] = scale * (float) Math.cos(1.3 * t);
+            mValues[2] = stream == 0 ? scale : (float) Math.sin(0.7 * t);
+            mNextImuNs[stream] = nextTimestamp(best_ns, mImuPeriodNs);
+        }
+        return true;
+    }
+
+    private long nextTimestamp(long timestamp_ns, long period_ns) {
+        return timestamp_ns + period_ns + Math.round((mRandom.nextDouble() - 0.5) * 2 * JITTER * period_ns);
+    }
+
+    @Override
+    public int getEventType() {
+        return mEventType;
+    }
+
+    @Override
+    public int getStream() {
+        return mStream;
+    }
+
+    @Override
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    @Override
+    public long getFrameNumber() {
+        return mFrameNumber;
+    }
+
+    @Override
+    public long getExposureNs() {
+        return EXPOSURE_NS;
+    }
+
+    @Override
+    public long getSkewNs() {
+        return SKEW_NS;
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer getFramePayload() {
+        return mPayload.duplicate();
+    }
+
+    @NonNull
+    @Override
+    public float[] getValues() {
+        return mValues;
+    }
+
+    @Override
+    public int getValueCount() {
+        return ImuLogFormat.THREE_AXIS_VALUES;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private final int mCameras;
+    private final long mFramePeriodNs;
+    private final long mImuPeriodNs;
+    private final long mEndNs;
+    private final ByteBuffer mPayload;
+    private final long[] mNextFrameNs;
+    private final long[] mFrameNumbers;
+    private final long[] mNextImuNs;
+    private final Random mRandom = new Random(1);
+
+    private int mEventType;
+    private int mStream;
+    private long mTimestampNs;
+    private long mFrameNumber;
+    private final float[] mValues = new float[ImuLogFormat.THREE_AXIS_VALUES];
+}
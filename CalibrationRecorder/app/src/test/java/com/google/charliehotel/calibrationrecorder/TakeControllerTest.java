@@ -0,0 +1,211 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives TakeController through start, stop and rotation with a listener that checks what
+ * the controller reports from inside its callbacks, on a simulated clock and frame stream.
+ */
+public class TakeControllerTest {
+    private static final long NS_PER_MS = 1000 * 1000;
+    private static final long FRAME_PERIOD_NS = 33 * NS_PER_MS;
+
+    /**
+     * Records the callbacks, and while inside them checks that the take is neither
+     * recording nor startable.
+     */
+    private class CheckingListener implements TakeController.Listener {
+        @Override
+        public void onTakeStarted(@NonNull TakeController.Take take) throws IOException {
+            checkBusy("STARTING");
+            mEvents.add("start " + take.getName());
+            if (mFailStarts > 0) {
+                --mFailStarts;
+                if (mThrowRuntime) {
+                    throw new IllegalStateException("No camera");
+                }
+                throw new IOException("Disk full");
+            }
+        }
+
+        @Override
+        public void onTakeStopped(@NonNull TakeController.Take take) {
+            checkBusy("STOPPING");
+            mEvents.add("stop " + take.getName() + " " + take.getFrameCount());
+        }
+
+        private void checkBusy(String state) {
+            assertFalse(mController.isRecording());
+            assertNull(mController.getCurrentTake());
+            assertNull(mController.stop(0));
+            try {
+                mController.start(0);
+                fail("Started a take while " + state);
+            } catch (IllegalStateException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().endsWith(state));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private final List<String> mEvents = new ArrayList<>();
+        private int mFailStarts;
+        private boolean mThrowRuntime;
+    }
+
+    private TakeController newController(long max_duration_ns, long max_frames) {
+        mController = new TakeController(mListener, max_duration_ns, max_frames);
+        return mController;
+    }
+
+    // Feeds frames until the controller asks for rotation; returns how many it took.
+    private long feedUntilRotation(TakeController controller, long limit) {
+        for (long frames = 1; frames <= limit; ++frames) {
+            mTimestampNs += FRAME_PERIOD_NS;
+            if (controller.onFrame(mTimestampNs, mTimestampNs + NS_PER_MS)) {
+                return frames;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void startsAndStops() throws IOException {
+        TakeController controller = newController(TakeController.UNLIMITED, TakeController.UNLIMITED);
+        assertFalse(controller.isRecording());
+        assertNull(controller.stop(0));
+        assertFalse(controller.onFrame(1, 1));
+
+        TakeController.Take take = controller.start(100);
+        assertTrue(controller.isRecording());
+        assertSame(take, controller.getCurrentTake());
+        assertEquals("take_000", take.getName());
+        try {
+            controller.start(200);
+            fail("Started a second take");
+        } catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().endsWith("RECORDING"));
+        }
+        assertFalse(controller.onFrame(1000, 2000));
+        assertFalse(controller.onFrame(2000, 3000));
+
+        assertSame(take, controller.stop(5000));
+        assertFalse(controller.isRecording());
+        assertNull(controller.getCurrentTake());
+        assertNull(controller.stop(6000));
+        assertFalse(controller.onFrame(3000, 4000));
+        assertEquals(2, take.getFrameCount());
+        assertEquals(5000, take.getStopNs());
+        assertEquals("[start take_000, stop take_000 2]", mListener.mEvents.toString());
+
+        assertEquals("take_001", controller.start(7000).getName());
+        assertEquals(2, controller.getTakes().size());
+    }
+
+    @Test
+    public void failedStartIsRolledBack() throws IOException {
+        TakeController controller = newController(TakeController.UNLIMITED, TakeController.UNLIMITED);
+        mListener.mFailStarts = 1;
+        try {
+            controller.start(100);
+            fail("Start did not fail");
+        } catch (IOException expected) {
+            // Expected.
+        }
+        assertFalse(controller.isRecording());
+        assertTrue(controller.getTakes().isEmpty());
+
+        mListener.mFailStarts = 1;
+        mListener.mThrowRuntime = true;
+        try {
+            controller.start(200);
+            fail("Start did not fail");
+        } catch (IllegalStateException expected) {
+            assertEquals("No camera", expected.getMessage());
+        }
+        assertFalse(controller.isRecording());
+        assertFalse(controller.onFrame(1000, 1000));
+
+        // Abandoned takes keep their names, so no directory is reused.
+        TakeController.Take take = controller.start(300);
+        assertEquals("take_002", take.getName());
+        assertEquals(1, controller.getTakes().size());
+        assertSame(take, controller.stop(400));
+    }
+
+    @Test
+    public void rotatesAtFrameLimit() throws IOException {
+        TakeController controller = newController(TakeController.UNLIMITED, 100);
+        controller.start(0);
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(100, feedUntilRotation(controller, 1000));
+            TakeController.Take next = controller.rotate(mTimestampNs);
+            assertEquals(String.format(Locale.US, "take_%03d", i + 1), next.getName());
+            assertEquals(0, next.getFrameCount());
+        }
+        controller.stop(mTimestampNs);
+        List<TakeController.Take> takes = controller.getTakes();
+        assertEquals(4, takes.size());
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(100, takes.get(i).getFrameCount());
+            assertEquals(99 * FRAME_PERIOD_NS,
+                    takes.get(i).getLastFrameTimestampNs() - takes.get(i).getFirstFrameTimestampNs());
+        }
+        assertEquals("[start take_000, stop take_000 100, start take_001, stop take_001 100,"
+                + " start take_002, stop take_002 100, start take_003, stop take_003 0]",
+                mListener.mEvents.toString());
+    }
+
+    @Test
+    public void rotatesAtDurationLimit() throws IOException {
+        TakeController controller = newController(10 * FRAME_PERIOD_NS, TakeController.UNLIMITED);
+        controller.start(0);
+        // The duration runs from the first frame's timestamp, so 11 frames span it.
+        assertEquals(11, feedUntilRotation(controller, 1000));
+        // Until rotated, every further frame still asks for it.
+        mTimestampNs += FRAME_PERIOD_NS;
+        assertTrue(controller.onFrame(mTimestampNs, mTimestampNs));
+        controller.rotate(mTimestampNs);
+        assertEquals(11, feedUntilRotation(controller, 1000));
+        assertEquals(12, controller.getTakes().get(0).getFrameCount());
+        assertEquals("take_001", controller.getCurrentTake().getName());
+    }
+
+    @Test
+    public void measuresTimeToFirstFrame() throws IOException {
+        TakeController controller = newController(TakeController.UNLIMITED, TakeController.UNLIMITED);
+        TakeController.Take take = controller.start(1000 * NS_PER_MS);
+        assertEquals(-1, take.getTimeToFirstFrameNs());
+        // Arrival times count, not sensor timestamps, which are on another clock.
+        controller.onFrame(5 * NS_PER_MS, 1045 * NS_PER_MS);
+        controller.onFrame(38 * NS_PER_MS, 1078 * NS_PER_MS);
+        controller.stop(1100 * NS_PER_MS);
+        assertEquals(45 * NS_PER_MS, take.getTimeToFirstFrameNs());
+        assertEquals(5 * NS_PER_MS, take.getFirstFrameTimestampNs());
+        assertEquals(38 * NS_PER_MS, take.getLastFrameTimestampNs());
+        assertEquals("take_000 1000000000 45000000 5000000 38000000 2 1100000000", take.formatSummary());
+        assertEquals(TakeController.SUMMARY_HEADER.split(" ").length - 1, take.formatSummary().split(" ").length);
+
+        TakeController.Take empty = controller.start(2000 * NS_PER_MS);
+        controller.stop(2500 * NS_PER_MS);
+        assertEquals(-1, empty.getTimeToFirstFrameNs());
+    }
+
+    private final CheckingListener mListener = new CheckingListener();
+    private TakeController mController;
+    private long mTimestampNs;
+}
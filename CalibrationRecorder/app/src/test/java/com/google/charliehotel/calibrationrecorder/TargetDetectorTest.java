@@ -0,0 +1,245 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks TargetDetector and FrameSelector on synthetic checkerboards and measures the
+ * detector's throughput.
+ *
+ * Boards are rendered with 2x2 supersampling, in any position, size, rotation and
+ * foreshortening, on a noisy grey background, optionally box-blurred.  The checks are
+ * the ones calibration relies on: a board is found with its inner corners where they
+ * were drawn, noise alone is not, blur lowers sharpness below the selector's threshold,
+ * a repeated pose is redundant and a moved one novel.  The throughput check runs the
+ * selection stream's size on Camera's detector pool, which has to keep up with 30 fps.
+ */
+public class TargetDetectorTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int BENCHMARK_FRAMES = 300;
+    private static final double MIN_FRAMES_PER_S = 30;
+    private static final int DETECTOR_THREADS = 2;
+    private static final double SQUARE = Math.min(WIDTH, HEIGHT) / 12.0;
+
+    private static final int BOARD_COLUMNS = 10;
+    private static final int BOARD_ROWS = 7;
+    private static final int BACKGROUND = 128;
+    private static final int DARK = 30;
+    private static final int LIGHT = 220;
+    private static final int NOISE = 6;
+
+    // How close a detected corner has to be to a drawn one, in pixels.
+    private static final double CORNER_TOLERANCE = 1.5;
+
+    /**
+     * A board on screen: centre, size of a square in pixels, in-plane rotation and the
+     * horizontal foreshortening of a board turned about its vertical axis.
+     */
+    private static class Pose {
+        Pose(double center_x, double center_y, double square, double angle, double foreshortening) {
+            mCenterX = center_x;
+            mCenterY = center_y;
+            mSquare = square;
+            mAngle = angle;
+            mForeshortening = foreshortening;
+        }
+
+        // Pixel position of board point (u, v), in squares from the board's centre.
+        double toX(double u, double v) {
+            double x = u * mSquare * mForeshortening;
+            double y = v * mSquare;
+            return mCenterX + x * Math.cos(mAngle) - y * Math.sin(mAngle);
+        }
+
+        double toY(double u, double v) {
+            double x = u * mSquare * mForeshortening;
+            double y = v * mSquare;
+            return mCenterY + x * Math.sin(mAngle) + y * Math.cos(mAngle);
+        }
+
+        private final double mCenterX;
+        private final double mCenterY;
+        private final double mSquare;
+        private final double mAngle;
+        private final double mForeshortening;
+    }
+
+    /**
+     * Renders the board at pose, or only background if pose is null, then box-blurs it
+     * blur_passes times.
+     */
+    private static void render(@NonNull byte[] luma, int width, int height, Pose pose, int blur_passes,
+                       @NonNull Random random) {
+        double cos = pose != null ? Math.cos(pose.mAngle) : 1;
+        double sin = pose != null ? Math.sin(pose.mAngle) : 0;
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                int sum = 0;
+                for (int s = 0; s < 4; ++s) {
+                    double px = x + 0.25 + 0.5 * (s & 1);
+                    double py = y + 0.25 + 0.5 * (s >> 1);
+                    sum += pose == null ? BACKGROUND : shade(pose, cos, sin, px, py);
+                }
+                int value = sum / 4 + random.nextInt(2 * NOISE + 1) - NOISE;
+                luma[y * width + x] = (byte) Math.max(0, Math.min(255, value));
+            }
+        }
+        for (int pass = 0; pass < blur_passes; ++pass) {
+            boxBlur(luma, width, height);
+        }
+    }
+
+    private static int shade(Pose pose, double cos, double sin, double px, double py) {
+        double dx = px - pose.mCenterX;
+        double dy = py - pose.mCenterY;
+        double u = (dx * cos + dy * sin) / (pose.mSquare * pose.mForeshortening);
+        double v = (-dx * sin + dy * cos) / pose.mSquare;
+        // A one square white margin around the squares, as printed targets have.
+        if (Math.abs(u) > BOARD_COLUMNS / 2.0 + 1 || Math.abs(v) > BOARD_ROWS / 2.0 + 1) {
+            return BACKGROUND;
+        }
+        if (Math.abs(u) > BOARD_COLUMNS / 2.0 || Math.abs(v) > BOARD_ROWS / 2.0) {
+            return LIGHT;
+        }
+        long column = (long) Math.floor(u + BOARD_COLUMNS / 2.0);
+        long row = (long) Math.floor(v + BOARD_ROWS / 2.0);
+        return ((column + row) & 1) == 0 ? DARK : LIGHT;
+    }
+
+    private static void boxBlur(byte[] luma, int width, int height) {
+        byte[] copy = luma.clone();
+        for (int y = 1; y < height - 1; ++y) {
+            for (int x = 1; x < width - 1; ++x) {
+                int sum = 0;
+                for (int dy = -1; dy <= 1; ++dy) {
+                    for (int dx = -1; dx <= 1; ++dx) {
+                        sum += copy[(y + dy) * width + x + dx] & 0xff;
+                    }
+                }
+                luma[y * width + x] = (byte) (sum / 9);
+            }
+        }
+    }
+
+    @Before
+    public void startPool() {
+        mPool = new ForkJoinPool(DETECTOR_THREADS);
+        mDetector = new TargetDetector(WIDTH, HEIGHT, mPool);
+    }
+
+    @After
+    public void stopPool() {
+        mPool.shutdown();
+    }
+
+    private TargetDetector.Detection detect(Pose pose, int blur_passes) {
+        render(mLuma, WIDTH, HEIGHT, pose, blur_passes, mRandom);
+        return mDetector.detect(mLuma, WIDTH);
+    }
+
+    @Test
+    public void findsBoardAndItsInnerCorners() {
+        Pose front = new Pose(WIDTH / 2.0, HEIGHT / 2.0, SQUARE, 0.1, 1.0);
+        TargetDetector.Detection detection = detect(front, 0);
+        assertTrue(detection.isTargetFound());
+        int inner = (BOARD_COLUMNS - 1) * (BOARD_ROWS - 1);
+        int matched = countMatchedCorners(detection, front);
+        String corners = "inner corners " + matched + " of " + inner + ", " + detection.getCornerCount() + " detected";
+        assertTrue(corners, matched >= inner * 9 / 10);
+        assertTrue(corners, detection.getCornerCount() <= inner + inner / 5);
+        assertEquals(0.5, detection.getCenterX(), 0.02);
+        assertEquals(0.5, detection.getCenterY(), 0.02);
+
+        Pose tilted = new Pose(WIDTH * 0.35, HEIGHT * 0.6, SQUARE * 0.8, 0.6, 0.6);
+        detection = detect(tilted, 0);
+        assertTrue(detection.isTargetFound());
+        assertTrue("tilted inner corners " + countMatchedCorners(detection, tilted),
+                countMatchedCorners(detection, tilted) >= inner * 3 / 4);
+    }
+
+    @Test
+    public void selectorKeepsNovelSharpPosesOnly() {
+        FrameSelector selector = new FrameSelector();
+        Pose front = new Pose(WIDTH / 2.0, HEIGHT / 2.0, SQUARE, 0.1, 1.0);
+        TargetDetector.Detection detection = detect(front, 0);
+        double sharp = detection.getSharpness();
+        assertTrue("sharpness " + sharp, sharp >= FrameSelector.DEFAULT_MIN_SHARPNESS);
+        assertEquals(FrameSelector.KEEP_NOVEL, selector.decide(detection));
+        assertEquals(FrameSelector.REJECT_REDUNDANT, selector.decide(detect(front, 0)));
+
+        detection = detect(front, 3);
+        assertTrue(String.format(Locale.US, "blur lowers sharpness %.2f -> %.2f", sharp, detection.getSharpness()),
+                detection.getSharpness() < FrameSelector.DEFAULT_MIN_SHARPNESS);
+        assertTrue(!detection.isTargetFound() || selector.decide(detection) == FrameSelector.REJECT_BLURRY);
+
+        Pose tilted = new Pose(WIDTH * 0.35, HEIGHT * 0.6, SQUARE * 0.8, 0.6, 0.6);
+        assertEquals(FrameSelector.KEEP_NOVEL, selector.decide(detect(tilted, 0)));
+
+        detection = detect(null, 0);
+        assertEquals("noise alone has " + detection.getCornerCount() + " corners",
+                FrameSelector.REJECT_NO_TARGET, selector.decide(detection));
+    }
+
+    @Test
+    public void keepsUpWithTheSelectionStream() {
+        Random random = new Random(2);
+        int variants = 8;
+        byte[][] images = new byte[variants][WIDTH * HEIGHT];
+        for (int i = 0; i < variants; ++i) {
+            Pose pose = new Pose(WIDTH * (0.3 + 0.4 * random.nextDouble()),
+                    HEIGHT * (0.3 + 0.4 * random.nextDouble()),
+                    Math.min(WIDTH, HEIGHT) / (10.0 + 6 * random.nextDouble()),
+                    random.nextDouble() * Math.PI, 0.5 + 0.5 * random.nextDouble());
+            render(images[i], WIDTH, HEIGHT, i == variants - 1 ? null : pose, i % 3 == 2 ? 2 : 0, random);
+        }
+        // Warm up the JIT.
+        for (int i = 0; i < 50; ++i) {
+            mDetector.detect(images[i % variants], WIDTH);
+        }
+        long start_ns = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_FRAMES; ++i) {
+            mDetector.detect(images[i % variants], WIDTH);
+        }
+        long elapsed_ns = System.nanoTime() - start_ns;
+        double frames_per_s = BENCHMARK_FRAMES * 1e9 / elapsed_ns;
+        assertTrue(String.format(Locale.US, "%.1f frames/s, %.3f ms/frame", frames_per_s,
+                elapsed_ns / 1e6 / BENCHMARK_FRAMES), frames_per_s >= MIN_FRAMES_PER_S);
+    }
+
+    // Drawn inner corners with a detected corner within CORNER_TOLERANCE.
+    private static int countMatchedCorners(TargetDetector.Detection detection, Pose pose) {
+        int matched = 0;
+        for (int column = 1; column < BOARD_COLUMNS; ++column) {
+            for (int row = 1; row < BOARD_ROWS; ++row) {
+                double u = column - BOARD_COLUMNS / 2.0;
+                double v = row - BOARD_ROWS / 2.0;
+                // Pixel centres are at +0.5.
+                double x = pose.toX(u, v) - 0.5;
+                double y = pose.toY(u, v) - 0.5;
+                for (int i = 0; i < detection.getCornerCount(); ++i) {
+                    if (Math.hypot(detection.getCornerX(i) - x, detection.getCornerY(i) - y) <= CORNER_TOLERANCE) {
+                        ++matched;
+                        break;
+                    }
+                }
+            }
+        }
+        return matched;
+    }
+
+    private ForkJoinPool mPool;
+    private TargetDetector mDetector;
+    private final byte[] mLuma = new byte[WIDTH * HEIGHT];
+    private final Random mRandom = new Random(1);
+}
@@ -0,0 +1,125 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that TextRecordEncoder writes exactly what the String.format conversions it
+ * replaced did, for edge cases and random values, and that the metadata and IMU lines
+ * built from it match their old format strings.
+ */
+public class TextRecordEncoderTest {
+    private static final int RANDOM_VALUES = 200 * 1000;
+
+    private static final long[] LONGS = {
+            0, 1, -1, 9, -9, 10, -10, 9999, 10000, 99999, 100000, -99999, -100000,
+            Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE,
+            Long.MAX_VALUE / 10, Long.MIN_VALUE / 10,
+    };
+
+    private static final float[] FLOATS = {
+            0.0f, -0.0f, 1.0f, -1.0f, 0.5f, 9.81f, (float) Math.PI, Float.MIN_VALUE, -Float.MIN_VALUE,
+            Float.MIN_NORMAL, Float.MAX_VALUE, -Float.MAX_VALUE, Float.NaN, Float.POSITIVE_INFINITY,
+            Float.NEGATIVE_INFINITY,
+    };
+
+    private final TextRecordEncoder mEncoder = new TextRecordEncoder();
+
+    private void checkLong(long value) {
+        assertEquals(String.format(Locale.US, "%d", value), mEncoder.clear().putLong(value).toString());
+        for (int width = 1; width <= 21; ++width) {
+            assertEquals(String.format(Locale.US, "%0" + width + "d", value),
+                    mEncoder.clear().putZeroPadded(value, width).toString());
+        }
+    }
+
+    private void checkFloat(float value) {
+        assertEquals(Float.toString(value), String.format(Locale.US, "%a", value),
+                mEncoder.clear().putHexFloat(value).toString());
+    }
+
+    private void checkDouble(double value) {
+        assertEquals(Double.toString(value), Double.toHexString(value),
+                mEncoder.clear().putHexDouble(value).toString());
+    }
+
+    @Test
+    public void longsMatchFormat() {
+        for (long value : LONGS) {
+            checkLong(value);
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < RANDOM_VALUES / 10; ++i) {
+            checkLong(random.nextLong() >> random.nextInt(64));
+        }
+    }
+
+    @Test
+    public void floatsMatchFormat() {
+        for (float value : FLOATS) {
+            checkFloat(value);
+        }
+        // The smallest subnormals, which widen to normal doubles.
+        for (int bits = 1; bits < 0x1000; ++bits) {
+            checkFloat(Float.intBitsToFloat(bits));
+        }
+        Random random = new Random(2);
+        for (int i = 0; i < RANDOM_VALUES; ++i) {
+            checkFloat(Float.intBitsToFloat(random.nextInt()));
+        }
+    }
+
+    @Test
+    public void doublesMatchToHexString() {
+        checkDouble(Double.MIN_VALUE);
+        checkDouble(Double.MIN_NORMAL);
+        checkDouble(Double.MAX_VALUE);
+        checkDouble(Double.NaN);
+        checkDouble(Double.NEGATIVE_INFINITY);
+        checkDouble(-0.0);
+        Random random = new Random(3);
+        for (int i = 0; i < RANDOM_VALUES; ++i) {
+            checkDouble(Double.longBitsToDouble(random.nextLong()));
+        }
+    }
+
+    @Test
+    public void linesMatchTheirFormatStrings() throws IOException {
+        Random random = new Random(4);
+        for (int i = 0; i < 1000; ++i) {
+            long timestamp_ns = random.nextLong() >>> 1;
+            long frame_number = random.nextInt(200000);
+            long exposure_ns = i % 10 == 0 ? CaptureMetadataFormat.MISSING : random.nextInt(100000000);
+            long skew_ns = random.nextInt(40000000);
+            CaptureMetadataFormat.encodeTextLine(mEncoder.clear(), timestamp_ns, frame_number, exposure_ns,
+                    skew_ns);
+            assertEquals(String.format(Locale.US, "%d %05d %d %d\n", timestamp_ns, frame_number, exposure_ns,
+                    skew_ns), mEncoder.toString());
+
+            float x = (float) random.nextGaussian();
+            float y = (float) random.nextGaussian() * 10;
+            float z = Float.intBitsToFloat(random.nextInt());
+            ImuLogFormat.encodeTextLine(mEncoder.clear(), timestamp_ns, x, y, z);
+            StringWriter writer = new StringWriter();
+            mEncoder.writeTo(writer);
+            assertEquals(String.format(Locale.US, "%d %a %a %a\n", timestamp_ns, x, y, z), writer.toString());
+            assertEquals(writer.toString().length(), mEncoder.length());
+        }
+    }
+
+    @Test
+    public void growsPastItsCapacity() {
+        TextRecordEncoder encoder = new TextRecordEncoder(4);
+        float[] values = {1.5f, -2.25f, Float.MAX_VALUE, Float.MIN_VALUE, 0.0f, 9.81f};
+        encoder.putAscii("camera").putSpace().putLong(Long.MIN_VALUE).putSpace().putHexFloats(values)
+                .putNewline();
+        assertEquals(String.format(Locale.US, "camera %d %a %a %a %a %a %a\n", Long.MIN_VALUE, values[0],
+                values[1], values[2], values[3], values[4], values[5]), encoder.toString());
+    }
+}
@@ -0,0 +1,170 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the sampler against a fake sysfs tree: zone discovery and order, type filtering,
+ * unreadable zones, the sample lines, and the throttle level with its hysteresis.
+ */
+public class ThermalSamplerTest {
+    private static final long MODERATE_MILLI_C = 70000;
+    private static final long SEVERE_MILLI_C = 85000;
+    private static final long HYSTERESIS_MILLI_C = 5000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mThermalDir;
+    private final List<String> mChanges = new ArrayList<>();
+
+    private final ThermalSampler.Listener mListener = new ThermalSampler.Listener() {
+        @Override
+        public void onThrottleLevelChanged(@NonNull ThermalSampler sampler, int level, long max_milli_c) {
+            mChanges.add(level + "@" + max_milli_c);
+        }
+    };
+
+    private static void write(File file, String contents) throws IOException {
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(contents);
+        }
+    }
+
+    private File zone(String name, String type, String temp) throws IOException {
+        File dir = new File(mThermalDir, name);
+        if (!dir.isDirectory() && !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        if (type != null) {
+            write(new File(dir, "type"), type + "\n");
+        }
+        if (temp != null) {
+            write(new File(dir, "temp"), temp + "\n");
+        }
+        return dir;
+    }
+
+    private void setTemp(String name, long milli_c) throws IOException {
+        write(new File(new File(mThermalDir, name), "temp"), milli_c + "\n");
+    }
+
+    @Before
+    public void writeTree() throws IOException {
+        mThermalDir = mFolder.newFolder("thermal");
+        zone("thermal_zone0", "cpu0", "45000");
+        zone("thermal_zone1", "battery", "30500");
+        // No temp file: left out.
+        zone("thermal_zone2", "modem", null);
+        zone("thermal_zone3", "skin therm", "garbage");
+        zone("thermal_zone10", null, "-2000");
+        zone("cooling_device0", "fan", "1");
+        write(new File(mThermalDir, "thermal_zone_bogus"), "");
+    }
+
+    private ThermalSampler open(String[] zone_types) throws IOException {
+        ThermalSampler sampler = new ThermalSampler(mThermalDir, MODERATE_MILLI_C, SEVERE_MILLI_C,
+                HYSTERESIS_MILLI_C);
+        sampler.open(zone_types);
+        sampler.setListener(mListener);
+        return sampler;
+    }
+
+    @Test
+    public void findsZonesInNumericOrder() throws IOException {
+        ThermalSampler sampler = open(null);
+        assertArrayEquals(new String[]{"cpu0", "battery", "skin_therm", "thermal_zone10"},
+                sampler.getZoneNames());
+        assertEquals("# timestamp_ns throttle_level cpu0_mC battery_mC skin_therm_mC thermal_zone10_mC",
+                sampler.getHeader());
+        sampler.close();
+    }
+
+    @Test
+    public void writesOneLinePerSample() throws IOException {
+        ThermalSampler sampler = open(null);
+        StringWriter log = new StringWriter();
+        sampler.setLog(log);
+        assertEquals(45000, sampler.sample(1000));
+        setTemp("thermal_zone0", 7);
+        setTemp("thermal_zone3", 52125);
+        assertEquals(52125, sampler.sample(2000));
+        assertEquals(-2000, sampler.getTempMilliC(3));
+        assertEquals("1000 0 45000 30500 nan -2000\n2000 0 7 30500 52125 -2000\n", log.toString());
+        assertEquals(2, sampler.getSampleCount());
+        assertEquals(52125, sampler.getMaxMilliC());
+        sampler.close();
+    }
+
+    @Test
+    public void throttleLevelHasHysteresis() throws IOException {
+        ThermalSampler sampler = open(new String[]{"cpu0"});
+        assertArrayEquals(new String[]{"cpu0"}, sampler.getZoneNames());
+        long[] temps = {69999, 70000, 72000, 66000, 64999, 86000, 81000, 80000, 79999, 90000, 20000};
+        int[] levels = {0, 1, 1, 1, 0, 2, 2, 2, 1, 2, 0};
+        for (int i = 0; i < temps.length; ++i) {
+            setTemp("thermal_zone0", temps[i]);
+            assertEquals(temps[i], sampler.sample(i));
+            assertEquals("at " + temps[i], levels[i], sampler.getThrottleLevel());
+        }
+        List<String> expected = new ArrayList<>();
+        expected.add("1@70000");
+        expected.add("0@64999");
+        expected.add("2@86000");
+        expected.add("1@79999");
+        expected.add("2@90000");
+        expected.add("0@20000");
+        assertEquals(expected, mChanges);
+        sampler.close();
+    }
+
+    @Test
+    public void unreadableZonesKeepTheLevel() throws IOException {
+        ThermalSampler sampler = open(new String[]{"skin therm"});
+        setTemp("thermal_zone3", 75000);
+        sampler.sample(0);
+        assertEquals(ThermalSampler.THROTTLE_MODERATE, sampler.getThrottleLevel());
+        write(new File(new File(mThermalDir, "thermal_zone3"), "temp"), "\n");
+        assertEquals(ThermalSampler.UNAVAILABLE, sampler.sample(1));
+        assertEquals(ThermalSampler.THROTTLE_MODERATE, sampler.getThrottleLevel());
+        sampler.close();
+    }
+
+    @Test
+    public void failsWithoutReadableZones() throws IOException {
+        try {
+            open(new String[]{"modem"});
+            fail("opened a zone without temp file");
+        } catch (IOException e) {
+            // Expected.
+        }
+        try {
+            new ThermalSampler(new File(mThermalDir, "missing"), MODERATE_MILLI_C, SEVERE_MILLI_C,
+                    HYSTERESIS_MILLI_C).open(null);
+            fail("opened a missing directory");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSevereBelowModerate() {
+        new ThermalSampler(mThermalDir, SEVERE_MILLI_C, MODERATE_MILLI_C, HYSTERESIS_MILLI_C);
+    }
+}
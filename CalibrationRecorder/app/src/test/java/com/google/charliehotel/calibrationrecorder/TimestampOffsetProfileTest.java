@@ -0,0 +1,59 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class TimestampOffsetProfileTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File write(String contents) throws IOException {
+        File file = mFolder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(contents.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return file;
+    }
+
+    @Test
+    public void loadsDeviceProfile() throws IOException {
+        File file = write("Pixel\\ XL.accel_offset_ns=1370833\n"
+                + "Pixel\\ XL.gyro_offset_ns= 1370833 \n"
+                + "Nexus\\ 5X.camera_offset_ns=-42\n");
+        TimestampOffsetProfile pixel = TimestampOffsetProfile.load(file, "Pixel XL");
+        assertEquals(1370833, pixel.getAccelOffsetNs());
+        assertEquals(1370833, pixel.getGyroOffsetNs());
+        assertEquals(0, pixel.getCameraOffsetNs());
+        TimestampOffsetProfile nexus = TimestampOffsetProfile.load(file, "Nexus 5X");
+        assertEquals(0, nexus.getAccelOffsetNs());
+        assertEquals(-42, nexus.getCameraOffsetNs());
+    }
+
+    @Test
+    public void missingFileMeansNoOffsets() throws IOException {
+        assertSame(TimestampOffsetProfile.NONE,
+                TimestampOffsetProfile.load(new File(mFolder.getRoot(), "missing"), "Pixel XL"));
+    }
+
+    @Test
+    public void rejectsBadValues() throws IOException {
+        File file = write("Pixel\\ XL.gyro_offset_ns=1.5ms\n");
+        try {
+            TimestampOffsetProfile.load(file, "Pixel XL");
+            fail("Accepted a non-integer offset");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the map a simulated encoder that reorders frames, lags the captures, skips some
+ * of them and puts out one frame nobody captured, with some capture results arriving
+ * after their frame; checks the sidecar line by line and looks frames up in the Table.
+ */
+public class VideoTimestampMapTest {
+    private static final int FRAMES = 600;
+    private static final long BASE_NS = 5000000000017L;
+    private static final long PERIOD_NS = 33333333;
+    private static final long OFFSET_NS = 12345;
+    private static final int ENCODER_LAG = 2;
+    private static final int SKIP_EVERY = 50;
+    private static final int LATE_RESULT_EVERY = 20;
+    private static final int LATE_RESULT_DELAY = 6;
+    private static final int KEY_FRAME_EVERY = 30;
+    // The encoder puts out a frame between these two captures that was never captured.
+    private static final int STRAY_AFTER = 300;
+
+    private static long sensorNs(int frame) {
+        return BASE_NS + frame * PERIOD_NS;
+    }
+
+    // What the encoder reports: microseconds, rounded rather than truncated.
+    private static long encoderPtsUs(long sensor_ns) {
+        return (sensor_ns + 500) / 1000;
+    }
+
+    @Test
+    public void matchesReorderedLaggingOutput() throws Exception {
+        // Output order: skipped captures left out, and every pair swapped as by B-frames.
+        List<Integer> encoded = new ArrayList<>();
+        for (int i = 0; i < FRAMES; ++i) {
+            if (i % SKIP_EVERY != SKIP_EVERY - 1) {
+                encoded.add(i);
+            }
+        }
+        for (int k = 1; k + 1 < encoded.size(); k += 2) {
+            int frame = encoded.get(k);
+            encoded.set(k, encoded.get(k + 1));
+            encoded.set(k + 1, frame);
+        }
+        long stray_pts_us = encoderPtsUs(sensorNs(STRAY_AFTER)) + PERIOD_NS / 2000;
+
+        StringWriter sidecar = new StringWriter();
+        VideoTimestampMap map = new VideoTimestampMap(sidecar);
+        map.writeHeader();
+        List<Integer> late = new ArrayList<>();
+        int next_output = 0;
+        int outputs = 0;
+        boolean stray_sent = false;
+        for (int step = 0; step < FRAMES + LATE_RESULT_DELAY + ENCODER_LAG + 2; ++step) {
+            if (step < FRAMES) {
+                if (step % LATE_RESULT_EVERY == 7) {
+                    late.add(step);
+                } else {
+                    map.addCapture(sensorNs(step), sensorNs(step) - OFFSET_NS, step);
+                }
+            }
+            for (int j = late.size() - 1; j >= 0; --j) {
+                int frame = late.get(j);
+                if (frame + LATE_RESULT_DELAY <= step) {
+                    map.addCapture(sensorNs(frame), sensorNs(frame) - OFFSET_NS, frame);
+                    late.remove(j);
+                }
+            }
+            while (next_output < encoded.size() && encoded.get(next_output) + ENCODER_LAG + 1 <= step) {
+                int frame = encoded.get(next_output++);
+                map.onEncodedFrame(encoderPtsUs(sensorNs(frame)), outputs++ % KEY_FRAME_EVERY == 0);
+                if (!stray_sent && frame > STRAY_AFTER) {
+                    map.onEncodedFrame(stray_pts_us, outputs++ % KEY_FRAME_EVERY == 0);
+                    stray_sent = true;
+                }
+            }
+        }
+        map.finish();
+        assertEquals(encoded.size(), next_output);
+        assertEquals(outputs, map.getEncodedFrameCount());
+        assertEquals(1, map.getUnmatchedFrameCount());
+        assertEquals(FRAMES / SKIP_EVERY, map.getSkippedCaptureCount());
+
+        String[] lines = sidecar.toString().split("\n");
+        assertEquals(VideoTimestampMap.HEADER, lines[0]);
+        assertEquals(outputs + 1, lines.length);
+        long first_pts_us = encoderPtsUs(sensorNs(encoded.get(0)));
+        Map<Long, long[]> by_index = new HashMap<>();
+        for (int i = 1; i < lines.length; ++i) {
+            String[] fields = lines[i].split(" ");
+            assertEquals(6, fields.length);
+            long[] row = new long[6];
+            for (int f = 0; f < 5; ++f) {
+                row[f] = Long.parseLong(fields[f]);
+            }
+            row[5] = fields[5].equals("1") ? 1 : 0;
+            assertTrue(by_index.put(row[0], row) == null);
+        }
+        int k = 0;
+        for (long index = 0; index < outputs; ++index) {
+            long[] row = by_index.get(index);
+            assertEquals(index % KEY_FRAME_EVERY == 0 ? 1 : 0, row[5]);
+            assertEquals(row[1] - first_pts_us, row[2]);
+            if (row[1] == stray_pts_us) {
+                assertEquals(VideoTimestampMap.UNMATCHED, row[3]);
+                assertEquals(VideoTimestampMap.UNMATCHED, row[4]);
+                continue;
+            }
+            int frame = encoded.get(k++);
+            assertEquals(frame, row[4]);
+            assertEquals(sensorNs(frame) - OFFSET_NS, row[3]);
+            assertEquals(encoderPtsUs(sensorNs(frame)), row[1]);
+        }
+        assertEquals(encoded.size(), k);
+
+        VideoTimestampMap.Table table = VideoTimestampMap.Table.read(new StringReader(sidecar.toString()));
+        assertEquals(outputs, table.size());
+        for (int frame : encoded) {
+            long pts_us = encoderPtsUs(sensorNs(frame));
+            for (long time_us : new long[]{pts_us, pts_us - 1, pts_us + 1, pts_us - first_pts_us}) {
+                int row = table.find(time_us);
+                assertTrue("frame " + frame + " at " + time_us, row >= 0);
+                assertEquals(frame, table.getFrameNumber(row));
+                assertEquals(sensorNs(frame) - OFFSET_NS, table.getTimestampNs(row));
+            }
+        }
+        for (int frame = SKIP_EVERY - 1; frame < FRAMES; frame += SKIP_EVERY) {
+            assertEquals(-1, table.find(encoderPtsUs(sensorNs(frame))));
+        }
+        int stray = table.find(stray_pts_us);
+        assertEquals(VideoTimestampMap.UNMATCHED, table.getFrameNumber(stray));
+        assertEquals(-1, table.find(encoderPtsUs(sensorNs(FRAMES + 10))));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsBadLines() throws Exception {
+        VideoTimestampMap.Table.read(new StringReader(VideoTimestampMap.HEADER + "\n0 1 2 3 4\n"));
+    }
+}
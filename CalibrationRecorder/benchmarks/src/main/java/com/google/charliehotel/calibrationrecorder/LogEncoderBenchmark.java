@@ -0,0 +1,122 @@
+package com.google.charliehotel.calibrationrecorder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The capture metadata and IMU text lines, built with TextRecordEncoder as the app does
+ * and with the String.format calls it replaced, and written to a Writer that only counts
+ * characters.  Run with -prof gc for the allocation per line:
+ *
+ *   ./gradlew :benchmarks:jmh -PjmhArgs='-prof gc'
+ *
+ * Values cycle through a table of plausible readings, so the lines vary in length as the
+ * logs' do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LogEncoderBenchmark {
+    private static final int VALUES = 1024;
+    private static final long SKEW_NS = 16000000;
+
+    /**
+     * Counts what is written, so nothing written can be optimized away.
+     */
+    private static class CountingWriter extends Writer {
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            mCount += length + chars[offset];
+        }
+
+        @Override
+        public void write(String s) {
+            mCount += s.length() + s.charAt(0);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private long mCount;
+    }
+
+    @Setup
+    public void generate() {
+        Random random = new Random(1);
+        long timestamp_ns = 1000L * 1000 * 1000 * 1000;
+        for (int i = 0; i < VALUES; ++i) {
+            timestamp_ns += 2500000 + random.nextInt(50000);
+            mTimestampsNs[i] = timestamp_ns;
+            mExposuresNs[i] = 1000000 + random.nextInt(30000000);
+            mValues[3 * i] = (float) random.nextGaussian();
+            mValues[3 * i + 1] = 9.81f + (float) random.nextGaussian();
+            mValues[3 * i + 2] = (float) random.nextGaussian() * 0.1f;
+        }
+    }
+
+    @Benchmark
+    public long captureLineEncoder() throws IOException {
+        int i = mNext++ & (VALUES - 1);
+        CaptureMetadataFormat.encodeTextLine(mEncoder.clear(), mTimestampsNs[i], mNext, mExposuresNs[i],
+                SKEW_NS);
+        mEncoder.writeTo(mWriter);
+        return mWriter.mCount;
+    }
+
+    // As Camera did, from the boxed values TotalCaptureResult.get() returns.
+    @Benchmark
+    public long captureLineFormat() throws IOException {
+        int i = mNext++ & (VALUES - 1);
+        Long timestamp_ns = mTimestampsNs[i];
+        Long exposure_ns = mExposuresNs[i];
+        Long skew_ns = SKEW_NS;
+        mWriter.write(String.format("%d %05d %d %d\n", timestamp_ns, mNext, exposure_ns, skew_ns));
+        return mWriter.mCount;
+    }
+
+    @Benchmark
+    public long imuLineEncoder() throws IOException {
+        int i = mNext++ & (VALUES - 1);
+        ImuLogFormat.encodeTextLine(mEncoder.clear(), mTimestampsNs[i], mValues[3 * i], mValues[3 * i + 1],
+                mValues[3 * i + 2]);
+        mEncoder.writeTo(mWriter);
+        return mWriter.mCount;
+    }
+
+    // As ImuTextWriter did.
+    @Benchmark
+    public long imuLineFormat() throws IOException {
+        int i = mNext++ & (VALUES - 1);
+        mWriter.write(String.format("%d %a %a %a\n", mTimestampsNs[i], mValues[3 * i], mValues[3 * i + 1],
+                mValues[3 * i + 2]));
+        return mWriter.mCount;
+    }
+
+    private final long[] mTimestampsNs = new long[VALUES];
+    private final long[] mExposuresNs = new long[VALUES];
+    private final float[] mValues = new float[3 * VALUES];
+    private final TextRecordEncoder mEncoder = new TextRecordEncoder();
+    private final CountingWriter mWriter = new CountingWriter();
+    private int mNext;
+}
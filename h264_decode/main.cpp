@@ -1,4 +1,5 @@
 #include <fcntl.h>
+#include <stdio.h>
 #include <stdlib.h>
 #include <sys/types.h>
 #include <unistd.h>
@@ -110,6 +111,8 @@ class VideoToImagesDecoder {
         TAG, AMediaExtractor_setDataSourceFd(extractor_.get(), fd_, 0, end));
 
     media_format_.reset(AMediaExtractor_getTrackFormat(extractor_.get(), 0));
+    ASSERT_MEDIA_STATUS_OK(
+        TAG, AMediaExtractor_selectTrack(extractor_.get(), 0));
 
     uint8_t *data;
     size_t size;
@@ -215,7 +218,21 @@ csd-0[7] = 0xE2
         size_t size;
         uint8_t *buf =
             AMediaCodec_getInputBuffer(codec_.get(), buf_index, &size);
+#ifdef EXTRACTOR
+        // One access unit per buffer, with its track time as presentation time,
+        // so output frames can be mapped back to captures.
+        ssize_t n_read = AMediaExtractor_readSampleData(extractor_.get(), buf, size);
+        int64_t pts_us = 0;
+        if (n_read < 0) {
+          n_read = 0;
+        } else {
+          pts_us = AMediaExtractor_getSampleTime(extractor_.get());
+          AMediaExtractor_advance(extractor_.get());
+        }
+#else
         ssize_t n_read = read(fd_, buf, size);
+        int64_t pts_us = 0;
+#endif
         LOG(INFO, "Read %ld data", n_read);
         ASSERT(n_read >= 0);
         if (n_read == 0) {
@@ -225,7 +242,7 @@ csd-0[7] = 0xE2
         ASSERT_MEDIA_STATUS_OK(
             TAG, AMediaCodec_queueInputBuffer(codec_.get(),
                                               buf_index,  0,
-                                              n_read, 0,
+                                              n_read, pts_us,
                                               (n_read == 0) ?
                                               AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM : 0));
       }
@@ -248,6 +265,10 @@ csd-0[7] = 0xE2
         if (info.flags & AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM) {
           saw_output_eos = true;
         }
+        if (info.size > 0) {
+          // Decoded frame times on stdout; VideoTimestampMap maps them to captures.
+          printf("%lld\n", (long long) info.presentationTimeUs);
+        }
         ASSERT_MEDIA_STATUS_OK(
             TAG, AMediaCodec_releaseOutputBuffer(codec_.get(), buf_index, true));
         ++frame_count;
@@ -288,19 +309,27 @@ csd-0[7] = 0xE2
 };
 
 
-int main()
+// h264_decode [<video> [<width> <height>]]
+int main(int argc, char *argv[])
 {
   LOG(INFO, "started");
 
 #ifdef EXTRACTOR
-  const std::string path("/data/local/tmp/test.mp4");
+  std::string path("/data/local/tmp/test.mp4");
   const std::string mime_type("doesn't/matter");
 #else
-  const std::string path("/data/local/tmp/test.h264");
+  std::string path("/data/local/tmp/test.h264");
   const std::string mime_type("video/avc");
 #endif
-  const int32_t width = 3840;
-  const int32_t height = 1920;
+  int32_t width = 3840;
+  int32_t height = 1920;
+  if (argc > 1) {
+    path = argv[1];
+  }
+  if (argc > 3) {
+    width = atoi(argv[2]);
+    height = atoi(argv[3]);
+  }
   const int32_t format = AIMAGE_FORMAT_YUV_420_888;
   const int32_t max_images = 2;
 
@@ -310,10 +339,8 @@ int main()
                                          format, max_images));
 
   decoder->Run();
-
-  while (1) {
-    sleep(5);
-  }
+  fflush(stdout);
+  return 0;
 }
 
 /*